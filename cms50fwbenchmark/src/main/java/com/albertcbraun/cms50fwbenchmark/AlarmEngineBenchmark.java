@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwbenchmark;
+
+import com.albertcbraun.cms50fwlib.AlarmEngine;
+import com.albertcbraun.cms50fwlib.AlarmListener;
+import com.albertcbraun.cms50fwlib.AlarmRule;
+import com.albertcbraun.cms50fwlib.FrameChannel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per frame cost of an {@link AlarmEngine} with 10 to 1000 rules over all channels,
+ * with a mix of onset durations, hysteresis and priorities, so that rules are raised
+ * and cleared during the measurement. The cost should grow linearly with the number
+ * of rules. One operation is one frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AlarmEngineBenchmark {
+
+    private static final int FRAMES = 4096;
+
+    @Param({"10", "100", "1000"})
+    public int rules;
+
+    private long[] frames;
+    private AlarmEngine engine;
+    private long frameIndex = 0;
+    private int changes = 0;
+
+    @Setup
+    public void setUp() {
+        frames = BenchmarkStreams.frames(FRAMES);
+        FrameChannel[] channels = new FrameChannel[]{FrameChannel.SPO2_PERCENTAGE, FrameChannel.PULSE_RATE,
+                FrameChannel.PULSE_INTENSITY, FrameChannel.FINGER_OUT_OF_SLEEVE};
+        AlarmRule.Priority[] priorities = AlarmRule.Priority.values();
+        List<AlarmRule> ruleList = new ArrayList<AlarmRule>(rules);
+        for (int i = 0; i < rules; i++) {
+            FrameChannel channel = channels[i % channels.length];
+            int threshold = channel == FrameChannel.PULSE_INTENSITY ? i % 16 : 60 + i % 40;
+            long onsetMs = (i % 20) * 500L;
+            AlarmRule rule = i % 2 == 0
+                    ? AlarmRule.below("rule " + i, channel, threshold, onsetMs)
+                    : AlarmRule.above("rule " + i, channel, threshold, onsetMs);
+            ruleList.add(rule.withHysteresis(i % 3, (i % 5) * 1000L).withPriority(priorities[i % priorities.length]));
+        }
+        engine = new AlarmEngine(ruleList, new AlarmListener() {
+            @Override
+            public void onAlarmRaised(AlarmRule rule, long time) {
+                changes++;
+            }
+
+            @Override
+            public void onAlarmCleared(AlarmRule rule, long time) {
+                changes++;
+            }
+        });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int evaluate() {
+        for (int i = 0; i < FRAMES; i++) {
+            engine.onFrame(frameIndex * 1000 / 60, frames[(int) (frameIndex % FRAMES)]);
+            frameIndex++;
+        }
+        return changes + engine.getActiveCount();
+    }
+}
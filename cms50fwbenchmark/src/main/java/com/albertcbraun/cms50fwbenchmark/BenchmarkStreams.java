@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwbenchmark;
+
+import com.albertcbraun.cms50fwsimulator.PhysiologyModel;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Canned CMS50FW data for the benchmarks, generated by the simulator's
+ * {@link PhysiologyModel} so the values look like real readings.
+ */
+final class BenchmarkStreams {
+
+    private static final long SEED = 42;
+
+    private BenchmarkStreams() {
+    }
+
+    /**
+     * @return count packed frames
+     */
+    static long[] frames(int count) {
+        PhysiologyModel model = new PhysiologyModel(SEED, 30);
+        long[] frames = new long[count];
+        for (int i = 0; i < count; i++) {
+            frames[i] = model.nextFrame();
+        }
+        return frames;
+    }
+
+    /**
+     * @return the bytes of count frames, back to back, as the CMS50FW sends them
+     */
+    static byte[] clean(int count) {
+        ByteBuffer bytes = ByteBuffer.allocate(count * 8);
+        for (long frame : frames(count)) {
+            bytes.putLong(frame);
+        }
+        return bytes.array();
+    }
+
+    /**
+     * @return the bytes of count frames, with stray bytes between about one frame in
+     * ten and a truncated frame about once in a hundred, as after Bluetooth interference
+     */
+    static byte[] noisy(int count) {
+        Random random = new Random(SEED);
+        ByteBuffer bytes = ByteBuffer.allocate(count * 16);
+        for (long frame : frames(count)) {
+            int junk = random.nextInt(10) == 0 ? 1 + random.nextInt(3) : 0;
+            for (int i = 0; i < junk; i++) {
+                bytes.put((byte) random.nextInt(0x80)); // top bit clear, so not a frame boundary
+            }
+            if (random.nextInt(100) == 0) {
+                bytes.put((byte) 0x80).put((byte) 0).put((byte) 50); // the rest of this frame was lost
+            }
+            bytes.putLong(frame);
+        }
+        byte[] stream = new byte[bytes.position()];
+        System.arraycopy(bytes.array(), 0, stream, 0, stream.length);
+        return stream;
+    }
+}
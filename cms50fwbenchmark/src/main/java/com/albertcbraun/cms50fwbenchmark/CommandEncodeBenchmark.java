@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwbenchmark;
+
+import com.albertcbraun.cms50fwlib.CMS50FWCommand;
+import com.albertcbraun.cms50fwlib.CommandEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of commands by {@link CommandEncoder}, including the stream write which
+ * AndroidBluetoothConnectionComponents.writeCommand performs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandEncodeBenchmark {
+
+    private final byte[] array = new byte[CommandEncoder.COMMAND_LENGTH];
+    private final ByteBuffer byteBuffer = ByteBuffer.allocate(CommandEncoder.COMMAND_LENGTH);
+    private final CountingOutputStream outputStream = new CountingOutputStream();
+
+    @Benchmark
+    public byte[] encodeIntoArray() {
+        CommandEncoder.encode(CMS50FWCommand.STAY_CONNECTED, CMS50FWCommand.PADDING, array, 0);
+        return array;
+    }
+
+    @Benchmark
+    public ByteBuffer encodeIntoByteBuffer() {
+        byteBuffer.clear();
+        CommandEncoder.encode(CMS50FWCommand.STAY_CONNECTED, CMS50FWCommand.PADDING, byteBuffer);
+        return byteBuffer;
+    }
+
+    @Benchmark
+    public long writeToStream() throws IOException {
+        CommandEncoder.write(outputStream, CMS50FWCommand.STAY_CONNECTED, CMS50FWCommand.PADDING);
+        return outputStream.count;
+    }
+
+    /**
+     * Stands in for the Bluetooth socket's stream.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
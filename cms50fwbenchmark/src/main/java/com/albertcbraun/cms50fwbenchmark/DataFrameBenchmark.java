@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwbenchmark;
+
+import com.albertcbraun.cms50fwlib.DataFrame;
+import com.albertcbraun.cms50fwlib.PackedFrame;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a {@link DataFrame} from a raw frame, and formatting one with toString,
+ * which the test app does for every frame it logs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataFrameBenchmark {
+
+    private static final int FRAMES = 1024; // a power of two, for the index mask
+    private static final int MASK = FRAMES - 1;
+
+    private long[] rawFrames;
+    private DataFrame[] dataFrames;
+    private int index = 0;
+
+    @Setup
+    public void setUp() {
+        rawFrames = BenchmarkStreams.frames(FRAMES);
+        dataFrames = new DataFrame[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            dataFrames[i] = PackedFrame.toDataFrame(i, rawFrames[i]);
+        }
+    }
+
+    @Benchmark
+    public DataFrame construct() {
+        int i = index++ & MASK;
+        return PackedFrame.toDataFrame(i, rawFrames[i]);
+    }
+
+    @Benchmark
+    public String formatToString() {
+        return dataFrames[index++ & MASK].toString();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwbenchmark;
+
+import com.albertcbraun.cms50fwlib.CMS50FWConnectionListener;
+import com.albertcbraun.cms50fwlib.DataFrame;
+import com.albertcbraun.cms50fwlib.DataFrameBatch;
+import com.albertcbraun.cms50fwlib.DataFrameBatchListener;
+import com.albertcbraun.cms50fwlib.FrameBatcher;
+import com.albertcbraun.cms50fwlib.FrameRingBuffer;
+import com.albertcbraun.cms50fwlib.PackedFrame;
+import com.albertcbraun.cms50fwlib.PackedFrameListener;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivery of decoded frames to the client, by each of the paths StartDataTask offers.
+ * The UI thread's Handler is replaced by an executor which runs tasks at once, so the
+ * numbers show the cost of the library's own work. One operation is one frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    private static final int FRAMES = 1024;
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private long[] rawFrames;
+    private final PackedFrame packedFrame = new PackedFrame();
+    private final SummingListener listener = new SummingListener();
+    private FrameBatcher frameBatcher;
+    private FrameRingBuffer frameRingBuffer;
+
+    @Setup
+    public void setUp() {
+        rawFrames = BenchmarkStreams.frames(FRAMES);
+        frameBatcher = new FrameBatcher(listener, DIRECT_EXECUTOR, 60, 250);
+        frameRingBuffer = new FrameRingBuffer(FRAMES, FrameRingBuffer.OverflowPolicy.DROP_OLDEST,
+                FrameRingBuffer.WaitStrategy.PARK);
+    }
+
+    /**
+     * A {@link PackedFrameListener} on the reading thread: no allocation.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long packedFrameListener() {
+        for (int i = 0; i < FRAMES; i++) {
+            listener.onPackedFrameArrived(packedFrame.set(i, rawFrames[i]));
+        }
+        return listener.sum;
+    }
+
+    /**
+     * A new {@link DataFrame} for {@link CMS50FWConnectionListener#onDataFrameArrived(DataFrame)}.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long dataFrameListener() {
+        for (int i = 0; i < FRAMES; i++) {
+            listener.onDataFrameArrived(PackedFrame.toDataFrame(i, rawFrames[i]));
+        }
+        return listener.sum;
+    }
+
+    /**
+     * A new DataFrame, wrapped in a new Runnable which is handed to an executor, as the
+     * listener forwarder did before callbacks were conflated.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long forwardedDataFrameListener() {
+        for (int i = 0; i < FRAMES; i++) {
+            final DataFrame dataFrame = PackedFrame.toDataFrame(i, rawFrames[i]);
+            DIRECT_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onDataFrameArrived(dataFrame);
+                }
+            });
+        }
+        return listener.sum;
+    }
+
+    /**
+     * Batches of 60 frames for a {@link DataFrameBatchListener}.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long frameBatcher() {
+        for (int i = 0; i < FRAMES; i++) {
+            frameBatcher.add(i, rawFrames[i]);
+        }
+        return listener.sum;
+    }
+
+    /**
+     * Publishing to a {@link FrameRingBuffer} and polling each frame back out.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long frameRingBuffer() {
+        for (int i = 0; i < FRAMES; i++) {
+            frameRingBuffer.publish(i, rawFrames[i]);
+            frameRingBuffer.poll(packedFrame);
+            listener.onPackedFrameArrived(packedFrame);
+        }
+        return listener.sum;
+    }
+
+    private static class SummingListener implements CMS50FWConnectionListener, PackedFrameListener,
+            DataFrameBatchListener {
+        long sum;
+
+        @Override
+        public void onPackedFrameArrived(PackedFrame packedFrame) {
+            sum += packedFrame.spo2Percentage() + packedFrame.pulseRate();
+        }
+
+        @Override
+        public void onDataFrameArrived(DataFrame dataFrame) {
+            sum += dataFrame.spo2Percentage + dataFrame.pulseRate;
+        }
+
+        @Override
+        public void onDataFramesArrived(DataFrameBatch batch) {
+            for (int i = 0; i < batch.size(); i++) {
+                sum += batch.spo2Percentage[i] + batch.pulseRate[i];
+            }
+        }
+
+        @Override
+        public void onConnectionAttemptInProgress() {
+        }
+
+        @Override
+        public void onConnectionEstablished() {
+        }
+
+        @Override
+        public void onDataReadAttemptInProgress() {
+        }
+
+        @Override
+        public void onDataReadStopped() {
+        }
+
+        @Override
+        public void onBrokenConnection() {
+        }
+
+        @Override
+        public void onConnectionReset() {
+        }
+
+        @Override
+        public void onLogEvent(long timeMs, String message) {
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwbenchmark;
+
+import com.albertcbraun.cms50fwlib.FrameDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of the byte stream into frames by {@link FrameDecoder}, which is the
+ * work StartDataTask does for every chunk it reads. The stream is fed in chunks
+ * of the size a Bluetooth read typically returns. One operation is one frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecodeBenchmark {
+
+    private static final int FRAMES = 4096;
+    private static final int CHUNK_LENGTH = 256;
+
+    private byte[] cleanStream;
+    private byte[] noisyStream;
+    private FrameDecoder frameDecoder;
+    private final ChecksumHandler handler = new ChecksumHandler();
+
+    @Setup
+    public void setUp() {
+        cleanStream = BenchmarkStreams.clean(FRAMES);
+        noisyStream = BenchmarkStreams.noisy(FRAMES);
+        frameDecoder = new FrameDecoder();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long decodeCleanStream() {
+        return decode(cleanStream);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long decodeNoisyStream() {
+        return decode(noisyStream);
+    }
+
+    private long decode(byte[] stream) {
+        for (int offset = 0; offset < stream.length; offset += CHUNK_LENGTH) {
+            frameDecoder.write(stream, offset, Math.min(CHUNK_LENGTH, stream.length - offset));
+            frameDecoder.decode(handler);
+        }
+        return handler.checksum;
+    }
+
+    private static class ChecksumHandler implements FrameDecoder.FrameHandler {
+        long checksum;
+
+        @Override
+        public void onFrame(long rawFrame) {
+            checksum += rawFrame;
+        }
+    }
+}
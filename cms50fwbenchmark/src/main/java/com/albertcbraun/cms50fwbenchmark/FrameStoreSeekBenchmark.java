@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwbenchmark;
+
+import com.albertcbraun.cms50fwlib.FrameStore;
+import com.albertcbraun.cms50fwlib.PackedFrame;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of jumping to a random time in a {@link FrameStore} and reading the frame
+ * there, as a review screen does, for stores holding from one day to two weeks of
+ * continuous 60 Hz recordings. Most seeks land in a segment which is not mapped,
+ * so the time includes mapping it.
+ * <p>
+ * Setup writes the store to the temporary directory: about 80 MB per day of data.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameStoreSeekBenchmark {
+
+    private static final long START_TIME = 1792281600000L;
+    private static final int FRAMES_PER_DAY = 24 * 60 * 60 * 60;
+
+    @Param({"1", "7", "14"})
+    public int days;
+
+    private File directory;
+    private FrameStore store;
+    private long endTime;
+    private final Random random = new Random(42);
+    private final PackedFrame frame = new PackedFrame();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = File.createTempFile("framestorebenchmark", "");
+        if (!directory.delete()) {
+            throw new IOException("Could not replace " + directory);
+        }
+        store = FrameStore.open(directory);
+        long[] frames = BenchmarkStreams.frames(4096);
+        long frameCount = (long) days * FRAMES_PER_DAY;
+        for (long i = 0; i < frameCount; i++) {
+            store.append(START_TIME + i * 1000 / 60, frames[(int) (i % frames.length)]);
+        }
+        store.flush();
+        endTime = store.getLastTime();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public long seekToRandomTime() throws IOException {
+        long time = START_TIME + (long) (random.nextDouble() * (endTime - START_TIME));
+        FrameStore.Cursor cursor = store.seek(time);
+        cursor.next(frame);
+        return frame.rawFrame();
+    }
+}
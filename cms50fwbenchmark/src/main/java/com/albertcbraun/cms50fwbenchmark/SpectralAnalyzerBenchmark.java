@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwbenchmark;
+
+import com.albertcbraun.cms50fwlib.PackedFrame;
+import com.albertcbraun.cms50fwlib.SpectralAnalyzer;
+import com.albertcbraun.cms50fwlib.SpectrumListener;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one 60 Hz tick of {@link SpectralAnalyzer}s over the default 30 to 240 beats per
+ * minute band, for one to 16 CMS50FWs read at once, each with its own analyzer. Windows of
+ * 256 to 1024 samples give 15 to 60 bins, and the cost should grow linearly with both the
+ * bins and the devices. One operation is one frame from every device, so 60 operations are
+ * a second of data; the estimates four times per second are included.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpectralAnalyzerBenchmark {
+
+    private static final int FRAMES = 4096;
+
+    @Param({"256", "512", "1024"})
+    public int windowSamples;
+
+    @Param({"1", "4", "16"})
+    public int devices;
+
+    private long[] frames;
+    private SpectralAnalyzer[] analyzers;
+    private long frameIndex = 0;
+    private double peaks = 0;
+
+    @Setup
+    public void setUp() {
+        // only frames with a reading, so that the analyzers never start over
+        long[] stream = BenchmarkStreams.frames(4 * FRAMES);
+        frames = new long[FRAMES];
+        for (int i = 0, kept = 0; kept < FRAMES; i++) {
+            if (!PackedFrame.isFingerOutOfSleeve(stream[i])) {
+                frames[kept++] = stream[i];
+            }
+        }
+        analyzers = new SpectralAnalyzer[devices];
+        for (int i = 0; i < devices; i++) {
+            analyzers[i] = new SpectralAnalyzer(new SpectrumListener() {
+                @Override
+                public void onSpectrum(long time, double peakHz, double quality) {
+                    peaks += peakHz * quality;
+                }
+            }, SpectralAnalyzer.DEFAULT_MIN_HZ, SpectralAnalyzer.DEFAULT_MAX_HZ, windowSamples,
+                    SpectralAnalyzer.DEFAULT_ESTIMATES_PER_SECOND);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public double analyze() {
+        for (int i = 0; i < FRAMES; i++) {
+            long time = frameIndex * 1000 / 60;
+            for (int device = 0; device < devices; device++) {
+                // each device is at its own place in the stream
+                analyzers[device].onFrame(time, frames[(int) ((frameIndex + device * 997) % FRAMES)]);
+            }
+            frameIndex++;
+        }
+        return peaks;
+    }
+}
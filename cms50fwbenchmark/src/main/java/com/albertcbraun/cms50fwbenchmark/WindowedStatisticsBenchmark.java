@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwbenchmark;
+
+import com.albertcbraun.cms50fwlib.FrameChannel;
+import com.albertcbraun.cms50fwlib.PackedFrame;
+import com.albertcbraun.cms50fwlib.SlidingWindow;
+import com.albertcbraun.cms50fwlib.WindowedStatistics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per frame cost of {@link WindowedStatistics} with a min, max and mean read after every
+ * frame, for windows from one second to an hour. The cost should not grow with the
+ * window length. One operation is one frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WindowedStatisticsBenchmark {
+
+    private static final int FRAMES = 4096;
+
+    @Param({"1", "60", "300", "3600"})
+    public int windowSeconds;
+
+    private long[] frames;
+    private WindowedStatistics statistics;
+    private SlidingWindow spo2;
+    private SlidingWindow pulseRate;
+    private long frameIndex = 0;
+
+    @Setup
+    public void setUp() {
+        frames = BenchmarkStreams.frames(FRAMES);
+        statistics = new WindowedStatistics();
+        spo2 = statistics.window(FrameChannel.SPO2_PERCENTAGE, windowSeconds * 1000L);
+        pulseRate = statistics.window(FrameChannel.PULSE_RATE, windowSeconds * 1000L);
+        // fill the windows, so the measurement sees values leaving them as well as entering
+        for (int i = 0; i < windowSeconds * 60 + FRAMES; i++) {
+            add();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public double addAndRead() {
+        double checksum = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            add();
+            checksum += spo2.mean() + spo2.min() + pulseRate.max();
+        }
+        return checksum;
+    }
+
+    private void add() {
+        long rawFrame = frames[(int) (frameIndex % FRAMES)];
+        statistics.add(frameIndex * 1000 / 60, PackedFrame.spo2Percentage(rawFrame), PackedFrame.pulseRate(rawFrame),
+                PackedFrame.pulseIntensity(rawFrame), PackedFrame.isFingerOutOfSleeve(rawFrame));
+        frameIndex++;
+    }
+}
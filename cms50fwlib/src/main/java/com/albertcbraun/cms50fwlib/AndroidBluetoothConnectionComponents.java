@@ -30,12 +30,19 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Verifies that underlying BluetoothAdapter exists and is ready to go, finds the
  * desired Bluetooth device, connects to it, and opens input and output streams.
  * <p>
+ * All reads and writes go through a {@link Transport}. By default this is an
+ * {@link RfcommTransport} over the Bluetooth socket, but the client may supply
+ * another one, such as a {@link SocketChannelTransport} to a serial-over-TCP bridge,
+ * in which case no Bluetooth is used at all.
+ * <p>
  * Also tries to ensure that the connection stays alive during use, but provides
  * methods to shut it down (reset everything) when desired.
  * <p>
@@ -53,6 +60,7 @@ class AndroidBluetoothConnectionComponents {
     private static final String BLUETOOTH_IS_NOT_TURNED_ON_MESSAGE = "Could not start bluetooth discovery. Bluetooth is not in STATE_ON on this device";
     private static final String JUST_STARTED_BLUETOOTH_DISCOVERY_MESSAGE = "Just started Bluetooth discovery";
     private static final String COULD_NOT_WRITE_COMMAND_MESSAGE = "Could not write command %d to output stream. Bluetooth socket is not connected.";
+    private static final String COULD_NOT_WRITE_BYTES_MESSAGE = "Could not write to output stream. Bluetooth socket is not connected.";
     private static final String STARTING_RESET_MESSAGE = "Starting reset";
     private static final String CLOSING_BLUETOOTH_SOCKET_AND_IO_STREAMS_MESSAGE = "Closing Bluetooth socket and I/O streams.";
     private static final String OUTPUT_STREAM = "OutputStream";
@@ -61,21 +69,56 @@ class AndroidBluetoothConnectionComponents {
     private static final String RESET_COMPLETE_MESSAGE = "Reset complete";
     private static final String CLOSED_FORMAT_STRING = "Closed %s";
     private static final String COULD_NOT_CLOSE_FORMAT_STRING = "Could not close %s";
-    private static final UUID DEFAULT_BLUETOOTH_SERVICE_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    static final UUID DEFAULT_BLUETOOTH_SERVICE_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
     private static final String COULD_NOT_UNREGISTER_BROADCAST_RECEIVER_PROCEEDING_ANYWAY_MESSAGE = "Could not unregister BroadcastReceiver because it was apparently never registered. Proceeding anyway.";
+    private static final String ATTEMPTING_TO_CONNECT_TO_CMS50FW_MESSAGE = "Attempting to connect to CMS50FW.";
+    private static final String RETRIEVED_UUID_FROM_CMS50_FW_WILL_USE_MESSAGE = "Retrieved UUID from CMS50FW. Will use this UUID instead of default:";
+    private static final String ATTEMPTING_TO_GET_NEW_BLUETOOTH_SOCKET_TO_CMS50_FW_DEVICE_MESSAGE = "Attempting to get new bluetoothSocket to CMS50FW device";
+    private static final String ATTEMPTING_TO_CONNECT_ON_BLUETOOTH_SOCKET_MESSAGE = "Attempting to connect on bluetoothSocket";
+    private static final String BLUETOOTH_SOCKET_CONNECTED_SUCCESSFULLY_MESSAGE = "BluetoothSocket connected successfully.";
+    private static final String SET_REFERENCES_TO_INPUT_AND_OUTPUT_STREAMS_MESSAGE = "Set references to input and output streams.";
+    private static final String IO_EXCEPTION_TRYING_TO_GET_AND_CONNECT_BLUETOOTH_SOCKET_MESSAGE = "IOException trying to get and connect BluetoothSocket";
+    private static final String TRYING_CACHED_ADDRESS_MESSAGE = "Trying the CMS50FW address cached from the last connection.";
+    private static final String FORGETTING_CACHED_ADDRESS_MESSAGE = "The cached CMS50FW address did not connect. Forgetting it.";
+    private static final String TRYING_PAIRED_DEVICE_MESSAGE = "Trying a paired CMS50FW device.";
+    private static final String CONNECTED_VIA_FORMAT = "Connected via %s in %d ms.";
+    private static final String NO_DEVICE_TO_RECONNECT_TO_MESSAGE = "No CMS50FW to reconnect to. Please call connect.";
+    private static final String RECONNECTED_MESSAGE = "Reconnected to CMS50FW.";
+    private static final String OPENING_TRANSPORT_MESSAGE = "Opening transport to CMS50FW.";
+    private static final String TRANSPORT_OPENED_MESSAGE = "Transport to CMS50FW opened.";
+    private static final String COULD_NOT_OPEN_TRANSPORT_MESSAGE = "Could not open transport to CMS50FW.";
     private UUID bluetoothServiceUUID = DEFAULT_BLUETOOTH_SERVICE_UUID;
-    private static final int COMMAND_ONE_TWENTY_NINE = 129;
     private final String androidBluetoothDeviceName;
     volatile InputStream inputStream = null;
     volatile boolean okToReadData;
+    volatile boolean dataFrameDeliveryEnabled = true;
     private boolean broadcastReceiverIsRegistered = false;
     private CMS50FWBluetoothConnectionManager cms50FWBluetoothConnectionManager = null;
     private CMS50FWConnectionListener cms50FWConnectionListener = null;
+    private PackedFrameListener packedFrameListener = null;
+    private FrameBatcher frameBatcher = null;
+    private FrameRingBuffer frameRingBuffer = null;
+    private volatile AlarmEngine alarmEngine = null;
+    private volatile BeatDetector beatDetector = null;
+    private volatile FrameClock frameClock = null;
+    private volatile GapFiller gapFiller = null;
+    private GapListener gapListener = null;
+    private int maxSyntheticFrames = 0;
     private volatile BluetoothDevice cms50FWDevice = null;
+    private volatile BluetoothDevice lastConnectedDevice = null;
+    private ReconnectPolicy reconnectPolicy = null;
+    private ConnectionStateListener connectionStateListener = null;
+    private volatile ConnectionStateMachine connectionStateMachine = null;
+    private volatile ByteCapture byteCapture = null;
     private volatile BluetoothSocket bluetoothSocket = null;
     private volatile OutputStream outputStream = null;
     private BroadcastReceiver broadcastReceiver = null;
     private BluetoothAdapter bluetoothAdapter = null;
+    private final FrameDecoder frameDecoder = new FrameDecoder();
+    private final RfcommTransport rfcommTransport = new RfcommTransport(this);
+    private volatile Transport transport = rfcommTransport;
+    private final ConnectLatencyStats connectLatencyStats = new ConnectLatencyStats();
+    private volatile long discoveryStartNanos = 0;
 
 
     /**
@@ -110,7 +153,8 @@ class AndroidBluetoothConnectionComponents {
      * @param cms50FWConnectionListener callbacks for the client app
      */
     void setCms50FWConnectionListener(CMS50FWConnectionListener cms50FWConnectionListener) {
-        this.cms50FWConnectionListener = new ConnectionListenerForwarder(cms50FWConnectionListener);
+        // the manager has already wrapped this listener for the UI thread, so don't wrap it again
+        this.cms50FWConnectionListener = cms50FWConnectionListener;
     }
 
     /**
@@ -122,6 +166,218 @@ class AndroidBluetoothConnectionComponents {
         return cms50FWConnectionListener;
     }
 
+    /**
+     * @param packedFrameListener called on the data reading thread with each frame, or null
+     */
+    void setPackedFrameListener(PackedFrameListener packedFrameListener) {
+        this.packedFrameListener = packedFrameListener;
+    }
+
+    /**
+     * @return the allocation-free frame callback, or null if the client did not set one
+     */
+    PackedFrameListener getPackedFrameListener() {
+        return packedFrameListener;
+    }
+
+    /**
+     * @param frameBatcher collects frames for a {@link DataFrameBatchListener}, or null
+     */
+    void setFrameBatcher(FrameBatcher frameBatcher) {
+        this.frameBatcher = frameBatcher;
+    }
+
+    /**
+     * @return the batcher for the client's batch listener, or null if the client did not set one
+     */
+    FrameBatcher getFrameBatcher() {
+        return frameBatcher;
+    }
+
+    /**
+     * @param frameRingBuffer receives every frame for the client's consumer thread, or null
+     */
+    void setFrameRingBuffer(FrameRingBuffer frameRingBuffer) {
+        this.frameRingBuffer = frameRingBuffer;
+    }
+
+    /**
+     * @return the ring buffer the client consumes frames from, or null if the client did not set one
+     */
+    FrameRingBuffer getFrameRingBuffer() {
+        return frameRingBuffer;
+    }
+
+    /**
+     * @param alarmEngine evaluates the client's alarm rules on the data reading thread, or null
+     */
+    void setAlarmEngine(AlarmEngine alarmEngine) {
+        this.alarmEngine = alarmEngine;
+    }
+
+    /**
+     * @return the engine for the client's alarm rules, or null if the client did not set one
+     */
+    AlarmEngine getAlarmEngine() {
+        return alarmEngine;
+    }
+
+    /**
+     * @param beatDetector finds heart beats in the pulse wave on the data reading thread, or null
+     */
+    void setBeatDetector(BeatDetector beatDetector) {
+        this.beatDetector = beatDetector;
+    }
+
+    /**
+     * @return the client's beat detector, or null if the client did not set one
+     */
+    BeatDetector getBeatDetector() {
+        return beatDetector;
+    }
+
+    /**
+     * @param frameClock times the frames of the current data read, or null before the first one
+     */
+    void setFrameClock(FrameClock frameClock) {
+        this.frameClock = frameClock;
+    }
+
+    /**
+     * @return the clock timing the frames of the current or last data read, or null if data was never read
+     */
+    FrameClock getFrameClock() {
+        return frameClock;
+    }
+
+    /**
+     * @param gapFiller reports the gaps of the current data read, or null before the first one
+     */
+    void setGapFiller(GapFiller gapFiller) {
+        this.gapFiller = gapFiller;
+    }
+
+    /**
+     * @return the gap filler of the current or last data read, or null if data was never read
+     */
+    GapFiller getGapFiller() {
+        return gapFiller;
+    }
+
+    /**
+     * @param gapListener told about frames which never arrived, or null
+     */
+    void setGapListener(GapListener gapListener) {
+        this.gapListener = gapListener;
+    }
+
+    /**
+     * @return the client's gap callback, or null if the client did not set one
+     */
+    GapListener getGapListener() {
+        return gapListener;
+    }
+
+    /**
+     * @param maxSyntheticFrames the longest gap, in samples, to fill with synthetic frames. 0 fills none.
+     */
+    void setMaxSyntheticFrames(int maxSyntheticFrames) {
+        this.maxSyntheticFrames = maxSyntheticFrames;
+    }
+
+    /**
+     * @return the longest gap, in samples, to fill with synthetic frames
+     */
+    int getMaxSyntheticFrames() {
+        return maxSyntheticFrames;
+    }
+
+    /**
+     * @param transport the connection to use instead of Bluetooth, or null to use Bluetooth
+     */
+    void setTransport(Transport transport) {
+        this.transport = transport != null ? transport : rfcommTransport;
+    }
+
+    /**
+     * @return the connection which all reads and writes go through
+     */
+    Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @param byteCapture records every chunk read from the CMS50FW, or null to record nothing
+     */
+    void setByteCapture(ByteCapture byteCapture) {
+        this.byteCapture = byteCapture;
+    }
+
+    /**
+     * @return the capture for the raw data stream, or null if the client is not recording
+     */
+    ByteCapture getByteCapture() {
+        return byteCapture;
+    }
+
+    /**
+     * @return the transport which data should be read from: the transport itself, or
+     * a tap on it which records into the client's {@link ByteCapture}
+     */
+    Transport getReadTransport() {
+        ByteCapture capture = byteCapture;
+        return capture == null ? transport : new CapturingTransport(transport, capture);
+    }
+
+    /**
+     * @return true if the transport is the Bluetooth RFCOMM socket managed by this class
+     */
+    boolean usesBluetooth() {
+        return transport == rfcommTransport;
+    }
+
+    /**
+     * @param reconnectPolicy how to reconnect automatically while reading data, or null to not reconnect
+     */
+    void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+        this.reconnectPolicy = reconnectPolicy;
+    }
+
+    /**
+     * @return the automatic reconnect settings, or null if the client did not turn it on
+     */
+    ReconnectPolicy getReconnectPolicy() {
+        return reconnectPolicy;
+    }
+
+    /**
+     * @param connectionStateListener receives the states of automatic reconnection, or null
+     */
+    void setConnectionStateListener(ConnectionStateListener connectionStateListener) {
+        this.connectionStateListener = connectionStateListener;
+    }
+
+    /**
+     * @return the client's reconnection state callback, or null if the client did not set one
+     */
+    ConnectionStateListener getConnectionStateListener() {
+        return connectionStateListener;
+    }
+
+    /**
+     * @param connectionStateMachine the state machine which is currently reading data, or null
+     */
+    void setConnectionStateMachine(ConnectionStateMachine connectionStateMachine) {
+        this.connectionStateMachine = connectionStateMachine;
+    }
+
+    /**
+     * @return the state machine which is currently reading data, or null if automatic reconnection is off
+     */
+    ConnectionStateMachine getConnectionStateMachine() {
+        return connectionStateMachine;
+    }
+
     /**
      * A convenient way to provide the connection manager to other classes that need it.
      *
@@ -131,6 +387,16 @@ class AndroidBluetoothConnectionComponents {
         return cms50FWBluetoothConnectionManager;
     }
 
+    /**
+     * The decoder's ring buffer is allocated once and reused by
+     * successive {@link StartDataTask} runs.
+     *
+     * @return the decoder for the CMS50FW data stream
+     */
+    FrameDecoder getFrameDecoder() {
+        return frameDecoder;
+    }
+
     /**
      * Calls back to the callback listener's onLogEvent method, supplying a timestamp
      * in the process.
@@ -143,12 +409,8 @@ class AndroidBluetoothConnectionComponents {
 
     /**
      * Verifies that Bluetooth connections are possible from the current Android device.
-     * Then, registers a temporary, custom BroadcastReceiver and starts bluetooth discovery.
-     * The rest of the work of obtaining the Bluetooth device, connecting, obtaining a
-     * Bluetooth socket, and obtaining IO streams will be done after the device
-     * is actually discovered, in the CMS50FWBroadcastReceiver.
      */
-    void findAndConnect(Context context) throws  BluetoothNotAvailableException, BluetoothNotEnabledException {
+    void verifyBluetoothReady() throws BluetoothNotAvailableException, BluetoothNotEnabledException {
 
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         if (bluetoothAdapter == null) {
@@ -162,6 +424,64 @@ class AndroidBluetoothConnectionComponents {
                 throw new BluetoothNotEnabledException();
             }
         }
+    }
+
+    /**
+     * Tries to connect without running Bluetooth discovery, which takes about 10 seconds.
+     * First tries the Bluetooth address and service UUID cached from the last successful
+     * connection, and forgets them if they don't connect. Then tries each paired (bonded)
+     * device with the right name.
+     * <p>
+     * This blocks while connecting, so it must not be called on the UI thread.
+     * Call {@link #verifyBluetoothReady()} first.
+     *
+     * @param context used to read and write the connection cache
+     * @return true if a connection was established
+     */
+    boolean connectWithoutDiscovery(Context context) {
+        cancelDiscovery(); // discovery slows down connections
+        ConnectionCache connectionCache = new ConnectionCache(context, androidBluetoothDeviceName);
+
+        String cachedAddress = connectionCache.getAddress();
+        if (cachedAddress != null && BluetoothAdapter.checkBluetoothAddress(cachedAddress)) {
+            logEvent(TRYING_CACHED_ADDRESS_MESSAGE);
+            UUID cachedServiceUUID = connectionCache.getServiceUUID();
+            if (connectToDevice(context, bluetoothAdapter.getRemoteDevice(cachedAddress),
+                    cachedServiceUUID != null ? cachedServiceUUID : DEFAULT_BLUETOOTH_SERVICE_UUID,
+                    ConnectLatencyStats.ConnectPath.CACHED_ADDRESS, System.nanoTime())) {
+                return true;
+            }
+        }
+        if (cachedAddress != null) {
+            // don't try a stale address again on every connect. a successful connection caches a new one.
+            logEvent(FORGETTING_CACHED_ADDRESS_MESSAGE);
+            connectionCache.clear();
+        }
+
+        Set<BluetoothDevice> bondedDevices = bluetoothAdapter.getBondedDevices();
+        if (bondedDevices != null) {
+            for (BluetoothDevice device : bondedDevices) {
+                if (androidBluetoothDeviceName.equals(device.getName()) && !device.getAddress().equals(cachedAddress)) {
+                    logEvent(TRYING_PAIRED_DEVICE_MESSAGE);
+                    if (connectToDevice(context, device, serviceUUIDOf(device),
+                            ConnectLatencyStats.ConnectPath.BONDED_DEVICE, System.nanoTime())) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Registers a temporary, custom BroadcastReceiver and starts bluetooth discovery.
+     * The rest of the work of obtaining the Bluetooth device, connecting, obtaining a
+     * Bluetooth socket, and obtaining IO streams will be done after the device
+     * is actually discovered, in the CMS50FWBroadcastReceiver.
+     */
+    void findAndConnect(Context context) throws  BluetoothNotAvailableException, BluetoothNotEnabledException {
+
+        verifyBluetoothReady();
 
         // cancel any existing discovery which may be ongoing
         if (bluetoothAdapter.isDiscovering()) {
@@ -183,20 +503,174 @@ class AndroidBluetoothConnectionComponents {
 
         // initiate Bluetooth discovery, which will invoke the BroadcastReceiver later
         logEvent(INITIATING_BLUETOOTH_DISCOVERY_OF_CMS50_FW_DEVICE_MESSAGE);
+        discoveryStartNanos = System.nanoTime();
         if (!bluetoothAdapter.startDiscovery()) {
             logEvent(BLUETOOTH_IS_NOT_TURNED_ON_MESSAGE);
         }
         Log.v(TAG, JUST_STARTED_BLUETOOTH_DISCOVERY_MESSAGE);
     }
 
+    /**
+     * Opens a transport which the client supplied in place of Bluetooth.
+     * This blocks while connecting.
+     *
+     * @return true if the transport was opened
+     */
+    boolean connectTransport() {
+        logEvent(OPENING_TRANSPORT_MESSAGE);
+        cms50FWConnectionListener.onConnectionAttemptInProgress();
+        try {
+            transport.open();
+        } catch (IOException e) {
+            Log.e(TAG, COULD_NOT_OPEN_TRANSPORT_MESSAGE, e);
+            logEvent(COULD_NOT_OPEN_TRANSPORT_MESSAGE);
+            return false;
+        }
+        logEvent(TRANSPORT_OPENED_MESSAGE);
+        cms50FWConnectionListener.onConnectionEstablished();
+        return true;
+    }
+
+    /**
+     * Obtains a Bluetooth socket to the device, connects it and opens the IO streams.
+     * On success, remembers the device in the connection cache and records the latency
+     * of the connect path which found it. This blocks while connecting.
+     *
+     * @param context used to write the connection cache
+     * @param device the CMS50FW
+     * @param serviceUUID the service to connect to
+     * @param connectPath how the device was found, for latency statistics
+     * @param startNanos {@link System#nanoTime()} when this connect path was started
+     * @return true if the connection was established
+     */
+    private boolean connectToDevice(Context context, BluetoothDevice device, UUID serviceUUID,
+                                    ConnectLatencyStats.ConnectPath connectPath, long startNanos) {
+        logEvent(ATTEMPTING_TO_CONNECT_TO_CMS50FW_MESSAGE);
+        cms50FWConnectionListener.onConnectionAttemptInProgress();
+        cms50FWDevice = device;
+        bluetoothServiceUUID = serviceUUID;
+        try {
+            logEvent(ATTEMPTING_TO_GET_NEW_BLUETOOTH_SOCKET_TO_CMS50_FW_DEVICE_MESSAGE);
+            bluetoothSocket = device.createRfcommSocketToServiceRecord(serviceUUID);
+            logEvent(ATTEMPTING_TO_CONNECT_ON_BLUETOOTH_SOCKET_MESSAGE);
+            bluetoothSocket.connect();
+            logEvent(BLUETOOTH_SOCKET_CONNECTED_SUCCESSFULLY_MESSAGE);
+            inputStream = bluetoothSocket.getInputStream();
+            outputStream = bluetoothSocket.getOutputStream();
+            logEvent(SET_REFERENCES_TO_INPUT_AND_OUTPUT_STREAMS_MESSAGE);
+        } catch (IOException e) {
+            Log.e(TAG, IO_EXCEPTION_TRYING_TO_GET_AND_CONNECT_BLUETOOTH_SOCKET_MESSAGE, e);
+            connectLatencyStats.recordFailure(connectPath);
+            close(bluetoothSocket, BLUETOOTH_SOCKET);
+            bluetoothSocket = null;
+            inputStream = null;
+            cms50FWDevice = null;
+            return false;
+        }
+        lastConnectedDevice = device;
+        long latencyNanos = System.nanoTime() - startNanos;
+        connectLatencyStats.recordSuccess(connectPath, latencyNanos);
+        new ConnectionCache(context, androidBluetoothDeviceName).save(device.getAddress(), serviceUUID);
+        logEvent(Util.formatString(CONNECTED_VIA_FORMAT, connectPath, TimeUnit.NANOSECONDS.toMillis(latencyNanos)));
+        cms50FWConnectionListener.onConnectionEstablished();
+        return true;
+    }
+
+    /**
+     * Closes the current socket and connects a new one to the same CMS50FW, with
+     * the same service UUID. Used to reconnect after the connection was lost.
+     * This blocks while connecting.
+     *
+     * @throws IOException if there is no CMS50FW to reconnect to, or the connection fails
+     */
+    void reopenSocket() throws IOException {
+        BluetoothDevice device = lastConnectedDevice;
+        if (device == null || bluetoothAdapter == null || !bluetoothAdapter.isEnabled()) {
+            throw new IOException(NO_DEVICE_TO_RECONNECT_TO_MESSAGE);
+        }
+        closeSocket();
+        cancelDiscovery(); // discovery slows down connections
+        BluetoothSocket socket = device.createRfcommSocketToServiceRecord(bluetoothServiceUUID);
+        try {
+            socket.connect();
+            inputStream = socket.getInputStream();
+            outputStream = socket.getOutputStream();
+        } catch (IOException e) {
+            close(socket, BLUETOOTH_SOCKET);
+            inputStream = null;
+            outputStream = null;
+            throw e;
+        }
+        bluetoothSocket = socket;
+        cms50FWDevice = device;
+        logEvent(RECONNECTED_MESSAGE);
+    }
+
+    /**
+     * Closes the socket and IO streams, but remembers the CMS50FW so that
+     * {@link #reopenSocket()} can connect to it again. Unblocks a read
+     * which is in progress on another thread.
+     */
+    void closeSocket() {
+        close(outputStream, OUTPUT_STREAM);
+        outputStream = null;
+        close(inputStream, INPUT_STREAM);
+        inputStream = null;
+        close(bluetoothSocket, BLUETOOTH_SOCKET);
+        bluetoothSocket = null;
+    }
+
+    /**
+     * Writes bytes which have already been encoded as a command.
+     *
+     * @throws IOException if there is no connection, or the write fails
+     */
+    void write(byte[] bytes, int offset, int length) throws IOException {
+        OutputStream out = outputStream;
+        if (out == null) {
+            throw new IOException(COULD_NOT_WRITE_BYTES_MESSAGE);
+        }
+        out.write(bytes, offset, length);
+        out.flush();
+    }
+
+    /**
+     * @return the first service UUID reported by the device, or the default one
+     */
+    private UUID serviceUUIDOf(BluetoothDevice device) {
+        // assume 0th uuid is the uuid for the service we want
+        ParcelUuid[] uuidArray = device.getUuids();
+        if (uuidArray != null && uuidArray.length > 0) {
+            Log.v(TAG, RETRIEVED_UUID_FROM_CMS50_FW_WILL_USE_MESSAGE + uuidArray[0].getUuid());
+            return uuidArray[0].getUuid();
+        }
+        return DEFAULT_BLUETOOTH_SERVICE_UUID;
+    }
+
+    /**
+     * @return how long connections took, per connect path
+     */
+    ConnectLatencyStats getConnectLatencyStats() {
+        return connectLatencyStats;
+    }
+
+    /**
+     * Verifies that the transport to the CMS50FW is still open.
+     *
+     * @return true if the plumbing to the CMS50FW appears to still be working.
+     */
+    boolean connectionAlive() {
+        return transport.isOpen();
+    }
+
     /**
      * Verifies that the various components (socket, streams, etc) needed
      * for a useful connection to the Bluetooth device are still viable.
      *
      * @return true if the plumbing to the Bluetooth device appears to still be working.
      */
-    boolean connectionAlive() {
-        return bluetoothAdapter.isEnabled() && cms50FWDevice != null &&
+    boolean bluetoothConnectionAlive() {
+        return bluetoothAdapter != null && bluetoothAdapter.isEnabled() && cms50FWDevice != null &&
                 inputStream != null && outputStream != null &&
                 bluetoothSocket != null && bluetoothSocket.isConnected();
     }
@@ -214,16 +688,7 @@ class AndroidBluetoothConnectionComponents {
     @SuppressWarnings("SameParameterValue")
     void writeCommand(CMS50FWCommand command, CMS50FWCommand dataByte) throws IOException {
         if (connectionAlive()) {
-            outputStream.write(CMS50FWCommand.COMMAND_FOLLOWS.asInt()); // mark the beginning of command bytes
-            outputStream.write(COMMAND_ONE_TWENTY_NINE);                // 0x81 - not sure what this is
-            outputStream.write(command.asInt());                        // the actual command
-            outputStream.write(dataByte.asInt());                       // sometimes a particular byte must follow the command, but not always
-            outputStream.write(CMS50FWCommand.PADDING.asInt());
-            outputStream.write(CMS50FWCommand.PADDING.asInt());
-            outputStream.write(CMS50FWCommand.PADDING.asInt());
-            outputStream.write(CMS50FWCommand.PADDING.asInt());
-            outputStream.write(CMS50FWCommand.PADDING.asInt());
-            outputStream.flush();
+            CommandEncoder.write(transport, command, dataByte);
         } else {
             Log.w(TAG, COULD_NOT_WRITE_COMMAND_MESSAGE);
         }
@@ -259,20 +724,19 @@ class AndroidBluetoothConnectionComponents {
         logEvent(STARTING_RESET_MESSAGE);
         okToReadData = false;
 
+        // stop reconnecting before the socket is closed below
+        ConnectionStateMachine stateMachine = connectionStateMachine;
+        if (stateMachine != null) {
+            stateMachine.stop();
+        }
+
         cancelDiscovery();
 
         logEvent(CLOSING_BLUETOOTH_SOCKET_AND_IO_STREAMS_MESSAGE);
-        if (bluetoothAdapter != null && bluetoothAdapter.isEnabled() && 
-                bluetoothSocket != null && bluetoothSocket.isConnected()) {
-            close(outputStream, OUTPUT_STREAM);
-            outputStream = null;
-            close(inputStream, INPUT_STREAM);
-            inputStream = null;
-            close(bluetoothSocket, BLUETOOTH_SOCKET);
-            bluetoothSocket = null;
-        }
+        transport.close();
 
         cms50FWDevice = null;
+        lastConnectedDevice = null;
         cms50FWConnectionListener.onConnectionReset();
 
         logEvent(RESET_COMPLETE_MESSAGE);
@@ -319,15 +783,8 @@ class AndroidBluetoothConnectionComponents {
      */
     private class CMS50FWBroadcastReceiver extends BroadcastReceiver {
 
-        private static final String ATTEMPTING_TO_CONNECT_TO_CMS50FW_MESSAGE = "Attempting to connect to CMS50FW.";
         private static final String RETRIEVING_UUIDS_FROM_BLUETOOTH_DEVICE_FORMAT = "Retrieving UUIDs from BluetoothDevice: Name:%s, Address:%s, BluetoothClass:%s";
-        private static final String RETRIEVED_UUID_FROM_CMS50_FW_WILL_USE_MESSAGE = "Retrieved UUID from CMS50FW. Will use this UUID instead of default:";
-        private static final String ATTEMPTING_TO_GET_NEW_BLUETOOTH_SOCKET_TO_CMS50_FW_DEVICE_MESSAGE = "Attempting to get new bluetoothSocket to CMS50FW device";
-        private static final String ATTEMPTING_TO_CONNECT_ON_BLUETOOTH_SOCKET_MESSAGE = "Attempting to connect on bluetoothSocket";
-        private static final String BLUETOOTH_SOCKET_CONNECTED_SUCCESSFULLY_MESSAGE = "BluetoothSocket connected successfully.";
-        private static final String SET_REFERENCES_TO_INPUT_AND_OUTPUT_STREAMS_MESSAGE = "Set references to input and output streams.";
         private static final String DISCOVERY_AND_CONNECTION_COMPLETE_MESSAGE = "Discovery and connection complete.";
-        private static final String IO_EXCEPTION_TRYING_TO_GET_AND_CONNECT_BLUETOOTH_SOCKET_MESSAGE = "IOException trying to get and connect BluetoothSocket";
         private static final String ERROR_CONNECT_ATTEMPT_FAILED_PLEASE_TRY_AGAIN_MESSAGE = "Error: connect attempt failed. Please try again.";
         private static final String A_BLUETOOTH_DEVICE_HAS_BEEN_FOUND_MESSAGE = "A Bluetooth device has been found.";
         private static final String BLUETOOTH_DEVICE_FOUND_FORMAT = "BluetoothDevice found: Name:%s, Address:%s, BluetoothClass:%s";
@@ -357,40 +814,15 @@ class AndroidBluetoothConnectionComponents {
                     // byte[] pinCode = new byte[]{7,7,6,2};
                     // cms50FWDevice.setPin(pinCode);
 
-                    if (!connectionAlive()) {
-                        logEvent(ATTEMPTING_TO_CONNECT_TO_CMS50FW_MESSAGE);
-                        cms50FWConnectionListener.onConnectionAttemptInProgress();
-
+                    if (!bluetoothConnectionAlive()) {
                         Log.v(TAG, Util.formatString(RETRIEVING_UUIDS_FROM_BLUETOOTH_DEVICE_FORMAT,
                                 cms50FWDevice.getName(), cms50FWDevice.getAddress(), cms50FWDevice.getBluetoothClass()));
 
-                        // update the UUID with the one from the actual, physical device, if available
-                        ParcelUuid[] uuidArray = cms50FWDevice.getUuids();
-                        if (uuidArray != null) {
-                            for (int i = 0; i < uuidArray.length; i++) {
-                                if (i == 0 && uuidArray.length > 0) {
-                                    // assume 0th uuid is the uuid for the service we want
-                                    bluetoothServiceUUID = uuidArray[i].getUuid();
-                                    Log.v(TAG, RETRIEVED_UUID_FROM_CMS50_FW_WILL_USE_MESSAGE +
-                                            uuidArray[i].getUuid());
-                                }
-                            }
-                        }
-
-                        // get socket and connect
-                        try {
-                            logEvent(ATTEMPTING_TO_GET_NEW_BLUETOOTH_SOCKET_TO_CMS50_FW_DEVICE_MESSAGE);
-                            bluetoothSocket = cms50FWDevice.createRfcommSocketToServiceRecord(bluetoothServiceUUID);
-                            logEvent(ATTEMPTING_TO_CONNECT_ON_BLUETOOTH_SOCKET_MESSAGE);
-                            bluetoothSocket.connect();
-                            logEvent(BLUETOOTH_SOCKET_CONNECTED_SUCCESSFULLY_MESSAGE);
-                            inputStream = bluetoothSocket.getInputStream();
-                            outputStream = bluetoothSocket.getOutputStream();
-                            logEvent(SET_REFERENCES_TO_INPUT_AND_OUTPUT_STREAMS_MESSAGE);
-                            cms50FWConnectionListener.onConnectionEstablished();
+                        // use the UUID from the actual, physical device, if available
+                        if (connectToDevice(context, device, serviceUUIDOf(device),
+                                ConnectLatencyStats.ConnectPath.DISCOVERY, discoveryStartNanos)) {
                             logEvent(DISCOVERY_AND_CONNECTION_COMPLETE_MESSAGE);
-                        } catch (IOException e) {
-                            Log.e(TAG, IO_EXCEPTION_TRYING_TO_GET_AND_CONNECT_BLUETOOTH_SOCKET_MESSAGE, e);
+                        } else {
                             logEvent(ERROR_CONNECT_ATTEMPT_FAILED_PLEASE_TRY_AGAIN_MESSAGE);
                         }
 
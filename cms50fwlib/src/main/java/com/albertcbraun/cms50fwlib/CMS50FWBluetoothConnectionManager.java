@@ -18,6 +18,8 @@ package com.albertcbraun.cms50fwlib;
 
 import android.content.Context;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -79,14 +81,17 @@ public class CMS50FWBluetoothConnectionManager {
 
     private static final String TAG = CMS50FWBluetoothConnectionManager.class.getSimpleName();
     private static final int STAY_CONNECTED_PERIOD_SEC = 5;
+    private static final String MAX_SYNTHETIC_FRAMES_MUST_NOT_BE_NEGATIVE_MESSAGE =
+            "maxSyntheticFrames must not be negative: %d";
 
     private AndroidBluetoothConnectionComponents androidBluetoothConnectionComponents = null;
     private CMS50FWConnectionListener cms50FWConnectionListener = null;
+    private ConflatingListenerDispatcher conflatingListenerDispatcher = null;
     private boolean keepAliveTaskRunning;
 
     // They don't all have to be scheduled ExecutorServices but I
     // made them all the same for simplicity and consistency
-    private ScheduledExecutorService generalPurposeExecutor = null;     // runs ResetTask and StopDataTask
+    private ScheduledExecutorService generalPurposeExecutor = null;     // runs ConnectTask, ResetTask and StopDataTask
     private ScheduledExecutorService readDataExecutor = null;           // runs and re-runs StartDataTask in an indefinite loop
     private ScheduledExecutorService keepAliveExecutor = null;          // runs KeepAliveTask every 5 minutes
 
@@ -111,10 +116,266 @@ public class CMS50FWBluetoothConnectionManager {
      *                                  of {@link com.albertcbraun.cms50fwlib.CMS50FWConnectionListener}
      */
     public void setCMS50FWConnectionListener(CMS50FWConnectionListener cms50FWConnectionListener) {
-        this.cms50FWConnectionListener = new ConnectionListenerForwarder(cms50FWConnectionListener);
+        this.conflatingListenerDispatcher = new ConflatingListenerDispatcher(cms50FWConnectionListener);
+        this.cms50FWConnectionListener = this.conflatingListenerDispatcher;
         this.androidBluetoothConnectionComponents.setCms50FWConnectionListener(this.cms50FWConnectionListener);
     }
 
+    /**
+     * Callbacks to your {@link com.albertcbraun.cms50fwlib.CMS50FWConnectionListener} are posted
+     * to the UI thread. This reports how many of those posts are still waiting to run, which
+     * grows when the UI thread is busy.
+     *
+     * @return the number of callbacks waiting for the UI thread
+     */
+    public int getPendingCallbackCount() {
+        return conflatingListenerDispatcher == null ? 0 : conflatingListenerDispatcher.getQueueDepth();
+    }
+
+    /**
+     * When the UI thread falls behind, only the latest {@link DataFrame} is delivered to
+     * {@link CMS50FWConnectionListener#onDataFrameArrived(DataFrame)} and older ones are skipped.
+     * Other callbacks are never skipped.
+     *
+     * @return the number of data frames skipped so far because a newer one arrived first
+     */
+    public long getDroppedDataFrameCount() {
+        return conflatingListenerDispatcher == null ? 0 : conflatingListenerDispatcher.getDroppedDataFrames();
+    }
+
+    /**
+     * Set an optional listener which receives every frame as a reusable {@link PackedFrame},
+     * directly on the data reading thread. Nothing is allocated per frame on this path.
+     * Takes effect the next time {@link #startData()} is called.
+     *
+     * @param packedFrameListener an allocation-free frame callback, or null to remove it
+     */
+    public void setPackedFrameListener(PackedFrameListener packedFrameListener) {
+        this.androidBluetoothConnectionComponents.setPackedFrameListener(packedFrameListener);
+    }
+
+    /**
+     * Set an optional listener which receives frames in batches on the UI thread, rather
+     * than one {@link DataFrame} at a time. A batch is delivered when it holds maxFrames
+     * frames or when its oldest frame is maxDelayMs old, whichever comes first. For example,
+     * maxFrames = 60 and maxDelayMs = 250 means at most 4 UI thread posts per second.
+     * Takes effect the next time {@link #startData()} is called.
+     * <p>
+     * Apps which only need batches may also want to call {@link #setDataFrameDeliveryEnabled(boolean)}
+     * with false.
+     *
+     * @param dataFrameBatchListener the batch callback, or null to remove it
+     * @param maxFrames the largest number of frames in one batch
+     * @param maxDelayMs the longest time a frame waits in a batch before the batch is delivered
+     */
+    public void setDataFrameBatchListener(DataFrameBatchListener dataFrameBatchListener, int maxFrames, long maxDelayMs) {
+        this.androidBluetoothConnectionComponents.setFrameBatcher(dataFrameBatchListener == null ? null :
+                new FrameBatcher(dataFrameBatchListener, new MainThreadExecutor(), maxFrames, maxDelayMs));
+    }
+
+    /**
+     * Set an optional {@link FrameRingBuffer} which receives every frame from the data
+     * reading thread. Your app consumes the frames on a thread of its own, by calling
+     * {@link FrameRingBuffer#poll(PackedFrame)} or {@link FrameRingBuffer#take(PackedFrame, long, java.util.concurrent.TimeUnit)}.
+     * Only one thread may consume from the buffer. Nothing is allocated per frame on this path.
+     * <p>
+     * With {@link FrameRingBuffer.OverflowPolicy#BLOCK}, a consumer which falls behind
+     * also stalls the data reading thread. Takes effect the next time {@link #startData()} is called.
+     *
+     * @param frameRingBuffer the buffer to publish frames into, or null to remove it
+     */
+    public void setFrameRingBuffer(FrameRingBuffer frameRingBuffer) {
+        this.androidBluetoothConnectionComponents.setFrameRingBuffer(frameRingBuffer);
+    }
+
+    /**
+     * Set an optional {@link AlarmEngine} which evaluates your {@link AlarmRule}s against every
+     * frame, directly on the data reading thread, before the frame goes anywhere else. Alarm
+     * decisions then don't wait for the UI thread, and don't depend on how many frames
+     * the UI thread sees. The engine's {@link AlarmListener} is called on the data reading thread;
+     * give the engine a listener from {@link AlarmDispatcher#deliverTo(AlarmListener)} to have
+     * your listener called on the dispatcher's own thread instead, highest priority alarm first.
+     * Either way, alarms never wait behind data frames or for the UI thread.
+     * <p>
+     * Takes effect with the next frame, so the rules can be changed while data is being read
+     * by setting a new engine. The new engine starts timing its rules from scratch.
+     *
+     * @param alarmEngine the rules to evaluate, or null to remove them
+     */
+    public void setAlarmEngine(AlarmEngine alarmEngine) {
+        this.androidBluetoothConnectionComponents.setAlarmEngine(alarmEngine);
+    }
+
+    /**
+     * Frame times come from a {@link FrameClock}, which gives each frame its sample index in
+     * the CMS50FW's 60 Hz cadence and estimates how far the CMS50FW's clock drifts from
+     * this device's. Each {@link #startData()} starts a new one.
+     *
+     * @return the clock of the current or last data read, for its drift and gap counts,
+     * or null if data was never read
+     */
+    public FrameClock getFrameClock() {
+        return androidBluetoothConnectionComponents.getFrameClock();
+    }
+
+    /**
+     * Set an optional {@link BeatDetector} which finds heart beats in the pulse wave of every
+     * frame, directly on the data reading thread. Its heart rate is measured from the time
+     * between beats, so unlike {@link DataFrame#pulseRate} it is right above 127 beats per
+     * minute. Read its rates from any thread, or give it a {@link BeatListener}, which is
+     * called on the data reading thread.
+     * <p>
+     * Takes effect with the next frame.
+     *
+     * @param beatDetector the detector, or null to remove it
+     */
+    public void setBeatDetector(BeatDetector beatDetector) {
+        this.androidBluetoothConnectionComponents.setBeatDetector(beatDetector);
+    }
+
+    /**
+     * Set an optional {@link GapListener} which is told, on the data reading thread, whenever
+     * frames from the CMS50FW never arrived, with the length of the gap. The gap's frames
+     * can also be filled in; see {@link #setMaxSyntheticFrames(int)}.
+     * Takes effect the next time {@link #startData()} is called.
+     *
+     * @param gapListener the gap callback, or null to remove it
+     */
+    public void setGapListener(GapListener gapListener) {
+        this.androidBluetoothConnectionComponents.setGapListener(gapListener);
+    }
+
+    /**
+     * Fill gaps of up to maxSyntheticFrames samples with synthetic frames, interpolated from
+     * the frames on either side, so that a {@link PackedFrameListener} or {@link FrameRingBuffer}
+     * which filters the data sees a continuous 60 Hz series. Synthetic frames are marked by
+     * {@link PackedFrame#isSynthetic()}. They don't go to the alarm engine, to batches or to
+     * {@link CMS50FWConnectionListener#onDataFrameArrived(DataFrame)}. Longer gaps are
+     * only reported. This is 0, filling nothing, by default.
+     * Takes effect the next time {@link #startData()} is called.
+     *
+     * @param maxSyntheticFrames the longest gap, in samples, to fill
+     */
+    public void setMaxSyntheticFrames(int maxSyntheticFrames) {
+        if (maxSyntheticFrames < 0) {
+            throw new IllegalArgumentException(Util.formatString(MAX_SYNTHETIC_FRAMES_MUST_NOT_BE_NEGATIVE_MESSAGE,
+                    maxSyntheticFrames));
+        }
+        this.androidBluetoothConnectionComponents.setMaxSyntheticFrames(maxSyntheticFrames);
+    }
+
+    /**
+     * @return the gap filler of the current or last data read, with the number of gaps and
+     * the total time they covered during that read, or null if data was never read
+     */
+    public GapFiller getGapFiller() {
+        return androidBluetoothConnectionComponents.getGapFiller();
+    }
+
+    /**
+     * Choose whether each frame is also delivered as a new {@link DataFrame} object through
+     * {@link CMS50FWConnectionListener#onDataFrameArrived(DataFrame)}. This is on by default.
+     * Apps which only use a {@link PackedFrameListener} can turn it off to avoid allocating
+     * (and posting to the UI thread) an object for every frame.
+     *
+     * @param enabled true to build and deliver DataFrame objects
+     */
+    public void setDataFrameDeliveryEnabled(boolean enabled) {
+        this.androidBluetoothConnectionComponents.dataFrameDeliveryEnabled = enabled;
+    }
+
+    /**
+     * Use a connection other than Bluetooth to reach the CMS50FW, for example a
+     * {@link SocketChannelTransport} to a serial-over-TCP bridge, or a {@link FileTransport}
+     * which replays recorded data. {@link #connect(android.content.Context)} then opens this
+     * transport instead of looking for a Bluetooth device, and all commands and data go
+     * through it. Call this before connecting.
+     *
+     * @param transport the connection to use, or null to go back to Bluetooth
+     */
+    public void setTransport(Transport transport) {
+        this.androidBluetoothConnectionComponents.setTransport(transport);
+    }
+
+    /**
+     * Record every chunk of raw bytes received from the CMS50FW, with a nanosecond timestamp,
+     * into a memory-mapped capture file of fixed size. The file can be played back, byte for
+     * byte, with a {@link CaptureReplayTransport}, for example through {@link #setTransport(Transport)}.
+     * Recording stops quietly when the file is full. Takes effect the next time {@link #startData()}
+     * is called.
+     *
+     * @param file where to record. An existing file is replaced.
+     * @param maxBytes size of the capture file. Allow about 1200 bytes per second of recording,
+     *                 e.g. 35 MB for 8 hours.
+     * @throws IOException if the file can't be created
+     */
+    public void startCapture(File file, long maxBytes) throws IOException {
+        stopCapture();
+        this.androidBluetoothConnectionComponents.setByteCapture(ByteCapture.create(file, maxBytes));
+    }
+
+    /**
+     * Stop recording raw bytes and write the capture file out to storage.
+     */
+    public void stopCapture() {
+        ByteCapture byteCapture = this.androidBluetoothConnectionComponents.getByteCapture();
+        this.androidBluetoothConnectionComponents.setByteCapture(null);
+        if (byteCapture != null) {
+            byteCapture.close();
+        }
+    }
+
+    /**
+     * Turn on automatic reconnection. While data is being read, if no frame arrives within
+     * the policy's liveness timeout, or the connection fails, the library closes the Bluetooth
+     * socket, waits for a jittered, exponentially growing backoff, reconnects to the same
+     * CMS50FW, and issues the start data command again. Data then resumes on the same callbacks.
+     * {@link CMS50FWConnectionListener#onBrokenConnection()} is only called if the policy's
+     * maximum number of attempts fails. Takes effect the next time {@link #startData()} is called.
+     *
+     * @param reconnectPolicy the timings to use, for example {@link ReconnectPolicy#defaults()},
+     *                        or null to turn automatic reconnection off
+     */
+    public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+        this.androidBluetoothConnectionComponents.setReconnectPolicy(reconnectPolicy);
+    }
+
+    /**
+     * Set an optional listener which is told, on the UI thread, when automatic reconnection
+     * changes state, and how long the gap in the data was once frames arrive again.
+     * Takes effect the next time {@link #startData()} is called.
+     *
+     * @param connectionStateListener the callback, or null to remove it
+     */
+    public void setConnectionStateListener(final ConnectionStateListener connectionStateListener) {
+        if (connectionStateListener == null) {
+            this.androidBluetoothConnectionComponents.setConnectionStateListener(null);
+            return;
+        }
+        final MainThreadExecutor mainThreadExecutor = new MainThreadExecutor();
+        this.androidBluetoothConnectionComponents.setConnectionStateListener(new ConnectionStateListener() {
+            @Override
+            public void onConnectionStateChanged(final ConnectionStateMachine.State state) {
+                mainThreadExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        connectionStateListener.onConnectionStateChanged(state);
+                    }
+                });
+            }
+
+            @Override
+            public void onDataResumed(final long gapMs) {
+                mainThreadExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        connectionStateListener.onDataResumed(gapMs);
+                    }
+                });
+            }
+        });
+    }
+
     /**
      * Most methods create tasks which are run and executed on
      * various executors. These methods are typically invoked from
@@ -124,34 +385,56 @@ public class CMS50FWBluetoothConnectionManager {
      **/
 
     /**
-     * Invoke Bluetooth discovery, wait for it to finish, and then obtain a
-     * Bluetooth socket and connect to the main Bluetooth service on the CMS50FW bluetooth device. Also
-     * obtains IO streams. (These Bluetooth plumbing details are handled internally
-     * so that you do not have to be aware of them.) After a successful
+     * Find the CMS50FW, obtain a Bluetooth socket and connect to the main Bluetooth service on
+     * the CMS50FW bluetooth device. Also obtains IO streams. (These Bluetooth plumbing details are
+     * handled internally so that you do not have to be aware of them.) After a successful
      * connection, as indicated by the callback {@link CMS50FWConnectionListener#onConnectionEstablished()},
-     * your app can call {@link #startData()}. This occurs on the UI thread.
+     * your app can call {@link #startData()}.
+     * <p>
+     * To avoid the roughly 10 second wait for Bluetooth discovery, the device is looked for in this order:
+     * the Bluetooth address and service UUID remembered from the last successful connection,
+     * then the devices already paired with this Android device, and only then by Bluetooth discovery.
+     * This work is done on a worker thread; this method returns right away. See
+     * {@link #getConnectLatencyStats()} for how long each path takes.
      */
     public void connect(Context context) throws BluetoothNotAvailableException, BluetoothNotEnabledException{
-        androidBluetoothConnectionComponents.findAndConnect(context);
+        if (androidBluetoothConnectionComponents.usesBluetooth()) {
+            androidBluetoothConnectionComponents.verifyBluetoothReady();
+        }
+        submitToGeneralExecutor(new ConnectTask(androidBluetoothConnectionComponents, context));
+    }
+
+    /**
+     * @return counts and latencies of connection attempts, for each way of finding the CMS50FW
+     */
+    public ConnectLatencyStats getConnectLatencyStats() {
+        return androidBluetoothConnectionComponents.getConnectLatencyStats();
     }
 
     /**
      * Request data from the CMS50FW by issuing a start command on the
      * input stream. Also start the keep-alive service which pings the
      * CMS50FW every 5 seconds to ensure that its Bluetooth connection
-     * remains alive.
+     * remains alive. (With automatic reconnection, see {@link #setReconnectPolicy(ReconnectPolicy)},
+     * the data reading task sends the keep-alive command itself.)
      */
     public void startData() {
         androidBluetoothConnectionComponents.okToReadData = true;
-        if (keepAliveExecutor == null ||
-                keepAliveExecutor.isShutdown() ||
-                keepAliveExecutor.isTerminated()) {
-            keepAliveExecutor = Executors.newSingleThreadScheduledExecutor();
-        }
-        if (!keepAliveTaskRunning) {
-            keepAliveExecutor.scheduleAtFixedRate(new KeepAliveTask(androidBluetoothConnectionComponents),
-                    0, STAY_CONNECTED_PERIOD_SEC, TimeUnit.SECONDS);
-            keepAliveTaskRunning = true;
+        if (androidBluetoothConnectionComponents.getReconnectPolicy() != null) {
+            // the reconnecting StartDataTask keeps the connection alive itself
+            Util.safeShutdown(keepAliveExecutor);
+            keepAliveTaskRunning = false;
+        } else {
+            if (keepAliveExecutor == null ||
+                    keepAliveExecutor.isShutdown() ||
+                    keepAliveExecutor.isTerminated()) {
+                keepAliveExecutor = Executors.newSingleThreadScheduledExecutor();
+            }
+            if (!keepAliveTaskRunning) {
+                keepAliveExecutor.scheduleAtFixedRate(new KeepAliveTask(androidBluetoothConnectionComponents),
+                        0, STAY_CONNECTED_PERIOD_SEC, TimeUnit.SECONDS);
+                keepAliveTaskRunning = true;
+            }
         }
         if (readDataExecutor == null) {
             readDataExecutor = Executors.newSingleThreadScheduledExecutor();
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An alternative entry point to this library for apps which monitor several
+ * CMS50FW devices at once, e.g. on a ward tablet.
+ * <p>
+ * Where {@link CMS50FWBluetoothConnectionManager} uses three threads per device, this
+ * class uses one: Bluetooth socket streams can't be waited on together, so each device is
+ * read by a thread which blocks until data arrives. All devices are kept connected from one
+ * shared keep-alive thread, and are connected one after another on a single connect thread,
+ * so N devices take N + 2 threads. See {@link MultiDeviceFrameReader}.
+ * <p>
+ * Devices are named by their Bluetooth device name (e.g. SpO202) or by their Bluetooth
+ * address (e.g. 00:0E:EA:CF:12:34). Since several CMS50FWs usually share the same name,
+ * addresses are the better choice here. Devices must already be paired with the Android device.
+ * <p>
+ * Every frame is reported to the {@link MultiDeviceListener} with the Bluetooth address of
+ * the device it came from. Callbacks are made on the library's worker threads, not on the UI thread.
+ */
+public class CMS50FWMultiDeviceConnectionManager {
+
+    private static final String TAG = CMS50FWMultiDeviceConnectionManager.class.getSimpleName();
+    private static final String BLUETOOTH_IS_NOT_SUPPORTED_ON_THIS_ANDROID_DEVICE_MESSAGE = "Bluetooth is not supported on this android device!!";
+    private static final String BLUETOOTH_IS_NOT_ENABLED_MESSAGE = "Bluetooth is not enabled. Please go to Settings and enable Bluetooth on this Android device.";
+    private static final String NO_PAIRED_DEVICE_FORMAT = "No paired Bluetooth device matches %s. Please pair it in Settings first.";
+    private static final String CONNECTING_FORMAT = "Connecting to %s (%s)";
+    private static final String CONNECTED_FORMAT = "Connected to %s (%s)";
+    private static final String COULD_NOT_CONNECT_FORMAT = "Could not connect to %s (%s)";
+    private static final String COULD_NOT_CLOSE_FORMAT = "Could not close Bluetooth socket for %s";
+    private static final String ALREADY_CONNECTED_FORMAT = "%s (%s) is already connected";
+
+    private final List<String> deviceNamesOrAddresses;
+    private final MultiDeviceFrameReader multiDeviceFrameReader;
+    private final MultiDeviceListener multiDeviceListener;
+    private final ExecutorService connectExecutor = Executors.newSingleThreadExecutor();
+    private final ConcurrentMap<String, BluetoothSocket> sockets = new ConcurrentHashMap<String, BluetoothSocket>();
+
+    /**
+     * @param deviceNamesOrAddresses the devices to read
+     * @param multiDeviceListener receives frames and device events
+     */
+    public CMS50FWMultiDeviceConnectionManager(Collection<String> deviceNamesOrAddresses,
+                                               final MultiDeviceListener multiDeviceListener) {
+        this.deviceNamesOrAddresses = new ArrayList<String>(deviceNamesOrAddresses);
+        this.multiDeviceListener = multiDeviceListener;
+        // the shared reader threads are only for selectable transports, so they are never started here
+        this.multiDeviceFrameReader = new MultiDeviceFrameReader(1, new MultiDeviceListener() {
+            @Override
+            public void onDeviceConnected(String deviceId) {
+                multiDeviceListener.onDeviceConnected(deviceId);
+            }
+
+            @Override
+            public void onPackedFrameArrived(String deviceId, PackedFrame packedFrame) {
+                multiDeviceListener.onPackedFrameArrived(deviceId, packedFrame);
+            }
+
+            @Override
+            public void onDeviceDisconnected(String deviceId) {
+                closeSocket(deviceId);
+                multiDeviceListener.onDeviceDisconnected(deviceId);
+            }
+
+            @Override
+            public void onLogEvent(long timeMs, String message) {
+                multiDeviceListener.onLogEvent(timeMs, message);
+            }
+        });
+    }
+
+    /**
+     * Connects to each paired device which matches one of the names or addresses, and starts
+     * reading its data. Devices are connected one at a time on a worker thread. Each one is
+     * reported through {@link MultiDeviceListener#onDeviceConnected(String)}.
+     */
+    public void connect() throws BluetoothNotAvailableException, BluetoothNotEnabledException {
+        BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        if (bluetoothAdapter == null) {
+            Log.w(TAG, BLUETOOTH_IS_NOT_SUPPORTED_ON_THIS_ANDROID_DEVICE_MESSAGE);
+            throw new BluetoothNotAvailableException();
+        }
+        if (!bluetoothAdapter.isEnabled()) {
+            Log.w(TAG, BLUETOOTH_IS_NOT_ENABLED_MESSAGE);
+            throw new BluetoothNotEnabledException();
+        }
+
+        // discovery slows down connections, and paired devices don't need it
+        bluetoothAdapter.cancelDiscovery();
+
+        for (String nameOrAddress : deviceNamesOrAddresses) {
+            boolean matched = false;
+            for (BluetoothDevice device : bluetoothAdapter.getBondedDevices()) {
+                if (nameOrAddress.equalsIgnoreCase(device.getAddress()) || nameOrAddress.equals(device.getName())) {
+                    matched = true;
+                    submitConnect(device);
+                }
+            }
+            if (!matched) {
+                log(Util.formatString(NO_PAIRED_DEVICE_FORMAT, nameOrAddress));
+            }
+        }
+    }
+
+    /**
+     * Stops reading one device and closes its connection.
+     *
+     * @param address the Bluetooth address of the device
+     */
+    public void disconnect(String address) {
+        multiDeviceFrameReader.removeDevice(address);
+        closeSocket(address);
+    }
+
+    /**
+     * @return the number of devices currently being read
+     */
+    public int getConnectedDeviceCount() {
+        return multiDeviceFrameReader.getDeviceCount();
+    }
+
+    /**
+     * Stops reading all devices, closes their connections and shuts down all threads.
+     * This object can't be used again afterwards.
+     */
+    public void dispose() {
+        Util.safeShutdown(connectExecutor);
+        multiDeviceFrameReader.shutdown();
+        for (String address : sockets.keySet()) {
+            closeSocket(address);
+        }
+    }
+
+    /**
+     * Queues a connect. A device may be queued more than once, by a second call to
+     * {@link #connect()} or by being listed under both its name and its address, so the
+     * task reserves the address itself and skips a device which already has a socket.
+     */
+    private void submitConnect(final BluetoothDevice device) {
+        connectExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String address = device.getAddress();
+                if (sockets.containsKey(address)) {
+                    log(Util.formatString(ALREADY_CONNECTED_FORMAT, device.getName(), address));
+                    return;
+                }
+                log(Util.formatString(CONNECTING_FORMAT, device.getName(), address));
+                BluetoothSocket bluetoothSocket = null;
+                try {
+                    bluetoothSocket = device.createRfcommSocketToServiceRecord(serviceUUID(device));
+                    if (sockets.putIfAbsent(address, bluetoothSocket) != null) {
+                        log(Util.formatString(ALREADY_CONNECTED_FORMAT, device.getName(), address));
+                        closeQuietly(bluetoothSocket, address);
+                        return;
+                    }
+                    bluetoothSocket.connect();
+                    multiDeviceFrameReader.addDevice(address, bluetoothSocket.getInputStream(),
+                            bluetoothSocket.getOutputStream());
+                    log(Util.formatString(CONNECTED_FORMAT, device.getName(), address));
+                } catch (IOException e) {
+                    connectFailed(device, bluetoothSocket, e);
+                } catch (RuntimeException e) {
+                    connectFailed(device, bluetoothSocket, e);
+                }
+            }
+        });
+    }
+
+    private void connectFailed(BluetoothDevice device, BluetoothSocket bluetoothSocket, Exception e) {
+        String address = device.getAddress();
+        Log.e(TAG, Util.formatString(COULD_NOT_CONNECT_FORMAT, device.getName(), address), e);
+        log(Util.formatString(COULD_NOT_CONNECT_FORMAT, device.getName(), address));
+        if (bluetoothSocket != null) {
+            sockets.remove(address, bluetoothSocket);
+            closeQuietly(bluetoothSocket, address);
+        }
+    }
+
+    /**
+     * @return the first service UUID reported by the device, or the standard serial port UUID
+     */
+    private static UUID serviceUUID(BluetoothDevice device) {
+        ParcelUuid[] uuidArray = device.getUuids();
+        if (uuidArray != null && uuidArray.length > 0) {
+            return uuidArray[0].getUuid();
+        }
+        return AndroidBluetoothConnectionComponents.DEFAULT_BLUETOOTH_SERVICE_UUID;
+    }
+
+    private void closeSocket(String address) {
+        BluetoothSocket bluetoothSocket = sockets.remove(address);
+        if (bluetoothSocket != null) {
+            closeQuietly(bluetoothSocket, address);
+        }
+    }
+
+    private void closeQuietly(BluetoothSocket bluetoothSocket, String address) {
+        try {
+            bluetoothSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, Util.formatString(COULD_NOT_CLOSE_FORMAT, address));
+        }
+    }
+
+    private void log(String message) {
+        multiDeviceListener.onLogEvent(System.currentTimeMillis(), message);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Ensures that the original CMS50FWConnectionListener instance is
+ * called back on the UI thread, with exactly one post to the main looper
+ * per callback.
+ * <p>
+ * Data frames are conflated: at most one data frame delivery is waiting in the
+ * main looper's queue at any time, and if newer frames arrive before it runs,
+ * only the latest one is delivered. So a UI thread which stalls sees the most
+ * recent frame when it wakes up, rather than a backlog of stale ones.
+ * <p>
+ * All other callbacks (connection established, broken connection, reset, log events, etc)
+ * are never dropped. Each of them is posted in the order it was received.
+ *
+ * Created by albertb on 1/22/2015.
+ */
+class ConflatingListenerDispatcher implements CMS50FWConnectionListener {
+
+    private final String TAG = ConflatingListenerDispatcher.class.getSimpleName();
+
+    private CMS50FWConnectionListener cms50FWConnectionListener = null;
+    private Executor uiThreadExecutor = null;
+
+    private final AtomicReference<DataFrame> latestDataFrame = new AtomicReference<DataFrame>();
+    private final AtomicBoolean dataFrameDeliveryPosted = new AtomicBoolean(false);
+    private final AtomicInteger queueDepth = new AtomicInteger(0);
+    private final AtomicLong droppedDataFrames = new AtomicLong(0);
+
+    // allocated once and re-posted for every data frame delivery
+    private final Runnable deliverLatestDataFrame = new Runnable() {
+        @Override
+        public void run() {
+            queueDepth.decrementAndGet();
+            dataFrameDeliveryPosted.set(false);
+            DataFrame dataFrame = latestDataFrame.getAndSet(null);
+            if (dataFrame != null) {
+                cms50FWConnectionListener.onDataFrameArrived(dataFrame);
+            }
+        }
+    };
+
+    public ConflatingListenerDispatcher(CMS50FWConnectionListener cms50FWConnectionListener) {
+        this(cms50FWConnectionListener, new Executor() {
+            private final Handler handler = new Handler(Looper.getMainLooper());
+
+            @Override
+            public void execute(Runnable runnable) {
+                handler.post(runnable);
+            }
+        });
+    }
+
+    /**
+     * @param uiThreadExecutor runs the callbacks, one task per post. Tests pass one
+     *                         which runs them only when asked.
+     */
+    ConflatingListenerDispatcher(CMS50FWConnectionListener cms50FWConnectionListener, Executor uiThreadExecutor) {
+        this.cms50FWConnectionListener = cms50FWConnectionListener;
+        this.uiThreadExecutor = uiThreadExecutor;
+    }
+
+    /**
+     * @return the number of callbacks posted to the UI thread which have not run yet
+     */
+    int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return true while a data frame delivery is waiting to run on the UI thread
+     */
+    boolean isDataFrameDeliveryPosted() {
+        return dataFrameDeliveryPosted.get();
+    }
+
+    /**
+     * @return the number of data frames which were replaced by a newer frame before the
+     * UI thread got to them
+     */
+    long getDroppedDataFrames() {
+        return droppedDataFrames.get();
+    }
+
+    private void postToUIThread(final Runnable runnable) {
+        queueDepth.incrementAndGet();
+        uiThreadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                queueDepth.decrementAndGet();
+                runnable.run();
+            }
+        });
+    }
+
+    @Override
+    public void onConnectionAttemptInProgress() {
+        postToUIThread(new Runnable() {
+            @Override
+            public void run() {
+                cms50FWConnectionListener.onConnectionAttemptInProgress();
+            }
+        });
+    }
+
+    @Override
+    public void onConnectionEstablished() {
+        postToUIThread(new Runnable() {
+            @Override
+            public void run() {
+                cms50FWConnectionListener.onConnectionEstablished();
+            }
+        });
+    }
+
+    @Override
+    public void onDataReadAttemptInProgress() {
+        postToUIThread(new Runnable() {
+            @Override
+            public void run() {
+                cms50FWConnectionListener.onDataReadAttemptInProgress();
+            }
+        });
+    }
+
+    @Override
+    public void onDataFrameArrived(final DataFrame dataFrame) {
+        if (dataFrame == null) {
+            return;
+        }
+        if (latestDataFrame.getAndSet(dataFrame) != null) {
+            droppedDataFrames.incrementAndGet();
+        }
+        if (dataFrameDeliveryPosted.compareAndSet(false, true)) {
+            queueDepth.incrementAndGet();
+            uiThreadExecutor.execute(deliverLatestDataFrame);
+        }
+    }
+
+    @Override
+    public void onDataReadStopped() {
+        postToUIThread(new Runnable() {
+            @Override
+            public void run() {
+                cms50FWConnectionListener.onDataReadStopped();
+            }
+        });
+    }
+
+    @Override
+    public void onBrokenConnection() {
+        postToUIThread(new Runnable() {
+            @Override
+            public void run() {
+                cms50FWConnectionListener.onBrokenConnection();
+            }
+        });
+    }
+
+    @Override
+    public void onConnectionReset() {
+        postToUIThread(new Runnable() {
+            @Override
+            public void run() {
+                cms50FWConnectionListener.onConnectionReset();
+            }
+        });
+    }
+
+    @Override
+    public void onLogEvent(final long timeMs, final String message) {
+        postToUIThread(new Runnable() {
+            @Override
+            public void run() {
+                cms50FWConnectionListener.onLogEvent(timeMs, message);
+            }
+        });
+    }
+}
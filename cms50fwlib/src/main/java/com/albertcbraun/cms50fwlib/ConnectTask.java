@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Connects to the CMS50FW by the fastest path which works: the cached address
+ * from the last session, then the paired devices, and finally full Bluetooth
+ * discovery. The first two paths block while connecting, which is why this
+ * runs on a worker thread.
+ * <p>
+ * If the client supplied its own {@link Transport}, that transport is simply opened.
+ */
+class ConnectTask implements Runnable {
+
+    private static final String TAG = ConnectTask.class.getSimpleName();
+    private static final String FALLING_BACK_TO_DISCOVERY_MESSAGE = "No cached or paired CMS50FW could be connected. Falling back to Bluetooth discovery.";
+    private static final String COULD_NOT_START_DISCOVERY_MESSAGE = "Could not start Bluetooth discovery because Bluetooth is not available or not enabled.";
+
+    private final AndroidBluetoothConnectionComponents androidBluetoothConnectionComponents;
+    private final CMS50FWConnectionListener cms50FWConnectionListener;
+    private final Context applicationContext;
+
+    ConnectTask(AndroidBluetoothConnectionComponents androidBluetoothConnectionComponents, Context context) {
+        this.androidBluetoothConnectionComponents = androidBluetoothConnectionComponents;
+        this.cms50FWConnectionListener = androidBluetoothConnectionComponents.getCMS50FWConnectionListener();
+        this.applicationContext = context.getApplicationContext();
+    }
+
+    @Override
+    public void run() {
+        if (!androidBluetoothConnectionComponents.usesBluetooth()) {
+            androidBluetoothConnectionComponents.connectTransport();
+            return;
+        }
+        if (androidBluetoothConnectionComponents.connectWithoutDiscovery(applicationContext)) {
+            return;
+        }
+        Util.log(cms50FWConnectionListener, FALLING_BACK_TO_DISCOVERY_MESSAGE);
+        try {
+            androidBluetoothConnectionComponents.findAndConnect(applicationContext);
+        } catch (BluetoothNotAvailableException e) {
+            Log.w(TAG, COULD_NOT_START_DISCOVERY_MESSAGE);
+            Util.log(cms50FWConnectionListener, COULD_NOT_START_DISCOVERY_MESSAGE);
+        } catch (BluetoothNotEnabledException e) {
+            Log.w(TAG, COULD_NOT_START_DISCOVERY_MESSAGE);
+            Util.log(cms50FWConnectionListener, COULD_NOT_START_DISCOVERY_MESSAGE);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.UUID;
+
+/**
+ * Remembers, across app restarts, the Bluetooth address and service UUID of the
+ * CMS50FW from the last successful connection, so the next connection can skip
+ * Bluetooth discovery. Values are stored in a private SharedPreferences file,
+ * keyed by the CMS50FW's Bluetooth device name.
+ */
+class ConnectionCache {
+
+    private static final String PREFERENCES_NAME = "com.albertcbraun.cms50fwlib.ConnectionCache";
+    private static final String ADDRESS_KEY_FORMAT = "%s.address";
+    private static final String SERVICE_UUID_KEY_FORMAT = "%s.serviceUUID";
+
+    private final SharedPreferences sharedPreferences;
+    private final String addressKey;
+    private final String serviceUUIDKey;
+
+    ConnectionCache(Context context, String androidBluetoothDeviceName) {
+        this.sharedPreferences = context.getApplicationContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        this.addressKey = Util.formatString(ADDRESS_KEY_FORMAT, androidBluetoothDeviceName);
+        this.serviceUUIDKey = Util.formatString(SERVICE_UUID_KEY_FORMAT, androidBluetoothDeviceName);
+    }
+
+    /**
+     * @return the Bluetooth address of the last device connected to, or null if there is none
+     */
+    String getAddress() {
+        return sharedPreferences.getString(addressKey, null);
+    }
+
+    /**
+     * @return the service UUID used for the last connection, or null if there is none
+     */
+    UUID getServiceUUID() {
+        String serviceUUID = sharedPreferences.getString(serviceUUIDKey, null);
+        if (serviceUUID == null) {
+            return null;
+        }
+        try {
+            return UUID.fromString(serviceUUID);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    void save(String address, UUID serviceUUID) {
+        sharedPreferences.edit()
+                .putString(addressKey, address)
+                .putString(serviceUUIDKey, serviceUUID.toString())
+                .apply();
+    }
+
+    void clear() {
+        sharedPreferences.edit().remove(addressKey).remove(serviceUUIDKey).apply();
+    }
+}
@@ -58,7 +58,7 @@ class KeepAliveTask implements Runnable {
                 androidBluetoothConnectionComponents.writeCommand(CMS50FWCommand.STAY_CONNECTED);
             } catch (IOException e) {
                 Log.e(TAG, BROKEN_PIPE_COULD_NOT_WRITE_STAY_CONNECTED_COMMAND_MESSAGE, e);
-                if (e.getMessage().contains(BROKEN_PIPE)) {
+                if (e.getMessage() != null && e.getMessage().contains(BROKEN_PIPE)) {
                     Util.log(cms50FWConnectionListener, BROKEN_PIPE_LOG_MESSAGE);
                     cms50FWConnectionListener.onBrokenConnection();
                 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link Transport} over the Bluetooth RFCOMM socket held by
+ * {@link AndroidBluetoothConnectionComponents}.
+ * <p>
+ * Opening reuses the socket if it is still connected, and otherwise connects a
+ * new socket to the CMS50FW which was connected last. Closing closes the socket
+ * and streams but remembers the CMS50FW, so the transport can be opened again.
+ */
+class RfcommTransport implements Transport {
+
+    private static final String NOT_CONNECTED_MESSAGE = "Bluetooth socket is not connected.";
+
+    private final AndroidBluetoothConnectionComponents androidBluetoothConnectionComponents;
+
+    RfcommTransport(AndroidBluetoothConnectionComponents androidBluetoothConnectionComponents) {
+        this.androidBluetoothConnectionComponents = androidBluetoothConnectionComponents;
+    }
+
+    @Override
+    public void open() throws IOException {
+        if (!androidBluetoothConnectionComponents.bluetoothConnectionAlive()) {
+            androidBluetoothConnectionComponents.reopenSocket();
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        InputStream inputStream = androidBluetoothConnectionComponents.inputStream;
+        if (inputStream == null) {
+            throw new IOException(NOT_CONNECTED_MESSAGE);
+        }
+        return inputStream.read(buffer, offset, length);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        androidBluetoothConnectionComponents.write(bytes, offset, length);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return androidBluetoothConnectionComponents.bluetoothConnectionAlive();
+    }
+
+    @Override
+    public void close() {
+        androidBluetoothConnectionComponents.closeSocket();
+    }
+}
@@ -21,9 +21,17 @@ import android.util.Log;
 import java.io.IOException;
 
 /**
- * Read data from CMS50FW bluetooth input stream, forming
+ * Read data from the CMS50FW {@link Transport}, forming
  * DataFrame objects from each 8 byte sequence.
  * <p>
+ * The transport is read in bulk chunks through a {@link FrameDecoder}, so this
+ * task blocks in {@link Transport#read(byte[], int, int)} while the CMS50FW is
+ * quiet instead of polling for available bytes.
+ * <p>
+ * If the client has set a {@link ReconnectPolicy}, the reading is handed to a
+ * {@link ConnectionStateMachine} instead, which reconnects automatically when the
+ * data stream stops, and which sends the keep-alive command itself.
+ * <p>
  * <i><b>
  * Please note that this version of this task does not allow
  * a pulseRate above 127. However, at or below 127, the pulseRate does appear
@@ -33,34 +41,34 @@ import java.io.IOException;
  * <p>
  * Created by albertb on 12/22/2014.
  */
-class StartDataTask implements Runnable {
+class StartDataTask implements Runnable, FrameDecoder.FrameHandler {
 
     private static final String TAG = StartDataTask.class.getSimpleName();
 
-    private static final int BIT_0 = 1;
-    private static final int BIT_1 = 2;
-    private static final int BIT_2 = 4;
-    private static final int BIT_3 = 8;
-    private static final int BITS_ZERO_TO_THREE = BIT_0 | BIT_1 | BIT_2 | BIT_3;
-    private static final int BIT_4 = 16;
-    private static final int BIT_5 = 32;
-    private static final int BIT_6 = 64;
-    private static final int BITS_ZERO_TO_SIX = BIT_0 | BIT_1 | BIT_2 | BIT_3 | BIT_4 | BIT_5 | BIT_6;
-    private static final int BIT_7 = 128;
-    private static final int SIXTY_FOUR = 64;
-    private static final int ONE_TWENTY_SEVEN = 127;
-    private static final String COULD_NOT_PUT_STREAMING_DATA_INTO_A_NEW_DATA_FRAME = "Could not put streaming data into a new data frame.";
     private static final String ERROR_CONNECTION_IS_NOT_ALIVE_MESSAGE = "Error. Connection is not alive. ";
     private static final String BEGINNING_DATA_READ_OPERATIONS_MESSAGE = "Beginning data read operations.";
     private static final String IO_EXCEPTION_WITH_INPUT_STREAM_OR_OUTPUT_STREAM_OBJECT_MESSAGE =
             "IOException with InputStream or OutputStream object.";
+    private static final String END_OF_INPUT_STREAM_MESSAGE = "Reached end of input stream.";
     private static final String CONNECTION_TASK_COMPLETED_MESSAGE = "Connection completed.";
+    private static final String RECONNECT_ATTEMPTS_FAILED_MESSAGE = "Could not reconnect to CMS50FW. Giving up.";
 
     private AndroidBluetoothConnectionComponents androidBluetoothConnectionComponents = null;
     private CMS50FWConnectionListener cms50FWConnectionListener = null;
+    private PackedFrameListener packedFrameListener = null;
+    private FrameBatcher frameBatcher = null;
+    private FrameRingBuffer frameRingBuffer = null;
+    private FrameClock frameClock = null;
+    private GapFiller gapFiller = null;
+    private FrameDecoder frameDecoder = null;
+    private long truncatedFrames = 0;
+    private final PackedFrame packedFrame = new PackedFrame();
 
     StartDataTask(AndroidBluetoothConnectionComponents androidBluetoothConnectionComponents) {
         this.cms50FWConnectionListener = androidBluetoothConnectionComponents.getCMS50FWConnectionListener();
+        this.packedFrameListener = androidBluetoothConnectionComponents.getPackedFrameListener();
+        this.frameBatcher = androidBluetoothConnectionComponents.getFrameBatcher();
+        this.frameRingBuffer = androidBluetoothConnectionComponents.getFrameRingBuffer();
         this.androidBluetoothConnectionComponents = androidBluetoothConnectionComponents;
     }
 
@@ -75,9 +83,29 @@ class StartDataTask implements Runnable {
         // allow client to know that work has begun. useful for disabling buttons, etc.
         cms50FWConnectionListener.onDataReadAttemptInProgress();
 
+        // each data read times its frames from scratch, anchored to the wall clock now
+        frameClock = new FrameClock(System.currentTimeMillis(), System.nanoTime());
+        androidBluetoothConnectionComponents.setFrameClock(frameClock);
+        gapFiller = new GapFiller(frameClock, androidBluetoothConnectionComponents.getGapListener(),
+                packedFrameListener != null || frameRingBuffer != null ? new SyntheticFrameListener() : null,
+                androidBluetoothConnectionComponents.getMaxSyntheticFrames());
+        androidBluetoothConnectionComponents.setGapFiller(gapFiller);
+
         // tell the manager it's ok to read data
         androidBluetoothConnectionComponents.okToReadData = true;
 
+        ReconnectPolicy reconnectPolicy = androidBluetoothConnectionComponents.getReconnectPolicy();
+        if (reconnectPolicy != null) {
+            readWithReconnect(reconnectPolicy);
+            return;
+        }
+
+        // closing the transport from another thread during reset unblocks the read below with an IOException.
+        Transport transport = androidBluetoothConnectionComponents.getReadTransport();
+        frameDecoder = androidBluetoothConnectionComponents.getFrameDecoder();
+        frameDecoder.clear(); // drop any partial frame left over from a previous run
+        truncatedFrames = frameDecoder.getTruncatedFrames();
+
         try {
             Util.log(cms50FWConnectionListener, BEGINNING_DATA_READ_OPERATIONS_MESSAGE);
 
@@ -85,12 +113,23 @@ class StartDataTask implements Runnable {
             androidBluetoothConnectionComponents.writeCommand(CMS50FWCommand.START_DATA);
 
             while (androidBluetoothConnectionComponents.okToReadData) {
-                cms50FWConnectionListener.onDataFrameArrived(getNextDataFrame());
+                if (frameDecoder.readFrom(transport) < 0) {
+                    Util.log(cms50FWConnectionListener, END_OF_INPUT_STREAM_MESSAGE);
+                    break;
+                }
+                frameDecoder.decode(this);
             }
         } catch (IOException ioe) {
             Util.log(cms50FWConnectionListener, IO_EXCEPTION_WITH_INPUT_STREAM_OR_OUTPUT_STREAM_OBJECT_MESSAGE);
             Log.e(TAG, IO_EXCEPTION_WITH_INPUT_STREAM_OR_OUTPUT_STREAM_OBJECT_MESSAGE, ioe);
+            if (androidBluetoothConnectionComponents.okToReadData) {
+                // nobody asked us to stop, so the connection itself has failed
+                cms50FWConnectionListener.onBrokenConnection();
+            }
         } finally {
+            if (frameBatcher != null) {
+                frameBatcher.flush(); // deliver whatever is left over
+            }
             Util.log(cms50FWConnectionListener, CONNECTION_TASK_COMPLETED_MESSAGE);
         }
 
@@ -98,101 +137,102 @@ class StartDataTask implements Runnable {
     }
 
     /**
-     * Extract the frame of data representing one tick of the 60HZ data stream
-     * transmitted via Bluetooth from the CMS50FW.
-     *
-     * @return a new DataFrame object whose values are derived from seven byte
-     * sequences found in the data stream. Each seven byte sequence is
-     * preceded by a single boundary byte so that each data frame is considered
-     * to be eight bytes long.
+     * Reads data through a {@link ConnectionStateMachine} until the client stops it,
+     * reconnecting whenever the data stream stops.
      */
-    private DataFrame getNextDataFrame() {
-
-        // separates each frame from previous frame
-        //noinspection UnusedAssignment
-        byte frameBoundary; // aka byte1
-
-        // actual data is stored in these seven bytes
-        //noinspection UnusedAssignment
-        byte byte2; // ignored
-        byte byte3;
-        byte byte4;
-        byte byte5;
-        byte byte6;
-        //noinspection UnusedAssignment
-        byte byte7; // ignored
-        //noinspection UnusedAssignment
-        byte byte8; // ignored
-
-        if (androidBluetoothConnectionComponents.inputStream != null) {
-            try {
-                // create a new empty data frame, ready to be filled in
-                DataFrame dataFrame = new DataFrame();
-
-                // search the stream until the byte which signals the beginning of the next data frame is found
-                while (true) {
-                    byte frameBoundaryCandidate = waitForNextByte();
-                    if ((frameBoundaryCandidate & BIT_7) == BIT_7) { // look for next byte with the 7 bit set
-                        //noinspection UnusedAssignment
-                        frameBoundary = frameBoundaryCandidate;
-                        break;
-                    }
-                }
-
-                // the next 7 bytes are the meaningful ones in the CMS50FW data stream
-                // but, in this code, byte2, byte7 and byte8 will not be used
-
-                //noinspection UnusedAssignment
-                byte2 = waitForNextByte();
-
-                // bytes we actually use
-                byte3 = waitForNextByte();
-                byte4 = waitForNextByte();
-                byte5 = waitForNextByte();
-                byte6 = waitForNextByte();
-
-                //noinspection UnusedAssignment
-                byte7 = waitForNextByte();
-                //noinspection UnusedAssignment
-                byte8 = waitForNextByte();
-
-                dataFrame.pulseWaveForm = (byte3 & BITS_ZERO_TO_SIX);
-                dataFrame.pulseIntensity = (byte4 & BITS_ZERO_TO_THREE);
-                dataFrame.pulseRate = (byte5 & BITS_ZERO_TO_SIX); // TODO: this does not allow pulseRate to be above 127.  But for lower values, it seems to be correct.
-                dataFrame.spo2Percentage = (byte6 & BITS_ZERO_TO_SIX);
-                dataFrame.isFingerOutOfSleeve = (dataFrame.pulseWaveForm == SIXTY_FOUR) &&
-                        (dataFrame.pulseRate == ONE_TWENTY_SEVEN) && (dataFrame.spo2Percentage == ONE_TWENTY_SEVEN);
-
-                return dataFrame;
-
-            } catch (IOException e) {
-                Log.e(TAG, COULD_NOT_PUT_STREAMING_DATA_INTO_A_NEW_DATA_FRAME, e);
+    private void readWithReconnect(ReconnectPolicy reconnectPolicy) {
+        ConnectionStateListener connectionStateListener = androidBluetoothConnectionComponents.getConnectionStateListener();
+        ConnectionStateMachine stateMachine = new ConnectionStateMachine(
+                androidBluetoothConnectionComponents.getReadTransport(), reconnectPolicy, this,
+                connectionStateListener != null ? connectionStateListener : new NoOpConnectionStateListener());
+        androidBluetoothConnectionComponents.setConnectionStateMachine(stateMachine);
+        frameDecoder = stateMachine.getFrameDecoder();
+        truncatedFrames = frameDecoder.getTruncatedFrames();
+        Util.log(cms50FWConnectionListener, BEGINNING_DATA_READ_OPERATIONS_MESSAGE);
+        try {
+            stateMachine.run();
+        } finally {
+            androidBluetoothConnectionComponents.setConnectionStateMachine(null);
+            if (frameBatcher != null) {
+                frameBatcher.flush(); // deliver whatever is left over
             }
+            Util.log(cms50FWConnectionListener, CONNECTION_TASK_COMPLETED_MESSAGE);
         }
-        return null;
+        if (stateMachine.getState() == ConnectionStateMachine.State.FAILED) {
+            Util.log(cms50FWConnectionListener, RECONNECT_ATTEMPTS_FAILED_MESSAGE);
+            cms50FWConnectionListener.onBrokenConnection();
+        }
+        cms50FWConnectionListener.onDataReadStopped();
     }
 
     /**
-     * Spins until a byte becomes available on the input stream. Then it
-     * reads and returns that single byte.
-     *
-     * @return the next byte from the input stream
-     * @throws IOException if the Bluetooth connection is unexpectedly closed or
-     * the stream can't be read for some reason.
+     * Receives the frame of data representing one tick of the 60HZ data stream
+     * transmitted via Bluetooth from the CMS50FW. The frame goes to the alarm engine,
+     * first, so that alarms are decided before anything else is done with the frame,
+     * then to the beat detector, the packed frame listener, the frame batcher and the frame ring buffer,
+     * if there are any, without allocating anything. The frame's time comes from the
+     * {@link FrameClock}, which follows the CMS50FW's sample cadence rather than the
+     * moment the frame happened to be read. Frames the {@link FrameDecoder} dropped as
+     * truncated since the last frame are counted as missing samples right away. Any gap
+     * before the frame is reported, and perhaps filled with synthetic frames, before the
+     * frame goes anywhere.
+     * A new DataFrame object is only built if DataFrame delivery is enabled.
      */
-    private byte waitForNextByte() throws IOException {
-        // It's important to check for a live connection frequently here because another thread
-        // might close connection, causing an IOException to be thrown from this code
-
-        //noinspection StatementWithEmptyBody
-        while (androidBluetoothConnectionComponents.connectionAlive() && androidBluetoothConnectionComponents.inputStream.available() <= 0) {
-            // do nothing until a byte is available from input stream
+    @Override
+    public void onFrame(long rawFrame) {
+        if (!androidBluetoothConnectionComponents.okToReadData) {
+            return;
+        }
+        long truncated = frameDecoder.getTruncatedFrames();
+        frameClock.onFrame(System.nanoTime(), (int) (truncated - truncatedFrames));
+        truncatedFrames = truncated;
+        gapFiller.onFrame(rawFrame);
+        long time = frameClock.getTime();
+        AlarmEngine alarmEngine = androidBluetoothConnectionComponents.getAlarmEngine(); // may be replaced at any time
+        if (alarmEngine != null) {
+            alarmEngine.onFrame(time, rawFrame);
+        }
+        BeatDetector beatDetector = androidBluetoothConnectionComponents.getBeatDetector();
+        if (beatDetector != null) {
+            beatDetector.onFrame(time, rawFrame);
+        }
+        if (packedFrameListener != null) {
+            packedFrameListener.onPackedFrameArrived(packedFrame.set(time, rawFrame));
+        }
+        if (frameBatcher != null) {
+            frameBatcher.add(time, rawFrame);
+        }
+        if (frameRingBuffer != null) {
+            frameRingBuffer.publish(time, rawFrame);
         }
-        if (androidBluetoothConnectionComponents.connectionAlive()) {
-            return (byte) androidBluetoothConnectionComponents.inputStream.read();
+        if (androidBluetoothConnectionComponents.dataFrameDeliveryEnabled) {
+            cms50FWConnectionListener.onDataFrameArrived(PackedFrame.toDataFrame(time, rawFrame));
         }
+    }
 
-        return 0;
+    /**
+     * Passes synthetic frames only to the consumers which see raw frames, and so can tell
+     * synthetic frames from real ones. Alarms, batches and DataFrames only get real frames.
+     */
+    private class SyntheticFrameListener implements PackedFrameListener {
+        @Override
+        public void onPackedFrameArrived(PackedFrame packedFrame) {
+            if (packedFrameListener != null) {
+                packedFrameListener.onPackedFrameArrived(packedFrame);
+            }
+            if (frameRingBuffer != null) {
+                frameRingBuffer.publish(packedFrame.time(), packedFrame.rawFrame());
+            }
+        }
     }
 
+    private static class NoOpConnectionStateListener implements ConnectionStateListener {
+        @Override
+        public void onConnectionStateChanged(ConnectionStateMachine.State state) {
+        }
+
+        @Override
+        public void onDataResumed(long gapMs) {
+        }
+    }
 }
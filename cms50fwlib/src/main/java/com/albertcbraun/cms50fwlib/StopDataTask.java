@@ -45,9 +45,19 @@ class StopDataTask implements Runnable {
     @Override
     public void run() {
         androidBluetoothConnectionComponents.okToReadData = false;
+        ConnectionStateMachine stateMachine = androidBluetoothConnectionComponents.getConnectionStateMachine();
+        if (stateMachine != null) {
+            // stop reconnecting, and write through the state machine so that
+            // this command can't interleave with its keep-alive command
+            stateMachine.stop();
+        }
         if (androidBluetoothConnectionComponents.connectionAlive()) {
             try {
-                androidBluetoothConnectionComponents.writeCommand(CMS50FWCommand.STOP_DATA);
+                if (stateMachine != null) {
+                    stateMachine.writeCommand(CMS50FWCommand.STOP_DATA, CMS50FWCommand.PADDING);
+                } else {
+                    androidBluetoothConnectionComponents.writeCommand(CMS50FWCommand.STOP_DATA);
+                }
                 Util.log(cms50FWConnectionListener, WROTE_STOP_DATA_COMMAND_TO_OUTPUT_STREAM);
             } catch (IOException e) {
                 Log.e(TAG, COULD_NOT_WRITE_STOP_DATA_COMMAND_TO_OUTPUT_STREAM_MESSAGE, e);
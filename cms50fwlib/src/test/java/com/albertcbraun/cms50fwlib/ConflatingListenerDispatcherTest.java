@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Holds the "UI thread" of a {@link ConflatingListenerDispatcher} while frames arrive, and
+ * checks that only the latest frame is delivered and that no other callback is dropped.
+ */
+public class ConflatingListenerDispatcherTest {
+
+    @Test
+    public void onlyTheLatestFrameIsDeliveredWhileTheUIThreadIsBlocked() {
+        HeldExecutor uiThread = new HeldExecutor();
+        RecordingListener listener = new RecordingListener();
+        ConflatingListenerDispatcher dispatcher = new ConflatingListenerDispatcher(listener, uiThread);
+
+        DataFrame last = null;
+        for (int i = 0; i < 100; i++) {
+            last = new DataFrame(i * 17L, 50, 5, 70, 97, false);
+            dispatcher.onDataFrameArrived(last);
+        }
+
+        assertTrue(dispatcher.isDataFrameDeliveryPosted());
+        assertEquals(1, uiThread.tasks.size());
+        assertEquals(1, dispatcher.getQueueDepth());
+        assertEquals(99, dispatcher.getDroppedDataFrames());
+
+        uiThread.runAll();
+        assertEquals(1, listener.dataFrames.size());
+        assertSame(last, listener.dataFrames.get(0));
+        assertFalse(dispatcher.isDataFrameDeliveryPosted());
+        assertEquals(0, dispatcher.getQueueDepth());
+
+        // the next frame is posted again
+        dispatcher.onDataFrameArrived(new DataFrame(2000, 50, 5, 70, 97, false));
+        assertTrue(dispatcher.isDataFrameDeliveryPosted());
+        uiThread.runAll();
+        assertEquals(2, listener.dataFrames.size());
+        assertEquals(99, dispatcher.getDroppedDataFrames());
+    }
+
+    @Test
+    public void otherCallbacksAreNeverDropped() {
+        HeldExecutor uiThread = new HeldExecutor();
+        RecordingListener listener = new RecordingListener();
+        ConflatingListenerDispatcher dispatcher = new ConflatingListenerDispatcher(listener, uiThread);
+
+        dispatcher.onConnectionEstablished();
+        dispatcher.onDataFrameArrived(new DataFrame(0, 50, 5, 70, 97, false));
+        dispatcher.onLogEvent(1, "one");
+        dispatcher.onLogEvent(2, "two");
+        dispatcher.onDataFrameArrived(new DataFrame(17, 50, 5, 70, 97, false));
+        dispatcher.onBrokenConnection();
+
+        assertEquals(5, dispatcher.getQueueDepth());
+        uiThread.runAll();
+        assertEquals(0, dispatcher.getQueueDepth());
+        assertEquals(1, dispatcher.getDroppedDataFrames());
+        List<String> expected = new ArrayList<String>();
+        expected.add("established");
+        expected.add("frame 17");
+        expected.add("log one");
+        expected.add("log two");
+        expected.add("broken");
+        assertEquals(expected, listener.calls);
+    }
+
+    private static class HeldExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            tasks.add(runnable);
+        }
+
+        void runAll() {
+            List<Runnable> running = new ArrayList<Runnable>(tasks);
+            tasks.clear();
+            for (Runnable runnable : running) {
+                runnable.run();
+            }
+        }
+    }
+
+    private static class RecordingListener implements CMS50FWConnectionListener {
+        final List<DataFrame> dataFrames = new ArrayList<DataFrame>();
+        final List<String> calls = new ArrayList<String>();
+
+        @Override
+        public void onConnectionAttemptInProgress() {
+            calls.add("attempt");
+        }
+
+        @Override
+        public void onConnectionEstablished() {
+            calls.add("established");
+        }
+
+        @Override
+        public void onDataReadAttemptInProgress() {
+            calls.add("read attempt");
+        }
+
+        @Override
+        public void onDataFrameArrived(DataFrame dataFrame) {
+            dataFrames.add(dataFrame);
+            calls.add("frame " + dataFrame.time);
+        }
+
+        @Override
+        public void onDataReadStopped() {
+            calls.add("stopped");
+        }
+
+        @Override
+        public void onBrokenConnection() {
+            calls.add("broken");
+        }
+
+        @Override
+        public void onConnectionReset() {
+            calls.add("reset");
+        }
+
+        @Override
+        public void onLogEvent(long timeMs, String message) {
+            calls.add("log " + message);
+        }
+    }
+}
@@ -16,9 +16,7 @@
 
 package com.albertcbraun.cms50fw.alert;
 
-import android.media.SoundPool;
 import android.os.Bundle;
-import android.util.Log;
 import android.view.View;
 import android.view.animation.AlphaAnimation;
 
@@ -40,13 +38,6 @@ class ActivateAlertTask implements Runnable {
         ALERT_DIALOG_FLASH_ANIMATION.setRepeatCount(AlphaAnimation.INFINITE);
         ALERT_DIALOG_FLASH_ANIMATION.setFillAfter(true);
     }
-    private static final String TAG = ActivateAlertTask.class.getSimpleName();
-    private static final int LEFT_VOLUME = 1;
-    private static final int RIGHT_VOLUME = 1;
-    private static final int PRIORITY = 0;
-    private static final int LOOP_SETTING = -1;
-    private static final int RATE = 1;
-    private static final String ALERT_SOUND_COULD_NOT_BE_LOADED = "Alert sound was not loaded by SoundPool! No alert sound can be played!";
     private MainUIFragment mainUIFragment = null;
     private String alertMessage = null;
 
@@ -57,7 +48,6 @@ class ActivateAlertTask implements Runnable {
 
     @Override
     public void run() {
-        android.support.v4.app.FragmentActivity activity = mainUIFragment.getActivity();
         if (!mainUIFragment.uiAlertSet) {
             mainUIFragment.uiAlertSet = true;
 
@@ -74,19 +64,7 @@ class ActivateAlertTask implements Runnable {
 
             // create dialog box and play a sound
             mainUIFragment.getFragmentManager().beginTransaction().add(uiAlertDialog, UIAlertDialog.TAG).commitAllowingStateLoss();
-            if (mainUIFragment.alertSoundEnabled) {
-                final int soundId = mainUIFragment.soundPool.load(activity.getApplicationContext(), R.raw.beep, 1);
-                mainUIFragment.soundPool.setOnLoadCompleteListener(new SoundPool.OnLoadCompleteListener() {
-                    @Override
-                    public void onLoadComplete(SoundPool soundPool, int sampleId, int status) {
-                        if (status == 0) { // sound loaded successfully
-                            mainUIFragment.soundStreamId = soundPool.play(soundId, LEFT_VOLUME, RIGHT_VOLUME, PRIORITY, LOOP_SETTING, RATE);
-                        } else {
-                            Log.e(TAG, ALERT_SOUND_COULD_NOT_BE_LOADED);
-                        }
-                    }
-                });
-            }
+            mainUIFragment.startAlertSound(); // usually already started by AlarmCallbacks
         }
     }
 
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fw.alert;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.albertcbraun.cms50fwlib.AlarmListener;
+import com.albertcbraun.cms50fwlib.AlarmRule;
+
+/**
+ * Raises and lowers the UI alert when the library's alarm engine raises
+ * and clears rules. This is called on an {@link com.albertcbraun.cms50fwlib.AlarmDispatcher}
+ * thread, so the alert sound starts right away, even if the UI thread is busy,
+ * and the rest of the UI work is posted to the UI thread.
+ * <p/>
+ * When the alarm rules change, the engine which called these callbacks is replaced
+ * and its callbacks are retired: they lower any alert they raised, since the old
+ * engine will never clear it, and ignore anything still on its way from the old engine.
+ */
+class AlarmCallbacks implements AlarmListener {
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private MainUIFragment mainUIFragment = null;
+    private int activeCount = 0;
+    private boolean retired = false;
+
+    AlarmCallbacks(MainUIFragment mainUIFragment) {
+        this.mainUIFragment = mainUIFragment;
+    }
+
+    @Override
+    public synchronized void onAlarmRaised(final AlarmRule rule, long time) {
+        if (retired) {
+            return;
+        }
+        activeCount++;
+        mainUIFragment.startAlertSound();
+        mainUIFragment.writeMessage(time, rule.getName());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                mainUIFragment.setUIAlert(rule.getName());
+            }
+        });
+    }
+
+    @Override
+    public synchronized void onAlarmCleared(AlarmRule rule, long time) {
+        if (retired) {
+            return;
+        }
+        activeCount--;
+        if (activeCount == 0) {
+            lowerAlert();
+        }
+    }
+
+    /**
+     * Stops these callbacks for good, lowering the alert if they had raised it.
+     */
+    synchronized void retire() {
+        retired = true;
+        if (activeCount > 0) {
+            activeCount = 0;
+            lowerAlert();
+        }
+    }
+
+    private void lowerAlert() {
+        mainUIFragment.stopAlertSound();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                mainUIFragment.unsetUIAlert();
+            }
+        });
+    }
+}
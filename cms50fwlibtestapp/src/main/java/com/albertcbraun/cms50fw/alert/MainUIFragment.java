@@ -31,13 +31,18 @@ import android.widget.ScrollView;
 import android.widget.SeekBar;
 import android.widget.TextView;
 
+import com.albertcbraun.cms50fwlib.AlarmDispatcher;
+import com.albertcbraun.cms50fwlib.AlarmEngine;
+import com.albertcbraun.cms50fwlib.AlarmRule;
 import com.albertcbraun.cms50fwlib.BluetoothNotAvailableException;
 import com.albertcbraun.cms50fwlib.BluetoothNotEnabledException;
 import com.albertcbraun.cms50fwlib.CMS50FWBluetoothConnectionManager;
 import com.albertcbraun.cms50fwlib.CMS50FWConnectionListener;
 import com.albertcbraun.cms50fwlib.DataFrame;
+import com.albertcbraun.cms50fwlib.FrameChannel;
 
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Locale;
 
@@ -72,11 +77,18 @@ public class MainUIFragment extends Fragment {
     private static final int MAXIMUM_SPO2_PERCENTAGE_DEFAULT_VALUE = 99;
     private static final int CURRENT_SPO2_PERCENTAGE_DEFAULT_VALUE = 80;
     private static final int FINGER_OUT_MESSAGE_THRESHOLD = 10;
-    private static final int FINGER_OUT_ALARM_THRESHOLD = 600;
-    private static final int OXYGEN_LEVEL_TOO_LOW_ALARM_THRESHOLD = 600;
+    private static final long FINGER_OUT_ALARM_MS = 10000;
+    private static final long OXYGEN_LEVEL_TOO_LOW_ALARM_MS = 10000;
     private static final int DATA_FRAME_NULL_ALARM_THRESHOLD = 600;
     private static final int SRC_QUALITY = 0;
     private static final int MAX_STREAMS = 1;
+    private static final int LEFT_VOLUME = 1;
+    private static final int RIGHT_VOLUME = 1;
+    private static final int SOUND_PRIORITY = 0;
+    private static final int LOOP_SETTING = -1;
+    private static final int RATE = 1;
+    private static final String ALERT_SOUND_COULD_NOT_BE_LOADED = "Alert sound was not loaded by SoundPool! No alert sound can be played!";
+    private static final String ALARM_CALLBACK_FAILED_MESSAGE = "Alarm callback failed";
     //private static final String UNEXPECTED_DATA_FRAME_VALUES = "Unexpected Data Frame values:";
     private static final String SEARCHING_FOR_SIGNAL_MESSAGE = "Searching for O2 level and pulse ...";
     private static final int ONE_HUNDRED = 100;
@@ -84,11 +96,16 @@ public class MainUIFragment extends Fragment {
     // alarm and sound related properties
     Integer minimumSpo2Percentage = null;
     private long consecutiveFingerOutDataFrameCount = 0;
-    private long consecutiveSpO2OutOfRangeCount = 0;
     boolean uiAlertSet;
-    boolean alertSoundEnabled = true;
+    volatile boolean alertSoundEnabled = true;
     SoundPool soundPool = null;
-    int soundStreamId = -1;
+    private int soundStreamId = -1;
+    private int alertSoundId = -1;
+    private volatile boolean alertSoundLoaded = false;
+
+    // calls AlarmCallbacks on a thread of its own, so alarms don't wait for the UI thread
+    private AlarmDispatcher alarmDispatcher = null;
+    private AlarmCallbacks alarmCallbacks = null;
 
     // facilitate connections with the threads that talk directly to the CMS50FW
     private CMS50FWBluetoothConnectionManager cms50FWBluetoothConnectionManager = null;
@@ -118,6 +135,13 @@ public class MainUIFragment extends Fragment {
 
         // set up apparatus for bluetooth communication with the CMS50
         cms50FWBluetoothConnectionManager = new CMS50FWBluetoothConnectionManager(CMS50FW_BLUETOOTH_DEVICE_NAME);
+        // log a failing alarm callback instead of letting the default handler end the app
+        alarmDispatcher = new AlarmDispatcher(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable throwable) {
+                Log.e(TAG, ALARM_CALLBACK_FAILED_MESSAGE, throwable);
+            }
+        });
     }
 
     @Override
@@ -148,6 +172,17 @@ public class MainUIFragment extends Fragment {
         stopReadingDataButton.setEnabled(false);
 
         soundPool = new SoundPool(MAX_STREAMS, AudioManager.STREAM_ALARM, SRC_QUALITY);
+        soundPool.setOnLoadCompleteListener(new SoundPool.OnLoadCompleteListener() {
+            @Override
+            public void onLoadComplete(SoundPool soundPool, int sampleId, int status) {
+                if (status == 0) { // sound loaded successfully
+                    alertSoundLoaded = true;
+                } else {
+                    Log.e(TAG, ALERT_SOUND_COULD_NOT_BE_LOADED);
+                }
+            }
+        });
+        alertSoundId = soundPool.load(getActivity().getApplicationContext(), R.raw.beep, 1);
 
         // set a custom callback which is fully aware of the main fragment's UI
         CMS50FWConnectionListener cms50fwCallbacks = new CMS50FWCallbacks(this, connectButton,
@@ -207,6 +242,27 @@ public class MainUIFragment extends Fragment {
         });
     }
 
+    /**
+     * Sets the SpO2 alarm threshold, and replaces the alarm rules which the
+     * library evaluates on its data reading thread. The new engine starts with
+     * every rule normal, so an alert raised by the old one is lowered here; if the
+     * condition still holds, the new engine raises it again after its onset time.
+     */
+    void setMinimumSpo2Percentage(int minimumSpo2Percentage) {
+        this.minimumSpo2Percentage = minimumSpo2Percentage;
+        AlarmRule oxygenLevelTooLow = AlarmRule.below(OXYGEN_LEVEL_TOO_LOW_MESSAGE,
+                FrameChannel.SPO2_PERCENTAGE, minimumSpo2Percentage, OXYGEN_LEVEL_TOO_LOW_ALARM_MS)
+                .withPriority(AlarmRule.Priority.HIGH);
+        AlarmRule fingerOut = AlarmRule.fingerOut(FINGER_OUT_TOO_LONG_MESSAGE, FINGER_OUT_ALARM_MS);
+        AlarmCallbacks previousAlarmCallbacks = alarmCallbacks;
+        alarmCallbacks = new AlarmCallbacks(this);
+        cms50FWBluetoothConnectionManager.setAlarmEngine(new AlarmEngine(Arrays.asList(oxygenLevelTooLow, fingerOut),
+                alarmDispatcher.deliverTo(alarmCallbacks)));
+        if (previousAlarmCallbacks != null) {
+            previousAlarmCallbacks.retire();
+        }
+    }
+
     void updateUI(long time, final String spo2, final String pulse) {
         final Date d = new Date(time);
         timeWindow.setText(DATE_FORMAT.format(d));
@@ -239,10 +295,21 @@ public class MainUIFragment extends Fragment {
         }
     }
 
-    void stopAlertSound() {
-        if (soundPool != null && soundStreamId > -1) {
+    /**
+     * Starts the looping alert sound, unless it is already playing or has been muted.
+     * Called on the UI thread and on the alarm thread.
+     */
+    synchronized void startAlertSound() {
+        if (alertSoundEnabled && alertSoundLoaded && soundStreamId <= 0) {
+            soundStreamId = soundPool.play(alertSoundId, LEFT_VOLUME, RIGHT_VOLUME, SOUND_PRIORITY, LOOP_SETTING, RATE);
+        }
+    }
+
+    synchronized void stopAlertSound() {
+        if (soundPool != null && soundStreamId > 0) {
             soundPool.stop(soundStreamId);
         }
+        soundStreamId = -1;
     }
 
     void writeMessage(long timeStamp, final String s) {
@@ -271,6 +338,7 @@ public class MainUIFragment extends Fragment {
         Log.v(TAG, "onDestroy!!");
         super.onDestroy();
         cms50FWBluetoothConnectionManager.dispose(getActivity().getApplicationContext());
+        alarmDispatcher.close();
     }
 
     public void processDataFrame(DataFrame dataFrame) {
@@ -285,16 +353,7 @@ public class MainUIFragment extends Fragment {
                 consecutiveFingerOutDataFrameCount = 0;
                 //Log.v(TAG, FINGER_IN_LOG_MESSAGE_PREFIX + dataFrame.toString());
                 updateUI(dataFrame.time, dataFrame.spo2Percentage + PERCENT_SIGN_STRING, dataFrame.pulseRate + BPM_STRING);
-                if (dataFrame.spo2Percentage < minimumSpo2Percentage) {
-                    consecutiveSpO2OutOfRangeCount++;
-                } else {
-                    consecutiveSpO2OutOfRangeCount = 0;
-                }
-                if (consecutiveSpO2OutOfRangeCount > OXYGEN_LEVEL_TOO_LOW_ALARM_THRESHOLD) {
-                    setUIAlert(OXYGEN_LEVEL_TOO_LOW_MESSAGE);
-                } else {
-                    unsetUIAlert();
-                }
+                // the alarms themselves are decided on the data reading thread, see setMinimumSpo2Percentage
             } else { // probably not valid data frame
                 if (dataFrame.isFingerOutOfSleeve) {
                     consecutiveFingerOutDataFrameCount++;
@@ -302,9 +361,6 @@ public class MainUIFragment extends Fragment {
                         //Log.v(TAG, FINGER_OUT_LOG_MESSAGE_PREFIX + dataFrame.toString());
                         updateUI(dataFrame.time, FINGER_OUT_MESSAGE, EMPTY_STRING);
                     }
-                    if (consecutiveFingerOutDataFrameCount > FINGER_OUT_ALARM_THRESHOLD) {
-                        setUIAlert(FINGER_OUT_TOO_LONG_MESSAGE);
-                    }
                 } else {
                     //Log.w(TAG, UNEXPECTED_DATA_FRAME_VALUES + dataFrame.toString());
                     updateUI(dataFrame.time, SEARCHING_FOR_SIGNAL_MESSAGE, EMPTY_STRING);
@@ -39,7 +39,7 @@ public class Spo2PercentageTextChangedListener implements TextWatcher {
 
     @Override
     public void onTextChanged(CharSequence s, int start, int before, int count) {
-        mainUIFragment.minimumSpo2Percentage = Integer.valueOf(s.toString());
+        mainUIFragment.setMinimumSpo2Percentage(Integer.valueOf(s.toString()));
     }
 
     @Override
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Delivers alarm events from {@link AlarmEngine}s to {@link AlarmListener}s on a thread
+ * of its own, highest priority first.
+ * <p>
+ * The engines run on the threads which read the CMS50FW data streams, and their
+ * listeners should return quickly. Wrap a listener with {@link #deliverTo(AlarmListener)}
+ * and give the result to the engine instead: the engine then only queues the event,
+ * and this dispatcher's thread calls the listener. Alarms never wait behind data frames,
+ * nor for the UI thread, so a UI thread which is busy or stalled doesn't delay them.
+ * <p>
+ * When several events are waiting, the one whose rule has the highest {@link AlarmRule.Priority}
+ * is delivered first. Events of equal priority, which includes the events of any one rule,
+ * are delivered in the order they happened. One dispatcher can serve the engines of many devices.
+ * <p>
+ * A RuntimeException thrown by a listener is counted and handed to the dispatcher thread's
+ * {@link Thread.UncaughtExceptionHandler}, and delivery goes on with the next event. Without a
+ * handler of its own, the thread uses the default one, which on Android ends the app; pass a
+ * handler which logs to {@link #AlarmDispatcher(Thread.UncaughtExceptionHandler)} to avoid that.
+ */
+public final class AlarmDispatcher {
+
+    private static final String THREAD_NAME = "AlarmDispatcher";
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final Comparator<Event> HIGHEST_PRIORITY_FIRST = new Comparator<Event>() {
+        @Override
+        public int compare(Event a, Event b) {
+            int byPriority = b.rule.getPriority().ordinal() - a.rule.getPriority().ordinal();
+            return byPriority != 0 ? byPriority : a.sequence < b.sequence ? -1 : 1;
+        }
+    };
+
+    // guarded by itself
+    private final PriorityQueue<Event> queue = new PriorityQueue<Event>(INITIAL_CAPACITY, HIGHEST_PRIORITY_FIRST);
+    private long sequence = 0;
+    private boolean closed = false;
+
+    private volatile long deliveredEvents = 0;
+    private volatile long failedDeliveries = 0;
+    private volatile long maxLatencyNanos = 0;
+
+    public AlarmDispatcher() {
+        this(null);
+    }
+
+    /**
+     * @param listenerErrorHandler receives the exceptions thrown by listeners, or null for the
+     *                             thread's default handler
+     */
+    public AlarmDispatcher(Thread.UncaughtExceptionHandler listenerErrorHandler) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, THREAD_NAME);
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        if (listenerErrorHandler != null) {
+            thread.setUncaughtExceptionHandler(listenerErrorHandler);
+        }
+        thread.start();
+    }
+
+    /**
+     * @param alarmListener the listener to call on this dispatcher's thread
+     * @return a listener for an {@link AlarmEngine}, which queues each event and returns right away
+     */
+    public AlarmListener deliverTo(final AlarmListener alarmListener) {
+        return new AlarmListener() {
+            @Override
+            public void onAlarmRaised(AlarmRule rule, long time) {
+                enqueue(new Event(alarmListener, rule, true, time));
+            }
+
+            @Override
+            public void onAlarmCleared(AlarmRule rule, long time) {
+                enqueue(new Event(alarmListener, rule, false, time));
+            }
+        };
+    }
+
+    private void enqueue(Event event) {
+        synchronized (queue) {
+            if (closed) {
+                return;
+            }
+            event.sequence = sequence++;
+            queue.add(event);
+            queue.notify();
+        }
+    }
+
+    private void dispatch() {
+        while (true) {
+            Event event;
+            synchronized (queue) {
+                while (queue.isEmpty() && !closed) {
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                event = queue.poll();
+            }
+            long latencyNanos = System.nanoTime() - event.queuedNanos;
+            if (latencyNanos > maxLatencyNanos) {
+                maxLatencyNanos = latencyNanos;
+            }
+            try {
+                if (event.raised) {
+                    event.alarmListener.onAlarmRaised(event.rule, event.time);
+                } else {
+                    event.alarmListener.onAlarmCleared(event.rule, event.time);
+                }
+            } catch (RuntimeException e) {
+                // one faulty listener must not stop alarms from reaching the others
+                failedDeliveries++;
+                report(e);
+            }
+            deliveredEvents++;
+        }
+    }
+
+    private static void report(RuntimeException e) {
+        Thread thread = Thread.currentThread();
+        try {
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        } catch (RuntimeException handlerException) {
+            // the handler failed too. keep delivering alarms.
+        }
+    }
+
+    /**
+     * @return the number of events waiting to be delivered
+     */
+    public int getPendingCount() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * @return the number of events delivered so far, including those whose listener threw
+     */
+    public long getDeliveredCount() {
+        return deliveredEvents;
+    }
+
+    /**
+     * @return the number of listener calls which threw a RuntimeException
+     */
+    public long getFailedDeliveryCount() {
+        return failedDeliveries;
+    }
+
+    /**
+     * @return the longest time, in nanoseconds, from an engine raising or clearing a rule
+     * until its listener was called
+     */
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos;
+    }
+
+    /**
+     * Stops the dispatcher's thread. Events still waiting are dropped, and later events are ignored.
+     */
+    public void close() {
+        synchronized (queue) {
+            closed = true;
+            queue.clear();
+            queue.notify();
+        }
+    }
+
+    private static final class Event {
+        final AlarmListener alarmListener;
+        final AlarmRule rule;
+        final boolean raised;
+        final long time;
+        final long queuedNanos = System.nanoTime();
+        long sequence;
+
+        Event(AlarmListener alarmListener, AlarmRule rule, boolean raised, long time) {
+            this.alarmListener = alarmListener;
+            this.rule = rule;
+            this.raised = raised;
+            this.time = time;
+        }
+    }
+}
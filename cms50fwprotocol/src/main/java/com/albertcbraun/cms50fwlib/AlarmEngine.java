@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Evaluates a set of {@link AlarmRule}s against the frames of one CMS50FW, and tells an
+ * {@link AlarmListener} when a rule is raised or cleared.
+ * <p>
+ * Each rule keeps only its state and the time that state began, so every frame costs
+ * a few comparisons per rule, whatever the rules' durations, and nothing is allocated.
+ * Because durations are measured with the frames' own times, a rule raises at the same
+ * moment whether frames arrive at exactly 60 Hz, in bursts, or with gaps.
+ * <p>
+ * Frames without valid values, such as those with the finger out of the sleeve, are no
+ * evidence either way for SpO2, pulse rate or pulse intensity rules: a rule waiting for its
+ * onset starts waiting again, and a raised rule waiting to clear stays raised.
+ * If a frame's time goes backwards, the rules start timing again from that frame.
+ * <p>
+ * Rules are evaluated in priority order, highest first, so when several rules change state
+ * on the same frame, the listener hears about the most important one first.
+ * <p>
+ * Use one engine per device; the rules themselves can be shared. Not thread safe: use it
+ * from the thread which receives the frames.
+ */
+public final class AlarmEngine implements PackedFrameListener {
+
+    private static final int NORMAL = 0;
+    private static final int PENDING_ONSET = 1;
+    private static final int ACTIVE = 2;
+    private static final int PENDING_CLEAR = 3;
+
+    private static final int ONE_HUNDRED = 100;
+
+    private static final Comparator<AlarmRule> HIGHEST_PRIORITY_FIRST = new Comparator<AlarmRule>() {
+        @Override
+        public int compare(AlarmRule a, AlarmRule b) {
+            return b.getPriority().ordinal() - a.getPriority().ordinal();
+        }
+    };
+
+    private final AlarmListener alarmListener;
+    private final AlarmRule[] rules;
+
+    // each rule flattened into arrays. an ABOVE rule is evaluated as a BELOW rule on the
+    // negated value, so that every rule is the same two comparisons.
+    private final int[] channels;
+    private final int[] signs;
+    private final int[] violatedBelow;
+    private final int[] clearFrom;
+    private final long[] onsetMs;
+    private final long[] clearMs;
+
+    private final int[] states;
+    private final long[] since;
+    private final int[] values = new int[FrameChannel.values().length];
+    private int activeCount;
+
+    /**
+     * @param rules the rules to evaluate. The same rule may be used by other engines.
+     * @param alarmListener told when a rule is raised or cleared
+     */
+    public AlarmEngine(List<AlarmRule> rules, AlarmListener alarmListener) {
+        if (alarmListener == null) {
+            throw new NullPointerException();
+        }
+        List<AlarmRule> sorted = new ArrayList<AlarmRule>(rules);
+        Collections.sort(sorted, HIGHEST_PRIORITY_FIRST); // stable, so equal priorities keep their order
+        this.alarmListener = alarmListener;
+        this.rules = sorted.toArray(new AlarmRule[sorted.size()]);
+        int count = this.rules.length;
+        channels = new int[count];
+        signs = new int[count];
+        violatedBelow = new int[count];
+        clearFrom = new int[count];
+        onsetMs = new long[count];
+        clearMs = new long[count];
+        states = new int[count];
+        since = new long[count];
+        for (int i = 0; i < count; i++) {
+            AlarmRule rule = this.rules[i];
+            channels[i] = rule.getChannel().ordinal();
+            signs[i] = rule.getComparison() == AlarmRule.Comparison.BELOW ? 1 : -1;
+            violatedBelow[i] = signs[i] * rule.getThreshold();
+            clearFrom[i] = violatedBelow[i] + rule.getHysteresis();
+            onsetMs[i] = rule.getOnsetMs();
+            clearMs[i] = rule.getClearMs();
+        }
+    }
+
+    @Override
+    public void onPackedFrameArrived(PackedFrame packedFrame) {
+        onFrame(packedFrame.time(), packedFrame.rawFrame());
+    }
+
+    public void onFrame(DataFrame dataFrame) {
+        onFrame(dataFrame.time, PackedFrame.pack(dataFrame.pulseWaveForm, dataFrame.pulseIntensity,
+                dataFrame.pulseRate, dataFrame.spo2Percentage));
+    }
+
+    /**
+     * Evaluates every rule against one frame.
+     *
+     * @param time when the frame was read, in milliseconds
+     * @param rawFrame the 8 bytes of the frame, see {@link PackedFrame}
+     */
+    public void onFrame(long time, long rawFrame) {
+        int spo2Percentage = PackedFrame.spo2Percentage(rawFrame);
+        boolean valid = spo2Percentage <= ONE_HUNDRED;
+        values[FrameChannel.PULSE_WAVE_FORM.ordinal()] = PackedFrame.pulseWaveForm(rawFrame);
+        values[FrameChannel.SPO2_PERCENTAGE.ordinal()] = spo2Percentage;
+        values[FrameChannel.PULSE_RATE.ordinal()] = PackedFrame.pulseRate(rawFrame);
+        values[FrameChannel.PULSE_INTENSITY.ordinal()] = PackedFrame.pulseIntensity(rawFrame);
+        int fingerOut = FrameChannel.FINGER_OUT_OF_SLEEVE.ordinal();
+        values[fingerOut] = PackedFrame.isFingerOutOfSleeve(rawFrame) ? 1 : 0;
+
+        for (int i = 0; i < rules.length; i++) {
+            if (time < since[i]) {
+                since[i] = time;
+            }
+            int state = states[i];
+            if (!valid && channels[i] != fingerOut) {
+                if (state == PENDING_ONSET) {
+                    states[i] = NORMAL;
+                } else if (state == PENDING_CLEAR) {
+                    states[i] = ACTIVE;
+                }
+                continue;
+            }
+            int value = signs[i] * values[channels[i]];
+            switch (state) {
+                case NORMAL:
+                    if (value < violatedBelow[i]) {
+                        states[i] = PENDING_ONSET;
+                        since[i] = time;
+                        raiseIfDue(i, time);
+                    }
+                    break;
+                case PENDING_ONSET:
+                    if (value < violatedBelow[i]) {
+                        raiseIfDue(i, time);
+                    } else {
+                        states[i] = NORMAL;
+                    }
+                    break;
+                case ACTIVE:
+                    if (value >= clearFrom[i]) {
+                        states[i] = PENDING_CLEAR;
+                        since[i] = time;
+                        clearIfDue(i, time);
+                    }
+                    break;
+                default: // PENDING_CLEAR
+                    if (value >= clearFrom[i]) {
+                        clearIfDue(i, time);
+                    } else {
+                        states[i] = ACTIVE;
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void raiseIfDue(int i, long time) {
+        if (time - since[i] >= onsetMs[i]) {
+            states[i] = ACTIVE;
+            activeCount++;
+            alarmListener.onAlarmRaised(rules[i], time);
+        }
+    }
+
+    private void clearIfDue(int i, long time) {
+        if (time - since[i] >= clearMs[i]) {
+            states[i] = NORMAL;
+            activeCount--;
+            alarmListener.onAlarmCleared(rules[i], time);
+        }
+    }
+
+    /**
+     * @return true if the rule has been raised and not yet cleared
+     */
+    public boolean isActive(AlarmRule rule) {
+        for (int i = 0; i < rules.length; i++) {
+            if (rules[i] == rule) {
+                return states[i] == ACTIVE || states[i] == PENDING_CLEAR;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the raised rule with the highest priority, or null if no rule is raised
+     */
+    public AlarmRule getHighestPriorityActiveAlarm() {
+        for (int i = 0; i < rules.length; i++) {
+            if (states[i] == ACTIVE || states[i] == PENDING_CLEAR) {
+                return rules[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return how many rules are raised
+     */
+    public int getActiveCount() {
+        return activeCount;
+    }
+
+    /**
+     * @return the rules, highest priority first
+     */
+    public List<AlarmRule> getRules() {
+        List<AlarmRule> list = new ArrayList<AlarmRule>(rules.length);
+        Collections.addAll(list, rules);
+        return list;
+    }
+
+    /**
+     * Puts every rule back to normal without telling the listener, e.g. when a new session begins.
+     */
+    public void reset() {
+        for (int i = 0; i < rules.length; i++) {
+            states[i] = NORMAL;
+        }
+        activeCount = 0;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+/**
+ * Told by an {@link AlarmEngine} when one of its {@link AlarmRule}s is raised or cleared.
+ * <p>
+ * These callbacks are made on the thread which gives frames to the engine. When the
+ * engine is set on the connection manager, that is the thread reading the CMS50FW data
+ * stream, so implementations should return quickly and must not touch UI views.
+ */
+public interface AlarmListener {
+
+    /**
+     * @param rule the rule whose condition has now held for its whole onset duration
+     * @param time time of the frame which raised the rule, in milliseconds
+     */
+    public void onAlarmRaised(AlarmRule rule, long time);
+
+    /**
+     * @param rule a raised rule whose value has now been clear for its whole clear duration
+     * @param time time of the frame which cleared the rule, in milliseconds
+     */
+    public void onAlarmCleared(AlarmRule rule, long time);
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+/**
+ * A declarative alarm condition for an {@link AlarmEngine}, for example
+ * "SpO2 below 88% for 10 seconds". All durations are in milliseconds of frame time,
+ * so a rule means the same thing however often, or however unevenly, frames arrive.
+ * <p>
+ * A rule is raised once its condition has held for the whole onset duration. With
+ * hysteresis, it is only cleared once the value has moved past the threshold by the
+ * hysteresis amount, and stayed there for the whole clear duration. This keeps a value
+ * which wanders around the threshold from raising and clearing the alarm over and over.
+ * <p>
+ * Rules are immutable, so the same rules can be shared by the engines of many devices.
+ */
+public final class AlarmRule {
+
+    private static final String NEGATIVE_DURATION_MESSAGE =
+            "durations and hysteresis can't be negative: onsetMs %d, clearMs %d, hysteresis %d";
+
+    /**
+     * When several rules change state on the same frame, the higher priority rule is reported first.
+     */
+    public enum Priority {
+        LOW, MEDIUM, HIGH
+    }
+
+    public enum Comparison {
+        BELOW, ABOVE
+    }
+
+    private final String name;
+    private final FrameChannel channel;
+    private final Comparison comparison;
+    private final int threshold;
+    private final long onsetMs;
+    private final int hysteresis;
+    private final long clearMs;
+    private final Priority priority;
+
+    private AlarmRule(String name, FrameChannel channel, Comparison comparison, int threshold, long onsetMs,
+                      int hysteresis, long clearMs, Priority priority) {
+        if (name == null || channel == null || comparison == null || priority == null) {
+            throw new NullPointerException();
+        }
+        if (onsetMs < 0 || clearMs < 0 || hysteresis < 0) {
+            throw new IllegalArgumentException(Util.formatString(NEGATIVE_DURATION_MESSAGE,
+                    onsetMs, clearMs, hysteresis));
+        }
+        this.name = name;
+        this.channel = channel;
+        this.comparison = comparison;
+        this.threshold = threshold;
+        this.onsetMs = onsetMs;
+        this.hysteresis = hysteresis;
+        this.clearMs = clearMs;
+        this.priority = priority;
+    }
+
+    /**
+     * A rule which is raised when a value stays below a threshold, with no hysteresis
+     * and {@link Priority#MEDIUM} priority.
+     *
+     * @param name shown to the user, and used to tell rules apart
+     * @param channel the value to watch
+     * @param threshold the rule's condition holds while the value is less than this
+     * @param onsetMs how long the condition must hold before the rule is raised
+     */
+    public static AlarmRule below(String name, FrameChannel channel, int threshold, long onsetMs) {
+        return new AlarmRule(name, channel, Comparison.BELOW, threshold, onsetMs, 0, 0, Priority.MEDIUM);
+    }
+
+    /**
+     * A rule which is raised when a value stays above a threshold, with no hysteresis
+     * and {@link Priority#MEDIUM} priority.
+     *
+     * @param threshold the rule's condition holds while the value is greater than this
+     * @see #below(String, FrameChannel, int, long)
+     */
+    public static AlarmRule above(String name, FrameChannel channel, int threshold, long onsetMs) {
+        return new AlarmRule(name, channel, Comparison.ABOVE, threshold, onsetMs, 0, 0, Priority.MEDIUM);
+    }
+
+    /**
+     * A rule which is raised when the finger stays out of the sleeve for onsetMs.
+     */
+    public static AlarmRule fingerOut(String name, long onsetMs) {
+        return above(name, FrameChannel.FINGER_OUT_OF_SLEEVE, 0, onsetMs);
+    }
+
+    /**
+     * @param amount how far past the threshold the value must move before the rule can clear,
+     *               e.g. 2 for a rule below 88% which should only clear at 90% or more
+     * @param clearMs how long the value must stay there before the rule is cleared
+     * @return a copy of this rule with the given hysteresis
+     */
+    public AlarmRule withHysteresis(int amount, long clearMs) {
+        return new AlarmRule(name, channel, comparison, threshold, onsetMs, amount, clearMs, priority);
+    }
+
+    /**
+     * @return a copy of this rule with the given priority
+     */
+    public AlarmRule withPriority(Priority priority) {
+        return new AlarmRule(name, channel, comparison, threshold, onsetMs, hysteresis, clearMs, priority);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public FrameChannel getChannel() {
+        return channel;
+    }
+
+    public Comparison getComparison() {
+        return comparison;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public long getOnsetMs() {
+        return onsetMs;
+    }
+
+    public int getHysteresis() {
+        return hysteresis;
+    }
+
+    public long getClearMs() {
+        return clearMs;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    @Override
+    public String toString() {
+        return Util.formatString("%s: %s %s %d for %d ms, hysteresis %d for %d ms, priority %s",
+                name, channel, comparison, threshold, onsetMs, hysteresis, clearMs, priority);
+    }
+}
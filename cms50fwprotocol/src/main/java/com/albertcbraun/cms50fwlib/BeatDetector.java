@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+/**
+ * Finds heart beats in the 60 Hz pulse wave, and derives the heart rate from the time
+ * between them. Unlike the pulse rate byte, which only holds 7 bits, this rate is not
+ * limited to 127 beats per minute.
+ * <p>
+ * A beat is where the pulse wave rises steepest. The slope is the rise over the last
+ * {@value #SLOPE_SPAN} samples. Its envelope follows each new highest slope at once and
+ * otherwise decays, halving in {@value #ENVELOPE_HALF_LIFE_MS} ms, and a slope above half
+ * of the envelope is the rise of a beat, unless it comes within the refractory period of
+ * the last beat, which keeps the smaller rise of the dicrotic notch and noise from counting
+ * twice. The time of the beat is that of the highest slope of the rise, refined between
+ * samples with a parabola through the slopes on either side, which matters at high rates,
+ * where one sample is several percent of a beat.
+ * <p>
+ * The instantaneous rate comes from the interval since the beat before. The averaged rate
+ * is the mean of the last few intervals which were within {@value #MAX_INTERVAL_CHANGE_PERCENT}%
+ * of the mean, so that a missed or extra beat doesn't pull it around; a new rhythm which
+ * persists for a few beats replaces the old one. Frames without a reading, such as those
+ * sent while the finger is out of the sleeve, start the detection over, and synthetic frames
+ * from a {@link GapFiller} are skipped.
+ * <p>
+ * Each frame costs a constant amount of work, and all buffers are allocated up front.
+ * Call {@link #onFrame(long, long)} from one thread; the rates and counts may be read from any thread.
+ */
+public final class BeatDetector implements PackedFrameListener {
+
+    public static final long DEFAULT_REFRACTORY_MS = 250; // 240 beats per minute
+    public static final int DEFAULT_AVERAGED_BEATS = 8;
+    public static final long MAX_INTERVAL_MS = 2000; // 30 beats per minute
+    public static final int SLOPE_SPAN = 2;
+    public static final long ENVELOPE_HALF_LIFE_MS = 3000;
+    public static final int MAX_INTERVAL_CHANGE_PERCENT = 30;
+
+    private static final double MS_PER_MINUTE = 60000;
+    private static final double THRESHOLD_FRACTION = 0.5;
+    private static final int REJECTIONS_BEFORE_NEW_RHYTHM = 3;
+    private static final String REFRACTORY_OUT_OF_RANGE_MESSAGE = "refractoryMs must be positive and less than %d: %d";
+    private static final String AVERAGED_BEATS_MUST_BE_POSITIVE_MESSAGE = "averagedBeats must be positive: %d";
+
+    private final BeatListener beatListener;
+    private final long refractoryMs;
+
+    // the last SLOPE_SPAN + 1 values of the pulse wave
+    private final int[] waveForm = new int[SLOPE_SPAN + 1];
+    private int waveFormCount = 0;
+    private int waveFormNext = 0;
+
+    private double envelope = 0;
+    private long previousTime = Long.MIN_VALUE;
+    private int previousSlope = 0;
+    private boolean rising = false;
+    private int peakSlope;
+    private int slopeBeforePeak;
+    private long peakTime;
+    private double lastBeatTime = Double.NaN;
+
+    // the last accepted intervals, for the averaged rate
+    private final double[] intervals;
+    private int intervalCount = 0;
+    private int intervalNext = 0;
+    private double intervalSum = 0;
+    private int rejectedIntervals = 0;
+
+    private volatile long beatCount = 0;
+    private volatile long lastBeat = Long.MIN_VALUE;
+    private volatile double instantaneousRate = 0;
+    private volatile double averagedRate = 0;
+
+    /**
+     * @param beatListener told about each beat, or null to only read the rates
+     */
+    public BeatDetector(BeatListener beatListener) {
+        this(beatListener, DEFAULT_REFRACTORY_MS, DEFAULT_AVERAGED_BEATS);
+    }
+
+    /**
+     * @param beatListener told about each beat, or null to only read the rates
+     * @param refractoryMs the shortest time between beats. 60000 / refractoryMs is the highest rate found.
+     * @param averagedBeats the number of intervals the averaged rate is the mean of
+     */
+    public BeatDetector(BeatListener beatListener, long refractoryMs, int averagedBeats) {
+        if (refractoryMs <= 0 || refractoryMs >= MAX_INTERVAL_MS) {
+            throw new IllegalArgumentException(Util.formatString(REFRACTORY_OUT_OF_RANGE_MESSAGE,
+                    MAX_INTERVAL_MS, refractoryMs));
+        }
+        if (averagedBeats <= 0) {
+            throw new IllegalArgumentException(Util.formatString(AVERAGED_BEATS_MUST_BE_POSITIVE_MESSAGE,
+                    averagedBeats));
+        }
+        this.beatListener = beatListener;
+        this.refractoryMs = refractoryMs;
+        this.intervals = new double[averagedBeats];
+    }
+
+    @Override
+    public void onPackedFrameArrived(PackedFrame packedFrame) {
+        onFrame(packedFrame.time(), packedFrame.rawFrame());
+    }
+
+    /**
+     * Looks for a beat in the next frame.
+     *
+     * @param time time of the frame in milliseconds, best from a {@link FrameClock}
+     * @param rawFrame the frame
+     * @return true if a beat was found, which is the case one frame after its steepest rise
+     */
+    public boolean onFrame(long time, long rawFrame) {
+        if (PackedFrame.isSynthetic(rawFrame)) {
+            waveFormCount = 0; // the slope would span made up values
+            rising = false;
+            return false;
+        }
+        if (PackedFrame.isFingerOutOfSleeve(rawFrame) || PackedFrame.spo2Percentage(rawFrame) > 100) {
+            reset();
+            return false;
+        }
+        if (previousTime != Long.MIN_VALUE && time > previousTime) {
+            envelope *= Math.pow(0.5, (time - previousTime) / (double) ENVELOPE_HALF_LIFE_MS);
+        }
+        previousTime = time;
+
+        waveForm[waveFormNext] = PackedFrame.pulseWaveForm(rawFrame);
+        waveFormNext = (waveFormNext + 1) % waveForm.length;
+        if (waveFormCount < waveForm.length) {
+            waveFormCount++;
+            if (waveFormCount < waveForm.length) {
+                return false;
+            }
+        }
+        // the oldest value is the one which will be overwritten next
+        int slope = waveForm[(waveFormNext + SLOPE_SPAN) % waveForm.length] - waveForm[waveFormNext];
+        envelope = Math.max(envelope, slope);
+
+        boolean beat = false;
+        if (rising) {
+            if (slope > peakSlope) {
+                peakSlope = slope;
+                slopeBeforePeak = previousSlope;
+                peakTime = time;
+            } else if (slope < peakSlope) {
+                rising = false;
+                // the slope over the last SLOPE_SPAN samples is that of the wave half way through them
+                double offset = peakOffset(slopeBeforePeak, peakSlope, slope) - SLOPE_SPAN / 2.0;
+                beat(peakTime + offset * FrameClock.NOMINAL_PERIOD_MS);
+                beat = true;
+            }
+        } else if (slope > 0 && slope >= THRESHOLD_FRACTION * envelope &&
+                (Double.isNaN(lastBeatTime) || time - lastBeatTime >= refractoryMs)) {
+            rising = true;
+            peakSlope = slope;
+            slopeBeforePeak = previousSlope;
+            peakTime = time;
+        }
+        previousSlope = slope;
+        return beat;
+    }
+
+    /**
+     * @return where the peak of the parabola through three equally spaced slopes lies,
+     * in samples from the middle one
+     */
+    private static double peakOffset(int before, int peak, int after) {
+        double curvature = before - 2.0 * peak + after;
+        if (curvature >= 0) {
+            return 0;
+        }
+        return Math.max(-0.5, Math.min(0.5, 0.5 * (before - after) / curvature));
+    }
+
+    private void beat(double time) {
+        double instantaneous = 0;
+        if (!Double.isNaN(lastBeatTime) && time - lastBeatTime <= MAX_INTERVAL_MS) {
+            double interval = time - lastBeatTime;
+            instantaneous = MS_PER_MINUTE / interval;
+            addInterval(interval);
+        }
+        lastBeatTime = time;
+        lastBeat = Math.round(time);
+        instantaneousRate = instantaneous;
+        beatCount++;
+        if (beatListener != null) {
+            beatListener.onBeat(lastBeat, instantaneous, averagedRate);
+        }
+    }
+
+    private void addInterval(double interval) {
+        if (intervalCount > 0) {
+            double mean = intervalSum / intervalCount;
+            if (Math.abs(interval - mean) * 100 > MAX_INTERVAL_CHANGE_PERCENT * mean) {
+                if (++rejectedIntervals < REJECTIONS_BEFORE_NEW_RHYTHM) {
+                    return;
+                }
+                // not a missed or extra beat, but a new rhythm
+                intervalCount = 0;
+                intervalSum = 0;
+            }
+        }
+        rejectedIntervals = 0;
+        if (intervalCount == intervals.length) {
+            intervalSum -= intervals[intervalNext];
+        } else {
+            intervalCount++;
+        }
+        intervals[intervalNext] = interval;
+        intervalNext = (intervalNext + 1) % intervals.length;
+        intervalSum += interval;
+        averagedRate = MS_PER_MINUTE * intervalCount / intervalSum;
+    }
+
+    /**
+     * Forgets the pulse wave and the beats so far, e.g. when the finger is taken out of the sleeve.
+     * The beat count is kept.
+     */
+    public void reset() {
+        waveFormCount = 0;
+        envelope = 0;
+        previousTime = Long.MIN_VALUE;
+        rising = false;
+        lastBeatTime = Double.NaN;
+        intervalCount = 0;
+        intervalSum = 0;
+        rejectedIntervals = 0;
+        instantaneousRate = 0;
+        averagedRate = 0;
+    }
+
+    /**
+     * @return the number of beats found
+     */
+    public long getBeatCount() {
+        return beatCount;
+    }
+
+    /**
+     * @return the time of the last beat in milliseconds, or Long.MIN_VALUE before the first
+     */
+    public long getLastBeatTime() {
+        return lastBeat;
+    }
+
+    /**
+     * @return the rate from the last two beats in beats per minute, or 0 if unknown
+     */
+    public double getInstantaneousRate() {
+        return instantaneousRate;
+    }
+
+    /**
+     * @return the mean rate over the last few beats in beats per minute, or 0 if unknown
+     */
+    public double getAveragedRate() {
+        return averagedRate;
+    }
+}
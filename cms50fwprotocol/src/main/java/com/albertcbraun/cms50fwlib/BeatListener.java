@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+/**
+ * Told by a {@link BeatDetector} about each heart beat it finds in the pulse wave.
+ * <p>
+ * This callback is made on the thread which gives frames to the detector. When the
+ * detector is set on the connection manager, that is the thread reading the CMS50FW data
+ * stream, so implementations should return quickly and must not touch UI views.
+ */
+public interface BeatListener {
+
+    /**
+     * @param time when the pulse wave rose steepest, in milliseconds
+     * @param instantaneousRate 60000 divided by the time since the beat before, in beats per
+     *                          minute, or 0 if this is the first beat after a pause
+     * @param averagedRate the mean rate over the last few beats, in beats per minute, or 0
+     *                     until there has been a beat with an instantaneous rate
+     */
+    public void onBeat(long time, double instantaneousRate, double averagedRate);
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records raw chunks of bytes, each with a {@link System#nanoTime()} timestamp,
+ * into a capture file of fixed size which is memory-mapped when it is created.
+ * <p>
+ * Each chunk is copied straight from the caller's array into the mapping, so
+ * recording allocates nothing and makes no system calls. Chunks which don't fit
+ * in the space left are dropped and counted. The file is readable at any moment,
+ * even if the app dies while recording, because a record's length is written
+ * last and the unused part of the file is all zeros.
+ * <p>
+ * The file holds a 16 byte header (the magic number {@link #MAGIC} and a version),
+ * then one record per chunk: the timestamp as a long, the length as an int, and
+ * the bytes. A record with length 0 marks the end. {@link CaptureReplayTransport}
+ * plays a capture file back.
+ */
+public final class ByteCapture {
+
+    public static final long MAGIC = 0x434D533530434150L; // "CMS50CAP"
+    public static final int VERSION = 1;
+    static final int HEADER_LENGTH = 16;
+    static final int RECORD_HEADER_LENGTH = 12;
+    private static final String CAPACITY_OUT_OF_RANGE_MESSAGE = "capacityBytes must be from %d to %d: %d";
+
+    private final MappedByteBuffer mapped;
+    private volatile boolean closed = false;
+    private volatile long droppedChunks = 0;
+
+    private ByteCapture(MappedByteBuffer mapped) {
+        this.mapped = mapped;
+    }
+
+    /**
+     * Creates a capture file, replacing any file of the same name, and fills it with zeros.
+     *
+     * @param file where to record
+     * @param capacityBytes size of the file, which is the most that can be recorded
+     * @return a capture which records into the file
+     * @throws IOException if the file can't be created or mapped
+     */
+    public static ByteCapture create(File file, long capacityBytes) throws IOException {
+        if (capacityBytes < HEADER_LENGTH + RECORD_HEADER_LENGTH || capacityBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(Util.formatString(CAPACITY_OUT_OF_RANGE_MESSAGE,
+                    HEADER_LENGTH + RECORD_HEADER_LENGTH, Integer.MAX_VALUE, capacityBytes));
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(0); // drop the old contents, so the new space reads as zeros
+            randomAccessFile.setLength(capacityBytes);
+            MappedByteBuffer mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacityBytes);
+            mapped.putLong(MAGIC);
+            mapped.putInt(VERSION);
+            mapped.putInt(0); // reserved
+            return new ByteCapture(mapped);
+        } finally {
+            randomAccessFile.close(); // the mapping stays valid
+        }
+    }
+
+    /**
+     * Records one chunk. Must only be called by one thread.
+     *
+     * @param nanos {@link System#nanoTime()} when the chunk was received
+     * @return false if the chunk was dropped because the file is full or the capture is closed
+     */
+    public boolean append(long nanos, byte[] bytes, int offset, int length) {
+        if (closed || length <= 0) {
+            return false;
+        }
+        int start = mapped.position();
+        // keep room for the zero length which marks the end
+        if (mapped.remaining() < RECORD_HEADER_LENGTH + length + RECORD_HEADER_LENGTH) {
+            droppedChunks++;
+            return false;
+        }
+        mapped.putLong(start, nanos);
+        mapped.position(start + RECORD_HEADER_LENGTH);
+        mapped.put(bytes, offset, length);
+        mapped.putInt(start + 8, length); // written last, so a half written record is never read
+        return true;
+    }
+
+    /**
+     * @return the number of bytes used in the file so far, including headers
+     */
+    public long getBytesUsed() {
+        return mapped.position();
+    }
+
+    /**
+     * @return the number of chunks dropped because the file was full
+     */
+    public long getDroppedChunks() {
+        return droppedChunks;
+    }
+
+    /**
+     * Stops recording and writes the recorded bytes to the storage device.
+     */
+    public void close() {
+        if (!closed) {
+            closed = true;
+            mapped.force();
+        }
+    }
+}
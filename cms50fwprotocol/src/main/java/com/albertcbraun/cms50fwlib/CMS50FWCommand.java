@@ -25,7 +25,7 @@ package com.albertcbraun.cms50fwlib;
  * <p>
  * Created by albertb on 1/13/2015.
  */
-enum CMS50FWCommand {
+public enum CMS50FWCommand {
     START_DATA((byte) 0xA1),             // 161
     STOP_DATA((byte) 0xA2),             // 162
     STAY_CONNECTED((byte) 0xAF),         // 175
@@ -42,4 +42,8 @@ enum CMS50FWCommand {
     public int asInt() {
         return (int) command;
     }
+
+    public byte asByte() {
+        return command;
+    }
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Transport} which plays back a file recorded by {@link ByteCapture},
+ * chunk by chunk, so the decoder sees exactly the bytes that were received.
+ * <p>
+ * With original timing, each chunk is delivered at the same offset from the start
+ * as when it was recorded. Otherwise chunks are delivered as fast as they are read.
+ * Reading returns -1 after the last chunk. Commands written to this transport are
+ * counted and otherwise discarded. {@link #close()} wakes a read which is waiting
+ * for the time of the next chunk.
+ */
+public class CaptureReplayTransport implements Transport {
+
+    private static final String NOT_A_CAPTURE_FILE_FORMAT = "%s is not a capture file";
+    private static final String UNSUPPORTED_VERSION_FORMAT = "Unsupported capture file version %d";
+    private static final String NOT_OPEN_MESSAGE = "CaptureReplayTransport is not open";
+    private static final String CLOSED_MESSAGE = "CaptureReplayTransport was closed";
+    private static final String INTERRUPTED_FORMAT = "Interrupted while replaying %s";
+
+    private final File file;
+    private final Object closeLock = new Object();
+    private final boolean originalTiming;
+
+    private volatile MappedByteBuffer mapped = null;
+    private volatile boolean closed = true;
+    private volatile long bytesWritten = 0;
+    private long startNanos;
+    private long firstChunkNanos;
+    private int chunkRemaining;
+
+    /**
+     * @param file a file recorded by {@link ByteCapture}
+     * @param originalTiming true to deliver chunks at their recorded times, false for as fast as possible
+     */
+    public CaptureReplayTransport(File file, boolean originalTiming) {
+        this.file = file;
+        this.originalTiming = originalTiming;
+    }
+
+    /**
+     * Maps the file and starts playing from its first chunk.
+     *
+     * @throws IOException if the file can't be read or was not recorded by {@link ByteCapture}
+     */
+    @Override
+    public void open() throws IOException {
+        close();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        MappedByteBuffer newMapped;
+        try {
+            newMapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+        } finally {
+            randomAccessFile.close(); // the mapping stays valid
+        }
+        if (newMapped.remaining() < ByteCapture.HEADER_LENGTH || newMapped.getLong() != ByteCapture.MAGIC) {
+            throw new IOException(Util.formatString(NOT_A_CAPTURE_FILE_FORMAT, file));
+        }
+        int version = newMapped.getInt();
+        if (version != ByteCapture.VERSION) {
+            throw new IOException(Util.formatString(UNSUPPORTED_VERSION_FORMAT, version));
+        }
+        newMapped.position(ByteCapture.HEADER_LENGTH);
+        chunkRemaining = 0;
+        firstChunkNanos = Long.MIN_VALUE;
+        startNanos = System.nanoTime();
+        mapped = newMapped;
+        closed = false;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        MappedByteBuffer current = mapped;
+        if (current == null) {
+            throw new IOException(NOT_OPEN_MESSAGE);
+        }
+        if (chunkRemaining == 0 && !nextChunk(current)) {
+            return -1;
+        }
+        int count = Math.min(length, chunkRemaining);
+        current.get(buffer, offset, count);
+        chunkRemaining -= count;
+        return count;
+    }
+
+    /**
+     * Moves to the next chunk, waiting for its time if original timing is on.
+     *
+     * @return false if there are no more chunks
+     */
+    private boolean nextChunk(MappedByteBuffer current) throws IOException {
+        if (current.remaining() < ByteCapture.RECORD_HEADER_LENGTH) {
+            return false;
+        }
+        long chunkNanos = current.getLong();
+        int length = current.getInt();
+        if (length <= 0 || length > current.remaining()) {
+            return false;
+        }
+        if (firstChunkNanos == Long.MIN_VALUE) {
+            firstChunkNanos = chunkNanos;
+        }
+        if (originalTiming) {
+            long dueNanos = chunkNanos - firstChunkNanos;
+            synchronized (closeLock) {
+                long waitNanos;
+                while (!closed && (waitNanos = dueNanos - (System.nanoTime() - startNanos)) > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(closeLock, waitNanos); // close() wakes this
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException(Util.formatString(INTERRUPTED_FORMAT, file));
+                    }
+                }
+            }
+            if (closed) {
+                throw new IOException(CLOSED_MESSAGE);
+            }
+        }
+        chunkRemaining = length;
+        return true;
+    }
+
+    /**
+     * Counts the bytes, which go nowhere.
+     */
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException(NOT_OPEN_MESSAGE);
+        }
+        bytesWritten += length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() {
+        synchronized (closeLock) {
+            closed = true;
+            mapped = null;
+            closeLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return the number of command bytes written since this transport was created
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.io.IOException;
+
+/**
+ * Wraps another {@link Transport} and records every chunk it reads into a
+ * {@link ByteCapture}, copying straight from the read buffer into the capture file.
+ * Everything else is passed through unchanged.
+ */
+public class CapturingTransport implements Transport {
+
+    private final Transport transport;
+    private final ByteCapture byteCapture;
+
+    public CapturingTransport(Transport transport, ByteCapture byteCapture) {
+        this.transport = transport;
+        this.byteCapture = byteCapture;
+    }
+
+    @Override
+    public void open() throws IOException {
+        transport.open();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int count = transport.read(buffer, offset, length);
+        if (count > 0) {
+            byteCapture.append(System.nanoTime(), buffer, offset, count);
+        }
+        return count;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        transport.write(bytes, offset, length);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return transport.isOpen();
+    }
+
+    @Override
+    public void close() {
+        transport.close();
+    }
+}
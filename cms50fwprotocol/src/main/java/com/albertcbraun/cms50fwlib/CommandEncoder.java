@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes {@link CMS50FWCommand} values into the 9 byte sequences which the
+ * CMS50FW expects on its input, as described in:
+ * <i>Communication protocol of pulse oximeter V7.0.pdf</i>
+ */
+public class CommandEncoder {
+
+    public static final int COMMAND_LENGTH = 9;
+
+    private static final int COMMAND_ONE_TWENTY_NINE = 129;
+
+    private CommandEncoder() {
+    }
+
+    /**
+     * Writes the bytes for a command into an array.
+     *
+     * @param command a single command from the custom enum {@link CMS50FWCommand}
+     * @param dataByte an additional byte. if the command does not require any additional data,
+     *                 this should be {@link CMS50FWCommand#PADDING}.
+     * @param destination array which receives {@link #COMMAND_LENGTH} bytes
+     * @param offset index of the first byte to write
+     */
+    public static void encode(CMS50FWCommand command, CMS50FWCommand dataByte, byte[] destination, int offset) {
+        destination[offset] = CMS50FWCommand.COMMAND_FOLLOWS.asByte();  // mark the beginning of command bytes
+        destination[offset + 1] = (byte) COMMAND_ONE_TWENTY_NINE;       // 0x81 - not sure what this is
+        destination[offset + 2] = command.asByte();                     // the actual command
+        destination[offset + 3] = dataByte.asByte();                    // sometimes a particular byte must follow the command, but not always
+        for (int i = 4; i < COMMAND_LENGTH; i++) {
+            destination[offset + i] = CMS50FWCommand.PADDING.asByte();
+        }
+    }
+
+    /**
+     * Puts the bytes for a command into a buffer at its current position.
+     *
+     * @param command a single command from the custom enum {@link CMS50FWCommand}
+     * @param dataByte an additional byte, or {@link CMS50FWCommand#PADDING}
+     * @param destination buffer with at least {@link #COMMAND_LENGTH} bytes remaining
+     */
+    public static void encode(CMS50FWCommand command, CMS50FWCommand dataByte, ByteBuffer destination) {
+        destination.put(CMS50FWCommand.COMMAND_FOLLOWS.asByte());
+        destination.put((byte) COMMAND_ONE_TWENTY_NINE);
+        destination.put(command.asByte());
+        destination.put(dataByte.asByte());
+        for (int i = 4; i < COMMAND_LENGTH; i++) {
+            destination.put(CMS50FWCommand.PADDING.asByte());
+        }
+    }
+
+    /**
+     * Writes a command to the CMS50FW through a transport in a single write call.
+     *
+     * @param transport connection to the CMS50FW
+     * @param command a single command from the custom enum {@link CMS50FWCommand}
+     * @param dataByte an additional byte, or {@link CMS50FWCommand#PADDING}
+     * @throws IOException if the write attempt fails and the command is not written back to the device
+     */
+    public static void write(Transport transport, CMS50FWCommand command, CMS50FWCommand dataByte)
+            throws IOException {
+        byte[] bytes = new byte[COMMAND_LENGTH];
+        encode(command, dataByte, bytes, 0);
+        transport.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Writes a command to the CMS50FW in a single write call, then flushes.
+     *
+     * @param outputStream stream leading to the CMS50FW
+     * @param command a single command from the custom enum {@link CMS50FWCommand}
+     * @param dataByte an additional byte, or {@link CMS50FWCommand#PADDING}
+     * @throws IOException if the write attempt fails and the command is not written back to the device
+     */
+    public static void write(OutputStream outputStream, CMS50FWCommand command, CMS50FWCommand dataByte)
+            throws IOException {
+        byte[] bytes = new byte[COMMAND_LENGTH];
+        encode(command, dataByte, bytes, 0);
+        outputStream.write(bytes);
+        outputStream.flush();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps count of connection attempts and how long they took, separately
+ * for each way of finding the CMS50FW, so an app can see how often the
+ * fast paths succeed and how much time they save.
+ * <p>
+ * This class is thread safe.
+ */
+public class ConnectLatencyStats {
+
+    /**
+     * The ways a connection to the CMS50FW can be made, fastest first.
+     */
+    public enum ConnectPath {
+        /** The Bluetooth address and service UUID remembered from the last successful connection. */
+        CACHED_ADDRESS,
+        /** A device with the right name in the list of paired (bonded) devices. */
+        BONDED_DEVICE,
+        /** Full Bluetooth discovery. */
+        DISCOVERY
+    }
+
+    private final long[] attempts = new long[ConnectPath.values().length];
+    private final long[] successes = new long[ConnectPath.values().length];
+    private final long[] totalSuccessNanos = new long[ConnectPath.values().length];
+    private final long[] minSuccessNanos = new long[ConnectPath.values().length];
+    private final long[] maxSuccessNanos = new long[ConnectPath.values().length];
+
+    /**
+     * @param connectPath the path which connected
+     * @param latencyNanos time from the start of the attempt until the connection was made
+     */
+    public synchronized void recordSuccess(ConnectPath connectPath, long latencyNanos) {
+        int i = connectPath.ordinal();
+        attempts[i]++;
+        if (successes[i] == 0 || latencyNanos < minSuccessNanos[i]) {
+            minSuccessNanos[i] = latencyNanos;
+        }
+        maxSuccessNanos[i] = Math.max(maxSuccessNanos[i], latencyNanos);
+        successes[i]++;
+        totalSuccessNanos[i] += latencyNanos;
+    }
+
+    /**
+     * @param connectPath the path which failed to connect
+     */
+    public synchronized void recordFailure(ConnectPath connectPath) {
+        attempts[connectPath.ordinal()]++;
+    }
+
+    public synchronized long getAttempts(ConnectPath connectPath) {
+        return attempts[connectPath.ordinal()];
+    }
+
+    public synchronized long getSuccesses(ConnectPath connectPath) {
+        return successes[connectPath.ordinal()];
+    }
+
+    /**
+     * @return the mean time taken by successful connections on this path, in milliseconds, or 0 if there were none
+     */
+    public synchronized long getMeanLatencyMs(ConnectPath connectPath) {
+        int i = connectPath.ordinal();
+        return successes[i] == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalSuccessNanos[i] / successes[i]);
+    }
+
+    public synchronized long getMinLatencyMs(ConnectPath connectPath) {
+        return TimeUnit.NANOSECONDS.toMillis(minSuccessNanos[connectPath.ordinal()]);
+    }
+
+    public synchronized long getMaxLatencyMs(ConnectPath connectPath) {
+        return TimeUnit.NANOSECONDS.toMillis(maxSuccessNanos[connectPath.ordinal()]);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (ConnectPath connectPath : ConnectPath.values()) {
+            if (stringBuilder.length() > 0) {
+                stringBuilder.append("; ");
+            }
+            stringBuilder.append(Util.formatString("%s: %d/%d connected, mean %d ms, min %d ms, max %d ms",
+                    connectPath, getSuccesses(connectPath), getAttempts(connectPath), getMeanLatencyMs(connectPath),
+                    getMinLatencyMs(connectPath), getMaxLatencyMs(connectPath)));
+        }
+        return stringBuilder.toString();
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+/**
+ * Receives notice of what a {@link ConnectionStateMachine} is doing.
+ * <p>
+ * Methods are called on the thread which runs the state machine, or on its watchdog
+ * thread, so implementations should return quickly.
+ */
+public interface ConnectionStateListener {
+
+    /**
+     * The state machine has moved to a new state.
+     */
+    public void onConnectionStateChanged(ConnectionStateMachine.State state);
+
+    /**
+     * Frames are arriving again after the connection was lost and remade.
+     *
+     * @param gapMs time from the last frame before the loss to the first frame after it
+     */
+    public void onDataResumed(long gapMs);
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps data flowing from a CMS50FW over a {@link Transport}, reconnecting
+ * automatically when the connection is lost.
+ * <p>
+ * {@link #run()} opens the transport, sends {@link CMS50FWCommand#START_DATA} and
+ * reads frames until {@link #stop()} is called. A watchdog thread sends
+ * {@link CMS50FWCommand#STAY_CONNECTED} periodically and closes the transport if no
+ * frame has arrived within the liveness timeout of the {@link ReconnectPolicy}.
+ * Whenever reading fails, the state machine waits for a jittered exponential
+ * backoff, reopens the transport and sends START_DATA again. When frames arrive
+ * again, the listener is told how long the gap in the data was.
+ * <p>
+ * The states follow this order:
+ * <pre>
+ * IDLE -&gt; CONNECTING -&gt; STREAMING -&gt; BACKING_OFF -&gt; CONNECTING -&gt; ...
+ * </pre>
+ * ending in STOPPED after {@link #stop()}, or FAILED once the policy's maximum
+ * number of attempts has failed in a row.
+ */
+public class ConnectionStateMachine {
+
+    public enum State {
+        IDLE, CONNECTING, STREAMING, BACKING_OFF, STOPPED, FAILED
+    }
+
+    private static final long MIN_WATCHDOG_PERIOD_MS = 10;
+
+    private final Transport transport;
+    private final ReconnectPolicy policy;
+    private final FrameDecoder.FrameHandler frameHandler;
+    private final ConnectionStateListener listener;
+    private final Random random;
+    private final FrameDecoder frameDecoder = new FrameDecoder();
+    private final CountDownLatch stopLatch = new CountDownLatch(1);
+    private final Object writeLock = new Object();
+
+    private volatile State state = State.IDLE;
+    private volatile boolean stopped = false;
+    private volatile long lastFrameNanos;
+    private long gapStartNanos = 0;
+    private int failedAttempts = 0;
+    private int reconnectCount = 0;
+
+    private final FrameDecoder.FrameHandler livenessTracker = new FrameDecoder.FrameHandler() {
+        @Override
+        public void onFrame(long rawFrame) {
+            long now = System.nanoTime();
+            lastFrameNanos = now;
+            failedAttempts = 0;
+            if (gapStartNanos != 0) {
+                long gapMs = TimeUnit.NANOSECONDS.toMillis(now - gapStartNanos);
+                gapStartNanos = 0;
+                listener.onDataResumed(gapMs);
+            }
+            frameHandler.onFrame(rawFrame);
+        }
+    };
+
+    /**
+     * @param transport connection to the CMS50FW
+     * @param policy timings for liveness and reconnecting
+     * @param frameHandler receives every raw frame, on the thread which calls {@link #run()}
+     * @param listener receives state changes and gap durations
+     */
+    public ConnectionStateMachine(Transport transport, ReconnectPolicy policy,
+                                  FrameDecoder.FrameHandler frameHandler, ConnectionStateListener listener) {
+        this(transport, policy, frameHandler, listener, new Random());
+    }
+
+    ConnectionStateMachine(Transport transport, ReconnectPolicy policy, FrameDecoder.FrameHandler frameHandler,
+                           ConnectionStateListener listener, Random random) {
+        this.transport = transport;
+        this.policy = policy;
+        this.frameHandler = frameHandler;
+        this.listener = listener;
+        this.random = random;
+    }
+
+    /**
+     * Connects and reads frames, reconnecting as needed, until {@link #stop()} is
+     * called or the reconnect attempts are used up. Blocks the calling thread
+     * for that whole time.
+     */
+    public void run() {
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "cms50fw-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long checkPeriodMs = Math.max(MIN_WATCHDOG_PERIOD_MS, policy.getLivenessTimeoutMs() / 4);
+        watchdog.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                checkLiveness();
+            }
+        }, checkPeriodMs, checkPeriodMs, TimeUnit.MILLISECONDS);
+        watchdog.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sendKeepAlive();
+            }
+        }, policy.getKeepAlivePeriodMs(), policy.getKeepAlivePeriodMs(), TimeUnit.MILLISECONDS);
+        try {
+            while (!stopped) {
+                readUntilConnectionLost();
+                transport.close();
+                if (stopped) {
+                    break;
+                }
+                if (gapStartNanos == 0) {
+                    gapStartNanos = lastFrameNanos != 0 ? lastFrameNanos : System.nanoTime();
+                }
+                if (policy.getMaxAttempts() > 0 && failedAttempts >= policy.getMaxAttempts()) {
+                    setState(State.FAILED);
+                    return;
+                }
+                setState(State.BACKING_OFF);
+                long backoffMs = policy.backoffMs(failedAttempts++, random);
+                try {
+                    stopLatch.await(backoffMs, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            setState(State.STOPPED);
+        } finally {
+            Util.safeShutdown(watchdog);
+        }
+    }
+
+    /**
+     * Asks {@link #run()} to return. A backoff wait ends at once. An open or read which
+     * is in progress is allowed to finish; close the transport as well to cut it short.
+     */
+    public void stop() {
+        stopped = true;
+        stopLatch.countDown();
+    }
+
+    /**
+     * Sends a command to the CMS50FW over the current connection.
+     *
+     * @throws IOException if the write fails
+     */
+    public void writeCommand(CMS50FWCommand command, CMS50FWCommand dataByte) throws IOException {
+        synchronized (writeLock) {
+            CommandEncoder.write(transport, command, dataByte);
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return the number of times the connection was remade after being lost
+     */
+    public int getReconnectCount() {
+        return reconnectCount;
+    }
+
+    /**
+     * @return the decoder the frames are read through, e.g. to see how many it dropped
+     */
+    FrameDecoder getFrameDecoder() {
+        return frameDecoder;
+    }
+
+    private void readUntilConnectionLost() {
+        setState(State.CONNECTING);
+        try {
+            transport.open();
+            if (gapStartNanos != 0) {
+                reconnectCount++;
+            }
+            frameDecoder.clear();
+            writeCommand(CMS50FWCommand.START_DATA, CMS50FWCommand.PADDING);
+            lastFrameNanos = System.nanoTime();
+            setState(State.STREAMING);
+            while (!stopped) {
+                if (frameDecoder.readFrom(transport) < 0) {
+                    throw new EOFException();
+                }
+                frameDecoder.decode(livenessTracker);
+            }
+        } catch (IOException e) {
+            // the connection is lost. run() decides whether to try again.
+        }
+    }
+
+    private void checkLiveness() {
+        if (!stopped && state == State.STREAMING &&
+                System.nanoTime() - lastFrameNanos > TimeUnit.MILLISECONDS.toNanos(policy.getLivenessTimeoutMs())) {
+            // closing the transport unblocks the reader, which then reconnects
+            transport.close();
+        }
+    }
+
+    private void sendKeepAlive() {
+        if (stopped || state != State.STREAMING) {
+            return;
+        }
+        try {
+            writeCommand(CMS50FWCommand.STAY_CONNECTED, CMS50FWCommand.PADDING);
+        } catch (IOException e) {
+            transport.close();
+        }
+    }
+
+    private void setState(State newState) {
+        if (state != newState) {
+            state = newState;
+            listener.onConnectionStateChanged(newState);
+        }
+    }
+}
@@ -53,6 +53,20 @@ public class DataFrame {
         time = System.currentTimeMillis();
     }
 
+    /**
+     * Builds a frame from values which have already been decoded, e.g.
+     * by a {@link FrameDecoder}.
+     */
+    public DataFrame(long time, int pulseWaveForm, int pulseIntensity, int pulseRate,
+                     int spo2Percentage, boolean isFingerOutOfSleeve) {
+        this.time = time;
+        this.pulseWaveForm = pulseWaveForm;
+        this.pulseIntensity = pulseIntensity;
+        this.pulseRate = pulseRate;
+        this.spo2Percentage = spo2Percentage;
+        this.isFingerOutOfSleeve = isFingerOutOfSleeve;
+    }
+
     @Override
     public String toString() {
         return Util.formatString("time:%s, spo2Percentage:%d, pulseRate:%d, pulseWaveForm:%d, pulseIntensity:%d, isFingerOutOfSleeve:%b",
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+/**
+ * A batch of consecutive data frames, stored as one primitive array per
+ * property (struct-of-arrays) rather than as DataFrame objects.
+ * <p>
+ * Entries 0 to {@link #size()} - 1 of each array are valid. Index i of every array
+ * belongs to the same frame. See {@link DataFrame} for the meaning of each property.
+ * <p>
+ * Batches are recycled by the library once
+ * {@link DataFrameBatchListener#onDataFramesArrived(DataFrameBatch)} returns, so
+ * copy out anything which is needed later.
+ */
+public class DataFrameBatch {
+    public final long[] time;
+    public final int[] pulseWaveForm;
+    public final int[] pulseIntensity;
+    public final int[] pulseRate;
+    public final int[] spo2Percentage;
+    public final boolean[] isFingerOutOfSleeve;
+
+    private int size = 0;
+
+    /**
+     * @param capacity the largest number of frames this batch can hold
+     */
+    public DataFrameBatch(int capacity) {
+        time = new long[capacity];
+        pulseWaveForm = new int[capacity];
+        pulseIntensity = new int[capacity];
+        pulseRate = new int[capacity];
+        spo2Percentage = new int[capacity];
+        isFingerOutOfSleeve = new boolean[capacity];
+    }
+
+    /**
+     * @return the number of frames in this batch
+     */
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return time.length;
+    }
+
+    public boolean isFull() {
+        return size == time.length;
+    }
+
+    /**
+     * Appends a frame. The caller must check {@link #isFull()} first.
+     *
+     * @param time when the frame was read, in milliseconds
+     * @param rawFrame the frame as packed by {@link PackedFrame}
+     */
+    void add(long time, long rawFrame) {
+        this.time[size] = time;
+        pulseWaveForm[size] = PackedFrame.pulseWaveForm(rawFrame);
+        pulseIntensity[size] = PackedFrame.pulseIntensity(rawFrame);
+        pulseRate[size] = PackedFrame.pulseRate(rawFrame);
+        spo2Percentage[size] = PackedFrame.spo2Percentage(rawFrame);
+        isFingerOutOfSleeve[size] = PackedFrame.isFingerOutOfSleeve(rawFrame);
+        size++;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    @Override
+    public String toString() {
+        return Util.formatString("DataFrameBatch size:%d, first time:%s, last time:%s",
+                size, size > 0 ? time[0] : "-", size > 0 ? time[size - 1] : "-");
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+/**
+ * An optional callback which receives data frames in batches instead of
+ * one at a time. Useful for clients which only plot or store the data and
+ * do not need to hear about every frame as soon as it arrives.
+ */
+public interface DataFrameBatchListener {
+
+    /**
+     * A batch of consecutive frames has been collected.
+     *
+     * @param batch the frames. The batch is reused by the library after this method
+     *              returns, so it must not be kept.
+     */
+    public void onDataFramesArrived(DataFrameBatch batch);
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Transport} which replays the raw bytes of a file, as though they
+ * came from a CMS50FW. Useful for reproducing a recorded session and for load
+ * testing without hardware.
+ * <p>
+ * The file is played as fast as it can be read, or paced to a number of
+ * frames per second (60 for the real CMS50FW rate, or a multiple of it).
+ * Reading returns -1 at the end of the file. Commands written to this
+ * transport are counted and otherwise discarded.
+ */
+public class FileTransport implements Transport {
+
+    public static final int AS_FAST_AS_POSSIBLE = 0;
+    public static final int CMS50FW_FRAMES_PER_SECOND = 60;
+    private static final String FRAMES_PER_SECOND_MUST_NOT_BE_NEGATIVE_MESSAGE = "framesPerSecond must not be negative: %d";
+    private static final String NOT_OPEN_MESSAGE = "FileTransport is not open";
+    private static final String CLOSED_MESSAGE = "FileTransport was closed";
+    private static final String INTERRUPTED_MESSAGE = "Interrupted while replaying %s";
+
+    private final File file;
+    private final int framesPerSecond;
+
+    private volatile InputStream inputStream = null;
+    private volatile boolean closed = true;
+    private volatile long bytesWritten = 0;
+    private long startNanos;
+    private long bytesRead;
+
+    /**
+     * @param file raw bytes, as read from a CMS50FW
+     * @param framesPerSecond replay rate, or {@link #AS_FAST_AS_POSSIBLE}
+     */
+    public FileTransport(File file, int framesPerSecond) {
+        if (framesPerSecond < 0) {
+            throw new IllegalArgumentException(Util.formatString(FRAMES_PER_SECOND_MUST_NOT_BE_NEGATIVE_MESSAGE,
+                    framesPerSecond));
+        }
+        this.file = file;
+        this.framesPerSecond = framesPerSecond;
+    }
+
+    /**
+     * Opens the file and starts replaying from its beginning.
+     */
+    @Override
+    public void open() throws IOException {
+        close();
+        inputStream = new FileInputStream(file);
+        startNanos = System.nanoTime();
+        bytesRead = 0;
+        closed = false;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        InputStream in = inputStream;
+        if (in == null) {
+            throw new IOException(NOT_OPEN_MESSAGE);
+        }
+        if (framesPerSecond != AS_FAST_AS_POSSIBLE) {
+            length = (int) Math.min(length, awaitAllowedBytes());
+        }
+        int count = in.read(buffer, offset, length);
+        if (closed) {
+            throw new IOException(CLOSED_MESSAGE);
+        }
+        if (count > 0) {
+            bytesRead += count;
+        }
+        return count;
+    }
+
+    /**
+     * Sleeps until the replay clock allows at least one more frame.
+     *
+     * @return the number of bytes which may be read now
+     */
+    private long awaitAllowedBytes() throws IOException {
+        while (true) {
+            long elapsedNanos = System.nanoTime() - startNanos;
+            long allowedFrames = elapsedNanos * framesPerSecond / TimeUnit.SECONDS.toNanos(1);
+            long allowedBytes = allowedFrames * FrameDecoder.FRAME_LENGTH - bytesRead;
+            if (allowedBytes > 0) {
+                return allowedBytes;
+            }
+            long nextFrameNanos = (bytesRead / FrameDecoder.FRAME_LENGTH + 1) * TimeUnit.SECONDS.toNanos(1) / framesPerSecond;
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.max(1, nextFrameNanos - elapsedNanos));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(Util.formatString(INTERRUPTED_MESSAGE, file));
+            }
+            if (closed) {
+                throw new IOException(CLOSED_MESSAGE);
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes, which go nowhere.
+     */
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException(NOT_OPEN_MESSAGE);
+        }
+        bytesWritten += length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        InputStream in = inputStream;
+        inputStream = null;
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing more can be done with it
+            }
+        }
+    }
+
+    /**
+     * @return the number of command bytes written since this transport was created
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+}
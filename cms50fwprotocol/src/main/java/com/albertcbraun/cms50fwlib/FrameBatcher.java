@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Collects frames on the data reading thread into {@link DataFrameBatch} objects and
+ * hands each batch to a {@link DataFrameBatchListener} through an {@link Executor}
+ * (typically one which posts to the UI thread).
+ * <p>
+ * A batch is delivered once it holds a given number of frames or once its first frame
+ * is older than a given delay, whichever happens first. The delay is measured with the
+ * frames' own times, so it is checked as each frame arrives; when frames stop, the
+ * last batch waits for {@link #flush()}, which the data reading thread calls as it
+ * finishes. A small, fixed set of batches
+ * is allocated up front and each one is recycled after the listener returns, so
+ * nothing is allocated per frame or per batch. If the listener falls so far behind
+ * that no batch is free, the current batch keeps filling up, and once it is full each
+ * new frame is dropped and counted, so the frames already batched still go out.
+ * <p>
+ * {@link #add(long, long)} and {@link #flush()} must be called from a single thread.
+ */
+public class FrameBatcher {
+
+    private static final int BATCH_POOL_SIZE = 3;
+    private static final String MAX_FRAMES_MUST_BE_POSITIVE_MESSAGE = "maxFrames must be positive: %d";
+
+    private final int maxFrames;
+    private final long maxDelayMs;
+    private final Executor deliveryExecutor;
+    private final BlockingQueue<BatchDelivery> freeDeliveries;
+
+    private BatchDelivery current;
+    private volatile long droppedFrames = 0;
+
+    /**
+     * @param listener receives each batch
+     * @param deliveryExecutor runs the listener callbacks
+     * @param maxFrames the number of frames which triggers delivery of a batch
+     * @param maxDelayMs the age of the first frame in a batch which triggers its delivery
+     */
+    public FrameBatcher(DataFrameBatchListener listener, Executor deliveryExecutor, int maxFrames, long maxDelayMs) {
+        if (maxFrames <= 0) {
+            throw new IllegalArgumentException(Util.formatString(MAX_FRAMES_MUST_BE_POSITIVE_MESSAGE, maxFrames));
+        }
+        this.maxFrames = maxFrames;
+        this.maxDelayMs = maxDelayMs;
+        this.deliveryExecutor = deliveryExecutor;
+        this.freeDeliveries = new ArrayBlockingQueue<BatchDelivery>(BATCH_POOL_SIZE);
+        for (int i = 0; i < BATCH_POOL_SIZE; i++) {
+            freeDeliveries.add(new BatchDelivery(listener, new DataFrameBatch(maxFrames)));
+        }
+    }
+
+    /**
+     * Adds a frame to the current batch, delivering the batch if it is due.
+     *
+     * @param time when the frame was read, in milliseconds
+     * @param rawFrame the frame as packed by {@link PackedFrame}
+     */
+    public void add(long time, long rawFrame) {
+        if (current == null) {
+            current = freeDeliveries.poll();
+            if (current == null) {
+                droppedFrames++;
+                return;
+            }
+        }
+        DataFrameBatch batch = current.batch;
+        if (batch.isFull()) {
+            // the listener is not keeping up. try again to hand this batch over.
+            if (!deliverIfFree()) {
+                droppedFrames++;
+                return;
+            }
+            batch = current.batch;
+        }
+        batch.add(time, rawFrame);
+        long age = time - batch.time[0];
+        if (batch.size() >= maxFrames || age >= maxDelayMs || age < 0) {
+            deliverIfFree();
+        }
+    }
+
+    /**
+     * Delivers the current batch right away, if it holds any frames, even if there is
+     * no free batch to continue with. Call this when data stops, so that the last
+     * frames are not left behind.
+     */
+    public void flush() {
+        if (current == null || current.batch.size() == 0) {
+            return;
+        }
+        BatchDelivery delivery = current;
+        current = freeDeliveries.poll(); // if null, the next frame tries again
+        deliveryExecutor.execute(delivery);
+    }
+
+    /**
+     * Delivers the current batch if there is a free batch to continue with, and
+     * otherwise keeps it, so it goes on filling up until it is full.
+     *
+     * @return true if the batch was handed over
+     */
+    private boolean deliverIfFree() {
+        BatchDelivery next = freeDeliveries.poll();
+        if (next == null) {
+            return false;
+        }
+        BatchDelivery delivery = current;
+        current = next;
+        deliveryExecutor.execute(delivery);
+        return true;
+    }
+
+    /**
+     * @return the number of frames dropped because the listener fell too far behind
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Calls the listener with one batch and then returns the batch to the free pool.
+     * One instance is allocated per pooled batch, so posting it allocates nothing.
+     */
+    private class BatchDelivery implements Runnable {
+        private final DataFrameBatchListener listener;
+        private final DataFrameBatch batch;
+
+        BatchDelivery(DataFrameBatchListener listener, DataFrameBatch batch) {
+            this.listener = listener;
+            this.batch = batch;
+        }
+
+        @Override
+        public void run() {
+            try {
+                listener.onDataFramesArrived(batch);
+            } finally {
+                batch.clear();
+                freeDeliveries.offer(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+/**
+ * The values carried by a CMS50FW frame, one for each value of a {@link DataFrame}.
+ * Alarm rules, statistics windows, rollups and the frame history all name the value
+ * they work on with this enum. FINGER_OUT_OF_SLEEVE reads as 1 when the finger is out,
+ * 0 when it is in.
+ */
+public enum FrameChannel {
+    PULSE_WAVE_FORM, PULSE_INTENSITY, PULSE_RATE, SPO2_PERCENTAGE, FINGER_OUT_OF_SLEEVE
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+/**
+ * Gives each frame from the CMS50FW a sample index, counting the samples of its 60 Hz
+ * cadence, and a time derived from that index rather than from when the frame happened
+ * to be read.
+ * <p>
+ * Frames reach the reading thread late by varying amounts: Bluetooth delivers them in
+ * bursts, and the reading thread is held up by garbage collection and by other work.
+ * The CMS50FW itself samples at a steady rate, though, so the reading times of
+ * successive samples lie above a straight line, and the least delayed frames lie close to
+ * it. An online linear regression, weighted towards the last ten minutes, fits that line to
+ * the least delayed frame of each second, timed with the monotonic host clock. Its slope
+ * is the CMS50FW's real sample period, which differs from the nominal 1/60 s by the drift
+ * between its clock and the host's, and the time of sample index k is read off the line.
+ * Times are anchored to the wall clock once, when the clock is created, so later
+ * adjustments of the wall clock don't make them jump.
+ * <p>
+ * Frames which never arrive leave gaps in the sample index:
+ * <ul>
+ * <li>A frame read more than the large gap threshold after its expected time follows a gap
+ * as long as the delay. This is detected as soon as the frame arrives.</li>
+ * <li>A shorter gap can't be told from a Bluetooth stall until later: after a stall the
+ * delayed frames arrive in a burst and catch up with the line, but after a gap every
+ * frame stays late. So when even the least delayed frame of the last second is later
+ * than usual by most of a sample period, the frames are that many samples further on
+ * than counted, once the frames arrive at their usual pace again. This is detected a
+ * second or two after the gap, and the missing samples are counted from that frame on.</li>
+ * <li>Samples known to be lost, such as frames which the {@link FrameDecoder} dropped because
+ * some of their bytes were lost, are passed to {@link #onFrame(long, int)} with the next frame
+ * and counted straight away.</li>
+ * </ul>
+ * <p>
+ * Each frame costs a constant amount of work and nothing is allocated. Call
+ * {@link #onFrame(long)} from one thread; the drift and gap counters may be read from any thread.
+ */
+public final class FrameClock {
+
+    public static final int FRAMES_PER_SECOND = 60;
+    public static final double NOMINAL_PERIOD_MS = 1000.0 / FRAMES_PER_SECOND;
+    public static final long DEFAULT_LARGE_GAP_MS = 3000;
+
+    private static final String LARGE_GAP_MUST_BE_POSITIVE_MESSAGE = "largeGapMs must be positive: %d";
+    private static final String SKIPPED_SAMPLES_MUST_NOT_BE_NEGATIVE_MESSAGE = "skippedSamples must not be negative: %d";
+    private static final double NANOS_PER_MS = 1e6;
+    private static final int RESIDUAL_WINDOW = FRAMES_PER_SECOND;
+    private static final int FIT_DELAY = 2 * RESIDUAL_WINDOW;
+    private static final int REGRESSION_WINDOW = 10 * 60; // points, one per second
+    private static final int MIN_REGRESSION_POINTS = 60;
+    private static final double MAX_DRIFT = 0.001;
+    private static final int DETECTION_START = 10 * FRAMES_PER_SECOND;
+    private static final int BASELINE_WINDOW = 10 * FRAMES_PER_SECOND;
+    private static final double LATE_PERIODS = 0.75;
+    private static final double STEADY_PACE = 0.9;
+    private static final double STALL_ALLOWANCE_MS = 1500;
+    private static final int SAME_GAP_FRAMES = 5 * RESIDUAL_WINDOW;
+
+    private final long wallTimeAnchorMs;
+    private final long hostNanosAnchor;
+    private final double largeGapMs;
+
+    // exponentially weighted regression of reading time (ms since the anchor) on sample index,
+    // fitted to the least delayed frame of each second
+    private long fitted = 0;
+    private double meanIndex = 0;
+    private double meanTime = 0;
+    private double covariance = 0;
+    private double indexVariance = 0;
+    private double periodMs = NOMINAL_PERIOD_MS;
+
+    // frames only join the regression once a short gap before them would have been found,
+    // so that frames with indexes which are still too small don't bend the line
+    private final long[] delayedIndexes = new long[FIT_DELAY];
+    private final double[] delayedReadTimes = new double[FIT_DELAY];
+    private int blockFrames = 0;
+    private long blockIndex = 0;
+    private double blockReadTime = 0;
+    private double blockResidual = Double.MAX_VALUE;
+
+    // how far the last second of frames were from the line, and the usual least of those
+    private final double[] residuals = new double[RESIDUAL_WINDOW];
+    private final double[] readTimes = new double[RESIDUAL_WINDOW];
+    private double baselineMinResidual = 0;
+    private boolean baselineSet = false;
+    private long confirmAtFrame = -1;
+    private long lastGapFrame = -SAME_GAP_FRAMES - 1;
+
+    private long frames = 0;
+    private long nextSampleIndex = 0;
+    private long sampleIndex = -1;
+    private long time = Long.MIN_VALUE;
+    private int lastGapSamples = 0;
+
+    private volatile long missingSamples = 0;
+    private volatile int gapCount = 0;
+    private volatile double driftPpm = 0;
+
+    /**
+     * @param wallTimeMs the wall clock, e.g. System.currentTimeMillis(), read together with hostNanos
+     * @param hostNanos the monotonic clock, e.g. System.nanoTime(), which later frames will be timed with
+     */
+    public FrameClock(long wallTimeMs, long hostNanos) {
+        this(wallTimeMs, hostNanos, DEFAULT_LARGE_GAP_MS);
+    }
+
+    /**
+     * @param largeGapMs a frame read this much later than expected is taken to follow a gap straight away
+     */
+    public FrameClock(long wallTimeMs, long hostNanos, long largeGapMs) {
+        if (largeGapMs <= 0) {
+            throw new IllegalArgumentException(Util.formatString(LARGE_GAP_MUST_BE_POSITIVE_MESSAGE, largeGapMs));
+        }
+        this.wallTimeAnchorMs = wallTimeMs;
+        this.hostNanosAnchor = hostNanos;
+        this.largeGapMs = largeGapMs;
+    }
+
+    /**
+     * Assigns the next frame its sample index and time.
+     *
+     * @param hostNanos when the frame was read, on the monotonic clock given to the constructor
+     * @return the frame's sample index. The first frame is sample 0.
+     */
+    public long onFrame(long hostNanos) {
+        return onFrame(hostNanos, 0);
+    }
+
+    /**
+     * Assigns the next frame its sample index and time, when some samples just before it
+     * are known to be lost, e.g. {@link FrameDecoder#getTruncatedFrames()} went up while
+     * decoding up to it. They are counted as a gap before the frame straight away, rather
+     * than found from the timing a second or two later.
+     *
+     * @param hostNanos when the frame was read, on the monotonic clock given to the constructor
+     * @param skippedSamples the number of samples known to be lost since the frame before.
+     *                       Ignored for the first frame.
+     * @return the frame's sample index. The first frame is sample 0.
+     */
+    public long onFrame(long hostNanos, int skippedSamples) {
+        if (skippedSamples < 0) {
+            throw new IllegalArgumentException(Util.formatString(SKIPPED_SAMPLES_MUST_NOT_BE_NEGATIVE_MESSAGE,
+                    skippedSamples));
+        }
+        double readTime = (hostNanos - hostNanosAnchor) / NANOS_PER_MS;
+        if (frames == 0) {
+            fit(0, readTime); // the line starts at the first frame
+            return assign(0, 0);
+        }
+
+        long index = nextSampleIndex + skippedSamples;
+        int missing = skippedSamples;
+        double late = readTime - lineTime(index);
+        if (late > largeGapMs) {
+            // undercount rather than overcount: the frame may also have been stalled, and
+            // any samples not counted here are found once the frames after it settle
+            int lateSamples = (int) ((late - STALL_ALLOWANCE_MS) / periodMs);
+            index += lateSamples;
+            missing += lateSamples;
+        }
+
+        int residualSlot = (int) (frames % RESIDUAL_WINDOW);
+        residuals[residualSlot] = readTime - lineTime(index);
+        readTimes[residualSlot] = readTime;
+        if (frames >= DETECTION_START) {
+            double oldestReadTime = readTimes[(int) ((frames + 1) % RESIDUAL_WINDOW)];
+            boolean steady = readTime - oldestReadTime > STEADY_PACE * (RESIDUAL_WINDOW - 1) * periodMs;
+            int lateSamples = findLateSamples(steady);
+            if (lateSamples > 0) {
+                index += lateSamples;
+                missing += lateSamples;
+                correctDelayedIndexes(lateSamples);
+            }
+        }
+
+        int slot = (int) (frames % FIT_DELAY);
+        if (frames > FIT_DELAY) {
+            addToBlock(delayedIndexes[slot], delayedReadTimes[slot]);
+        }
+        delayedIndexes[slot] = index;
+        delayedReadTimes[slot] = readTime;
+        return assign(index, missing);
+    }
+
+    /**
+     * @param steady true if the frames of the last second were read at the usual pace, rather
+     *               than in the burst which follows a stall
+     * @return the number of samples the frames of the last second are behind, if they are
+     * all late and have been since the second before, otherwise 0
+     */
+    private int findLateSamples(boolean steady) {
+        double minResidual = minResidual();
+        boolean behind = minResidual - baselineMinResidual > LATE_PERIODS * periodMs;
+        boolean late = steady && behind;
+        int lateSamples = 0;
+        if (!baselineSet) {
+            baselineMinResidual = minResidual;
+            baselineSet = true;
+        } else if (confirmAtFrame < 0) {
+            if (late) {
+                // the last second may still hold frames from before a gap, which were late
+                // for other reasons. wait until it only holds frames read after this one.
+                confirmAtFrame = frames + RESIDUAL_WINDOW;
+            }
+        } else if (frames >= confirmAtFrame) {
+            confirmAtFrame = -1;
+            if (late) {
+                lateSamples = (int) Math.round((minResidual - baselineMinResidual) / periodMs);
+                for (int i = 0; i < residuals.length; i++) {
+                    residuals[i] -= lateSamples * periodMs;
+                }
+                minResidual -= lateSamples * periodMs;
+            }
+        }
+        if (confirmAtFrame < 0 && (!behind || lateSamples > 0)) {
+            baselineMinResidual += (minResidual - baselineMinResidual) / BASELINE_WINDOW;
+        }
+        return lateSamples;
+    }
+
+    /**
+     * Moves the frames waiting to join the regression which were read after the gap, the
+     * newest ones which would still not be early with the corrected index, along with it.
+     */
+    private void correctDelayedIndexes(int lateSamples) {
+        double earliest = baselineMinResidual - periodMs / 2;
+        for (long frame = frames - 1; frame >= Math.max(1, frames - FIT_DELAY); frame--) {
+            int slot = (int) (frame % FIT_DELAY);
+            long corrected = delayedIndexes[slot] + lateSamples;
+            if (delayedReadTimes[slot] - lineTime(corrected) < earliest) {
+                break;
+            }
+            delayedIndexes[slot] = corrected;
+        }
+    }
+
+    private long assign(long index, int missing) {
+        if (missing > 0) {
+            if (frames - lastGapFrame > SAME_GAP_FRAMES) {
+                gapCount++; // otherwise this is the rest of a large gap
+            }
+            lastGapFrame = frames;
+            missingSamples += missing;
+        }
+        lastGapSamples = missing;
+        frames++;
+        nextSampleIndex = index + 1;
+        sampleIndex = index;
+        time = Math.max(time, timeOf(index));
+        return index;
+    }
+
+    private double minResidual() {
+        double min = residuals[0];
+        for (int i = 1; i < residuals.length; i++) {
+            min = Math.min(min, residuals[i]);
+        }
+        return min;
+    }
+
+    /**
+     * Fits the least delayed of each second's frames, the ones which came through
+     * Bluetooth quickest, so that stalls and bursts don't move the line.
+     */
+    private void addToBlock(long index, double readTime) {
+        double residual = readTime - lineTime(index);
+        if (residual < blockResidual) {
+            blockResidual = residual;
+            blockIndex = index;
+            blockReadTime = readTime;
+        }
+        if (++blockFrames == RESIDUAL_WINDOW) {
+            if (!baselineSet || blockResidual - baselineMinResidual < LATE_PERIODS * periodMs) {
+                fit(blockIndex, blockReadTime); // a second spent stalled says nothing about the line
+            }
+            blockFrames = 0;
+            blockResidual = Double.MAX_VALUE;
+        }
+    }
+
+    private void fit(long index, double readTime) {
+        fitted++;
+        double weight = 1.0 / Math.min(fitted, REGRESSION_WINDOW);
+        double indexDelta = index - meanIndex;
+        double timeDelta = readTime - meanTime;
+        meanIndex += weight * indexDelta;
+        meanTime += weight * timeDelta;
+        covariance = (1 - weight) * (covariance + weight * indexDelta * timeDelta);
+        indexVariance = (1 - weight) * (indexVariance + weight * indexDelta * indexDelta);
+        if (fitted >= MIN_REGRESSION_POINTS && indexVariance > 0) {
+            double slope = covariance / indexVariance;
+            periodMs = Math.max(NOMINAL_PERIOD_MS * (1 - MAX_DRIFT), Math.min(NOMINAL_PERIOD_MS * (1 + MAX_DRIFT), slope));
+            driftPpm = (periodMs / NOMINAL_PERIOD_MS - 1) * 1e6;
+        }
+    }
+
+    private double lineTime(long index) {
+        return meanTime + periodMs * (index - meanIndex);
+    }
+
+    /**
+     * @param sampleIndex any sample index, including those of missing samples and future samples
+     * @return the wall time of the sample, in milliseconds, from the current fit of the line
+     */
+    public long timeOf(long sampleIndex) {
+        return wallTimeAnchorMs + Math.round(lineTime(sampleIndex));
+    }
+
+    /**
+     * @return the sample index of the latest frame, or -1 before the first frame
+     */
+    public long getSampleIndex() {
+        return sampleIndex;
+    }
+
+    /**
+     * @return the wall time of the latest frame, in milliseconds. Never less than that of the frame before.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return how many samples were found missing just before the latest frame, usually 0
+     */
+    public int getLastGapSamples() {
+        return lastGapSamples;
+    }
+
+    /**
+     * @return the estimated time between samples, in milliseconds
+     */
+    public double getPeriodMs() {
+        return periodMs;
+    }
+
+    /**
+     * @return how much faster (negative) or slower (positive) than nominal the CMS50FW samples,
+     * measured with the host clock, in parts per million
+     */
+    public double getDriftPpm() {
+        return driftPpm;
+    }
+
+    /**
+     * @return the total number of samples found missing
+     */
+    public long getMissingSamples() {
+        return missingSamples;
+    }
+
+    /**
+     * @return the number of gaps found
+     */
+    public int getGapCount() {
+        return gapCount;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the raw bytes of the CMS50FW data stream into frames.
+ * <p>
+ * Bytes are pulled from the input stream in bulk chunks into a reusable
+ * ring buffer. Each call to {@link #decode(FrameHandler)} then extracts every
+ * complete 8 byte frame currently held in the buffer. Any partial frame at the
+ * end of a chunk stays in the buffer until the rest of its bytes arrive.
+ * <p>
+ * Each frame begins with a single boundary byte which has bit 7 set. Bytes
+ * found before a boundary byte are skipped. No other byte of a frame has bit 7
+ * set, so when one does, bytes of the frame were lost and it is really the boundary
+ * byte of the next frame. The truncated frame is dropped and decoding resumes there.
+ * <p>
+ * Bytes can come from an {@link InputStream}, a {@link Transport}, a {@link ByteBuffer}
+ * or a plain array, so the decoder has no dependency on Android or on Bluetooth.
+ * <p>
+ * This class is not thread safe. It is meant to be used by the single thread
+ * which reads the Bluetooth input stream.
+ */
+public class FrameDecoder {
+
+    public static final int FRAME_LENGTH = 8;
+
+    private static final int DEFAULT_BUFFER_SIZE = 1024;
+    private static final int BIT_7 = 128;
+    private static final long DATA_BYTES_BIT_7 = 0x0080808080808080L;
+    private static final String BUFFER_SIZE_MUST_BE_A_POWER_OF_TWO_MESSAGE = "Buffer size must be a power of two and at least %d bytes: %d";
+
+    /**
+     * Receives each complete frame.
+     */
+    public interface FrameHandler {
+        /**
+         * @param rawFrame the 8 bytes of the frame packed into a long. Use the static
+         *                 accessors of {@link PackedFrame} to read its values.
+         */
+        void onFrame(long rawFrame);
+    }
+
+    private final byte[] buffer;
+    private final int mask;
+
+    // both positions only ever increase. the buffer index is the position masked by buffer size.
+    private long readPosition = 0;
+    private long writePosition = 0;
+    private long truncatedFrames = 0;
+
+    public FrameDecoder() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize size of the ring buffer in bytes. Must be a power of two.
+     */
+    public FrameDecoder(int bufferSize) {
+        if (bufferSize < 2 * FRAME_LENGTH || Integer.bitCount(bufferSize) != 1) {
+            throw new IllegalArgumentException(Util.formatString(BUFFER_SIZE_MUST_BE_A_POWER_OF_TWO_MESSAGE,
+                    2 * FRAME_LENGTH, bufferSize));
+        }
+        this.buffer = new byte[bufferSize];
+        this.mask = bufferSize - 1;
+    }
+
+    /**
+     * Reads the next chunk of bytes from the input stream into the ring buffer.
+     * This blocks until at least one byte is available, the stream ends, or
+     * the stream is closed by another thread.
+     *
+     * @param inputStream the CMS50FW data stream
+     * @return the number of bytes read, or -1 if the end of the stream was reached
+     * @throws IOException if the stream can't be read, for example because the
+     * Bluetooth socket was closed
+     */
+    public int readFrom(InputStream inputStream) throws IOException {
+        int free = buffer.length - buffered();
+        int offset = (int) (writePosition & mask);
+        int count = inputStream.read(buffer, offset, Math.min(free, buffer.length - offset));
+        if (count > 0) {
+            writePosition += count;
+        }
+        return count;
+    }
+
+    /**
+     * Reads the next chunk of bytes from a transport into the ring buffer.
+     * This blocks until at least one byte is available, the connection ends, or
+     * the transport is closed by another thread.
+     *
+     * @param transport the connection to the CMS50FW
+     * @return the number of bytes read, or -1 if the connection has ended
+     * @throws IOException if the connection fails or is closed
+     */
+    public int readFrom(Transport transport) throws IOException {
+        int free = buffer.length - buffered();
+        int offset = (int) (writePosition & mask);
+        int count = transport.read(buffer, offset, Math.min(free, buffer.length - offset));
+        if (count > 0) {
+            writePosition += count;
+        }
+        return count;
+    }
+
+    /**
+     * Copies bytes which were obtained some other way into the ring buffer.
+     *
+     * @param bytes source array
+     * @param offset first byte to copy
+     * @param length number of bytes to copy. Anything which does not fit into the free
+     *               space of the buffer is not copied.
+     * @return the number of bytes actually copied
+     */
+    public int write(byte[] bytes, int offset, int length) {
+        int count = Math.min(length, buffer.length - buffered());
+        for (int i = 0; i < count; i++) {
+            buffer[(int) ((writePosition + i) & mask)] = bytes[offset + i];
+        }
+        writePosition += count;
+        return count;
+    }
+
+    /**
+     * Copies as many bytes as will fit from the source buffer into the ring buffer.
+     *
+     * @param source bytes to decode. Its position is advanced past the bytes copied.
+     * @return the number of bytes copied
+     */
+    public int readFrom(ByteBuffer source) {
+        int count = Math.min(source.remaining(), buffer.length - buffered());
+        for (int i = 0; i < count; i++) {
+            buffer[(int) ((writePosition + i) & mask)] = source.get();
+        }
+        writePosition += count;
+        return count;
+    }
+
+    /**
+     * Extracts every complete frame currently held in the ring buffer and hands
+     * it to the handler as a raw frame. Nothing is allocated here.
+     *
+     * @param frameHandler receives each frame
+     * @return the number of frames decoded
+     */
+    public int decode(FrameHandler frameHandler) {
+        int frames = 0;
+        while (readPosition < writePosition) {
+            // search for the byte which signals the beginning of the next data frame
+            if ((buffer[(int) (readPosition & mask)] & BIT_7) != BIT_7) {
+                readPosition++;
+                continue;
+            }
+            if (writePosition - readPosition < FRAME_LENGTH) {
+                break; // wait for the rest of this frame
+            }
+
+            long rawFrame = 0;
+            for (int i = 0; i < FRAME_LENGTH; i++) {
+                rawFrame = (rawFrame << 8) | (buffer[(int) ((readPosition + i) & mask)] & 0xFFL);
+            }
+            if ((rawFrame & DATA_BYTES_BIT_7) != 0) {
+                // bytes were lost: resume at the first boundary byte inside this frame
+                int boundary = 1;
+                while ((buffer[(int) ((readPosition + boundary) & mask)] & BIT_7) != BIT_7) {
+                    boundary++;
+                }
+                readPosition += boundary;
+                truncatedFrames++;
+                continue;
+            }
+            readPosition += FRAME_LENGTH;
+            frames++;
+
+            frameHandler.onFrame(rawFrame);
+        }
+        return frames;
+    }
+
+    /**
+     * @return the number of bytes waiting to be decoded
+     */
+    public int buffered() {
+        return (int) (writePosition - readPosition);
+    }
+
+    /**
+     * @return the number of frames dropped so far because some of their bytes were lost
+     */
+    public long getTruncatedFrames() {
+        return truncatedFrames;
+    }
+
+    /**
+     * Discard any bytes waiting to be decoded, e.g. after the connection is reset.
+     */
+    public void clear() {
+        readPosition = writePosition;
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Keeps recent frames in memory for trend charts, compressed to a few bits per field,
+ * so hours of 60 Hz data take a few megabytes instead of the hundreds a List of
+ * {@link DataFrame} would.
+ * <p>
+ * Frames are stored in blocks of a fixed number of frames. Within a block each field
+ * is its own column of bits, compressed as in Facebook's Gorilla time series database:
+ * <ul>
+ * <li>time: the delta of the delta between consecutive timestamps, in a variable
+ * length code which is a single bit for frames which arrive at an even pace</li>
+ * <li>values: each value XOR the previous one, a single bit when unchanged, otherwise
+ * only the bits which differ, reusing the previous width where possible</li>
+ * </ul>
+ * The newest block is compressed as frames arrive. Queries decode only the blocks
+ * which overlap the requested time range, and only the requested column, into a
+ * {@link ValueHandler}, so they allocate nothing. When the blocks take more memory than
+ * the budget, the oldest blocks are dropped.
+ */
+public final class FrameHistory {
+
+    /**
+     * Receives the values found by {@link #query(long, long, FrameChannel, ValueHandler)}, oldest first.
+     */
+    public interface ValueHandler {
+        void onValue(long time, int value);
+    }
+
+    public static final long DEFAULT_MEMORY_BUDGET_BYTES = 4 * 1024 * 1024;
+    public static final int DEFAULT_FRAMES_PER_BLOCK = 1024;
+    private static final String SIZES_MUST_BE_POSITIVE_MESSAGE =
+            "memoryBudgetBytes and framesPerBlock must be positive: %d, %d";
+    private static final int FIELDS = FrameChannel.values().length;
+    // object headers, references and counters, roughly
+    private static final int BLOCK_OVERHEAD_BYTES = 64 + FIELDS * 48;
+
+    private final long memoryBudgetBytes;
+    private final int framesPerBlock;
+    private final ArrayDeque<Block> blocks = new ArrayDeque<Block>();
+    private final BitReader timeReader = new BitReader();
+    private final BitReader valueReader = new BitReader();
+    private Block open = null;
+    private long memoryUsage = 0;
+    private long frameCount = 0;
+    private long evictedFrames = 0;
+
+    public FrameHistory() {
+        this(DEFAULT_MEMORY_BUDGET_BYTES, DEFAULT_FRAMES_PER_BLOCK);
+    }
+
+    /**
+     * @param memoryBudgetBytes most memory to use. The newest block is always kept.
+     * @param framesPerBlock frames in each block. Smaller blocks make queries of short
+     *                       ranges faster and compress a little worse.
+     */
+    public FrameHistory(long memoryBudgetBytes, int framesPerBlock) {
+        if (memoryBudgetBytes <= 0 || framesPerBlock <= 0) {
+            throw new IllegalArgumentException(Util.formatString(SIZES_MUST_BE_POSITIVE_MESSAGE,
+                    memoryBudgetBytes, framesPerBlock));
+        }
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.framesPerBlock = framesPerBlock;
+    }
+
+    /**
+     * Adds a frame, e.g. from {@link CMS50FWConnectionListener#onDataFrameArrived}.
+     */
+    public void add(DataFrame dataFrame) {
+        add(dataFrame.time, dataFrame.pulseWaveForm, dataFrame.pulseIntensity, dataFrame.pulseRate,
+                dataFrame.spo2Percentage, dataFrame.isFingerOutOfSleeve);
+    }
+
+    /**
+     * Adds the values of a frame.
+     */
+    public synchronized void add(long time, int pulseWaveForm, int pulseIntensity, int pulseRate,
+                                 int spo2Percentage, boolean isFingerOutOfSleeve) {
+        if (open == null || open.frameCount == framesPerBlock) {
+            if (open != null) {
+                long before = open.memoryUsage();
+                open.trim();
+                memoryUsage += open.memoryUsage() - before;
+            }
+            open = new Block();
+            blocks.addLast(open);
+            memoryUsage += open.memoryUsage(); // the block's fixed cost, which evict() takes off again
+        }
+        long before = open.memoryUsage();
+        open.add(time, pulseWaveForm, pulseIntensity, pulseRate, spo2Percentage, isFingerOutOfSleeve ? 1 : 0);
+        memoryUsage += open.memoryUsage() - before;
+        frameCount++;
+        evict();
+    }
+
+    /**
+     * Decodes the values of one channel for the frames within a time range.
+     *
+     * @param fromTime earliest time, inclusive, in milliseconds
+     * @param toTime latest time, inclusive, in milliseconds
+     * @param channel which value to read
+     * @param handler receives each value, oldest first
+     * @return the number of values passed to the handler
+     */
+    public synchronized int query(long fromTime, long toTime, FrameChannel channel, ValueHandler handler) {
+        int found = 0;
+        for (Block block : blocks) {
+            if (block.maxTime < fromTime || block.minTime > toTime) {
+                continue;
+            }
+            found += block.decode(fromTime, toTime, channel.ordinal(), handler, timeReader, valueReader);
+        }
+        return found;
+    }
+
+    /**
+     * @return frames currently held, which is the frames added less those evicted
+     */
+    public synchronized long getFrameCount() {
+        return frameCount - evictedFrames;
+    }
+
+    /**
+     * @return frames dropped to stay within the memory budget
+     */
+    public synchronized long getEvictedFrames() {
+        return evictedFrames;
+    }
+
+    /**
+     * @return an estimate of the bytes used by the blocks
+     */
+    public synchronized long getMemoryUsage() {
+        return memoryUsage;
+    }
+
+    /**
+     * @return the earliest time held, or Long.MAX_VALUE if empty
+     */
+    public synchronized long getOldestTime() {
+        long oldest = Long.MAX_VALUE;
+        for (Block block : blocks) {
+            oldest = Math.min(oldest, block.minTime);
+        }
+        return oldest;
+    }
+
+    public synchronized void clear() {
+        blocks.clear();
+        open = null;
+        memoryUsage = 0;
+        evictedFrames = frameCount;
+    }
+
+    private void evict() {
+        Iterator<Block> iterator = blocks.iterator();
+        while (memoryUsage > memoryBudgetBytes && blocks.size() > 1) {
+            Block oldest = iterator.next();
+            iterator.remove();
+            memoryUsage -= oldest.memoryUsage();
+            evictedFrames += oldest.frameCount;
+        }
+    }
+
+    /**
+     * One block of frames, a bit stream per column.
+     */
+    private static final class Block {
+        final BitWriter time = new BitWriter();
+        final BitWriter[] values = new BitWriter[FIELDS];
+        final int[] previousValues = new int[FIELDS];
+        final int[] leadingZeros = new int[FIELDS];
+        final int[] trailingZeros = new int[FIELDS];
+        int frameCount = 0;
+        long firstTime;
+        long previousTime;
+        long previousDelta;
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+
+        Block() {
+            for (int field = 0; field < FIELDS; field++) {
+                values[field] = new BitWriter();
+                leadingZeros[field] = -1;
+            }
+        }
+
+        void add(long frameTime, int wave, int intensity, int rate, int spo2, int fingerOut) {
+            if (frameCount == 0) {
+                firstTime = frameTime;
+            } else {
+                long delta = frameTime - previousTime;
+                writeDeltaOfDelta(time, delta - previousDelta);
+                previousDelta = delta;
+            }
+            previousTime = frameTime;
+            minTime = Math.min(minTime, frameTime);
+            maxTime = Math.max(maxTime, frameTime);
+            writeValue(FrameChannel.PULSE_WAVE_FORM.ordinal(), wave);
+            writeValue(FrameChannel.PULSE_INTENSITY.ordinal(), intensity);
+            writeValue(FrameChannel.PULSE_RATE.ordinal(), rate);
+            writeValue(FrameChannel.SPO2_PERCENTAGE.ordinal(), spo2);
+            writeValue(FrameChannel.FINGER_OUT_OF_SLEEVE.ordinal(), fingerOut);
+            frameCount++;
+        }
+
+        /**
+         * Gorilla's timestamp code, with a full 64 bits for large jumps of the clock.
+         */
+        private static void writeDeltaOfDelta(BitWriter out, long deltaOfDelta) {
+            if (deltaOfDelta == 0) {
+                out.write(0, 1);
+            } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+                out.write(0x2, 2);
+                out.write(deltaOfDelta + 63, 7);
+            } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+                out.write(0x6, 3);
+                out.write(deltaOfDelta + 255, 9);
+            } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+                out.write(0xE, 4);
+                out.write(deltaOfDelta + 2047, 12);
+            } else {
+                out.write(0xF, 4);
+                out.write(deltaOfDelta, 64);
+            }
+        }
+
+        private static long readDeltaOfDelta(BitReader in) {
+            if (in.read(1) == 0) {
+                return 0;
+            }
+            if (in.read(1) == 0) {
+                return in.read(7) - 63;
+            }
+            if (in.read(1) == 0) {
+                return in.read(9) - 255;
+            }
+            if (in.read(1) == 0) {
+                return in.read(12) - 2047;
+            }
+            return in.read(64);
+        }
+
+        /**
+         * Gorilla's value code, applied to the 32 bits of an int.
+         */
+        private void writeValue(int field, int value) {
+            BitWriter out = values[field];
+            int xor = value ^ previousValues[field];
+            previousValues[field] = value;
+            if (xor == 0) {
+                out.write(0, 1);
+                return;
+            }
+            int leading = Integer.numberOfLeadingZeros(xor);
+            int trailing = Integer.numberOfTrailingZeros(xor);
+            if (leadingZeros[field] >= 0 && leading >= leadingZeros[field] && trailing >= trailingZeros[field]) {
+                // the changed bits fit in the previous window
+                out.write(0x2, 2);
+                out.write(xor >>> trailingZeros[field], 32 - leadingZeros[field] - trailingZeros[field]);
+                return;
+            }
+            int meaningful = 32 - leading - trailing;
+            out.write(0x3, 2);
+            out.write(leading, 5);
+            out.write(meaningful - 1, 5);
+            out.write(xor >>> trailing, meaningful);
+            leadingZeros[field] = leading;
+            trailingZeros[field] = trailing;
+        }
+
+        int decode(long fromTime, long toTime, int field, ValueHandler handler,
+                   BitReader timeIn, BitReader valueIn) {
+            timeIn.reset(time);
+            valueIn.reset(values[field]);
+            long frameTime = firstTime;
+            long delta = 0;
+            int value = 0;
+            int leading = 0;
+            int width = 0;
+            int found = 0;
+            for (int i = 0; i < frameCount; i++) {
+                if (i > 0) {
+                    delta += readDeltaOfDelta(timeIn);
+                    frameTime += delta;
+                }
+                if (valueIn.read(1) != 0) {
+                    if (valueIn.read(1) != 0) {
+                        leading = (int) valueIn.read(5);
+                        width = (int) valueIn.read(5) + 1;
+                    }
+                    value ^= (int) valueIn.read(width) << (32 - leading - width);
+                }
+                if (frameTime >= fromTime && frameTime <= toTime) {
+                    handler.onValue(frameTime, value);
+                    found++;
+                }
+            }
+            return found;
+        }
+
+        long memoryUsage() {
+            long bytes = BLOCK_OVERHEAD_BYTES + time.memoryUsage();
+            for (BitWriter column : values) {
+                bytes += column.memoryUsage();
+            }
+            return bytes;
+        }
+
+        void trim() {
+            time.trim();
+            for (BitWriter column : values) {
+                column.trim();
+            }
+        }
+    }
+
+    /**
+     * Appends bits to a growing array of longs, most significant bit first.
+     */
+    private static final class BitWriter {
+        long[] words = new long[4];
+        long bitLength = 0;
+
+        void write(long bits, int count) {
+            if (count < 64) {
+                bits &= (1L << count) - 1;
+            }
+            int word = (int) (bitLength >>> 6);
+            int used = (int) (bitLength & 63);
+            if (word + 1 >= words.length) {
+                long[] grown = new long[words.length * 2];
+                System.arraycopy(words, 0, grown, 0, words.length);
+                words = grown;
+            }
+            int free = 64 - used;
+            if (count <= free) {
+                words[word] |= bits << (free - count);
+            } else {
+                words[word] |= bits >>> (count - free);
+                words[word + 1] |= bits << (64 - (count - free));
+            }
+            bitLength += count;
+        }
+
+        void trim() {
+            int length = (int) ((bitLength + 63) >>> 6) + 1;
+            if (length < words.length) {
+                long[] trimmed = new long[length];
+                System.arraycopy(words, 0, trimmed, 0, length);
+                words = trimmed;
+            }
+        }
+
+        long memoryUsage() {
+            return 16 + words.length * 8L + 24;
+        }
+    }
+
+    /**
+     * Reads bits written by a {@link BitWriter}. Reused for every query.
+     */
+    private static final class BitReader {
+        private long[] words;
+        private long position;
+
+        void reset(BitWriter writer) {
+            words = writer.words;
+            position = 0;
+        }
+
+        long read(int count) {
+            int word = (int) (position >>> 6);
+            int used = (int) (position & 63);
+            int available = 64 - used;
+            long bits;
+            if (count <= available) {
+                bits = words[word] << used >>> (64 - count);
+            } else {
+                bits = (words[word] << used >>> (64 - count)) | (words[word + 1] >>> (64 - (count - available)));
+            }
+            position += count;
+            return bits;
+        }
+    }
+}
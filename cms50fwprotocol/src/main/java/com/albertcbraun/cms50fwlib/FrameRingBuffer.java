@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A preallocated, lock-free ring buffer which hands frames from the single thread
+ * reading the CMS50FW data stream (the producer) to a single consumer thread.
+ * <p>
+ * Each slot holds a frame as two primitives: its timestamp and its raw frame as packed by
+ * {@link PackedFrame}. Nothing is allocated per frame. The producer and consumer
+ * coordinate through two sequence counters: the head (the next sequence to be written)
+ * and the tail (the next sequence to be read).
+ * <p>
+ * When the buffer is full, the {@link OverflowPolicy} decides what happens to a new frame.
+ * When the consumer waits for a frame, or the producer waits for space under
+ * {@link OverflowPolicy#BLOCK}, the {@link WaitStrategy} decides how it waits.
+ */
+public class FrameRingBuffer {
+
+    private static final String CAPACITY_MUST_BE_A_POWER_OF_TWO_MESSAGE = "Capacity must be a power of two: %d";
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+
+    /**
+     * What to do with a new frame when the buffer is full.
+     */
+    public enum OverflowPolicy {
+        /** Discard the oldest unread frame to make room. The producer never waits. */
+        DROP_OLDEST,
+        /** Discard the new frame. The producer never waits. */
+        DROP_NEWEST,
+        /** Wait, using the wait strategy, until the consumer frees a slot. */
+        BLOCK
+    }
+
+    /**
+     * How a thread waits for the other side of the buffer.
+     */
+    public enum WaitStrategy {
+        /** Busy spin. Lowest latency, but burns a core while waiting. */
+        SPIN {
+            @Override
+            void idle() {
+                // keep spinning
+            }
+        },
+        /** Give up the processor on each attempt. */
+        YIELD {
+            @Override
+            void idle() {
+                Thread.yield();
+            }
+        },
+        /** Sleep briefly on each attempt, or until woken by the other side. Cheapest on battery. */
+        PARK {
+            @Override
+            void idle() {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        };
+
+        abstract void idle();
+    }
+
+    private final long[] times;
+    private final long[] rawFrames;
+    private final int mask;
+    private final OverflowPolicy overflowPolicy;
+    private final WaitStrategy waitStrategy;
+
+    private final AtomicLong head = new AtomicLong(0);
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong droppedFrames = new AtomicLong(0);
+    private volatile Thread waitingConsumer = null;
+    private volatile Thread waitingProducer = null;
+    private volatile boolean closed = false;
+
+    /**
+     * @param capacity the number of frame slots. Must be a power of two.
+     * @param overflowPolicy what to do with a new frame when the buffer is full
+     * @param waitStrategy how to wait for frames, or for space under {@link OverflowPolicy#BLOCK}
+     */
+    public FrameRingBuffer(int capacity, OverflowPolicy overflowPolicy, WaitStrategy waitStrategy) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException(Util.formatString(CAPACITY_MUST_BE_A_POWER_OF_TWO_MESSAGE, capacity));
+        }
+        this.times = new long[capacity];
+        this.rawFrames = new long[capacity];
+        this.mask = capacity - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Adds a frame. Must only be called by the producer thread.
+     *
+     * @param time when the frame was read, in milliseconds
+     * @param rawFrame the frame as packed by {@link PackedFrame}
+     * @return true if the frame was added. False if it was dropped under {@link OverflowPolicy#DROP_NEWEST},
+     * or the buffer was closed, or the producer was interrupted while waiting for space.
+     */
+    public boolean publish(long time, long rawFrame) {
+        long sequence = head.get();
+        while (sequence - tail.get() > mask) {
+            if (closed) {
+                return false;
+            }
+            switch (overflowPolicy) {
+                case DROP_NEWEST:
+                    droppedFrames.incrementAndGet();
+                    return false;
+                case DROP_OLDEST:
+                    // claim the oldest frame away from the consumer. if the consumer took it first, look again.
+                    long oldest = tail.get();
+                    if (sequence - oldest > mask && tail.compareAndSet(oldest, oldest + 1)) {
+                        droppedFrames.incrementAndGet();
+                    }
+                    break;
+                case BLOCK:
+                    if (Thread.currentThread().isInterrupted()) {
+                        return false;
+                    }
+                    waitingProducer = Thread.currentThread();
+                    if (sequence - tail.get() > mask) {
+                        waitStrategy.idle();
+                    }
+                    waitingProducer = null;
+                    break;
+            }
+        }
+        int index = (int) (sequence & mask);
+        times[index] = time;
+        rawFrames[index] = rawFrame;
+        head.lazySet(sequence + 1);
+        wake(waitingConsumer);
+        return true;
+    }
+
+    /**
+     * Takes the oldest frame, if there is one, without waiting. Must only be called
+     * by the consumer thread.
+     *
+     * @param packedFrame receives the frame
+     * @return true if a frame was taken
+     */
+    public boolean poll(PackedFrame packedFrame) {
+        while (true) {
+            long sequence = tail.get();
+            if (sequence >= head.get()) {
+                return false;
+            }
+            int index = (int) (sequence & mask);
+            long time = times[index];
+            long rawFrame = rawFrames[index];
+            // fails only if the producer dropped this frame (and may be overwriting it) meanwhile
+            if (tail.compareAndSet(sequence, sequence + 1)) {
+                packedFrame.set(time, rawFrame);
+                wake(waitingProducer);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes the oldest frame, waiting for one with the wait strategy if necessary.
+     * Must only be called by the consumer thread.
+     *
+     * @param packedFrame receives the frame
+     * @param timeout the longest time to wait
+     * @param unit unit of timeout
+     * @return true if a frame was taken, false if the time ran out or the buffer was closed
+     * @throws InterruptedException if the consumer thread is interrupted while waiting
+     */
+    public boolean take(PackedFrame packedFrame, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!poll(packedFrame)) {
+            if (closed || System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            waitingConsumer = Thread.currentThread();
+            if (tail.get() >= head.get()) {
+                waitStrategy.idle();
+            }
+            waitingConsumer = null;
+        }
+        return true;
+    }
+
+    /**
+     * Wakes up any waiting producer or consumer. After this, {@link #publish(long, long)}
+     * drops frames instead of waiting, and {@link #take(PackedFrame, long, TimeUnit)} returns
+     * false once the buffer is empty.
+     */
+    public void close() {
+        closed = true;
+        wake(waitingProducer);
+        wake(waitingConsumer);
+    }
+
+    /**
+     * @return the number of frames waiting to be taken
+     */
+    public int size() {
+        return (int) Math.max(0, head.get() - tail.get());
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return the number of frames discarded by the overflow policy
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    private void wake(Thread thread) {
+        if (thread != null && waitStrategy == WaitStrategy.PARK) {
+            LockSupport.unpark(thread);
+        }
+    }
+}
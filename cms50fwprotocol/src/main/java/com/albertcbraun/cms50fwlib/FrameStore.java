@@ -0,0 +1,577 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Stores recorded frames in a directory of fixed-size, memory-mapped segment files,
+ * and finds the frame at a given time without reading whole sessions.
+ * <p>
+ * Each segment file holds a 32 byte header, a sparse index, and room for a fixed
+ * number of 16 byte records. A record is the frame's time as an int offset from the
+ * segment's base time, a checksum, and the raw frame. Every {@code indexInterval}
+ * frames the time of the frame is also written to the index, so a seek binary
+ * searches the segments by first time, then the segment's small index, then at most
+ * {@code indexInterval} records, and touches only a few pages of the files.
+ * <p>
+ * Appends only write into the mapping of the last segment, so they make no system
+ * calls. A segment which fills up, or whose time offsets would overflow, is sealed
+ * by writing its frame count to its header, and a new one is started. If the app
+ * dies while appending, the last segment may end in records which were only partly
+ * written to storage. {@link #open(File)} finds the first record whose checksum is
+ * wrong and truncates the segment there, and deletes a last segment whose header
+ * was never completely written.
+ * <p>
+ * Frame times must not decrease, because the seeks rely on it. A frame whose time
+ * is earlier than the last frame's, e.g. after the clock was set back, is stored
+ * with the last frame's time.
+ * <p>
+ * At most {@link #MAX_MAPPED_SEGMENTS} segments are mapped at once, so weeks of
+ * recordings don't use up the address space of a 32 bit device. All methods are
+ * synchronized, so one thread can append while others read.
+ */
+public final class FrameStore {
+
+    public static final long MAGIC = 0x434D533530465354L; // "CMS50FST"
+    public static final int VERSION = 1;
+    public static final int DEFAULT_FRAMES_PER_SEGMENT = 1 << 20; // almost 5 hours at 60 Hz
+    public static final int DEFAULT_INDEX_INTERVAL = 64;
+    public static final int MAX_MAPPED_SEGMENTS = 4;
+    static final int HEADER_LENGTH = 32;
+    static final int RECORD_LENGTH = 16;
+    static final String SEGMENT_SUFFIX = ".cms50seg";
+    private static final int MAX_FRAMES_PER_SEGMENT = 1 << 26;
+    private static final int CAPACITY_OFFSET = 12;
+    private static final int INDEX_INTERVAL_OFFSET = 16;
+    private static final int SEALED_COUNT_OFFSET = 20;
+    private static final int BASE_TIME_OFFSET = 24;
+    private static final int CHECK_OFFSET = 4;
+    private static final int RAW_FRAME_OFFSET = 8;
+    private static final String BAD_SEGMENT_SIZE_MESSAGE =
+            "need 0 < indexInterval <= framesPerSegment <= %d: indexInterval %d, framesPerSegment %d";
+    private static final String COULD_NOT_CREATE_MESSAGE = "Could not create %s";
+    private static final String CLOSED_MESSAGE = "FrameStore is closed";
+    private static final String COULD_NOT_LIST_MESSAGE = "Could not list %s";
+    private static final String CORRUPT_SEGMENT_MESSAGE = "Corrupt segment %s";
+    private static final String COULD_NOT_DELETE_UNFINISHED_MESSAGE = "Could not delete unfinished segment %s";
+    private static final String COULD_NOT_DELETE_EMPTY_MESSAGE = "Could not delete empty segment %s";
+    private static final String UNEXPECTED_FILE_MESSAGE = "Unexpected file %s";
+    private static final String UNSUPPORTED_VERSION_MESSAGE = "Unsupported segment version %d in %s";
+    private static final String CORRUPT_SEGMENT_HEADER_MESSAGE = "Corrupt segment header in %s";
+
+    private final File directory;
+    private final int framesPerSegment;
+    private final int indexInterval;
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final ArrayDeque<Segment> mappedSegments = new ArrayDeque<Segment>();
+    private long frameCount = 0;
+    private long lastTime = Long.MIN_VALUE;
+    private boolean closed = false;
+
+    private FrameStore(File directory, int framesPerSegment, int indexInterval) {
+        this.directory = directory;
+        this.framesPerSegment = framesPerSegment;
+        this.indexInterval = indexInterval;
+    }
+
+    public static FrameStore open(File directory) throws IOException {
+        return open(directory, DEFAULT_FRAMES_PER_SEGMENT, DEFAULT_INDEX_INTERVAL);
+    }
+
+    /**
+     * Opens the store in a directory, creating the directory if needed, and
+     * recovers the last segment if the app died while appending to it.
+     *
+     * @param directory holds the segment files and nothing else
+     * @param framesPerSegment capacity of new segments. Existing segments keep their own.
+     * @param indexInterval how many frames apart the index entries of new segments are
+     * @return the open store, ready to append after the last stored frame
+     * @throws IOException if a segment can't be read or mapped
+     */
+    public static FrameStore open(File directory, int framesPerSegment, int indexInterval) throws IOException {
+        if (indexInterval <= 0 || framesPerSegment < indexInterval || framesPerSegment > MAX_FRAMES_PER_SEGMENT) {
+            throw new IllegalArgumentException(Util.formatString(BAD_SEGMENT_SIZE_MESSAGE,
+                    MAX_FRAMES_PER_SEGMENT, indexInterval, framesPerSegment));
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(Util.formatString(COULD_NOT_CREATE_MESSAGE, directory));
+        }
+        FrameStore store = new FrameStore(directory, framesPerSegment, indexInterval);
+        store.load();
+        return store;
+    }
+
+    /**
+     * Appends a frame decoded by the library.
+     */
+    public void append(DataFrame dataFrame) throws IOException {
+        append(dataFrame.time, PackedFrame.pack(dataFrame.pulseWaveForm, dataFrame.pulseIntensity,
+                dataFrame.pulseRate, dataFrame.spo2Percentage));
+    }
+
+    /**
+     * Appends a frame.
+     *
+     * @param time when the frame was read, in milliseconds
+     * @param rawFrame the 8 bytes of the frame, as in {@link PackedFrame}
+     * @throws IOException if a new segment can't be created
+     */
+    public synchronized void append(long time, long rawFrame) throws IOException {
+        if (closed) {
+            throw new IOException(CLOSED_MESSAGE);
+        }
+        time = Math.max(time, lastTime);
+        Segment tail = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (tail == null || tail.count == tail.capacity || time - tail.baseTime > Integer.MAX_VALUE) {
+            if (tail != null) {
+                seal(tail);
+            }
+            tail = createSegment(time);
+        }
+        MappedByteBuffer buffer = map(tail);
+        int timeOffset = (int) (time - tail.baseTime);
+        int position = tail.recordPosition(tail.count);
+        buffer.putInt(position, timeOffset);
+        buffer.putLong(position + RAW_FRAME_OFFSET, rawFrame);
+        buffer.putInt(position + CHECK_OFFSET, check(timeOffset, rawFrame)); // written last
+        if (tail.count % tail.indexInterval == 0) {
+            buffer.putInt(tail.indexPosition(tail.count / tail.indexInterval), timeOffset);
+        }
+        if (tail.count == 0) {
+            tail.firstTime = time;
+        }
+        tail.count++;
+        tail.lastTime = time;
+        lastTime = time;
+        frameCount++;
+    }
+
+    /**
+     * Finds the first frame at or after a time.
+     *
+     * @param time in milliseconds
+     * @return a cursor whose first frame is the first one stored at or after the time.
+     * It also sees frames appended after the seek.
+     */
+    public synchronized Cursor seek(long time) throws IOException {
+        int low = 0;
+        int high = segments.size() - 1;
+        int segmentIndex = 0;
+        // the last segment whose first frame is before the time
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (segments.get(middle).firstTime < time) {
+                segmentIndex = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (segments.isEmpty()) {
+            return new Cursor(0, 0);
+        }
+        Segment segment = segments.get(segmentIndex);
+        if (segment.count == 0 || segment.lastTime < time) {
+            return new Cursor(segmentIndex, segment.count); // the end, where later frames will be appended
+        }
+        return new Cursor(segmentIndex, findRecord(segment, time));
+    }
+
+    /**
+     * @return the total number of frames stored
+     */
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return the time of the first frame stored, or Long.MIN_VALUE if the store is empty
+     */
+    public synchronized long getFirstTime() {
+        return segments.isEmpty() ? Long.MIN_VALUE : segments.get(0).firstTime;
+    }
+
+    /**
+     * @return the time of the last frame stored, or Long.MIN_VALUE if the store is empty
+     */
+    public synchronized long getLastTime() {
+        return lastTime;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Writes the frames appended so far to the storage device.
+     */
+    public synchronized void flush() {
+        if (!segments.isEmpty()) {
+            Segment tail = segments.get(segments.size() - 1);
+            if (tail.buffer != null) {
+                tail.buffer.force();
+            }
+        }
+    }
+
+    /**
+     * Flushes and stops appending. The last segment stays unsealed, so appending
+     * continues in it when the store is opened again.
+     */
+    public synchronized void close() {
+        if (!closed) {
+            flush();
+            closed = true;
+            mappedSegments.clear();
+            for (Segment segment : segments) {
+                segment.buffer = null;
+            }
+        }
+    }
+
+    /**
+     * Reads frames in time order from where {@link #seek(long)} put it.
+     */
+    public final class Cursor {
+
+        private int segmentIndex;
+        private int recordIndex;
+
+        private Cursor(int segmentIndex, int recordIndex) {
+            this.segmentIndex = segmentIndex;
+            this.recordIndex = recordIndex;
+        }
+
+        /**
+         * Points a flyweight at the next frame.
+         *
+         * @return false if there are no more frames
+         */
+        public boolean next(PackedFrame frame) throws IOException {
+            synchronized (FrameStore.this) {
+                if (closed) {
+                    throw new IOException(CLOSED_MESSAGE);
+                }
+                // stay on the last segment at the end, to see the frames appended to it later
+                while (segmentIndex < segments.size() - 1 && recordIndex >= segments.get(segmentIndex).count) {
+                    segmentIndex++;
+                    recordIndex = 0;
+                }
+                if (segmentIndex >= segments.size() || recordIndex >= segments.get(segmentIndex).count) {
+                    return false;
+                }
+                Segment segment = segments.get(segmentIndex);
+                MappedByteBuffer buffer = map(segment);
+                int position = segment.recordPosition(recordIndex++);
+                frame.set(segment.baseTime + buffer.getInt(position), buffer.getLong(position + RAW_FRAME_OFFSET));
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the index of the first record in the segment at or after the time,
+     * which is at most the segment's count
+     */
+    private int findRecord(Segment segment, long time) throws IOException {
+        MappedByteBuffer buffer = map(segment);
+        long target = time - segment.baseTime;
+        // the last index entry before the time. Every record before it is before the time too.
+        int low = 0;
+        int high = (segment.count - 1) / segment.indexInterval;
+        int entry = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (buffer.getInt(segment.indexPosition(middle)) < target) {
+                entry = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        low = entry * segment.indexInterval;
+        high = Math.min(low + segment.indexInterval, segment.count) - 1;
+        int found = high + 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (buffer.getInt(segment.recordPosition(middle)) < target) {
+                low = middle + 1;
+            } else {
+                found = middle;
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    private void load() throws IOException {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException(Util.formatString(COULD_NOT_LIST_MESSAGE, directory));
+        }
+        Arrays.sort(files); // the names are zero padded segment numbers
+        for (int i = 0; i < files.length; i++) {
+            boolean last = i == files.length - 1;
+            Segment segment = readHeader(files[i], segmentNumber(files[i]));
+            if (segment == null) {
+                if (!last) {
+                    throw new IOException(Util.formatString(CORRUPT_SEGMENT_MESSAGE, files[i]));
+                }
+                // the app died while creating it
+                if (!files[i].delete()) {
+                    throw new IOException(Util.formatString(COULD_NOT_DELETE_UNFINISHED_MESSAGE, files[i]));
+                }
+                break;
+            }
+            if (segment.count < 0) {
+                recover(segment);
+                if (segment.count == 0) {
+                    // created just before the app died, before its first frame was written
+                    mappedSegments.remove(segment);
+                    segment.buffer = null;
+                    if (!files[i].delete()) {
+                        throw new IOException(Util.formatString(COULD_NOT_DELETE_EMPTY_MESSAGE, files[i]));
+                    }
+                    continue;
+                }
+                if (!last) {
+                    seal(segment); // only the last segment is ever appended to
+                }
+            } else {
+                readEnds(segment);
+            }
+            segments.add(segment);
+            frameCount += segment.count;
+            if (segment.count > 0) {
+                lastTime = segment.lastTime;
+            }
+        }
+    }
+
+    private static int segmentNumber(File file) throws IOException {
+        String name = file.getName();
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException(Util.formatString(UNEXPECTED_FILE_MESSAGE, file));
+        }
+    }
+
+    /**
+     * @return the segment described by the file's header, with count -1 if it was never sealed,
+     * or null if the header is incomplete
+     */
+    private Segment readHeader(File file, int number) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            if (randomAccessFile.length() < HEADER_LENGTH) {
+                return null;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            randomAccessFile.getChannel().read(header, 0);
+            if (header.getLong(0) != MAGIC) {
+                return null;
+            }
+            if (header.getInt(8) != VERSION) {
+                throw new IOException(Util.formatString(UNSUPPORTED_VERSION_MESSAGE, header.getInt(8), file));
+            }
+            Segment segment = new Segment(file, number, header.getInt(CAPACITY_OFFSET),
+                    header.getInt(INDEX_INTERVAL_OFFSET), header.getLong(BASE_TIME_OFFSET));
+            if (randomAccessFile.length() < segment.fileLength()) {
+                return null;
+            }
+            int sealedCount = header.getInt(SEALED_COUNT_OFFSET);
+            segment.count = sealedCount > 0 ? sealedCount : -1;
+            return segment;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Reads the first and last times of a sealed segment without mapping it.
+     */
+    private void readEnds(Segment segment) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(segment.file, "r");
+        try {
+            ByteBuffer record = ByteBuffer.allocate(4);
+            randomAccessFile.getChannel().read(record, segment.recordPosition(0));
+            segment.firstTime = segment.baseTime + record.getInt(0);
+            record.clear();
+            randomAccessFile.getChannel().read(record, segment.recordPosition(segment.count - 1));
+            segment.lastTime = segment.baseTime + record.getInt(0);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Counts the good records at the start of an unsealed segment, zeroes everything
+     * after them, and rebuilds the index for them.
+     */
+    private void recover(Segment segment) throws IOException {
+        MappedByteBuffer buffer = map(segment);
+        int count = 0;
+        int previousOffset = Integer.MIN_VALUE;
+        while (count < segment.capacity) {
+            int position = segment.recordPosition(count);
+            int timeOffset = buffer.getInt(position);
+            long rawFrame = buffer.getLong(position + RAW_FRAME_OFFSET);
+            if (timeOffset < previousOffset ||
+                    buffer.getInt(position + CHECK_OFFSET) != check(timeOffset, rawFrame)) {
+                break;
+            }
+            previousOffset = timeOffset;
+            count++;
+        }
+        for (int position = segment.recordPosition(count); position < segment.fileLength(); position++) {
+            if (buffer.get(position) != 0) {
+                buffer.put(position, (byte) 0);
+            }
+        }
+        int entries = (segment.capacity + segment.indexInterval - 1) / segment.indexInterval;
+        for (int entry = 0; entry < entries; entry++) {
+            int recordIndex = entry * segment.indexInterval;
+            int timeOffset = recordIndex < count ? buffer.getInt(segment.recordPosition(recordIndex)) : 0;
+            buffer.putInt(segment.indexPosition(entry), timeOffset);
+        }
+        buffer.force();
+        segment.count = count;
+        if (count > 0) {
+            segment.firstTime = segment.baseTime + buffer.getInt(segment.recordPosition(0));
+            segment.lastTime = segment.baseTime + previousOffset;
+        }
+    }
+
+    private Segment createSegment(long baseTime) throws IOException {
+        int number = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).number + 1;
+        File file = new File(directory, String.format(Locale.US, "%010d%s", number, SEGMENT_SUFFIX));
+        Segment segment = new Segment(file, number, framesPerSegment, indexInterval, baseTime);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            randomAccessFile.setLength(segment.fileLength());
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(CAPACITY_OFFSET, segment.capacity);
+            header.putInt(INDEX_INTERVAL_OFFSET, segment.indexInterval);
+            header.putLong(BASE_TIME_OFFSET, baseTime);
+            header.putInt(8, VERSION);
+            header.putLong(0, MAGIC);
+            randomAccessFile.getChannel().write(header, 0);
+        } finally {
+            randomAccessFile.close();
+        }
+        segment.count = 0;
+        segments.add(segment);
+        return segment;
+    }
+
+    private void seal(Segment segment) throws IOException {
+        MappedByteBuffer buffer = map(segment);
+        buffer.putInt(SEALED_COUNT_OFFSET, segment.count);
+        buffer.force();
+        // sealed segments are only read from now on
+        mappedSegments.remove(segment);
+        segment.buffer = null;
+    }
+
+    /**
+     * @return the mapping of a segment, mapping it and unmapping the least recently
+     * mapped other segment if needed
+     */
+    private MappedByteBuffer map(Segment segment) throws IOException {
+        if (segment.buffer != null) {
+            return segment.buffer;
+        }
+        if (mappedSegments.size() == MAX_MAPPED_SEGMENTS) {
+            mappedSegments.removeFirst().buffer = null; // the GC unmaps it
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(segment.file, "rw");
+        try {
+            segment.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segment.fileLength());
+        } finally {
+            randomAccessFile.close(); // the mapping stays valid
+        }
+        mappedSegments.addLast(segment);
+        return segment.buffer;
+    }
+
+    /**
+     * Mixes a record's fields so that a record which was only partly written is detected.
+     */
+    static int check(int timeOffset, long rawFrame) {
+        long mixed = (timeOffset * 0x9E3779B97F4A7C15L) ^ rawFrame;
+        mixed = (mixed ^ (mixed >>> 31)) * 0xBF58476D1CE4E5B9L;
+        return (int) (mixed ^ (mixed >>> 32)) | 1; // never 0, as in a file of zeros
+    }
+
+    private static final class Segment {
+        final File file;
+        final int number;
+        final int capacity;
+        final int indexInterval;
+        final long baseTime;
+        final int recordsOffset;
+        int count;
+        long firstTime;
+        long lastTime;
+        MappedByteBuffer buffer;
+
+        Segment(File file, int number, int capacity, int indexInterval, long baseTime) throws IOException {
+            if (indexInterval <= 0 || capacity < indexInterval || capacity > MAX_FRAMES_PER_SEGMENT) {
+                throw new IOException(Util.formatString(CORRUPT_SEGMENT_HEADER_MESSAGE, file));
+            }
+            this.file = file;
+            this.number = number;
+            this.capacity = capacity;
+            this.indexInterval = indexInterval;
+            this.baseTime = baseTime;
+            int indexEntries = (capacity + indexInterval - 1) / indexInterval;
+            // records start on a 16 byte boundary
+            this.recordsOffset = (HEADER_LENGTH + indexEntries * 4 + RECORD_LENGTH - 1) / RECORD_LENGTH * RECORD_LENGTH;
+        }
+
+        int indexPosition(int entry) {
+            return HEADER_LENGTH + entry * 4;
+        }
+
+        int recordPosition(int recordIndex) {
+            return recordsOffset + recordIndex * RECORD_LENGTH;
+        }
+
+        int fileLength() {
+            return recordPosition(capacity);
+        }
+    }
+}
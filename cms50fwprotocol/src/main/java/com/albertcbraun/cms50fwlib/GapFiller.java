@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+/**
+ * Reports the gaps which a {@link FrameClock} finds in the CMS50FW data stream and,
+ * optionally, fills them with synthetic frames, so that consumers which expect a sample
+ * every 1/60 s, such as filters and FFTs, see a continuous series.
+ * <p>
+ * Call {@link #onFrame(long)} with each real frame, just after giving it to the frame
+ * clock. When the clock found samples missing before the frame, the {@link GapListener}
+ * is told, and then, if the gap is no longer than the largest gap to fill, one synthetic
+ * frame per missing sample goes to the {@link PackedFrameListener}, before the caller
+ * goes on with the real frame. Synthetic frames are marked by
+ * {@link PackedFrame#isSynthetic(long)}. Their values are interpolated in a straight line
+ * from the frame before the gap to the frame after it, or repeat the frame before the gap
+ * when either of them has no valid reading, e.g. because the finger was out of the sleeve.
+ * Their times are those of their sample indexes on the frame clock.
+ * <p>
+ * The work per frame is constant, apart from the synthetic frames themselves, and the
+ * largest gap to fill bounds those. Longer gaps are only reported, since a consumer is
+ * better off restarting than filtering seconds of made up data.
+ * <p>
+ * Gaps shorter than the frame clock's large gap threshold are found a second or two after
+ * they happened, so their synthetic frames come that much after the gap in the series.
+ * The series still holds the right number of samples. Frames which the {@link FrameDecoder}
+ * dropped as truncated, passed to {@link FrameClock#onFrame(long, int)}, are known at once,
+ * so they are reported and filled in their place before the next real frame.
+ * <p>
+ * Call {@link #onFrame(long)} from one thread; the counters may be read from any thread.
+ */
+public final class GapFiller {
+
+    private static final String MAX_SYNTHETIC_FRAMES_MUST_NOT_BE_NEGATIVE_MESSAGE =
+            "maxSyntheticFrames must not be negative: %d";
+
+    private final FrameClock frameClock;
+    private final GapListener gapListener;
+    private final PackedFrameListener syntheticFrameListener;
+    private final int maxSyntheticFrames;
+    private final PackedFrame packedFrame = new PackedFrame();
+
+    private long previousRawFrame = 0;
+    private long previousTime = Long.MIN_VALUE;
+    private boolean hasPrevious = false;
+    private int clockGapCount = 0;
+    private int currentGapSamples = 0;
+    private boolean currentGapFilled = false;
+
+    private volatile int gaps = 0;
+    private volatile long missingSamples = 0;
+    private volatile double totalGapMs = 0;
+    private volatile long syntheticFrames = 0;
+
+    /**
+     * @param frameClock the clock which each frame is given to before this gap filler
+     * @param gapListener told about each gap, or null
+     * @param syntheticFrameListener receives the synthetic frames, or null to only count gaps
+     * @param maxSyntheticFrames the longest gap, in samples, which is filled. 0 fills none.
+     */
+    public GapFiller(FrameClock frameClock, GapListener gapListener, PackedFrameListener syntheticFrameListener,
+                     int maxSyntheticFrames) {
+        if (maxSyntheticFrames < 0) {
+            throw new IllegalArgumentException(Util.formatString(MAX_SYNTHETIC_FRAMES_MUST_NOT_BE_NEGATIVE_MESSAGE,
+                    maxSyntheticFrames));
+        }
+        this.frameClock = frameClock;
+        this.gapListener = gapListener;
+        this.syntheticFrameListener = syntheticFrameListener;
+        this.maxSyntheticFrames = maxSyntheticFrames;
+    }
+
+    /**
+     * Reports and fills any gap before a frame.
+     *
+     * @param rawFrame the frame just given to the frame clock
+     * @return the number of synthetic frames delivered before this frame
+     */
+    public int onFrame(long rawFrame) {
+        int missing = frameClock.getLastGapSamples();
+        long time = frameClock.getTime();
+        int filled = 0;
+        if (missing > 0 && hasPrevious) {
+            long firstMissing = frameClock.getSampleIndex() - missing;
+            double durationMs = missing * frameClock.getPeriodMs();
+            // the frame clock may find the rest of a long gap a little later
+            boolean continued = frameClock.getGapCount() == clockGapCount;
+            clockGapCount = frameClock.getGapCount();
+            currentGapSamples = continued ? currentGapSamples + missing : missing;
+            boolean fill = syntheticFrameListener != null && currentGapSamples <= maxSyntheticFrames &&
+                    (!continued || currentGapFilled);
+            currentGapFilled = fill;
+            if (!continued) {
+                gaps++;
+            }
+            missingSamples += missing;
+            totalGapMs += durationMs;
+            if (gapListener != null) {
+                gapListener.onGap(firstMissing, missing, frameClock.timeOf(firstMissing), Math.round(durationMs), fill);
+            }
+            if (fill) {
+                for (int i = 1; i <= missing; i++) {
+                    long syntheticTime = Math.min(time, Math.max(previousTime, frameClock.timeOf(firstMissing + i - 1)));
+                    syntheticFrameListener.onPackedFrameArrived(packedFrame.set(syntheticTime,
+                            interpolate(previousRawFrame, rawFrame, i, missing + 1)));
+                    previousTime = syntheticTime;
+                }
+                syntheticFrames += missing;
+                filled = missing;
+            }
+        }
+        previousRawFrame = rawFrame;
+        previousTime = time;
+        hasPrevious = true;
+        return filled;
+    }
+
+    /**
+     * @return a synthetic frame, step steps of the way from before to after
+     */
+    private static long interpolate(long before, long after, int step, int steps) {
+        if (!isValid(before) || !isValid(after)) {
+            return PackedFrame.synthetic(before);
+        }
+        return PackedFrame.synthetic(PackedFrame.pack(
+                interpolate(PackedFrame.pulseWaveForm(before), PackedFrame.pulseWaveForm(after), step, steps),
+                interpolate(PackedFrame.pulseIntensity(before), PackedFrame.pulseIntensity(after), step, steps),
+                interpolate(PackedFrame.pulseRate(before), PackedFrame.pulseRate(after), step, steps),
+                interpolate(PackedFrame.spo2Percentage(before), PackedFrame.spo2Percentage(after), step, steps)));
+    }
+
+    private static int interpolate(int before, int after, int step, int steps) {
+        return before + Math.round((after - before) * step / (float) steps);
+    }
+
+    private static boolean isValid(long rawFrame) {
+        return !PackedFrame.isFingerOutOfSleeve(rawFrame) && PackedFrame.spo2Percentage(rawFrame) <= 100;
+    }
+
+    /**
+     * @return the number of gaps found. The rest of a long gap, found a little later, is
+     * reported separately but counted as part of it.
+     */
+    public int getGapCount() {
+        return gaps;
+    }
+
+    /**
+     * @return the total number of samples which never arrived
+     */
+    public long getMissingSamples() {
+        return missingSamples;
+    }
+
+    /**
+     * @return the total time covered by gaps, in milliseconds
+     */
+    public long getTotalGapMs() {
+        return Math.round(totalGapMs);
+    }
+
+    /**
+     * @return the number of synthetic frames delivered
+     */
+    public long getSyntheticFrameCount() {
+        return syntheticFrames;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+/**
+ * Told by a {@link GapFiller} when frames from the CMS50FW never arrived. The rest of a
+ * long gap may be found a moment after the gap itself, and is reported in a second call.
+ * <p>
+ * This callback is made on the thread which gives frames to the gap filler. When the gap
+ * filler belongs to the connection manager, that is the thread reading the CMS50FW data
+ * stream, so implementations should return quickly and must not touch UI views.
+ */
+public interface GapListener {
+
+    /**
+     * @param firstMissingSampleIndex sample index of the first frame which never arrived
+     * @param missingSamples the number of frames which never arrived
+     * @param startTime time of the first missing sample, in milliseconds
+     * @param durationMs time from the first missing sample to the frame after the gap,
+     *                   which is the number of missing samples times the sample period
+     * @param filled true if synthetic frames filling the gap are delivered straight after this call
+     */
+    public void onGap(long firstMissingSampleIndex, int missingSamples, long startTime, long durationMs, boolean filled);
+}
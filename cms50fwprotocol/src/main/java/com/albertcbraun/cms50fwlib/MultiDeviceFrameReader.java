@@ -0,0 +1,480 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads many CMS50FW data streams at once and keeps every device connected with one
+ * shared keep-alive scheduler.
+ * <p>
+ * Devices added as a {@link SelectableTransport} are read on a small, fixed pool of
+ * reader threads, so the number of threads stays the same no matter how many of them
+ * are added. Each one is assigned to the reader thread with the fewest devices, and
+ * that thread waits on a {@link Selector} until one of its devices has data or ends.
+ * The reader threads are only started when the first such device is added.
+ * <p>
+ * Any other transport or stream, such as a Bluetooth socket, can't be waited on together
+ * with others, so each one gets a thread of its own which blocks in read until data
+ * arrives, the stream ends or the stream is closed.
+ * <p>
+ * Every frame is handed to the {@link MultiDeviceListener} together with the id of the
+ * device it came from.
+ */
+public class MultiDeviceFrameReader {
+
+    private static final int STAY_CONNECTED_PERIOD_SEC = 5;
+    private static final int READ_BUFFER_SIZE = 256;
+    private static final String READER_THREAD_NAME_FORMAT = "cms50fw-reader-%d";
+    private static final String DEVICE_THREAD_NAME_FORMAT = "cms50fw-device-%d";
+    private static final String KEEP_ALIVE_THREAD_NAME = "cms50fw-keep-alive";
+    private static final String DEVICE_ALREADY_ADDED_FORMAT = "Device %s has already been added";
+    private static final String DEVICE_STREAM_FAILED_FORMAT = "Stream for device %s failed or ended. It is no longer being read.";
+    private static final String COULD_NOT_WRITE_STOP_DATA_FORMAT = "Could not write stop data command to device %s";
+    private static final String READER_THREADS_MUST_BE_POSITIVE_MESSAGE = "readerThreads must be positive: %d";
+
+    private final MultiDeviceListener listener;
+    private final ReaderLoop[] readerLoops;
+    private final ExecutorService readerExecutor;
+    private final ExecutorService deviceExecutor;
+    private final ScheduledExecutorService keepAliveExecutor;
+    private final ConcurrentHashMap<String, DeviceStream> devices = new ConcurrentHashMap<String, DeviceStream>();
+    private final AtomicInteger blockingDevices = new AtomicInteger(0);
+    private boolean readerLoopsStarted = false;
+
+    /**
+     * Starts the keep-alive scheduler. Reader threads are started as devices are added.
+     *
+     * @param readerThreads the number of threads which read {@link SelectableTransport}s
+     * @param listener receives frames and device events
+     */
+    public MultiDeviceFrameReader(int readerThreads, MultiDeviceListener listener) {
+        if (readerThreads <= 0) {
+            throw new IllegalArgumentException(Util.formatString(READER_THREADS_MUST_BE_POSITIVE_MESSAGE, readerThreads));
+        }
+        this.listener = listener;
+        this.readerLoops = new ReaderLoop[readerThreads];
+        this.readerExecutor = Executors.newFixedThreadPool(readerThreads, new NamedThreadFactory(READER_THREAD_NAME_FORMAT));
+        // a thread per blocking device, which ends as soon as the device is no longer read
+        this.deviceExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new NamedThreadFactory(DEVICE_THREAD_NAME_FORMAT));
+        this.keepAliveExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(KEEP_ALIVE_THREAD_NAME));
+        this.keepAliveExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                for (DeviceStream deviceStream : devices.values()) {
+                    try {
+                        deviceStream.writeCommand(CMS50FWCommand.STAY_CONNECTED);
+                    } catch (IOException e) {
+                        fail(deviceStream);
+                    }
+                }
+            }
+        }, STAY_CONNECTED_PERIOD_SEC, STAY_CONNECTED_PERIOD_SEC, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Asks a connected device to start sending data and starts reading it on a thread
+     * of its own.
+     *
+     * @param deviceId identifies the device in every callback, e.g. its Bluetooth address
+     * @param inputStream the device's data stream
+     * @param outputStream the stream which carries commands to the device
+     * @throws IOException if the start data command can't be written
+     */
+    public void addDevice(String deviceId, InputStream inputStream, OutputStream outputStream) throws IOException {
+        addDevice(deviceId, new StreamTransport(inputStream, outputStream));
+    }
+
+    /**
+     * Asks a connected device to start sending data and starts reading it, on the shared
+     * reader threads if the transport is a {@link SelectableTransport} and otherwise on a
+     * thread of its own.
+     *
+     * @param deviceId identifies the device in every callback, e.g. its Bluetooth address
+     * @param transport an open connection to the device
+     * @throws IOException if the start data command can't be written
+     */
+    public void addDevice(String deviceId, Transport transport) throws IOException {
+        DeviceStream deviceStream = new DeviceStream(deviceId, transport);
+        if (devices.putIfAbsent(deviceId, deviceStream) != null) {
+            throw new IllegalArgumentException(Util.formatString(DEVICE_ALREADY_ADDED_FORMAT, deviceId));
+        }
+        ReaderLoop readerLoop = null;
+        try {
+            if (transport instanceof SelectableTransport) {
+                readerLoop = leastBusyReaderLoop();
+            }
+            deviceStream.writeCommand(CMS50FWCommand.START_DATA);
+        } catch (IOException e) {
+            devices.remove(deviceId);
+            throw e;
+        }
+        // reported before reading starts, so that no frame arrives ahead of it
+        listener.onDeviceConnected(deviceId);
+        if (readerLoop != null) {
+            deviceStream.readerLoop = readerLoop;
+            readerLoop.register(deviceStream);
+        } else {
+            blockingDevices.incrementAndGet();
+            deviceExecutor.execute(new BlockingReader(deviceStream));
+        }
+    }
+
+    /**
+     * Asks a device to stop sending data and stops reading it. The transport or streams
+     * are not closed; that is up to whoever opened them. A thread blocked reading the
+     * device ends once they are closed.
+     *
+     * @param deviceId the id the device was added with
+     */
+    public void removeDevice(String deviceId) {
+        DeviceStream deviceStream = devices.remove(deviceId);
+        if (deviceStream == null) {
+            return;
+        }
+        deviceStream.stop();
+        try {
+            deviceStream.writeCommand(CMS50FWCommand.STOP_DATA);
+        } catch (IOException e) {
+            Util.log(listener, Util.formatString(COULD_NOT_WRITE_STOP_DATA_FORMAT, deviceId));
+        }
+    }
+
+    /**
+     * @return the number of devices currently being read
+     */
+    public int getDeviceCount() {
+        return devices.size();
+    }
+
+    /**
+     * @return the number of threads used by this reader: the keep-alive thread, the
+     * reader threads once they are started, and one thread per device which is not
+     * read through a {@link SelectableTransport}
+     */
+    public int getThreadCount() {
+        synchronized (readerLoops) {
+            return 1 + (readerLoopsStarted ? readerLoops.length : 0) + blockingDevices.get();
+        }
+    }
+
+    /**
+     * Stops reading all devices and shuts down the reader threads and keep-alive scheduler.
+     */
+    public void shutdown() {
+        for (String deviceId : devices.keySet()) {
+            removeDevice(deviceId);
+        }
+        Util.safeShutdown(keepAliveExecutor);
+        Util.safeShutdown(deviceExecutor);
+        Util.safeShutdown(readerExecutor);
+        synchronized (readerLoops) {
+            if (readerLoopsStarted) {
+                for (ReaderLoop readerLoop : readerLoops) {
+                    readerLoop.selector.wakeup();
+                }
+            }
+        }
+    }
+
+    private ReaderLoop leastBusyReaderLoop() throws IOException {
+        synchronized (readerLoops) {
+            if (!readerLoopsStarted) {
+                for (int i = 0; i < readerLoops.length; i++) {
+                    readerLoops[i] = new ReaderLoop(Selector.open());
+                }
+                for (ReaderLoop readerLoop : readerLoops) {
+                    readerExecutor.execute(readerLoop);
+                }
+                readerLoopsStarted = true;
+            }
+            ReaderLoop leastBusy = readerLoops[0];
+            for (ReaderLoop readerLoop : readerLoops) {
+                if (readerLoop.deviceCount.get() < leastBusy.deviceCount.get()) {
+                    leastBusy = readerLoop;
+                }
+            }
+            return leastBusy;
+        }
+    }
+
+    private void fail(DeviceStream deviceStream) {
+        if (deviceStream.stopped.get()) {
+            return; // removed on purpose, e.g. its stream was closed after removeDevice
+        }
+        if (deviceStream.failed.compareAndSet(false, true)) {
+            devices.remove(deviceStream.deviceId, deviceStream);
+            deviceStream.stop();
+            Util.log(listener, Util.formatString(DEVICE_STREAM_FAILED_FORMAT, deviceStream.deviceId));
+            listener.onDeviceDisconnected(deviceStream.deviceId);
+        }
+    }
+
+    /**
+     * Runs on one reader thread and waits on a selector for any of its devices to have
+     * data. New devices are queued and registered by this thread, since registering while
+     * another thread is selecting would block.
+     */
+    private class ReaderLoop implements Runnable {
+        final Selector selector;
+        final Queue<DeviceStream> pendingDevices = new ConcurrentLinkedQueue<DeviceStream>();
+        final AtomicInteger deviceCount = new AtomicInteger(0);
+
+        ReaderLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(DeviceStream deviceStream) {
+            deviceCount.incrementAndGet();
+            pendingDevices.add(deviceStream);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    registerPendingDevices();
+                    selector.select();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        DeviceStream deviceStream = (DeviceStream) key.attachment();
+                        try {
+                            deviceStream.readAvailable();
+                        } catch (IOException e) {
+                            fail(deviceStream);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // the selector failed; fall through and give up every device on this thread
+            } catch (ClosedSelectorException e) {
+                // shut down
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    fail((DeviceStream) key.attachment());
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // nothing more can be done with it
+                }
+            }
+        }
+
+        private void registerPendingDevices() {
+            DeviceStream deviceStream;
+            while ((deviceStream = pendingDevices.poll()) != null) {
+                if (deviceStream.stopped.get()) {
+                    continue;
+                }
+                SelectableChannel channel = ((SelectableTransport) deviceStream.transport).getSelectableChannel();
+                try {
+                    if (channel == null) {
+                        throw new ClosedChannelException();
+                    }
+                    deviceStream.selectionKey = channel.register(selector, SelectionKey.OP_READ, deviceStream);
+                    if (deviceStream.stopped.get()) {
+                        deviceStream.selectionKey.cancel(); // removed while it was being registered
+                    }
+                } catch (IOException e) {
+                    fail(deviceStream);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads one device which can't be selected, blocking until it has data, ends or is closed.
+     */
+    private class BlockingReader implements Runnable {
+        private final DeviceStream deviceStream;
+
+        BlockingReader(DeviceStream deviceStream) {
+            this.deviceStream = deviceStream;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!deviceStream.stopped.get()) {
+                    if (deviceStream.frameDecoder.readFrom(deviceStream.transport) < 0) {
+                        throw new IOException();
+                    }
+                    deviceStream.frameDecoder.decode(deviceStream);
+                }
+            } catch (IOException e) {
+                fail(deviceStream);
+            } finally {
+                blockingDevices.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * One device: its transport, its decoder and its reusable frame.
+     */
+    private class DeviceStream implements FrameDecoder.FrameHandler {
+        final String deviceId;
+        final Transport transport;
+        final FrameDecoder frameDecoder = new FrameDecoder();
+        final PackedFrame packedFrame = new PackedFrame();
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        volatile ReaderLoop readerLoop;
+        volatile SelectionKey selectionKey;
+        ByteBuffer readBuffer;
+
+        DeviceStream(String deviceId, Transport transport) {
+            this.deviceId = deviceId;
+            this.transport = transport;
+        }
+
+        /**
+         * Reads and decodes whatever bytes a selectable device has, without blocking.
+         *
+         * @throws IOException if the connection failed or ended
+         */
+        void readAvailable() throws IOException {
+            if (readBuffer == null) {
+                readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            }
+            int count;
+            while ((count = ((SelectableTransport) transport).readAvailable(readBuffer)) != 0) {
+                if (count < 0) {
+                    throw new IOException();
+                }
+                readBuffer.flip();
+                while (readBuffer.hasRemaining()) {
+                    frameDecoder.readFrom(readBuffer);
+                    frameDecoder.decode(this);
+                }
+                readBuffer.clear();
+            }
+        }
+
+        /**
+         * Stops reading this device. A blocked read ends when the transport is closed.
+         */
+        void stop() {
+            if (!stopped.compareAndSet(false, true)) {
+                return;
+            }
+            SelectionKey key = selectionKey;
+            if (key != null) {
+                key.cancel();
+            }
+            ReaderLoop loop = readerLoop;
+            if (loop != null) {
+                loop.deviceCount.decrementAndGet();
+            }
+        }
+
+        void writeCommand(CMS50FWCommand command) throws IOException {
+            // the keep-alive thread and the caller of addDevice/removeDevice may both write
+            synchronized (this) {
+                CommandEncoder.write(transport, command, CMS50FWCommand.PADDING);
+            }
+        }
+
+        @Override
+        public void onFrame(long rawFrame) {
+            if (!stopped.get()) {
+                listener.onPackedFrameArrived(deviceId, packedFrame.set(System.currentTimeMillis(), rawFrame));
+            }
+        }
+    }
+
+    /**
+     * Adapts a pair of streams, e.g. those of a Bluetooth socket, to a blocking {@link Transport}.
+     */
+    private static class StreamTransport implements Transport {
+        private final InputStream inputStream;
+        private final OutputStream outputStream;
+
+        StreamTransport(InputStream inputStream, OutputStream outputStream) {
+            this.inputStream = inputStream;
+            this.outputStream = outputStream;
+        }
+
+        @Override
+        public void open() {
+            // opened by whoever supplied the streams
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return inputStream.read(buffer, offset, length);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            outputStream.write(bytes, offset, length);
+            outputStream.flush();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // closed by whoever supplied the streams
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String nameFormat;
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        NamedThreadFactory(String nameFormat) {
+            this.nameFormat = nameFormat;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, Util.formatString(nameFormat, count.getAndIncrement()));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+/**
+ * Callbacks for apps which read several CMS50FW devices at once through
+ * a {@link MultiDeviceFrameReader}. Every callback names the device it is about.
+ * <p>
+ * These callbacks are made on the library's worker threads, not on the UI thread.
+ * Frame callbacks arrive about 60 times per second per device, so implementations
+ * should return quickly.
+ */
+public interface MultiDeviceListener {
+
+    /**
+     * A device has been connected and asked to start sending data.
+     *
+     * @param deviceId identifies the device, e.g. its Bluetooth address
+     */
+    public void onDeviceConnected(String deviceId);
+
+    /**
+     * A frame has been read from one of the devices.
+     *
+     * @param deviceId identifies the device the frame came from
+     * @param packedFrame a flyweight which is reused for the next frame, and only valid
+     *                    until this method returns
+     */
+    public void onPackedFrameArrived(String deviceId, PackedFrame packedFrame);
+
+    /**
+     * A device's stream failed or ended, and the device is no longer being read.
+     *
+     * @param deviceId identifies the device
+     */
+    public void onDeviceDisconnected(String deviceId);
+
+    /**
+     * Log a timestamped message from within the library.
+     *
+     * @param timeMs time stamp
+     * @param message a message which the client or end user may wish to see logged
+     */
+    public void onLogEvent(long timeMs, String message);
+}
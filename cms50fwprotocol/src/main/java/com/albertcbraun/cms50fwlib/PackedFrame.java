@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+/**
+ * A data frame packed into primitives: the raw 8 bytes of the frame in one
+ * long, plus a timestamp.
+ * <p>
+ * The first byte of the frame (the boundary byte) is the most significant byte
+ * of the long. The values of the frame are only decoded when one of the accessors
+ * is called. The static accessors work on a raw long directly, so frames can be
+ * kept in plain long arrays. An instance of this class is a mutable flyweight
+ * which can be reused for every frame, so nothing is allocated per frame.
+ * <p>
+ * {@link #toDataFrame()} builds the equivalent {@link DataFrame} for code which
+ * prefers objects.
+ * <p>
+ * Frames made up to fill a gap in the data, e.g. by a {@link GapFiller}, are marked with
+ * bit 7 of the last byte, which is never set in a frame from the CMS50FW, since only the
+ * boundary byte has bit 7 set. {@link FrameDecoder} drops frames with bit 7 set in any
+ * other byte, so a frame which lost bytes can't pass for a synthetic one.
+ * See {@link #isSynthetic(long)}.
+ */
+public final class PackedFrame {
+
+    private static final int BITS_ZERO_TO_THREE = 0x0F;
+    private static final int BITS_ZERO_TO_SIX = 0x7F;
+    private static final int SIXTY_FOUR = 64;
+    private static final int ONE_TWENTY_SEVEN = 127;
+    private static final int BYTE3_SHIFT = 40;
+    private static final int BYTE4_SHIFT = 32;
+    private static final int BYTE5_SHIFT = 24;
+    private static final int BYTE6_SHIFT = 16;
+    private static final long SYNTHETIC_BIT = 0x80L;
+
+    private long time;
+    private long rawFrame;
+
+    /**
+     * Points this flyweight at another frame.
+     *
+     * @param time when the frame was read, in milliseconds
+     * @param rawFrame the 8 bytes of the frame, first byte most significant
+     * @return this object
+     */
+    public PackedFrame set(long time, long rawFrame) {
+        this.time = time;
+        this.rawFrame = rawFrame;
+        return this;
+    }
+
+    public long time() {
+        return time;
+    }
+
+    public long rawFrame() {
+        return rawFrame;
+    }
+
+    public int pulseWaveForm() {
+        return pulseWaveForm(rawFrame);
+    }
+
+    public int pulseIntensity() {
+        return pulseIntensity(rawFrame);
+    }
+
+    public int pulseRate() {
+        return pulseRate(rawFrame);
+    }
+
+    public int spo2Percentage() {
+        return spo2Percentage(rawFrame);
+    }
+
+    public boolean isFingerOutOfSleeve() {
+        return isFingerOutOfSleeve(rawFrame);
+    }
+
+    public boolean isSynthetic() {
+        return isSynthetic(rawFrame);
+    }
+
+    /**
+     * @return a new DataFrame holding the same values as this frame
+     */
+    public DataFrame toDataFrame() {
+        return toDataFrame(time, rawFrame);
+    }
+
+    /**
+     * Packs 8 bytes into a raw frame.
+     */
+    public static long pack(byte byte1, byte byte2, byte byte3, byte byte4,
+                            byte byte5, byte byte6, byte byte7, byte byte8) {
+        return ((byte1 & 0xFFL) << 56) | ((byte2 & 0xFFL) << 48) | ((byte3 & 0xFFL) << BYTE3_SHIFT) |
+                ((byte4 & 0xFFL) << BYTE4_SHIFT) | ((byte5 & 0xFFL) << BYTE5_SHIFT) |
+                ((byte6 & 0xFFL) << BYTE6_SHIFT) | ((byte7 & 0xFFL) << 8) | (byte8 & 0xFFL);
+    }
+
+    /**
+     * Packs the decoded values of a frame into a raw frame which decodes back to the same values.
+     */
+    public static long pack(int pulseWaveForm, int pulseIntensity, int pulseRate, int spo2Percentage) {
+        return pack((byte) 0x80, (byte) 0, (byte) pulseWaveForm, (byte) pulseIntensity,
+                (byte) pulseRate, (byte) spo2Percentage, (byte) 0, (byte) 0);
+    }
+
+    public static int pulseWaveForm(long rawFrame) {
+        return (int) (rawFrame >>> BYTE3_SHIFT) & BITS_ZERO_TO_SIX;
+    }
+
+    public static int pulseIntensity(long rawFrame) {
+        return (int) (rawFrame >>> BYTE4_SHIFT) & BITS_ZERO_TO_THREE;
+    }
+
+    /**
+     * Please note that this does not allow a pulseRate above 127. But for lower values, it seems to be correct.
+     */
+    public static int pulseRate(long rawFrame) {
+        return (int) (rawFrame >>> BYTE5_SHIFT) & BITS_ZERO_TO_SIX;
+    }
+
+    public static int spo2Percentage(long rawFrame) {
+        return (int) (rawFrame >>> BYTE6_SHIFT) & BITS_ZERO_TO_SIX;
+    }
+
+    public static boolean isFingerOutOfSleeve(long rawFrame) {
+        return pulseWaveForm(rawFrame) == SIXTY_FOUR && pulseRate(rawFrame) == ONE_TWENTY_SEVEN &&
+                spo2Percentage(rawFrame) == ONE_TWENTY_SEVEN;
+    }
+
+    /**
+     * @return true if the frame was made up to fill a gap, rather than read from the CMS50FW
+     */
+    public static boolean isSynthetic(long rawFrame) {
+        return (rawFrame & SYNTHETIC_BIT) != 0;
+    }
+
+    /**
+     * @return the same frame, marked as made up to fill a gap
+     */
+    public static long synthetic(long rawFrame) {
+        return rawFrame | SYNTHETIC_BIT;
+    }
+
+    public static DataFrame toDataFrame(long time, long rawFrame) {
+        return new DataFrame(time, pulseWaveForm(rawFrame), pulseIntensity(rawFrame), pulseRate(rawFrame),
+                spo2Percentage(rawFrame), isFingerOutOfSleeve(rawFrame));
+    }
+
+    @Override
+    public String toString() {
+        return Util.formatString("time:%s, spo2Percentage:%d, pulseRate:%d, pulseWaveForm:%d, pulseIntensity:%d, isFingerOutOfSleeve:%b",
+                time, spo2Percentage(), pulseRate(), pulseWaveForm(), pulseIntensity(), isFingerOutOfSleeve());
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+/**
+ * An optional, allocation-free alternative to
+ * {@link CMS50FWConnectionListener#onDataFrameArrived(DataFrame)}.
+ * <p>
+ * This callback is made directly on the thread which reads the CMS50FW data
+ * stream, about 60 times per second, so implementations should return quickly
+ * and must not touch UI views.
+ */
+public interface PackedFrameListener {
+
+    /**
+     * A frame has been read from the CMS50FW.
+     *
+     * @param packedFrame a flyweight which is reused for the next frame. It is only valid
+     *                    until this method returns. Copy {@link PackedFrame#time()} and
+     *                    {@link PackedFrame#rawFrame()} to keep the frame, or call
+     *                    {@link PackedFrame#toDataFrame()}.
+     */
+    public void onPackedFrameArrived(PackedFrame packedFrame);
+}
@@ -0,0 +1,522 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A KLL quantile sketch (Karnin, Lang and Liberty, "Optimal Quantile Approximation in
+ * Streams", 2016) of a stream of values, in a fixed amount of memory however long the
+ * stream, which can be serialized and merged with sketches of other streams.
+ * <p>
+ * The sketch keeps a few hundred of the values in levels. A value at level h stands for
+ * 2<sup>h</sup> values of the stream. When the sketch is full, the lowest level holding
+ * more than its share is sorted and every other value of it, starting at a random one
+ * of the first two, moves up a level. Level capacities shrink by 2/3 per level below the
+ * top, down to {@link #MIN_LEVEL_CAPACITY}.
+ * <p>
+ * Error: with parameter k, a rank from {@link #getRank(float)}, or the true rank of a
+ * value returned by {@link #getQuantile(double)}, is off by at most about 1.33% of the
+ * stream length with 99% confidence for k = 200, the default. Over a whole distribution
+ * at once the bound is about 1.65%. The error shrinks in proportion to 1/k, and merging
+ * doesn't increase it. (These are the figures measured for the KLL sketch of Apache
+ * DataSketches, which this follows.) The smallest and largest values are kept exactly.
+ * <p>
+ * All the values live in one float array, allocated at construction with room for as
+ * many levels as any stream could need, about 3.6 KB for k = 200. Updates allocate
+ * nothing; quantile queries and merges allocate temporary arrays.
+ * <p>
+ * Not thread safe.
+ */
+public final class QuantileSketch {
+
+    public static final int DEFAULT_K = 200;
+    public static final int MIN_K = 8;
+    public static final int MIN_LEVEL_CAPACITY = 8;
+    // enough for 2^48 values at least, over 100000 years at 60 Hz
+    static final int MAX_LEVELS = 48;
+    private static final int SERIAL_VERSION = 1;
+    private static final int MAX_K = 65535;
+    private static final String K_OUT_OF_RANGE_MESSAGE = "k must be from %d to %d: %d";
+    private static final String FRACTION_OUT_OF_RANGE_MESSAGE = "fraction must be from 0 to 1: %f";
+    private static final String MERGED_WITH_ITSELF_MESSAGE = "A QuantileSketch can't be merged with itself";
+    private static final String UNSUPPORTED_VERSION_MESSAGE = "Unsupported quantile sketch version %d";
+    private static final String CORRUPT_LEVEL_COUNT_MESSAGE = "Corrupt quantile sketch: %d levels";
+    private static final String CORRUPT_LEVEL_SIZE_MESSAGE = "Corrupt quantile sketch: negative level size %d";
+    private static final String CORRUPT_ITEM_COUNT_MESSAGE = "Corrupt quantile sketch: %d items";
+    private static final String TOO_MANY_VALUES_MESSAGE = "QuantileSketch has seen too many values";
+
+    private final int k;
+    private final float[] items;
+    // level h holds items[levels[h] .. levels[h + 1]). The levels are packed against the
+    // end of items, and the free space is in front of level 0.
+    private final int[] levels = new int[MAX_LEVELS + 1];
+    private final int[] capacities = new int[MAX_LEVELS];
+    private final Random random;
+    private int numLevels = 1;
+    private int totalCapacity;
+    private long n = 0;
+    private float min = Float.NaN;
+    private float max = Float.NaN;
+    private boolean levelZeroSorted = false;
+
+    public QuantileSketch() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k accuracy parameter, from {@link #MIN_K}. Memory and the error bound scale with it.
+     */
+    public QuantileSketch(int k) {
+        this(k, new Random());
+    }
+
+    QuantileSketch(int k, Random random) {
+        if (k < MIN_K || k > MAX_K) {
+            throw new IllegalArgumentException(Util.formatString(K_OUT_OF_RANGE_MESSAGE, MIN_K, MAX_K, k));
+        }
+        this.k = k;
+        this.random = random;
+        this.items = new float[totalCapacity(k, MAX_LEVELS)];
+        Arrays.fill(levels, items.length);
+        updateCapacities();
+    }
+
+    public void update(float value) {
+        if (Float.isNaN(value)) {
+            return;
+        }
+        if (n == 0) {
+            min = value;
+            max = value;
+        } else {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        if (freeSpace() == 0) {
+            compress();
+        }
+        levels[0]--;
+        items[levels[0]] = value;
+        levelZeroSorted = false;
+        n++;
+    }
+
+    public long getN() {
+        return n;
+    }
+
+    public boolean isEmpty() {
+        return n == 0;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * @return the smallest value seen, or NaN if empty
+     */
+    public float getMin() {
+        return min;
+    }
+
+    /**
+     * @return the largest value seen, or NaN if empty
+     */
+    public float getMax() {
+        return max;
+    }
+
+    /**
+     * @return the estimated fraction of the values which are smaller than the value, from 0 to 1,
+     * or NaN if empty
+     */
+    public double getRank(float value) {
+        if (n == 0) {
+            return Double.NaN;
+        }
+        long weight = 1;
+        long below = 0;
+        for (int level = 0; level < numLevels; level++) {
+            for (int i = levels[level]; i < levels[level + 1]; i++) {
+                if (items[i] < value) {
+                    below += weight;
+                }
+            }
+            weight <<= 1;
+        }
+        return (double) below / n;
+    }
+
+    /**
+     * @param fraction from 0 to 1, e.g. 0.05 for the 5th percentile
+     * @return the estimated value with that fraction of the values below it, or NaN if empty.
+     * 0 returns the minimum and 1 the maximum.
+     */
+    public float getQuantile(double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException(Util.formatString(FRACTION_OUT_OF_RANGE_MESSAGE, fraction));
+        }
+        if (n == 0) {
+            return Float.NaN;
+        }
+        if (fraction == 0) {
+            return min;
+        }
+        if (fraction == 1) {
+            return max;
+        }
+        int retained = levels[numLevels] - levels[0];
+        float[] values = new float[retained];
+        long[] weights = new long[retained];
+        int count = 0;
+        for (int level = 0; level < numLevels; level++) {
+            for (int i = levels[level]; i < levels[level + 1]; i++) {
+                values[count] = items[i];
+                weights[count++] = 1L << level;
+            }
+        }
+        sortTogether(values, weights, count);
+        long target = (long) Math.floor(fraction * n);
+        long cumulative = 0;
+        for (int i = 0; i < count; i++) {
+            cumulative += weights[i];
+            if (cumulative > target) {
+                return values[i];
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Adds the values summarized by another sketch to this one, as if this sketch had
+     * seen both streams. The other sketch is not changed. The sketches may have
+     * different k; the result has the accuracy of this sketch's k or the other's,
+     * whichever is worse.
+     */
+    public void merge(QuantileSketch other) {
+        if (other == this) {
+            throw new IllegalArgumentException(MERGED_WITH_ITSELF_MESSAGE);
+        }
+        if (other.n == 0) {
+            return;
+        }
+        long mergedN = n + other.n;
+        float mergedMin = n == 0 ? other.min : Math.min(min, other.min);
+        float mergedMax = n == 0 ? other.max : Math.max(max, other.max);
+        for (int i = other.levels[0]; i < other.levels[1]; i++) {
+            update(other.items[i]);
+        }
+        if (other.numLevels > 1) {
+            // collect both sketches' levels, merged level by level, then compact them until they fit
+            int levelCount = Math.max(numLevels, other.numLevels);
+            float[][] merged = new float[MAX_LEVELS][];
+            merged[0] = Arrays.copyOfRange(items, levels[0], levels[1]);
+            for (int level = 1; level < levelCount; level++) {
+                merged[level] = mergeSorted(levelItems(this, level), levelItems(other, level));
+            }
+            compact(merged, levelCount);
+        }
+        n = mergedN;
+        min = mergedMin;
+        max = mergedMax;
+    }
+
+    /**
+     * Writes the sketch in a compact binary form, which {@link #readFrom(DataInput)} reads back.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(SERIAL_VERSION);
+        out.writeShort(k);
+        out.writeLong(n);
+        out.writeFloat(min);
+        out.writeFloat(max);
+        out.writeByte(numLevels);
+        for (int level = 0; level < numLevels; level++) {
+            out.writeInt(levels[level + 1] - levels[level]);
+        }
+        for (int i = levels[0]; i < levels[numLevels]; i++) {
+            out.writeFloat(items[i]);
+        }
+    }
+
+    public static QuantileSketch readFrom(DataInput in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != SERIAL_VERSION) {
+            throw new IOException(Util.formatString(UNSUPPORTED_VERSION_MESSAGE, version));
+        }
+        QuantileSketch sketch = new QuantileSketch(in.readUnsignedShort());
+        sketch.n = in.readLong();
+        sketch.min = in.readFloat();
+        sketch.max = in.readFloat();
+        int numLevels = in.readUnsignedByte();
+        if (numLevels < 1 || numLevels > MAX_LEVELS) {
+            throw new IOException(Util.formatString(CORRUPT_LEVEL_COUNT_MESSAGE, numLevels));
+        }
+        sketch.numLevels = numLevels;
+        sketch.updateCapacities();
+        int[] sizes = new int[numLevels];
+        int total = 0;
+        for (int level = 0; level < numLevels; level++) {
+            sizes[level] = in.readInt();
+            if (sizes[level] < 0) {
+                throw new IOException(Util.formatString(CORRUPT_LEVEL_SIZE_MESSAGE, sizes[level]));
+            }
+            total += sizes[level];
+        }
+        if (total > sketch.totalCapacity) {
+            throw new IOException(Util.formatString(CORRUPT_ITEM_COUNT_MESSAGE, total));
+        }
+        int start = sketch.items.length - total;
+        for (int level = 0; level < numLevels; level++) {
+            sketch.levels[level] = start;
+            start += sizes[level];
+        }
+        for (int i = sketch.levels[0]; i < sketch.items.length; i++) {
+            sketch.items[i] = in.readFloat();
+        }
+        return sketch;
+    }
+
+    private int freeSpace() {
+        return levels[0] - (items.length - totalCapacity);
+    }
+
+    private void updateCapacities() {
+        totalCapacity = 0;
+        for (int level = 0; level < numLevels; level++) {
+            capacities[level] = levelCapacity(k, numLevels - level - 1);
+            totalCapacity += capacities[level];
+        }
+    }
+
+    private static int levelCapacity(int k, int depth) {
+        return Math.max(MIN_LEVEL_CAPACITY, (int) Math.round(k * Math.pow(2.0 / 3.0, depth)));
+    }
+
+    static int totalCapacity(int k, int numLevels) {
+        int total = 0;
+        for (int depth = 0; depth < numLevels; depth++) {
+            total += levelCapacity(k, depth);
+        }
+        return total;
+    }
+
+    private void addTopLevel() {
+        if (numLevels == MAX_LEVELS) {
+            throw new IllegalStateException(TOO_MANY_VALUES_MESSAGE);
+        }
+        // the new top level is empty, at the end of items, so nothing moves
+        levels[numLevels + 1] = items.length;
+        numLevels++;
+        updateCapacities();
+    }
+
+    /**
+     * Halves the lowest level which is over its capacity into the level above, in place.
+     */
+    private void compress() {
+        int level = 0;
+        while (levels[level + 1] - levels[level] < capacities[level]) {
+            level++;
+        }
+        if (level == numLevels - 1) {
+            addTopLevel();
+        }
+        int rawBegin = levels[level];
+        int rawEnd = levels[level + 1];
+        int popAbove = levels[level + 2] - rawEnd;
+        boolean odd = ((rawEnd - rawBegin) & 1) == 1;
+        int begin = odd ? rawBegin + 1 : rawBegin;
+        int population = rawEnd - begin;
+        int half = population / 2;
+        if (level == 0 && !levelZeroSorted) {
+            Arrays.sort(items, rawBegin, rawEnd);
+        }
+        if (popAbove == 0) {
+            halveUp(begin, population);
+        } else {
+            halveDown(begin, population);
+            mergeInPlace(begin, half, rawEnd, popAbove, begin + half);
+        }
+        levels[level + 1] -= half;
+        // the odd item stays on this level, just below the level above
+        if (odd) {
+            levels[level] = levels[level + 1] - 1;
+            items[levels[level]] = items[rawBegin];
+        } else {
+            levels[level] = levels[level + 1];
+        }
+        // the levels below move up into the space freed
+        if (level > 0) {
+            System.arraycopy(items, levels[0], items, levels[0] + half, rawBegin - levels[0]);
+            for (int lower = 0; lower < level; lower++) {
+                levels[lower] += half;
+            }
+        }
+        if (level == 0) {
+            levelZeroSorted = true; // at most one item is left
+        }
+    }
+
+    /**
+     * Keeps every other item of a sorted run, written to the upper half of the run.
+     */
+    private void halveUp(int start, int length) {
+        int half = length / 2;
+        int j = start + length - 1 - (random.nextBoolean() ? 1 : 0);
+        for (int i = start + length - 1; i >= start + half; i--) {
+            items[i] = items[j];
+            j -= 2;
+        }
+    }
+
+    /**
+     * Keeps every other item of a sorted run, written to the lower half of the run.
+     */
+    private void halveDown(int start, int length) {
+        int half = length / 2;
+        int j = start + (random.nextBoolean() ? 1 : 0);
+        for (int i = start; i < start + half; i++) {
+            items[i] = items[j];
+            j += 2;
+        }
+    }
+
+    /**
+     * Merges two sorted runs of items into a destination which may overlap the end of the
+     * first run and the start of the second, as long as it doesn't start before the first run ends.
+     */
+    private void mergeInPlace(int first, int firstLength, int second, int secondLength, int destination) {
+        int i = first;
+        int firstEnd = first + firstLength;
+        int j = second;
+        int secondEnd = second + secondLength;
+        int d = destination;
+        while (i < firstEnd && j < secondEnd) {
+            items[d++] = items[i] <= items[j] ? items[i++] : items[j++];
+        }
+        while (i < firstEnd) {
+            items[d++] = items[i++];
+        }
+        while (j < secondEnd) {
+            items[d++] = items[j++];
+        }
+    }
+
+    /**
+     * Compacts the merged levels until they fit this sketch, then packs them into items.
+     */
+    private void compact(float[][] merged, int levelCount) {
+        numLevels = levelCount;
+        updateCapacities();
+        while (true) {
+            int total = 0;
+            for (int level = 0; level < numLevels; level++) {
+                total += merged[level].length;
+            }
+            if (total <= totalCapacity) {
+                break;
+            }
+            int level = 0;
+            while (merged[level].length < capacities[level]) {
+                level++;
+            }
+            if (level == numLevels - 1) {
+                if (numLevels == MAX_LEVELS) {
+                    throw new IllegalStateException(TOO_MANY_VALUES_MESSAGE);
+                }
+                merged[numLevels] = new float[0];
+                numLevels++;
+                updateCapacities();
+            }
+            float[] run = merged[level];
+            if (level == 0) {
+                Arrays.sort(run);
+            }
+            int odd = run.length & 1;
+            int half = (run.length - odd) / 2;
+            float[] promoted = new float[half];
+            int offset = odd + (random.nextBoolean() ? 1 : 0);
+            for (int i = 0; i < half; i++) {
+                promoted[i] = run[offset + 2 * i];
+            }
+            merged[level] = odd == 1 ? new float[]{run[0]} : new float[0];
+            merged[level + 1] = mergeSorted(merged[level + 1], promoted);
+        }
+        int position = items.length;
+        levels[numLevels] = position;
+        for (int level = numLevels - 1; level >= 0; level--) {
+            position -= merged[level].length;
+            System.arraycopy(merged[level], 0, items, position, merged[level].length);
+            levels[level] = position;
+        }
+        levelZeroSorted = false;
+    }
+
+    private static float[] levelItems(QuantileSketch sketch, int level) {
+        if (level >= sketch.numLevels) {
+            return new float[0];
+        }
+        return Arrays.copyOfRange(sketch.items, sketch.levels[level], sketch.levels[level + 1]);
+    }
+
+    private static float[] mergeSorted(float[] a, float[] b) {
+        float[] result = new float[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int d = 0;
+        while (i < a.length && j < b.length) {
+            result[d++] = a[i] <= b[j] ? a[i++] : b[j++];
+        }
+        while (i < a.length) {
+            result[d++] = a[i++];
+        }
+        while (j < b.length) {
+            result[d++] = b[j++];
+        }
+        return result;
+    }
+
+    /**
+     * Sorts values ascending, moving each weight along with its value.
+     */
+    private static void sortTogether(float[] values, long[] weights, int count) {
+        long[] packed = new long[count];
+        for (int i = 0; i < count; i++) {
+            // sortable bits of the float in the high word, the index in the low word
+            int bits = Float.floatToIntBits(values[i]);
+            bits ^= (bits >> 31) & 0x7FFFFFFF;
+            packed[i] = ((long) bits << 32) | i;
+        }
+        Arrays.sort(packed);
+        float[] sortedValues = new float[count];
+        long[] sortedWeights = new long[count];
+        for (int i = 0; i < count; i++) {
+            int index = (int) packed[i];
+            sortedValues[i] = values[index];
+            sortedWeights[i] = weights[index];
+        }
+        System.arraycopy(sortedValues, 0, values, 0, count);
+        System.arraycopy(sortedWeights, 0, weights, 0, count);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.util.Random;
+
+/**
+ * Settings for {@link ConnectionStateMachine}: how long the data stream may be
+ * silent before the connection is considered lost, and how long to wait between
+ * reconnect attempts.
+ * <p>
+ * The wait before each attempt grows exponentially from the initial backoff up to
+ * the maximum backoff. Half of each wait is fixed and half is random, so several
+ * devices which lost their connections at the same moment don't all retry in step.
+ */
+public class ReconnectPolicy {
+
+    public static final long DEFAULT_INITIAL_BACKOFF_MS = 500;
+    public static final long DEFAULT_MAX_BACKOFF_MS = 30000;
+    public static final long DEFAULT_LIVENESS_TIMEOUT_MS = 3000;
+    public static final long DEFAULT_KEEP_ALIVE_PERIOD_MS = 5000;
+    private static final String BACKOFF_MESSAGE = "backoff must be positive and initialBackoffMs <= maxBackoffMs: %d, %d";
+    private static final String TIMEOUTS_MUST_BE_POSITIVE_MESSAGE = "livenessTimeoutMs and keepAlivePeriodMs must be positive: %d, %d";
+    private static final String MAX_ATTEMPTS_MUST_NOT_BE_NEGATIVE_MESSAGE = "maxAttempts must not be negative: %d";
+
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+    private final long livenessTimeoutMs;
+    private final long keepAlivePeriodMs;
+    private final int maxAttempts;
+
+    /**
+     * @param initialBackoffMs wait before the first reconnect attempt
+     * @param maxBackoffMs upper limit for the wait between attempts
+     * @param livenessTimeoutMs how long the CMS50FW may send nothing before the connection is considered lost
+     * @param keepAlivePeriodMs how often to send {@link CMS50FWCommand#STAY_CONNECTED}
+     * @param maxAttempts number of failed attempts in a row before giving up, or 0 to never give up
+     */
+    public ReconnectPolicy(long initialBackoffMs, long maxBackoffMs, long livenessTimeoutMs,
+                           long keepAlivePeriodMs, int maxAttempts) {
+        if (initialBackoffMs <= 0 || maxBackoffMs < initialBackoffMs) {
+            throw new IllegalArgumentException(Util.formatString(BACKOFF_MESSAGE, initialBackoffMs, maxBackoffMs));
+        }
+        if (livenessTimeoutMs <= 0 || keepAlivePeriodMs <= 0) {
+            throw new IllegalArgumentException(Util.formatString(TIMEOUTS_MUST_BE_POSITIVE_MESSAGE,
+                    livenessTimeoutMs, keepAlivePeriodMs));
+        }
+        if (maxAttempts < 0) {
+            throw new IllegalArgumentException(Util.formatString(MAX_ATTEMPTS_MUST_NOT_BE_NEGATIVE_MESSAGE, maxAttempts));
+        }
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.livenessTimeoutMs = livenessTimeoutMs;
+        this.keepAlivePeriodMs = keepAlivePeriodMs;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @return a policy which never gives up, using the default timings
+     */
+    public static ReconnectPolicy defaults() {
+        return new ReconnectPolicy(DEFAULT_INITIAL_BACKOFF_MS, DEFAULT_MAX_BACKOFF_MS,
+                DEFAULT_LIVENESS_TIMEOUT_MS, DEFAULT_KEEP_ALIVE_PERIOD_MS, 0);
+    }
+
+    /**
+     * @param attempt number of failed attempts so far, starting at 0
+     * @param random source of jitter
+     * @return how long to wait before the next attempt, in milliseconds
+     */
+    public long backoffMs(int attempt, Random random) {
+        long ceiling = initialBackoffMs;
+        for (int i = 0; i < attempt && ceiling < maxBackoffMs; i++) {
+            ceiling *= 2;
+        }
+        ceiling = Math.min(ceiling, maxBackoffMs);
+        long half = ceiling / 2;
+        return half + (long) (random.nextDouble() * (ceiling - half + 1));
+    }
+
+    public long getInitialBackoffMs() {
+        return initialBackoffMs;
+    }
+
+    public long getMaxBackoffMs() {
+        return maxBackoffMs;
+    }
+
+    public long getLivenessTimeoutMs() {
+        return livenessTimeoutMs;
+    }
+
+    public long getKeepAlivePeriodMs() {
+        return keepAlivePeriodMs;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+}
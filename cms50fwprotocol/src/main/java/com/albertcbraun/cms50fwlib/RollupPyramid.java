@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.util.Arrays;
+
+/**
+ * Keeps min, max, mean and count of SpO2, pulse rate and pulse intensity per second,
+ * per minute and per hour, so a trend chart of a whole night can be drawn from a few
+ * hundred points instead of 1.7 million frames.
+ * <p>
+ * Each {@link Resolution} is a ring of buckets in primitive arrays. A frame's bucket is
+ * found from its time alone, so each frame updates one bucket per resolution in constant
+ * time, and gaps in the data leave their buckets empty. Frames with
+ * {@link DataFrame#isFingerOutOfSleeve} set are not counted. A frame older than what its
+ * slot in the ring now holds is ignored at that resolution.
+ * <p>
+ * {@link #query(long, long, int, FrameChannel, BucketHandler)} picks the finest resolution
+ * which draws the range in no more than the requested number of points and still holds
+ * the start of the range.
+ */
+public final class RollupPyramid {
+
+    public enum Resolution {
+        SECOND(1000L), MINUTE(60 * 1000L), HOUR(60 * 60 * 1000L);
+
+        private final long durationMs;
+
+        Resolution(long durationMs) {
+            this.durationMs = durationMs;
+        }
+
+        public long durationMs() {
+            return durationMs;
+        }
+    }
+
+    /**
+     * Receives the buckets found by a query, oldest first. Empty buckets are skipped.
+     */
+    public interface BucketHandler {
+        void onBucket(long startTime, long durationMs, int count, int min, int max, double mean);
+    }
+
+    public static final int DEFAULT_SECOND_BUCKETS = 12 * 60 * 60;
+    public static final int DEFAULT_MINUTE_BUCKETS = 7 * 24 * 60;
+    public static final int DEFAULT_HOUR_BUCKETS = 90 * 24;
+    private static final String UNSUPPORTED_CHANNEL_FORMAT = "No rollups are kept of %s";
+    private static final String BUCKET_COUNTS_MUST_BE_POSITIVE_MESSAGE = "bucket counts must be positive: %s %d";
+    // the channels kept, in the order of their arrays in each level
+    private static final int SPO2_PERCENTAGE = 0;
+    private static final int PULSE_RATE = 1;
+    private static final int PULSE_INTENSITY = 2;
+    private static final int CHANNELS = 3;
+    private static final Resolution[] RESOLUTIONS = Resolution.values();
+
+    private final Level[] levels = new Level[RESOLUTIONS.length];
+    private final int[] values = new int[CHANNELS];
+
+    public RollupPyramid() {
+        this(DEFAULT_SECOND_BUCKETS, DEFAULT_MINUTE_BUCKETS, DEFAULT_HOUR_BUCKETS);
+    }
+
+    /**
+     * @param secondBuckets how many seconds to keep, e.g. 43200 for 12 hours
+     * @param minuteBuckets how many minutes to keep
+     * @param hourBuckets how many hours to keep
+     */
+    public RollupPyramid(int secondBuckets, int minuteBuckets, int hourBuckets) {
+        levels[Resolution.SECOND.ordinal()] = new Level(Resolution.SECOND, secondBuckets);
+        levels[Resolution.MINUTE.ordinal()] = new Level(Resolution.MINUTE, minuteBuckets);
+        levels[Resolution.HOUR.ordinal()] = new Level(Resolution.HOUR, hourBuckets);
+    }
+
+    public void add(DataFrame dataFrame) {
+        add(dataFrame.time, dataFrame.spo2Percentage, dataFrame.pulseRate, dataFrame.pulseIntensity,
+                dataFrame.isFingerOutOfSleeve);
+    }
+
+    /**
+     * Counts a frame at every resolution, unless the finger is out of the sleeve.
+     */
+    public synchronized void add(long time, int spo2Percentage, int pulseRate, int pulseIntensity,
+                                 boolean isFingerOutOfSleeve) {
+        if (isFingerOutOfSleeve) {
+            return;
+        }
+        values[SPO2_PERCENTAGE] = spo2Percentage;
+        values[PULSE_RATE] = pulseRate;
+        values[PULSE_INTENSITY] = pulseIntensity;
+        for (Level level : levels) {
+            level.add(time, values);
+        }
+    }
+
+    /**
+     * @return the finest resolution which shows the range in at most pointBudget buckets
+     * and still holds its start, or {@link Resolution#HOUR} if none does
+     */
+    public synchronized Resolution chooseResolution(long fromTime, long toTime, int pointBudget) {
+        for (Level level : levels) {
+            long buckets = level.bucketOf(toTime) - level.bucketOf(fromTime) + 1;
+            if (buckets <= pointBudget && level.holds(level.bucketOf(fromTime))) {
+                return level.resolution;
+            }
+        }
+        return Resolution.HOUR;
+    }
+
+    /**
+     * Reports the buckets of one channel which overlap a time range, at the resolution
+     * picked by {@link #chooseResolution(long, long, int)}.
+     *
+     * @param fromTime start of the range, in milliseconds
+     * @param toTime end of the range, inclusive
+     * @param pointBudget the most buckets the caller wants, e.g. the width of the chart in pixels
+     * @param channel which value to report: SPO2_PERCENTAGE, PULSE_RATE or PULSE_INTENSITY
+     * @param handler receives each bucket which holds frames, oldest first
+     * @return the number of buckets reported
+     */
+    public synchronized int query(long fromTime, long toTime, int pointBudget, FrameChannel channel,
+                                  BucketHandler handler) {
+        return query(fromTime, toTime, chooseResolution(fromTime, toTime, pointBudget), channel, handler);
+    }
+
+    /**
+     * Reports the buckets of one channel which overlap a time range, at a given resolution.
+     */
+    public synchronized int query(long fromTime, long toTime, Resolution resolution, FrameChannel channel,
+                                  BucketHandler handler) {
+        return levels[resolution.ordinal()].query(fromTime, toTime, indexOf(channel), handler);
+    }
+
+    private static int indexOf(FrameChannel channel) {
+        switch (channel) {
+            case SPO2_PERCENTAGE:
+                return SPO2_PERCENTAGE;
+            case PULSE_RATE:
+                return PULSE_RATE;
+            case PULSE_INTENSITY:
+                return PULSE_INTENSITY;
+            default:
+                throw new IllegalArgumentException(Util.formatString(UNSUPPORTED_CHANNEL_FORMAT, channel));
+        }
+    }
+
+    /**
+     * One resolution: a ring of buckets, each holding its bucket number so stale slots are recognized.
+     */
+    private static final class Level {
+        final Resolution resolution;
+        final int capacity;
+        final long[] bucketNumbers;
+        final int[] counts;
+        final int[][] mins = new int[CHANNELS][];
+        final int[][] maxes = new int[CHANNELS][];
+        final long[][] sums = new long[CHANNELS][];
+        long newestBucket = Long.MIN_VALUE;
+
+        Level(Resolution resolution, int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException(Util.formatString(BUCKET_COUNTS_MUST_BE_POSITIVE_MESSAGE,
+                        resolution, capacity));
+            }
+            this.resolution = resolution;
+            this.capacity = capacity;
+            bucketNumbers = new long[capacity];
+            Arrays.fill(bucketNumbers, Long.MIN_VALUE);
+            counts = new int[capacity];
+            for (int channel = 0; channel < CHANNELS; channel++) {
+                mins[channel] = new int[capacity];
+                maxes[channel] = new int[capacity];
+                sums[channel] = new long[capacity];
+            }
+        }
+
+        long bucketOf(long time) {
+            long bucket = time / resolution.durationMs;
+            return time < 0 && bucket * resolution.durationMs != time ? bucket - 1 : bucket;
+        }
+
+        int slotOf(long bucket) {
+            int slot = (int) (bucket % capacity);
+            return slot < 0 ? slot + capacity : slot;
+        }
+
+        boolean holds(long bucket) {
+            return newestBucket != Long.MIN_VALUE && bucket > newestBucket - capacity;
+        }
+
+        void add(long time, int[] values) {
+            long bucket = bucketOf(time);
+            int slot = slotOf(bucket);
+            if (bucketNumbers[slot] != bucket) {
+                if (bucketNumbers[slot] > bucket) {
+                    return; // the ring has moved past this frame's bucket
+                }
+                bucketNumbers[slot] = bucket;
+                counts[slot] = 0;
+                for (int channel = 0; channel < CHANNELS; channel++) {
+                    mins[channel][slot] = Integer.MAX_VALUE;
+                    maxes[channel][slot] = Integer.MIN_VALUE;
+                    sums[channel][slot] = 0;
+                }
+            }
+            counts[slot]++;
+            for (int channel = 0; channel < CHANNELS; channel++) {
+                int value = values[channel];
+                mins[channel][slot] = Math.min(mins[channel][slot], value);
+                maxes[channel][slot] = Math.max(maxes[channel][slot], value);
+                sums[channel][slot] += value;
+            }
+            newestBucket = Math.max(newestBucket, bucket);
+        }
+
+        int query(long fromTime, long toTime, int channel, BucketHandler handler) {
+            if (newestBucket == Long.MIN_VALUE) {
+                return 0;
+            }
+            long first = Math.max(bucketOf(fromTime), newestBucket - capacity + 1);
+            long last = Math.min(bucketOf(toTime), newestBucket);
+            int found = 0;
+            for (long bucket = first; bucket <= last; bucket++) {
+                int slot = slotOf(bucket);
+                if (bucketNumbers[slot] != bucket || counts[slot] == 0) {
+                    continue;
+                }
+                handler.onBucket(bucket * resolution.durationMs, resolution.durationMs, counts[slot],
+                        mins[channel][slot], maxes[channel][slot], (double) sums[channel][slot] / counts[slot]);
+                found++;
+            }
+            return found;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+
+/**
+ * A {@link Transport} whose data arrives on a non-blocking channel, so that one
+ * {@link java.nio.channels.Selector} can wait on many connections at once. See
+ * {@link MultiDeviceFrameReader}.
+ */
+public interface SelectableTransport extends Transport {
+
+    /**
+     * @return the open, non-blocking channel to register for
+     * {@link java.nio.channels.SelectionKey#OP_READ}, or null if the transport is not open
+     */
+    public SelectableChannel getSelectableChannel();
+
+    /**
+     * Reads whatever bytes are available without blocking.
+     *
+     * @param buffer receives the bytes
+     * @return the number of bytes read, which may be 0, or -1 if the connection has ended
+     * @throws IOException if the connection fails or is closed
+     */
+    public int readAvailable(ByteBuffer buffer) throws IOException;
+}
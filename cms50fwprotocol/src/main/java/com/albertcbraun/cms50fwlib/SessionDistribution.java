@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The distributions of SpO2 and pulse rate over a session, kept in {@link QuantileSketch}es
+ * so that reports over weeks of nights, such as the 5th percentile of SpO2, the median
+ * pulse rate or the time spent below 90% SpO2, need no raw frames.
+ * <p>
+ * Feed it the frames of a session, save it with {@link #writeTo(DataOutput)}, and
+ * {@link #merge(SessionDistribution)} the saved sessions of any number of nights and
+ * devices to report on them together. Frames with the finger out of the sleeve are
+ * not counted. It takes about 7 KB however long the session.
+ */
+public final class SessionDistribution {
+
+    private static final int FRAMES_PER_SECOND = 60;
+    private static final int SERIAL_VERSION = 1;
+    private static final String UNSUPPORTED_VERSION_MESSAGE = "Unsupported session distribution version %d";
+
+    private final QuantileSketch spo2Percentage;
+    private final QuantileSketch pulseRate;
+
+    public SessionDistribution() {
+        this(new QuantileSketch(), new QuantileSketch());
+    }
+
+    private SessionDistribution(QuantileSketch spo2Percentage, QuantileSketch pulseRate) {
+        this.spo2Percentage = spo2Percentage;
+        this.pulseRate = pulseRate;
+    }
+
+    public void add(DataFrame dataFrame) {
+        add(dataFrame.spo2Percentage, dataFrame.pulseRate, dataFrame.isFingerOutOfSleeve);
+    }
+
+    public void add(int spo2Percentage, int pulseRate, boolean isFingerOutOfSleeve) {
+        if (isFingerOutOfSleeve) {
+            return;
+        }
+        this.spo2Percentage.update(spo2Percentage);
+        this.pulseRate.update(pulseRate);
+    }
+
+    /**
+     * @return the distribution of SpO2, e.g. getSpo2Percentage().getQuantile(0.05) for the 5th percentile
+     */
+    public QuantileSketch getSpo2Percentage() {
+        return spo2Percentage;
+    }
+
+    /**
+     * @return the distribution of pulse rate, e.g. getPulseRate().getQuantile(0.5) for the median
+     */
+    public QuantileSketch getPulseRate() {
+        return pulseRate;
+    }
+
+    /**
+     * @return the number of frames counted, those with the finger in the sleeve
+     */
+    public long getFrameCount() {
+        return spo2Percentage.getN();
+    }
+
+    /**
+     * @param spo2Percentage threshold, e.g. 90
+     * @return the estimated seconds with SpO2 below the threshold, counting frames at 60 Hz
+     */
+    public double getSecondsBelowSpo2(int spo2Percentage) {
+        if (this.spo2Percentage.isEmpty()) {
+            return 0;
+        }
+        return this.spo2Percentage.getRank(spo2Percentage) * getFrameCount() / FRAMES_PER_SECOND;
+    }
+
+    /**
+     * Adds another session's distributions to this one's.
+     */
+    public void merge(SessionDistribution other) {
+        spo2Percentage.merge(other.spo2Percentage);
+        pulseRate.merge(other.pulseRate);
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(SERIAL_VERSION);
+        spo2Percentage.writeTo(out);
+        pulseRate.writeTo(out);
+    }
+
+    public static SessionDistribution readFrom(DataInput in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != SERIAL_VERSION) {
+            throw new IOException(Util.formatString(UNSUPPORTED_VERSION_MESSAGE, version));
+        }
+        QuantileSketch spo2Percentage = QuantileSketch.readFrom(in);
+        return new SessionDistribution(spo2Percentage, QuantileSketch.readFrom(in));
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads back a session written by {@link SessionRecorder}, one frame at a time.
+ * <p>
+ * Only one block is held in memory, so sessions of any length can be read. Frames
+ * come back in the order they were recorded, with their sample index (the position
+ * of the frame in the session at 60 Hz, counting the samples lost in gaps) and a
+ * time rebuilt from the block's start time.
+ */
+public class SessionReader {
+
+    private static final String NOT_A_RECORDING_MESSAGE = "Not a CMS50FW session recording";
+    private static final String UNSUPPORTED_VERSION_MESSAGE = "Unsupported session recording version: %d";
+    private static final String EMPTY_BLOCK_MESSAGE = "Corrupt session recording: empty block";
+    private static final String BAD_RUN_LENGTH_MESSAGE = "Corrupt session recording: bad run length %d";
+    private static final String TRUNCATED_BLOCK_MESSAGE = "Session recording ends in the middle of a block";
+    private static final String VARINT_TOO_LONG_MESSAGE = "Corrupt session recording: varint too long";
+
+    private final InputStream inputStream;
+    private final int[][] channels = new int[SessionRecorder.CHANNELS][];
+    private final int[] previousValues = new int[SessionRecorder.CHANNELS];
+    private int blockLength = 0;
+    private int position = 0;
+    private long blockStartTime = 0;
+    private long blockStartSample = 0;
+    private long previousBlockEndSample = 0;
+    private long sampleIndex = -1;
+    private long time;
+
+    /**
+     * Reads and checks the file header at once.
+     *
+     * @param inputStream a stream positioned at the start of a recording. Buffering is done here.
+     * @throws IOException if the stream is not a recording this class can read
+     */
+    public SessionReader(InputStream inputStream) throws IOException {
+        this.inputStream = new BufferedInputStream(inputStream);
+        long magic = 0;
+        for (int i = 0; i < 8; i++) {
+            magic = (magic << 8) | readByte();
+        }
+        if (magic != SessionRecorder.MAGIC) {
+            throw new IOException(NOT_A_RECORDING_MESSAGE);
+        }
+        int version = (int) readVarint();
+        if (version != SessionRecorder.VERSION) {
+            throw new IOException(Util.formatString(UNSUPPORTED_VERSION_MESSAGE, version));
+        }
+        for (int channel = 0; channel < SessionRecorder.CHANNELS; channel++) {
+            channels[channel] = new int[SessionRecorder.DEFAULT_FRAMES_PER_BLOCK];
+        }
+    }
+
+    /**
+     * Points a flyweight at the next frame.
+     *
+     * @param frame receives the time and raw bytes of the next frame
+     * @return false at the end of the recording
+     * @throws IOException if the stream can't be read or ends in the middle of a block
+     */
+    public boolean next(PackedFrame frame) throws IOException {
+        if (position == blockLength && !readBlock()) {
+            return false;
+        }
+        time = blockStartTime + position * 1000L / SessionRecorder.FRAMES_PER_SECOND;
+        sampleIndex = blockStartSample + position;
+        frame.set(time, PackedFrame.pack(
+                channels[SessionRecorder.WAVE_FORM][position],
+                channels[SessionRecorder.BYTE_4][position],
+                channels[SessionRecorder.PULSE_RATE][position],
+                channels[SessionRecorder.SPO2][position]));
+        position++;
+        return true;
+    }
+
+    /**
+     * @return the sample index of the frame last returned by {@link #next(PackedFrame)}
+     */
+    public long sampleIndex() {
+        return sampleIndex;
+    }
+
+    public void close() throws IOException {
+        inputStream.close();
+    }
+
+    private boolean readBlock() throws IOException {
+        int first = inputStream.read();
+        if (first < 0) {
+            return false;
+        }
+        int frameCount = (int) readVarint(first);
+        if (frameCount <= 0) {
+            throw new IOException(EMPTY_BLOCK_MESSAGE);
+        }
+        if (frameCount > channels[0].length) {
+            for (int channel = 0; channel < SessionRecorder.CHANNELS; channel++) {
+                channels[channel] = new int[frameCount];
+            }
+        }
+        blockStartSample = previousBlockEndSample + readVarint();
+        previousBlockEndSample = blockStartSample + frameCount;
+        blockStartTime += unZigZag(readVarint());
+
+        int[] waveForm = channels[SessionRecorder.WAVE_FORM];
+        int previous = previousValues[SessionRecorder.WAVE_FORM];
+        for (int i = 0; i < frameCount; i++) {
+            previous += (int) unZigZag(readVarint());
+            waveForm[i] = previous;
+        }
+        previousValues[SessionRecorder.WAVE_FORM] = previous;
+        readRuns(SessionRecorder.BYTE_4, frameCount);
+        readRuns(SessionRecorder.PULSE_RATE, frameCount);
+        readRuns(SessionRecorder.SPO2, frameCount);
+        blockLength = frameCount;
+        position = 0;
+        return true;
+    }
+
+    private void readRuns(int channel, int frameCount) throws IOException {
+        int[] values = channels[channel];
+        int previous = previousValues[channel];
+        int i = 0;
+        while (i < frameCount) {
+            long run = readVarint();
+            long runLength = run >>> SessionRecorder.RUN_DELTA_BITS;
+            long delta = run & SessionRecorder.RUN_DELTA_ESCAPE;
+            if (delta == SessionRecorder.RUN_DELTA_ESCAPE) {
+                delta = readVarint();
+            }
+            if (runLength <= 0 || runLength > frameCount - i) {
+                throw new IOException(Util.formatString(BAD_RUN_LENGTH_MESSAGE, runLength));
+            }
+            previous += (int) unZigZag(delta);
+            for (int end = i + (int) runLength; i < end; i++) {
+                values[i] = previous;
+            }
+        }
+        previousValues[channel] = previous;
+    }
+
+    private int readByte() throws IOException {
+        int b = inputStream.read();
+        if (b < 0) {
+            throw new EOFException(TRUNCATED_BLOCK_MESSAGE);
+        }
+        return b;
+    }
+
+    private long readVarint() throws IOException {
+        return readVarint(readByte());
+    }
+
+    private long readVarint(int first) throws IOException {
+        long value = first & 0x7F;
+        int b = first;
+        int shift = 7;
+        while ((b & 0x80) != 0) {
+            if (shift > 63) {
+                throw new IOException(VARINT_TOO_LONG_MESSAGE);
+            }
+            b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
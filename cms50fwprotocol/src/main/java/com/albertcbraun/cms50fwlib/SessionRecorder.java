@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes frames to a stream in a compact binary format, typically under 2 bytes
+ * per frame, instead of the roughly 120 bytes of {@link DataFrame#toString()}.
+ * {@link SessionReader} reads the format back.
+ * <p>
+ * Frames are grouped into blocks of consecutive samples at the CMS50FW's 60 Hz.
+ * A new block starts when the block is full, or when a frame arrives more than
+ * {@link #GAP_THRESHOLD_MS} away from where 60 Hz timing says it should, for
+ * example after a dropout. Each block stores the gap in samples since the previous
+ * block, the time of its first frame, and then one column per channel:
+ * <ul>
+ * <li>pulse wave form: zig-zag varint deltas, usually one byte per frame</li>
+ * <li>byte 4 (pulse intensity), pulse rate and SpO2: run-length encoded. Each run is
+ * one varint holding the length above a 3 bit zig-zag delta, so a short run of a value
+ * one step from the last fits in a byte. A delta of 7 or more is written as 7, with the
+ * delta in a second varint.</li>
+ * </ul>
+ * The time of each frame is not stored. It is rebuilt from the block's start time
+ * and the frame's position in the block. Only the values which the library decodes
+ * are kept: a frame reads back as {@link PackedFrame#pack(int, int, int, int)} would
+ * build it, with bytes 2, 7 and 8 zero.
+ * <p>
+ * The {@link PackedFrameListener} method lets a recorder be set directly on the
+ * connection manager. An {@link IOException} there stops the recording; see {@link #getError()}.
+ * Frames are written a block at a time, so up to {@link #DEFAULT_FRAMES_PER_BLOCK} frames are
+ * held in memory until {@link #flush()} or {@link #close()}.
+ * <p>
+ * This class is thread safe, so {@link #flush()} and {@link #close()} may be called from
+ * another thread while the data reading thread records frames.
+ */
+public class SessionRecorder implements PackedFrameListener {
+
+    public static final long MAGIC = 0x434D53353053455AL; // "CMS50SEZ"
+    public static final int VERSION = 1;
+    public static final int DEFAULT_FRAMES_PER_BLOCK = 600; // 10 seconds
+    public static final long GAP_THRESHOLD_MS = 1000;
+    static final int FRAMES_PER_SECOND = 60;
+    static final int CHANNELS = 4;
+    static final int WAVE_FORM = 0;
+    static final int BYTE_4 = 1;
+    static final int PULSE_RATE = 2;
+    static final int SPO2 = 3;
+    static final int RUN_DELTA_BITS = 3;
+    static final int RUN_DELTA_ESCAPE = 7;
+    private static final int BITS_ZERO_TO_SIX = 0x7F;
+    private static final String FRAMES_PER_BLOCK_MUST_BE_POSITIVE_MESSAGE = "framesPerBlock must be positive: %d";
+
+    private final OutputStream outputStream;
+    private final int framesPerBlock;
+    private final int[][] channels;
+    private final byte[] out;
+    private int outLength = 0;
+    private int frameCount = 0;
+    private long blockStartTime;
+    private long blockStartSample;
+    private long nextSample = 0;
+    private long previousBlockStartTime = 0;
+    private long previousBlockEndSample = 0;
+    private final int[] previousValues = new int[CHANNELS];
+    private long framesRecorded = 0;
+    private long bytesWritten = 0;
+    private IOException error = null;
+
+    public SessionRecorder(OutputStream outputStream) throws IOException {
+        this(outputStream, DEFAULT_FRAMES_PER_BLOCK);
+    }
+
+    /**
+     * Writes the file header at once.
+     *
+     * @param outputStream where to write. Buffering is done here, so it need not be buffered.
+     * @param framesPerBlock the most frames in one block
+     * @throws IOException if the header can't be written
+     */
+    public SessionRecorder(OutputStream outputStream, int framesPerBlock) throws IOException {
+        if (framesPerBlock <= 0) {
+            throw new IllegalArgumentException(Util.formatString(FRAMES_PER_BLOCK_MUST_BE_POSITIVE_MESSAGE,
+                    framesPerBlock));
+        }
+        this.outputStream = outputStream;
+        this.framesPerBlock = framesPerBlock;
+        this.channels = new int[CHANNELS][framesPerBlock];
+        // worst case: 5 byte varints for every frame in every channel, plus the block header
+        this.out = new byte[CHANNELS * framesPerBlock * 10 + 32];
+        putLong(MAGIC);
+        putVarint(VERSION);
+        writeOut();
+    }
+
+    /**
+     * Records one frame.
+     *
+     * @param time when the frame was read, in milliseconds
+     * @param rawFrame the 8 bytes of the frame, as in {@link PackedFrame}
+     * @throws IOException if a finished block can't be written
+     */
+    public synchronized void record(long time, long rawFrame) throws IOException {
+        if (frameCount > 0) {
+            long expectedTime = blockStartTime + frameCount * 1000L / FRAMES_PER_SECOND;
+            long offsetMs = time - expectedTime;
+            if (frameCount == framesPerBlock || Math.abs(offsetMs) > GAP_THRESHOLD_MS) {
+                writeBlock();
+                if (offsetMs > GAP_THRESHOLD_MS) {
+                    nextSample += offsetMs * FRAMES_PER_SECOND / 1000;
+                }
+            }
+        }
+        if (frameCount == 0) {
+            blockStartTime = time;
+            blockStartSample = nextSample;
+        }
+        channels[WAVE_FORM][frameCount] = PackedFrame.pulseWaveForm(rawFrame);
+        channels[BYTE_4][frameCount] = (int) (rawFrame >>> 32) & BITS_ZERO_TO_SIX;
+        channels[PULSE_RATE][frameCount] = PackedFrame.pulseRate(rawFrame);
+        channels[SPO2][frameCount] = PackedFrame.spo2Percentage(rawFrame);
+        frameCount++;
+        nextSample++;
+        framesRecorded++;
+    }
+
+    /**
+     * Records the frame, unless an earlier write failed.
+     */
+    @Override
+    public synchronized void onPackedFrameArrived(PackedFrame packedFrame) {
+        if (error != null) {
+            return;
+        }
+        try {
+            record(packedFrame.time(), packedFrame.rawFrame());
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    /**
+     * Writes the frames held in memory as a block, then flushes the stream.
+     */
+    public synchronized void flush() throws IOException {
+        if (frameCount > 0) {
+            writeBlock();
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Writes the frames held in memory, then closes the stream.
+     */
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    public synchronized long getFramesRecorded() {
+        return framesRecorded;
+    }
+
+    /**
+     * @return bytes written to the stream so far, including the header
+     */
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return the exception which stopped recording from {@link #onPackedFrameArrived(PackedFrame)}, or null
+     */
+    public synchronized IOException getError() {
+        return error;
+    }
+
+    private void writeBlock() throws IOException {
+        putVarint(frameCount);
+        putVarintLong(blockStartSample - previousBlockEndSample);
+        previousBlockEndSample = blockStartSample + frameCount;
+        putVarintLong(zigZag(blockStartTime - previousBlockStartTime));
+        previousBlockStartTime = blockStartTime;
+
+        int[] waveForm = channels[WAVE_FORM];
+        int previous = previousValues[WAVE_FORM];
+        for (int i = 0; i < frameCount; i++) {
+            putVarint(zigZag(waveForm[i] - previous));
+            previous = waveForm[i];
+        }
+        previousValues[WAVE_FORM] = previous;
+        putRuns(BYTE_4);
+        putRuns(PULSE_RATE);
+        putRuns(SPO2);
+        frameCount = 0;
+        writeOut();
+    }
+
+    private void putRuns(int channel) {
+        int[] values = channels[channel];
+        int previous = previousValues[channel];
+        int i = 0;
+        while (i < frameCount) {
+            int value = values[i];
+            int runEnd = i + 1;
+            while (runEnd < frameCount && values[runEnd] == value) {
+                runEnd++;
+            }
+            int delta = zigZag(value - previous);
+            if (delta < RUN_DELTA_ESCAPE) {
+                putVarint((runEnd - i) << RUN_DELTA_BITS | delta);
+            } else {
+                putVarint((runEnd - i) << RUN_DELTA_BITS | RUN_DELTA_ESCAPE);
+                putVarint(delta);
+            }
+            previous = value;
+            i = runEnd;
+        }
+        previousValues[channel] = previous;
+    }
+
+    private void writeOut() throws IOException {
+        outputStream.write(out, 0, outLength);
+        bytesWritten += outLength;
+        outLength = 0;
+    }
+
+    private void putLong(long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out[outLength++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void putVarint(int value) {
+        putVarintLong(value & 0xFFFFFFFFL);
+    }
+
+    private void putVarintLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[outLength++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[outLength++] = (byte) value;
+    }
+
+    static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+/**
+ * Minimum, maximum and mean of the values seen in the last few milliseconds, kept up
+ * to date in constant time per value however long the window is.
+ * <p>
+ * The values in the window are kept in a primitive ring buffer, next to a running sum
+ * and two monotonic deques of positions in the ring: one whose values only increase,
+ * headed by the minimum, and one whose values only decrease, headed by the maximum.
+ * Adding a value drops the values behind it which can no longer be the minimum or
+ * maximum, and values leaving the window leave the heads of the deques, so each
+ * value enters and leaves each deque once. The buffers grow if more values arrive
+ * within the window than they hold, which at the CMS50FW's 60 Hz happens only at the
+ * start. The readers allocate nothing and do no work beyond a field read.
+ * <p>
+ * Not thread safe: add and read from one thread, e.g. the one the frames arrive on.
+ */
+public final class SlidingWindow {
+
+    private static final int FRAMES_PER_SECOND = 60;
+    private static final int MIN_CAPACITY = 16;
+    private static final String WINDOW_MUST_BE_POSITIVE_MESSAGE = "windowMs must be positive: %d";
+
+    private final long windowMs;
+    private long[] times;
+    private int[] values;
+    private long[] minDeque;
+    private long[] maxDeque;
+    private int mask;
+    // sequence numbers: the ring index is the sequence number & mask
+    private long head = 0;
+    private long tail = 0;
+    private long minHead = 0;
+    private long minTail = 0;
+    private long maxHead = 0;
+    private long maxTail = 0;
+    private long sum = 0;
+    private long newestTime = Long.MIN_VALUE;
+
+    /**
+     * @param windowMs how far back from the newest time values count
+     */
+    public SlidingWindow(long windowMs) {
+        if (windowMs <= 0) {
+            throw new IllegalArgumentException(Util.formatString(WINDOW_MUST_BE_POSITIVE_MESSAGE, windowMs));
+        }
+        this.windowMs = windowMs;
+        long expected = windowMs * FRAMES_PER_SECOND / 1000 + 1;
+        int capacity = Integer.highestOneBit((int) Math.min(expected, 1 << 24)) << 1;
+        allocate(Math.max(MIN_CAPACITY, capacity));
+    }
+
+    /**
+     * Adds a value and drops the values which are now older than the window.
+     *
+     * @param time in milliseconds. Times should not decrease; an earlier time is treated as the newest time.
+     */
+    public void add(long time, int value) {
+        advance(time);
+        if (tail - head == times.length) {
+            grow();
+        }
+        while (minTail > minHead && values[(int) (minDeque[(int) ((minTail - 1) & mask)] & mask)] >= value) {
+            minTail--;
+        }
+        minDeque[(int) (minTail++ & mask)] = tail;
+        while (maxTail > maxHead && values[(int) (maxDeque[(int) ((maxTail - 1) & mask)] & mask)] <= value) {
+            maxTail--;
+        }
+        maxDeque[(int) (maxTail++ & mask)] = tail;
+        int index = (int) (tail & mask);
+        times[index] = newestTime;
+        values[index] = value;
+        sum += value;
+        tail++;
+    }
+
+    /**
+     * Moves the window forward without adding a value, e.g. while the finger is out.
+     */
+    public void advance(long time) {
+        if (time > newestTime) {
+            newestTime = time;
+        }
+        long oldestKept = newestTime - windowMs;
+        while (head < tail && times[(int) (head & mask)] <= oldestKept) {
+            if (minDeque[(int) (minHead & mask)] == head) {
+                minHead++;
+            }
+            if (maxDeque[(int) (maxHead & mask)] == head) {
+                maxHead++;
+            }
+            sum -= values[(int) (head & mask)];
+            head++;
+        }
+    }
+
+    public long getWindowMs() {
+        return windowMs;
+    }
+
+    /**
+     * @return how many values are in the window
+     */
+    public int count() {
+        return (int) (tail - head);
+    }
+
+    /**
+     * @return the smallest value in the window, or Integer.MAX_VALUE if it is empty
+     */
+    public int min() {
+        return minTail > minHead ? values[(int) (minDeque[(int) (minHead & mask)] & mask)] : Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return the largest value in the window, or Integer.MIN_VALUE if it is empty
+     */
+    public int max() {
+        return maxTail > maxHead ? values[(int) (maxDeque[(int) (maxHead & mask)] & mask)] : Integer.MIN_VALUE;
+    }
+
+    /**
+     * @return the mean of the values in the window, or NaN if it is empty
+     */
+    public double mean() {
+        return tail > head ? (double) sum / (tail - head) : Double.NaN;
+    }
+
+    /**
+     * @return the time of the oldest value in the window, or Long.MIN_VALUE if it is empty.
+     * Together with the newest time this shows whether the window is already full.
+     */
+    public long oldestTime() {
+        return tail > head ? times[(int) (head & mask)] : Long.MIN_VALUE;
+    }
+
+    public long newestTime() {
+        return newestTime;
+    }
+
+    public void clear() {
+        head = tail;
+        minHead = minTail;
+        maxHead = maxTail;
+        sum = 0;
+    }
+
+    private void allocate(int capacity) {
+        times = new long[capacity];
+        values = new int[capacity];
+        minDeque = new long[capacity];
+        maxDeque = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Doubles the ring buffers, keeping the sequence numbers, so only the ring indexes change.
+     */
+    private void grow() {
+        long[] oldTimes = times;
+        int[] oldValues = values;
+        long[] oldMinDeque = minDeque;
+        long[] oldMaxDeque = maxDeque;
+        int oldMask = mask;
+        allocate(oldTimes.length * 2);
+        for (long sequence = head; sequence < tail; sequence++) {
+            times[(int) (sequence & mask)] = oldTimes[(int) (sequence & oldMask)];
+            values[(int) (sequence & mask)] = oldValues[(int) (sequence & oldMask)];
+        }
+        for (long position = minHead; position < minTail; position++) {
+            minDeque[(int) (position & mask)] = oldMinDeque[(int) (position & oldMask)];
+        }
+        for (long position = maxHead; position < maxTail; position++) {
+            maxDeque[(int) (position & mask)] = oldMaxDeque[(int) (position & oldMask)];
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A {@link Transport} over a non-blocking TCP {@link SocketChannel}, for
+ * CMS50FWs reached through a serial-over-TCP bridge, or for simulated
+ * devices on a loopback socket.
+ * <p>
+ * The channel stays in non-blocking mode. Reads and writes which can't make
+ * progress wait on a {@link Selector}, so {@link #close()} from another thread
+ * wakes them up at once. The channel can also be handed to another selector
+ * through {@link SelectableTransport}, to read many connections on one thread.
+ */
+public class SocketChannelTransport implements SelectableTransport {
+
+    public static final long DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+    private static final String CONNECT_TIMED_OUT_MESSAGE = "Timed out connecting to %s";
+
+    private final SocketAddress address;
+    private final long connectTimeoutMs;
+
+    private volatile SocketChannel channel = null;
+    private volatile Selector readSelector = null;
+    private volatile Selector writeSelector = null;
+    private ByteBuffer readBuffer = null;
+    private ByteBuffer writeBuffer = null;
+
+    public SocketChannelTransport(SocketAddress address) {
+        this(address, DEFAULT_CONNECT_TIMEOUT_MS);
+    }
+
+    /**
+     * @param address host and port of the device or bridge
+     * @param connectTimeoutMs how long {@link #open()} waits for the connection
+     */
+    public SocketChannelTransport(SocketAddress address, long connectTimeoutMs) {
+        this.address = address;
+        this.connectTimeoutMs = connectTimeoutMs;
+    }
+
+    @Override
+    public void open() throws IOException {
+        close();
+        SocketChannel newChannel = SocketChannel.open();
+        Selector newReadSelector = null;
+        Selector newWriteSelector = null;
+        try {
+            newChannel.configureBlocking(false);
+            newChannel.socket().setTcpNoDelay(true); // commands are tiny and should go out at once
+            newReadSelector = Selector.open();
+            newWriteSelector = Selector.open();
+            if (!newChannel.connect(address)) {
+                Selector connectSelector = Selector.open();
+                try {
+                    newChannel.register(connectSelector, SelectionKey.OP_CONNECT);
+                    if (connectSelector.select(connectTimeoutMs) == 0) {
+                        throw new SocketTimeoutException(Util.formatString(CONNECT_TIMED_OUT_MESSAGE, address));
+                    }
+                    newChannel.finishConnect();
+                } finally {
+                    connectSelector.close();
+                }
+            }
+            newChannel.register(newReadSelector, SelectionKey.OP_READ);
+            newChannel.register(newWriteSelector, SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            closeQuietly(newChannel, newReadSelector, newWriteSelector);
+            throw e;
+        }
+        readSelector = newReadSelector;
+        writeSelector = newWriteSelector;
+        channel = newChannel;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        SocketChannel socketChannel = channel;
+        Selector selector = readSelector;
+        if (socketChannel == null) {
+            throw new ClosedChannelException();
+        }
+        if (readBuffer == null || readBuffer.array() != buffer) {
+            readBuffer = ByteBuffer.wrap(buffer); // the decoder reuses one array, so this is allocated once
+        }
+        readBuffer.limit(offset + length).position(offset);
+        try {
+            while (true) {
+                int count = socketChannel.read(readBuffer);
+                if (count != 0) {
+                    return count;
+                }
+                selector.select();
+                selector.selectedKeys().clear();
+                if (!socketChannel.isOpen()) {
+                    throw new ClosedChannelException();
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    @Override
+    public SelectableChannel getSelectableChannel() {
+        return channel;
+    }
+
+    @Override
+    public int readAvailable(ByteBuffer buffer) throws IOException {
+        SocketChannel socketChannel = channel;
+        if (socketChannel == null) {
+            throw new ClosedChannelException();
+        }
+        return socketChannel.read(buffer);
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+        SocketChannel socketChannel = channel;
+        Selector selector = writeSelector;
+        if (socketChannel == null) {
+            throw new ClosedChannelException();
+        }
+        if (writeBuffer == null || writeBuffer.array() != bytes) {
+            writeBuffer = ByteBuffer.wrap(bytes);
+        }
+        writeBuffer.limit(offset + length).position(offset);
+        try {
+            while (writeBuffer.hasRemaining()) {
+                if (socketChannel.write(writeBuffer) == 0) {
+                    selector.select();
+                    selector.selectedKeys().clear();
+                    if (!socketChannel.isOpen()) {
+                        throw new ClosedChannelException();
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        SocketChannel socketChannel = channel;
+        return socketChannel != null && socketChannel.isOpen() && socketChannel.isConnected();
+    }
+
+    @Override
+    public void close() {
+        SocketChannel socketChannel = channel;
+        channel = null;
+        closeQuietly(socketChannel, readSelector, writeSelector);
+    }
+
+    private static void closeQuietly(SocketChannel socketChannel, Selector... selectors) {
+        if (socketChannel != null) {
+            try {
+                socketChannel.close();
+            } catch (IOException e) {
+                // nothing more can be done with it
+            }
+        }
+        for (Selector selector : selectors) {
+            if (selector != null) {
+                selector.wakeup();
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // nothing more can be done with it
+                }
+            }
+        }
+    }
+}
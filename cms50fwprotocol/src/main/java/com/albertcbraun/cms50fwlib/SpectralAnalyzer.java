@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+/**
+ * Estimates the dominant frequency of the pulse wave, which is the pulse rate, and a
+ * signal quality measure from its spectrum, continuously and without a full FFT.
+ * <p>
+ * A sliding DFT keeps the DFT bins of the last windowSamples values of the pulse wave
+ * which lie in the band of interest up to date: each new value moves every bin on by one
+ * complex multiply and add, so each frame costs O(bins), and nothing else is done per frame.
+ * The bins are damped by a factor very slightly below 1 on each step, which keeps rounding
+ * errors from building up over hours of frames. A few times per second, the bins are
+ * combined into those of a Hann window, which leaks far less between bins, and the
+ * strongest is refined between bins with a parabola through the log power of its
+ * neighbours. The quality is the part of the power in the band within a bin of the peak
+ * and of its harmonics.
+ * <p>
+ * The two lowest bins are always left out of the band, since the Hann window spreads the
+ * pulse wave's large mean into them. Frames without a reading, e.g. while the finger is out
+ * of the sleeve, start the analysis over. Synthetic frames from a {@link GapFiller} are
+ * analyzed like real ones, which is what they are for.
+ * <p>
+ * All arrays are allocated up front. Call {@link #onFrame(long, long)} from one thread;
+ * the latest estimate may be read from any thread.
+ */
+public final class SpectralAnalyzer implements PackedFrameListener {
+
+    public static final double SAMPLE_RATE_HZ = 60;
+    public static final int DEFAULT_WINDOW_SAMPLES = 512; // 8.5 seconds
+    public static final double DEFAULT_MIN_HZ = 0.5;      // 30 beats per minute
+    public static final double DEFAULT_MAX_HZ = 4;        // 240 beats per minute
+    public static final int DEFAULT_ESTIMATES_PER_SECOND = 4;
+
+    private static final double DAMPING = 0.99999;
+    private static final int LOWEST_BIN = 2;
+    private static final int MAX_HARMONIC = 4;
+    private static final String WINDOW_TOO_SHORT_MESSAGE = "windowSamples must be at least 8: %d";
+    private static final String BAND_OUT_OF_RANGE_MESSAGE = "The band must lie between 0 and %.0f Hz: %f to %f";
+    private static final String ESTIMATES_PER_SECOND_OUT_OF_RANGE_MESSAGE =
+            "estimatesPerSecond must be from 1 to %.0f: %d";
+    private static final String EMPTY_BAND_MESSAGE = "The band %f to %f Hz holds no bins of a %d sample window";
+
+    private final SpectrumListener spectrumListener;
+    private final int windowSamples;
+    private final int samplesPerEstimate;
+    private final double dampingOverWindow;
+    // bins firstBin to firstBin + bins - 1, plus one more on either side for the Hann window
+    private final int firstBin;
+    private final int bins;
+    private final double[] rotationCos;
+    private final double[] rotationSin;
+    private final double[] real;
+    private final double[] imaginary;
+    private final double[] power;
+    private final double[] window;
+    private int windowNext = 0;
+    private long samples = 0;
+
+    private volatile long estimateTime = Long.MIN_VALUE;
+    private volatile double peakHz = 0;
+    private volatile double quality = 0;
+
+    /**
+     * Analyzes the default band, from 30 to 240 beats per minute, over the default window.
+     *
+     * @param spectrumListener told about each estimate, or null to only read the latest
+     */
+    public SpectralAnalyzer(SpectrumListener spectrumListener) {
+        this(spectrumListener, DEFAULT_MIN_HZ, DEFAULT_MAX_HZ, DEFAULT_WINDOW_SAMPLES, DEFAULT_ESTIMATES_PER_SECOND);
+    }
+
+    /**
+     * @param spectrumListener told about each estimate, or null to only read the latest
+     * @param minHz lower edge of the band
+     * @param maxHz upper edge of the band, at most half of {@link #SAMPLE_RATE_HZ}
+     * @param windowSamples the number of samples analyzed. The bins are SAMPLE_RATE_HZ / windowSamples apart.
+     * @param estimatesPerSecond how often the peak is estimated, at most SAMPLE_RATE_HZ
+     */
+    public SpectralAnalyzer(SpectrumListener spectrumListener, double minHz, double maxHz,
+                            int windowSamples, int estimatesPerSecond) {
+        if (windowSamples < 8) {
+            throw new IllegalArgumentException(Util.formatString(WINDOW_TOO_SHORT_MESSAGE, windowSamples));
+        }
+        if (!(minHz >= 0 && minHz < maxHz && maxHz <= SAMPLE_RATE_HZ / 2)) {
+            throw new IllegalArgumentException(Util.formatString(BAND_OUT_OF_RANGE_MESSAGE,
+                    SAMPLE_RATE_HZ / 2, minHz, maxHz));
+        }
+        if (estimatesPerSecond <= 0 || estimatesPerSecond > SAMPLE_RATE_HZ) {
+            throw new IllegalArgumentException(Util.formatString(ESTIMATES_PER_SECOND_OUT_OF_RANGE_MESSAGE,
+                    SAMPLE_RATE_HZ, estimatesPerSecond));
+        }
+        int lowBin = Math.max(LOWEST_BIN, (int) Math.ceil(minHz * windowSamples / SAMPLE_RATE_HZ));
+        int highBin = Math.min(windowSamples / 2 - 1, (int) Math.floor(maxHz * windowSamples / SAMPLE_RATE_HZ));
+        if (highBin < lowBin) {
+            throw new IllegalArgumentException(Util.formatString(EMPTY_BAND_MESSAGE,
+                    minHz, maxHz, windowSamples));
+        }
+        this.spectrumListener = spectrumListener;
+        this.windowSamples = windowSamples;
+        this.samplesPerEstimate = (int) Math.round(SAMPLE_RATE_HZ / estimatesPerSecond);
+        this.dampingOverWindow = Math.pow(DAMPING, windowSamples);
+        this.firstBin = lowBin - 1;
+        this.bins = highBin - lowBin + 3;
+        this.rotationCos = new double[bins];
+        this.rotationSin = new double[bins];
+        for (int i = 0; i < bins; i++) {
+            double angle = 2 * Math.PI * (firstBin + i) / windowSamples;
+            rotationCos[i] = DAMPING * Math.cos(angle);
+            rotationSin[i] = DAMPING * Math.sin(angle);
+        }
+        this.real = new double[bins];
+        this.imaginary = new double[bins];
+        this.power = new double[bins];
+        this.window = new double[windowSamples];
+    }
+
+    @Override
+    public void onPackedFrameArrived(PackedFrame packedFrame) {
+        onFrame(packedFrame.time(), packedFrame.rawFrame());
+    }
+
+    /**
+     * Analyzes the pulse wave of a frame which was delivered as an object.
+     *
+     * @return true if a new estimate was made
+     */
+    public boolean onFrame(DataFrame dataFrame) {
+        if (dataFrame.isFingerOutOfSleeve || dataFrame.spo2Percentage > 100) {
+            reset();
+            return false;
+        }
+        return add(dataFrame.time, dataFrame.pulseWaveForm);
+    }
+
+    /**
+     * Analyzes the pulse wave of a frame.
+     *
+     * @param time time of the frame in milliseconds
+     * @param rawFrame the frame
+     * @return true if a new estimate was made
+     */
+    public boolean onFrame(long time, long rawFrame) {
+        if (PackedFrame.isFingerOutOfSleeve(rawFrame) || PackedFrame.spo2Percentage(rawFrame) > 100) {
+            reset();
+            return false;
+        }
+        return add(time, PackedFrame.pulseWaveForm(rawFrame));
+    }
+
+    private boolean add(long time, int value) {
+        // X(n) = e^(2 pi i k / N) (X(n - 1) + x(n) - x(n - N)), damped
+        double change = value - dampingOverWindow * window[windowNext];
+        window[windowNext] = value;
+        windowNext = windowNext + 1 == windowSamples ? 0 : windowNext + 1;
+        for (int i = 0; i < bins; i++) {
+            double re = real[i] + change;
+            double im = imaginary[i];
+            real[i] = re * rotationCos[i] - im * rotationSin[i];
+            imaginary[i] = re * rotationSin[i] + im * rotationCos[i];
+        }
+        samples++;
+        if (samples < windowSamples || samples % samplesPerEstimate != 0) {
+            return false;
+        }
+        estimate(time);
+        return true;
+    }
+
+    private void estimate(long time) {
+        // the Hann window in the frequency domain: X(k) - (X(k - 1) + X(k + 1)) / 2
+        double total = 0;
+        int peak = 1;
+        for (int i = 1; i < bins - 1; i++) {
+            double re = real[i] - 0.5 * (real[i - 1] + real[i + 1]);
+            double im = imaginary[i] - 0.5 * (imaginary[i - 1] + imaginary[i + 1]);
+            power[i] = re * re + im * im;
+            total += power[i];
+            if (power[i] > power[peak]) {
+                peak = i;
+            }
+        }
+        double offset = 0;
+        if (peak > 1 && peak < bins - 2 && power[peak - 1] > 0 && power[peak + 1] > 0) {
+            double before = Math.log(power[peak - 1]);
+            double at = Math.log(power[peak]);
+            double after = Math.log(power[peak + 1]);
+            double curvature = before - 2 * at + after;
+            if (curvature < 0) {
+                offset = Math.max(-0.5, Math.min(0.5, 0.5 * (before - after) / curvature));
+            }
+        }
+        double peakBin = firstBin + peak + offset;
+
+        double inPeaks = 0;
+        int lastCounted = 0;
+        for (int harmonic = 1; harmonic <= MAX_HARMONIC; harmonic++) {
+            int center = (int) Math.round(peakBin * harmonic) - firstBin;
+            for (int i = Math.max(Math.max(1, center - 1), lastCounted + 1); i <= Math.min(bins - 2, center + 1); i++) {
+                inPeaks += power[i];
+                lastCounted = i;
+            }
+        }
+
+        estimateTime = time;
+        peakHz = peakBin * SAMPLE_RATE_HZ / windowSamples;
+        quality = total > 0 ? inPeaks / total : 0;
+        if (spectrumListener != null) {
+            spectrumListener.onSpectrum(time, peakHz, quality);
+        }
+    }
+
+    /**
+     * Forgets the pulse wave so far. The next estimate comes once a whole window has been seen again.
+     */
+    public void reset() {
+        if (samples == 0) {
+            return; // already reset, e.g. by the frame before, which had no reading either
+        }
+        for (int i = 0; i < bins; i++) {
+            real[i] = 0;
+            imaginary[i] = 0;
+        }
+        for (int i = 0; i < windowSamples; i++) {
+            window[i] = 0;
+        }
+        windowNext = 0;
+        samples = 0;
+    }
+
+    /**
+     * @return the number of bins analyzed, which is what the cost of each frame grows with
+     */
+    public int getBinCount() {
+        return bins - 2;
+    }
+
+    /**
+     * @return the time of the frame which completed the latest estimate, or Long.MIN_VALUE before the first
+     */
+    public long getEstimateTime() {
+        return estimateTime;
+    }
+
+    /**
+     * @return the strongest frequency in the band at the latest estimate, in Hz
+     */
+    public double getPeakHz() {
+        return peakHz;
+    }
+
+    /**
+     * @return the strongest frequency in the band at the latest estimate, in beats per minute
+     */
+    public double getPeakRate() {
+        return peakHz * 60;
+    }
+
+    /**
+     * @return the quality of the latest estimate, from 0 for noise to 1 for a clean periodic wave
+     */
+    public double getQuality() {
+        return quality;
+    }
+}
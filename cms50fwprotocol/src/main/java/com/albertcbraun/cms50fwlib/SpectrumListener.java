@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+/**
+ * Told by a {@link SpectralAnalyzer} a few times per second where the pulse wave's
+ * spectrum peaks, and how clean it is.
+ * <p>
+ * This callback is made on the thread which gives frames to the analyzer, so
+ * implementations should return quickly and must not touch UI views.
+ */
+public interface SpectrumListener {
+
+    /**
+     * @param time time of the frame which completed the estimate, in milliseconds
+     * @param peakHz frequency of the strongest component in the band, in Hz. Multiply by 60
+     *               for beats per minute.
+     * @param quality the part of the power in the band which belongs to the peak and its
+     *                harmonics, from 0 for noise to 1 for a clean periodic wave
+     */
+    public void onSpectrum(long time, double peakHz, double quality);
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.io.IOException;
+
+/**
+ * The byte source and sink which connects this library to a CMS50FW,
+ * together with the lifecycle of that connection. Implementations include the
+ * Bluetooth RFCOMM socket of the Android library, {@link SocketChannelTransport}
+ * for serial-over-TCP bridges and loopback testing, and {@link FileTransport}
+ * for replaying recorded data.
+ * <p>
+ * {@link #read(byte[], int, int)} is called by a single reader thread.
+ * {@link #write(byte[], int, int)} may be called from other threads, but never
+ * concurrently with itself. {@link #close()} may be called from any thread, and
+ * must unblock a read which is in progress.
+ */
+public interface Transport {
+
+    /**
+     * Opens the connection, or reopens it after it was closed. Blocks until the
+     * connection is made.
+     *
+     * @throws IOException if the connection can't be made
+     */
+    public void open() throws IOException;
+
+    /**
+     * Reads whatever bytes are available, blocking until there is at least one.
+     *
+     * @return the number of bytes read, or -1 if the connection has ended
+     * @throws IOException if the connection fails or is closed while reading
+     */
+    public int read(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Writes bytes to the CMS50FW.
+     *
+     * @throws IOException if the connection fails
+     */
+    public void write(byte[] bytes, int offset, int length) throws IOException;
+
+    /**
+     * @return true if the connection is open and has not failed, as far as is known
+     */
+    public boolean isOpen();
+
+    /**
+     * Closes the connection. Does nothing if it is not open.
+     */
+    public void close();
+}
@@ -52,6 +52,15 @@ class Util {
         listener.onLogEvent(System.currentTimeMillis(), message);
     }
 
+    /**
+     * Same as {@link #log(CMS50FWConnectionListener, String)}, for apps reading several devices.
+     * @param listener the callback implemented by the client of this library
+     * @param message any message which the client may wish to see logged
+     */
+    static void log(MultiDeviceListener listener, String message) {
+        listener.onLogEvent(System.currentTimeMillis(), message);
+    }
+
     static String formatString(String format, Object... objects) {
         return String.format(Locale.US, format, objects);
     }
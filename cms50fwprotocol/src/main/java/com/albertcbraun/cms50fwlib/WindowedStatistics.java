@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import java.util.Arrays;
+
+/**
+ * Keeps any number of {@link SlidingWindow}s over SpO2, pulse rate and pulse intensity
+ * up to date from the frames of the CMS50FW, for alert logic which needs signals like
+ * "mean SpO2 over the last 60 seconds" or "highest pulse rate in the last 5 minutes".
+ * <p>
+ * Create the windows first, keep the returned objects, and read them after each
+ * {@link #add(DataFrame)}. Frames with the finger out of the sleeve move the windows
+ * forward without adding values, so old values still leave the windows while no
+ * valid values arrive.
+ * <p>
+ * Not thread safe: use it from the thread which receives the frames.
+ */
+public final class WindowedStatistics {
+
+    private static final String UNSUPPORTED_CHANNEL_FORMAT = "No windows are kept over %s";
+
+    // arrays rather than lists, so that add doesn't allocate an iterator for every frame
+    private final SlidingWindow[][] windows = new SlidingWindow[FrameChannel.values().length][0];
+
+    /**
+     * Returns the window over a channel with the given length, creating it if needed.
+     *
+     * @param channel which value the window holds: SPO2_PERCENTAGE, PULSE_RATE or PULSE_INTENSITY
+     * @param windowMs length of the window, e.g. 60000 for one minute
+     * @return the window, which this object keeps up to date
+     */
+    public SlidingWindow window(FrameChannel channel, long windowMs) {
+        if (channel != FrameChannel.SPO2_PERCENTAGE && channel != FrameChannel.PULSE_RATE
+                && channel != FrameChannel.PULSE_INTENSITY) {
+            throw new IllegalArgumentException(Util.formatString(UNSUPPORTED_CHANNEL_FORMAT, channel));
+        }
+        SlidingWindow[] channelWindows = windows[channel.ordinal()];
+        for (SlidingWindow window : channelWindows) {
+            if (window.getWindowMs() == windowMs) {
+                return window;
+            }
+        }
+        SlidingWindow window = new SlidingWindow(windowMs);
+        channelWindows = Arrays.copyOf(channelWindows, channelWindows.length + 1);
+        channelWindows[channelWindows.length - 1] = window;
+        windows[channel.ordinal()] = channelWindows;
+        return window;
+    }
+
+    public void add(DataFrame dataFrame) {
+        add(dataFrame.time, dataFrame.spo2Percentage, dataFrame.pulseRate, dataFrame.pulseIntensity,
+                dataFrame.isFingerOutOfSleeve);
+    }
+
+    /**
+     * Adds the values of a frame to every window, or only moves the windows forward if
+     * the finger is out of the sleeve.
+     */
+    public void add(long time, int spo2Percentage, int pulseRate, int pulseIntensity, boolean isFingerOutOfSleeve) {
+        add(windows[FrameChannel.SPO2_PERCENTAGE.ordinal()], time, spo2Percentage, isFingerOutOfSleeve);
+        add(windows[FrameChannel.PULSE_RATE.ordinal()], time, pulseRate, isFingerOutOfSleeve);
+        add(windows[FrameChannel.PULSE_INTENSITY.ordinal()], time, pulseIntensity, isFingerOutOfSleeve);
+    }
+
+    private static void add(SlidingWindow[] channelWindows, long time, int value, boolean isFingerOutOfSleeve) {
+        for (SlidingWindow window : channelWindows) {
+            if (isFingerOutOfSleeve) {
+                window.advance(time);
+            } else {
+                window.add(time, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link AlarmDispatcher} delivers alarms in priority order, and that alarms
+ * decided on the reading thread reach their listener quickly while the UI thread is blocked.
+ */
+public class AlarmDispatcherTest {
+
+    private static final long MAX_ALARM_LATENCY_MS = 100;
+
+    @Test
+    public void deliversHigherPriorityEventsFirst() throws InterruptedException {
+        AlarmRule first = AlarmRule.below("first", FrameChannel.SPO2_PERCENTAGE, 90, 0);
+        AlarmRule low = first.withPriority(AlarmRule.Priority.LOW);
+        AlarmRule medium = first.withPriority(AlarmRule.Priority.MEDIUM);
+        AlarmRule high = first.withPriority(AlarmRule.Priority.HIGH);
+        final CountDownLatch firstDelivered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch allDelivered = new CountDownLatch(6);
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        AlarmDispatcher alarmDispatcher = new AlarmDispatcher();
+        AlarmListener listener = alarmDispatcher.deliverTo(new AlarmListener() {
+            @Override
+            public void onAlarmRaised(AlarmRule rule, long time) {
+                delivered.add(rule.getPriority() + " raised " + time);
+                firstDelivered.countDown();
+                await(release);
+                allDelivered.countDown();
+            }
+
+            @Override
+            public void onAlarmCleared(AlarmRule rule, long time) {
+                delivered.add(rule.getPriority() + " cleared " + time);
+                allDelivered.countDown();
+            }
+        });
+
+        // hold the dispatcher in the first delivery while the others queue up
+        listener.onAlarmRaised(first, 0);
+        assertTrue(firstDelivered.await(5, TimeUnit.SECONDS));
+        listener.onAlarmRaised(low, 1);
+        listener.onAlarmRaised(medium, 2);
+        listener.onAlarmCleared(low, 3);
+        listener.onAlarmRaised(high, 4);
+        listener.onAlarmCleared(medium, 5);
+        assertEquals(5, alarmDispatcher.getPendingCount());
+        release.countDown();
+
+        assertTrue(allDelivered.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("MEDIUM raised 0", "HIGH raised 4", "MEDIUM raised 2", "MEDIUM cleared 5",
+                "LOW raised 1", "LOW cleared 3"), delivered);
+        alarmDispatcher.close();
+    }
+
+    @Test
+    public void faultyListenerDoesNotStopDelivery() throws InterruptedException {
+        AlarmRule rule = AlarmRule.below("low", FrameChannel.SPO2_PERCENTAGE, 90, 0);
+        final CountDownLatch delivered = new CountDownLatch(1);
+        final List<Throwable> reported = Collections.synchronizedList(new ArrayList<Throwable>());
+        AlarmDispatcher alarmDispatcher = new AlarmDispatcher(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable throwable) {
+                reported.add(throwable);
+            }
+        });
+        AlarmListener faulty = alarmDispatcher.deliverTo(new AlarmListener() {
+            @Override
+            public void onAlarmRaised(AlarmRule rule, long time) {
+                throw new IllegalStateException("faulty");
+            }
+
+            @Override
+            public void onAlarmCleared(AlarmRule rule, long time) {
+            }
+        });
+        AlarmListener working = alarmDispatcher.deliverTo(new AlarmListener() {
+            @Override
+            public void onAlarmRaised(AlarmRule rule, long time) {
+                delivered.countDown();
+            }
+
+            @Override
+            public void onAlarmCleared(AlarmRule rule, long time) {
+            }
+        });
+        faulty.onAlarmRaised(rule, 0);
+        working.onAlarmRaised(rule, 0);
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        assertEquals(1, alarmDispatcher.getFailedDeliveryCount());
+        assertEquals(1, reported.size());
+        assertEquals("faulty", reported.get(0).getMessage());
+        alarmDispatcher.close();
+    }
+
+    /**
+     * A reading thread feeds 60 Hz frames to a {@link FrameBatcher}, which posts to a "UI thread"
+     * executor, and to an {@link AlarmEngine}. The UI thread is blocked for the whole test. The
+     * alarm must still be raised and cleared with little delay, while no batch reaches the UI.
+     */
+    @Test
+    public void alarmLatencyStaysBoundedWhileUIThreadIsBlocked() throws Exception {
+        ExecutorService uiThread = Executors.newSingleThreadExecutor();
+        final CountDownLatch unblockUIThread = new CountDownLatch(1);
+        uiThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                await(unblockUIThread);
+            }
+        });
+        final AtomicInteger batchesDelivered = new AtomicInteger();
+        FrameBatcher frameBatcher = new FrameBatcher(new DataFrameBatchListener() {
+            @Override
+            public void onDataFramesArrived(DataFrameBatch batch) {
+                batchesDelivered.incrementAndGet();
+            }
+        }, uiThread, 15, 250);
+
+        int frames = 120;
+        final long[] frameNanos = new long[frames];
+        final long[] latencyNanos = new long[2];
+        final CountDownLatch raisedAndCleared = new CountDownLatch(2);
+        AlarmDispatcher alarmDispatcher = new AlarmDispatcher();
+        AlarmRule low = AlarmRule.below("low", FrameChannel.SPO2_PERCENTAGE, 88, 500)
+                .withPriority(AlarmRule.Priority.HIGH);
+        AlarmEngine alarmEngine = new AlarmEngine(Arrays.asList(low), alarmDispatcher.deliverTo(new AlarmListener() {
+            @Override
+            public void onAlarmRaised(AlarmRule rule, long time) {
+                latencyNanos[0] = System.nanoTime() - frameNanos[(int) (time / 16)];
+                raisedAndCleared.countDown();
+            }
+
+            @Override
+            public void onAlarmCleared(AlarmRule rule, long time) {
+                latencyNanos[1] = System.nanoTime() - frameNanos[(int) (time / 16)];
+                raisedAndCleared.countDown();
+            }
+        }));
+
+        // 2 seconds of frames, low for 1 second in the middle
+        for (int i = 0; i < frames; i++) {
+            long time = i * 16L;
+            long rawFrame = PackedFrame.pack(50, 5, 70, i >= 30 && i < 90 ? 85 : 95);
+            frameNanos[i] = System.nanoTime();
+            alarmEngine.onFrame(time, rawFrame);
+            frameBatcher.add(time, rawFrame);
+            Thread.sleep(16);
+        }
+
+        assertTrue(raisedAndCleared.await(5, TimeUnit.SECONDS));
+        assertEquals("the UI thread is blocked", 0, batchesDelivered.get());
+        assertTrue("raised after " + latencyNanos[0] / 1000 + " us",
+                latencyNanos[0] < TimeUnit.MILLISECONDS.toNanos(MAX_ALARM_LATENCY_MS));
+        assertTrue("cleared after " + latencyNanos[1] / 1000 + " us",
+                latencyNanos[1] < TimeUnit.MILLISECONDS.toNanos(MAX_ALARM_LATENCY_MS));
+
+        unblockUIThread.countDown();
+        frameBatcher.flush();
+        uiThread.shutdown();
+        assertTrue(uiThread.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue(batchesDelivered.get() > 0);
+        alarmDispatcher.close();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
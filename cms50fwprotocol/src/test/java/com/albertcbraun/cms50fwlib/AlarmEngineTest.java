@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds {@link AlarmEngine} frames at different rates and checks when its rules
+ * are raised and cleared.
+ */
+public class AlarmEngineTest {
+
+    private static final long FINGER_OUT = PackedFrame.pack(64, 0, 127, 127);
+
+    @Test
+    public void raisesAfterOnsetDurationWhateverTheFrameRate() {
+        AlarmRule low = AlarmRule.below("low", FrameChannel.SPO2_PERCENTAGE, 88, 10000);
+        // 60 Hz, 10 Hz, and 60 Hz with bursts and stalls
+        long[][] intervals = {{16, 17, 17}, {100}, {0, 0, 0, 50, 1, 1, 1, 47, 16, 250}};
+        for (long[] interval : intervals) {
+            Recorder recorder = new Recorder();
+            AlarmEngine engine = new AlarmEngine(Arrays.asList(low), recorder);
+            long time = 5000;
+            for (int i = 0; time < 30000; i++) {
+                engine.onFrame(time, PackedFrame.pack(50, 5, 70, time < 10000 ? 95 : 85));
+                time += interval[i % interval.length];
+            }
+            assertEquals(Arrays.toString(interval), 1, recorder.raised.size());
+            // late by at most the longest gap between frames, at the start and at the end of the onset
+            long raisedAt = recorder.raisedTimes.get(0);
+            assertTrue(Arrays.toString(interval) + " raised at " + raisedAt, raisedAt >= 20000 && raisedAt <= 20500);
+            assertTrue(engine.isActive(low));
+        }
+    }
+
+    @Test
+    public void briefViolationsDoNotRaise() {
+        Recorder recorder = new Recorder();
+        AlarmRule low = AlarmRule.below("low", FrameChannel.SPO2_PERCENTAGE, 88, 10000);
+        AlarmEngine engine = new AlarmEngine(Arrays.asList(low), recorder);
+        for (long time = 0; time < 120000; time += 16) {
+            // 9.6 seconds low out of every 10
+            engine.onFrame(time, PackedFrame.pack(50, 5, 70, time % 10000 < 9600 ? 85 : 95));
+        }
+        assertEquals(0, recorder.raised.size());
+        assertFalse(engine.isActive(low));
+    }
+
+    @Test
+    public void hysteresisKeepsAlarmRaisedNearTheThreshold() {
+        Recorder recorder = new Recorder();
+        AlarmRule low = AlarmRule.below("low", FrameChannel.SPO2_PERCENTAGE, 88, 1000)
+                .withHysteresis(2, 5000);
+        AlarmEngine engine = new AlarmEngine(Arrays.asList(low), recorder);
+        long time = feed(engine, 0, 2000, 85);
+        assertEquals(1, recorder.raised.size());
+
+        // wandering around the threshold doesn't clear it
+        for (int i = 0; i < 100; i++) {
+            time = feed(engine, time, 500, i % 2 == 0 ? 88 : 89);
+        }
+        // nor does a clear value which doesn't last for the clear duration
+        time = feed(engine, time, 4000, 90);
+        time = feed(engine, time, 100, 89);
+        assertTrue(engine.isActive(low));
+        assertEquals(0, recorder.cleared.size());
+
+        time = feed(engine, time, 5100, 90);
+        assertEquals(1, recorder.cleared.size());
+        assertFalse(engine.isActive(low));
+        assertEquals(1, recorder.raised.size());
+        assertTrue(time > 0);
+    }
+
+    @Test
+    public void aboveRulesWithHysteresisClearBelowTheThreshold() {
+        Recorder recorder = new Recorder();
+        AlarmRule fast = AlarmRule.above("fast", FrameChannel.PULSE_RATE, 120, 3000).withHysteresis(10, 0);
+        AlarmEngine engine = new AlarmEngine(Arrays.asList(fast), recorder);
+        long time = feed(engine, 0, 3100, 125, 95);
+        assertTrue(engine.isActive(fast));
+        time = feed(engine, time, 1000, 111, 95);
+        assertTrue(engine.isActive(fast));
+        feed(engine, time, 20, 110, 95);
+        assertFalse(engine.isActive(fast));
+        assertEquals(1, recorder.cleared.size());
+    }
+
+    @Test
+    public void fingerOutFramesAreNoEvidenceForValueRules() {
+        Recorder recorder = new Recorder();
+        AlarmRule low = AlarmRule.below("low", FrameChannel.SPO2_PERCENTAGE, 88, 10000).withHysteresis(0, 3000);
+        AlarmRule fingerOut = AlarmRule.fingerOut("finger out", 10000);
+        AlarmEngine engine = new AlarmEngine(Arrays.asList(low, fingerOut), recorder);
+
+        // 8 s low, 2 s finger out, 8 s low: the onset starts again after the finger out
+        long time = feed(engine, 0, 8000, 85);
+        time = feedFingerOut(engine, time, 2000);
+        time = feed(engine, time, 8000, 85);
+        assertEquals(0, recorder.raised.size());
+        time = feed(engine, time, 2100, 85);
+        assertEquals(Arrays.asList(low), recorder.raised);
+
+        // a raised rule which is clearing stays raised across a finger out
+        time = feed(engine, time, 2000, 95);
+        time = feedFingerOut(engine, time, 12000);
+        assertTrue(engine.isActive(low));
+        assertEquals(Arrays.asList(low, fingerOut), recorder.raised);
+        time = feed(engine, time, 2000, 95);
+        assertEquals(Arrays.asList(fingerOut), recorder.cleared);
+        feed(engine, time, 1100, 95);
+        assertEquals(Arrays.asList(fingerOut, low), recorder.cleared);
+        assertEquals(0, engine.getActiveCount());
+    }
+
+    @Test
+    public void reportsHigherPriorityRulesFirst() {
+        Recorder recorder = new Recorder();
+        AlarmRule info = AlarmRule.below("info", FrameChannel.SPO2_PERCENTAGE, 92, 0);
+        AlarmRule warning = AlarmRule.below("warning", FrameChannel.SPO2_PERCENTAGE, 92, 0)
+                .withPriority(AlarmRule.Priority.HIGH);
+        AlarmRule weak = AlarmRule.below("weak", FrameChannel.PULSE_INTENSITY, 3, 0)
+                .withPriority(AlarmRule.Priority.LOW);
+        AlarmEngine engine = new AlarmEngine(Arrays.asList(weak, info, warning), recorder);
+        engine.onFrame(0, PackedFrame.pack(50, 1, 70, 85));
+        assertEquals(Arrays.asList(warning, info, weak), recorder.raised);
+        assertSame(warning, engine.getHighestPriorityActiveAlarm());
+        assertEquals(3, engine.getActiveCount());
+
+        engine.reset();
+        assertNull(engine.getHighestPriorityActiveAlarm());
+        assertEquals(0, engine.getActiveCount());
+    }
+
+    @Test
+    public void timeGoingBackwardsRestartsTiming() {
+        Recorder recorder = new Recorder();
+        AlarmRule low = AlarmRule.below("low", FrameChannel.SPO2_PERCENTAGE, 88, 10000);
+        AlarmEngine engine = new AlarmEngine(Arrays.asList(low), recorder);
+        feed(engine, 1000000, 9000, 85);
+        // the clock was set back an hour
+        long time = feed(engine, 1000000 - 3600000, 9000, 85);
+        assertEquals(0, recorder.raised.size());
+        feed(engine, time, 1100, 85);
+        assertEquals(1, recorder.raised.size());
+    }
+
+    private static long feed(AlarmEngine engine, long time, long durationMs, int spo2Percentage) {
+        return feed(engine, time, durationMs, 70, spo2Percentage);
+    }
+
+    private static long feed(AlarmEngine engine, long time, long durationMs, int pulseRate, int spo2Percentage) {
+        long end = time + durationMs;
+        for (; time < end; time += 16) {
+            engine.onFrame(time, PackedFrame.pack(50, 5, pulseRate, spo2Percentage));
+        }
+        return time;
+    }
+
+    private static long feedFingerOut(AlarmEngine engine, long time, long durationMs) {
+        long end = time + durationMs;
+        for (; time < end; time += 16) {
+            engine.onFrame(time, FINGER_OUT);
+        }
+        return time;
+    }
+
+    private static class Recorder implements AlarmListener {
+        final List<AlarmRule> raised = new ArrayList<AlarmRule>();
+        final List<Long> raisedTimes = new ArrayList<Long>();
+        final List<AlarmRule> cleared = new ArrayList<AlarmRule>();
+
+        @Override
+        public void onAlarmRaised(AlarmRule rule, long time) {
+            raised.add(rule);
+            raisedTimes.add(time);
+        }
+
+        @Override
+        public void onAlarmCleared(AlarmRule rule, long time) {
+            cleared.add(rule);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static com.albertcbraun.cms50fwlib.FrameTestSupport.PERIOD_MS;
+import static com.albertcbraun.cms50fwlib.FrameTestSupport.time;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds {@link BeatDetector} a pulse wave with a known rate, a little noise and a dicrotic
+ * notch, and checks the beats and rates it finds.
+ */
+public class BeatDetectorTest {
+
+    private static final int SECONDS = 60;
+
+    @Test
+    public void findsEveryBeatFromSlowToFast() {
+        for (int rate : new int[]{40, 72, 127, 150, 200, 230}) {
+            BeatDetector beatDetector = new BeatDetector(null);
+            PulseWave pulseWave = new PulseWave(rate);
+            for (int sample = 0; sample < 30 * SECONDS; sample++) {
+                beatDetector.onFrame(time(sample), pulseWave.next());
+            }
+            assertEquals("beats at " + rate, pulseWave.beats, beatDetector.getBeatCount(), 1);
+            assertEquals("averaged rate at " + rate, rate, beatDetector.getAveragedRate(), 0.5);
+            assertEquals("instantaneous rate at " + rate, rate, beatDetector.getInstantaneousRate(), rate * 0.03);
+        }
+    }
+
+    @Test
+    public void beatTimesAreBetweenSamples() {
+        final double[] maxErrorMs = {0};
+        final PulseWave pulseWave = new PulseWave(170);
+        BeatDetector beatDetector = new BeatDetector(new BeatListener() {
+            @Override
+            public void onBeat(long time, double instantaneousRate, double averagedRate) {
+                maxErrorMs[0] = Math.max(maxErrorMs[0], Math.abs(time - pulseWave.lastSteepestRiseMs()));
+            }
+        });
+        for (int sample = 0; sample < 30 * SECONDS; sample++) {
+            beatDetector.onFrame(time(sample), pulseWave.next());
+        }
+        // a sample is 17 ms apart; the beat is placed closer than that to the steepest rise
+        assertTrue("error " + maxErrorMs[0] + " ms", maxErrorMs[0] < PERIOD_MS / 2);
+    }
+
+    @Test
+    public void fingerOutStartsOver() {
+        BeatDetector beatDetector = new BeatDetector(null);
+        PulseWave pulseWave = new PulseWave(90);
+        int sample = 0;
+        for (; sample < 10 * SECONDS; sample++) {
+            beatDetector.onFrame(time(sample), pulseWave.next());
+        }
+        assertEquals(90, beatDetector.getAveragedRate(), 1);
+        beatDetector.onFrame(time(sample++), PackedFrame.pack(64, 0, 127, 127));
+        assertEquals(0, beatDetector.getAveragedRate(), 0);
+        assertEquals(0, beatDetector.getInstantaneousRate(), 0);
+
+        // the new wave is much smaller, and at a new rate
+        pulseWave = new PulseWave(140, 20);
+        for (int end = sample + 10 * SECONDS; sample < end; sample++) {
+            beatDetector.onFrame(time(sample), pulseWave.next());
+        }
+        assertEquals(140, beatDetector.getAveragedRate(), 1);
+    }
+
+    @Test
+    public void missedBeatsDoNotMoveTheAverage() {
+        BeatDetector beatDetector = new BeatDetector(null);
+        PulseWave pulseWave = new PulseWave(100);
+        int flatFrom = Integer.MAX_VALUE;
+        int lastValue = 0;
+        for (int sample = 0; sample < 30 * SECONDS; sample++) {
+            long rawFrame = pulseWave.next();
+            if (sample % (10 * SECONDS) == 0) {
+                flatFrom = sample; // the wave goes flat for a beat
+            }
+            if (sample - flatFrom < 36) {
+                rawFrame = PackedFrame.pack(lastValue, 2, 100, 97);
+            } else {
+                lastValue = PackedFrame.pulseWaveForm(rawFrame);
+            }
+            beatDetector.onFrame(time(sample), rawFrame);
+            if (sample > 5 * SECONDS) {
+                assertEquals("sample " + sample, 100, beatDetector.getAveragedRate(), 1);
+            }
+        }
+    }
+
+    @Test
+    public void syntheticFramesAreSkipped() {
+        BeatDetector beatDetector = new BeatDetector(null);
+        PulseWave pulseWave = new PulseWave(80);
+        for (int sample = 0; sample < 10 * SECONDS; sample++) {
+            long rawFrame = pulseWave.next();
+            assertFalse(beatDetector.onFrame(time(sample), PackedFrame.synthetic(rawFrame)));
+        }
+        assertEquals(0, beatDetector.getBeatCount());
+    }
+
+    @Test
+    public void allocatesNothingPerFrame() throws IOException {
+        PulseWave pulseWave = new PulseWave(150);
+        final long[] rawFrames = new long[60 * SECONDS];
+        for (int i = 0; i < rawFrames.length; i++) {
+            rawFrames[i] = pulseWave.next();
+        }
+        final BeatDetector beatDetector = new BeatDetector(null);
+        FrameTestSupport.assertAllocatesNothingPer(rawFrames.length, "frames", new FrameTestSupport.Pass() {
+            int sample = 0; // carries on from the warm up pass
+
+            @Override
+            public void run() {
+                for (long rawFrame : rawFrames) {
+                    beatDetector.onFrame(time(sample++), rawFrame);
+                }
+            }
+        });
+    }
+
+    /**
+     * A pulse wave like the CMS50FW's: a quick rise, an exponential fall with a dicrotic
+     * notch, and noise of a unit or so.
+     */
+    private static class PulseWave {
+        private final double rate;
+        private final double amplitude;
+        private final Random random = new Random(3);
+        private double phase = 0.5;
+        private int sample = 0;
+        private double lastBeatSample = Double.NaN;
+        int beats = 0;
+
+        PulseWave(double rate) {
+            this(rate, 90);
+        }
+
+        PulseWave(double rate, double amplitude) {
+            this.rate = rate;
+            this.amplitude = amplitude;
+        }
+
+        long next() {
+            double step = rate / (60.0 * 60);
+            double previousPhase = phase;
+            phase += step;
+            if (phase >= 1) {
+                phase -= 1;
+                beats++;
+            }
+            if (previousPhase < RISE / 2 && phase >= RISE / 2 || previousPhase > phase && phase >= RISE / 2) {
+                lastBeatSample = sample - (phase - RISE / 2) / step;
+            }
+            double value = shape(phase) * amplitude + 10 + random.nextGaussian() * 0.7;
+            sample++;
+            return PackedFrame.pack((int) Math.max(0, Math.min(127, Math.round(value))), 2, 100, 97);
+        }
+
+        /**
+         * @return when the wave last rose steepest, in milliseconds
+         */
+        double lastSteepestRiseMs() {
+            return lastBeatSample * PERIOD_MS;
+        }
+
+        private static final double RISE = 0.15;
+
+        private static double shape(double phase) {
+            if (phase < RISE) {
+                return (1 - Math.cos(phase / RISE * Math.PI)) / 2;
+            }
+            double notch = (phase - 0.45) / 0.05;
+            return Math.exp(-(phase - RISE) * 4) + 0.15 * Math.exp(-notch * notch);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Records chunks with {@link ByteCapture} and plays them back with {@link CaptureReplayTransport}.
+ */
+public class ByteCaptureTest {
+
+    private static final int CHUNKS = 10000;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("cms50fw", ".cap");
+    }
+
+    @After
+    public void tearDown() {
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void replayIsByteExact() throws IOException {
+        byte[] stream = new byte[50000];
+        for (int i = 0; i < stream.length; i++) {
+            stream[i] = (byte) (i * 31 + (i >> 8));
+        }
+        ByteCapture capture = ByteCapture.create(file, 1 << 20);
+        Transport transport = new CapturingTransport(new ChunkedTransport(stream), capture);
+        transport.open();
+        byte[] buffer = new byte[1024];
+        while (transport.read(buffer, 0, buffer.length) >= 0) {
+            // the tap records as it reads
+        }
+        capture.close();
+
+        CaptureReplayTransport replay = new CaptureReplayTransport(file, false);
+        replay.open();
+        ByteArrayOutputStream replayed = new ByteArrayOutputStream();
+        int count;
+        while ((count = replay.read(buffer, 0, buffer.length)) >= 0) {
+            replayed.write(buffer, 0, count);
+        }
+        replay.close();
+
+        assertArrayEquals(stream, replayed.toByteArray());
+        assertEquals(0, capture.getDroppedChunks());
+    }
+
+    @Test
+    public void replayKeepsOriginalTiming() throws IOException {
+        ByteCapture capture = ByteCapture.create(file, 4096);
+        byte[] frame = new byte[FrameDecoder.FRAME_LENGTH];
+        frame[0] = (byte) 0x80;
+        long millis = TimeUnit.MILLISECONDS.toNanos(1);
+        capture.append(5000 * millis, frame, 0, frame.length);
+        capture.append(5100 * millis, frame, 0, frame.length);
+        capture.append(5200 * millis, frame, 0, frame.length);
+        capture.close();
+
+        assertEquals(3, replayChunks(false)); // warm up
+        long start = System.nanoTime();
+        assertEquals(3, replayChunks(true));
+        long timedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        start = System.nanoTime();
+        assertEquals(3, replayChunks(false));
+        long fastMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("timed replay took " + timedMs + " ms", timedMs >= 195 && timedMs < 2000);
+        assertTrue("fast replay took " + fastMs + " ms", fastMs < 100);
+    }
+
+    @Test
+    public void closeWakesATimedReplay() throws Exception {
+        ByteCapture capture = ByteCapture.create(file, 4096);
+        byte[] frame = new byte[FrameDecoder.FRAME_LENGTH];
+        frame[0] = (byte) 0x80;
+        capture.append(0, frame, 0, frame.length);
+        capture.append(TimeUnit.MINUTES.toNanos(10), frame, 0, frame.length);
+        capture.close();
+
+        final CaptureReplayTransport replay = new CaptureReplayTransport(file, true);
+        replay.open();
+        byte[] buffer = new byte[64];
+        assertEquals(frame.length, replay.read(buffer, 0, buffer.length));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // close at once
+                }
+                replay.close();
+            }
+        }).start();
+        long start = System.nanoTime();
+        try {
+            replay.read(buffer, 0, buffer.length); // the second chunk is ten minutes away
+            fail();
+        } catch (IOException expected) {
+            // closed while waiting
+        }
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("read waited " + waitedMs + " ms", waitedMs < 2000);
+    }
+
+    @Test
+    public void fullCaptureDropsChunksAndStaysReadable() throws IOException {
+        ByteCapture capture = ByteCapture.create(file, 100);
+        byte[] chunk = new byte[20];
+        Arrays.fill(chunk, (byte) 7);
+        int appended = 0;
+        for (int i = 0; i < 10; i++) {
+            if (capture.append(i, chunk, 0, chunk.length)) {
+                appended++;
+            }
+        }
+        capture.close();
+
+        // 16 header bytes, two records of 32 bytes, and room for the end marker
+        assertEquals(2, appended);
+        assertEquals(8, capture.getDroppedChunks());
+        assertEquals(2, replayChunks(false));
+        assertFalse(capture.append(99, chunk, 0, chunk.length));
+    }
+
+    @Test
+    public void recordingAllocatesNothing() throws IOException {
+        final ByteCapture capture = ByteCapture.create(file, 4 << 20);
+        final byte[] chunk = new byte[128];
+
+        FrameTestSupport.assertAllocatesNothingPer(CHUNKS, "chunks", new FrameTestSupport.Pass() {
+            @Override
+            public void run() {
+                for (int i = 0; i < CHUNKS; i++) {
+                    capture.append(System.nanoTime(), chunk, 0, chunk.length);
+                }
+            }
+        });
+        capture.close();
+
+        assertEquals(0, capture.getDroppedChunks());
+    }
+
+    private int replayChunks(boolean originalTiming) throws IOException {
+        CaptureReplayTransport replay = new CaptureReplayTransport(file, originalTiming);
+        replay.open();
+        byte[] buffer = new byte[64];
+        int chunks = 0;
+        while (replay.read(buffer, 0, buffer.length) >= 0) {
+            chunks++;
+        }
+        replay.close();
+        return chunks;
+    }
+
+    /**
+     * Returns a stream in chunks of varying size, as a Bluetooth socket does.
+     */
+    private static class ChunkedTransport implements Transport {
+        private final byte[] stream;
+        private int position = 0;
+        private int reads = 0;
+
+        ChunkedTransport(byte[] stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void open() {
+            position = 0;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (position == stream.length) {
+                return -1;
+            }
+            int count = Math.min(Math.min(length, 1 + (reads++ * 37) % 300), stream.length - position);
+            System.arraycopy(stream, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks the byte sequences produced by {@link CommandEncoder}.
+ */
+public class CommandEncoderTest {
+
+    private static final byte[] START_DATA_BYTES = new byte[]{
+            0x7D, (byte) 0x81, (byte) 0xA1, (byte) 0x80, (byte) 0x80,
+            (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80};
+
+    @Test
+    public void writesStartDataCommand() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        CommandEncoder.write(outputStream, CMS50FWCommand.START_DATA, CMS50FWCommand.PADDING);
+
+        assertArrayEquals(START_DATA_BYTES, outputStream.toByteArray());
+    }
+
+    @Test
+    public void encodesIntoByteBuffer() {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(CommandEncoder.COMMAND_LENGTH);
+
+        CommandEncoder.encode(CMS50FWCommand.START_DATA, CMS50FWCommand.PADDING, byteBuffer);
+
+        assertArrayEquals(START_DATA_BYTES, byteBuffer.array());
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the counts and latencies kept by {@link ConnectLatencyStats} for each connect path.
+ */
+public class ConnectLatencyStatsTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void emptyStatsReportZero() {
+        ConnectLatencyStats stats = new ConnectLatencyStats();
+        for (ConnectLatencyStats.ConnectPath connectPath : ConnectLatencyStats.ConnectPath.values()) {
+            assertEquals(0, stats.getAttempts(connectPath));
+            assertEquals(0, stats.getSuccesses(connectPath));
+            assertEquals(0, stats.getMeanLatencyMs(connectPath));
+            assertEquals(0, stats.getMinLatencyMs(connectPath));
+            assertEquals(0, stats.getMaxLatencyMs(connectPath));
+        }
+    }
+
+    @Test
+    public void successesAndFailuresAreCountedPerPath() {
+        ConnectLatencyStats stats = new ConnectLatencyStats();
+        stats.recordFailure(ConnectLatencyStats.ConnectPath.CACHED_ADDRESS);
+        stats.recordSuccess(ConnectLatencyStats.ConnectPath.BONDED_DEVICE, 900 * MS);
+        stats.recordSuccess(ConnectLatencyStats.ConnectPath.BONDED_DEVICE, 300 * MS);
+        stats.recordSuccess(ConnectLatencyStats.ConnectPath.BONDED_DEVICE, 600 * MS);
+        stats.recordFailure(ConnectLatencyStats.ConnectPath.BONDED_DEVICE);
+
+        assertEquals(1, stats.getAttempts(ConnectLatencyStats.ConnectPath.CACHED_ADDRESS));
+        assertEquals(0, stats.getSuccesses(ConnectLatencyStats.ConnectPath.CACHED_ADDRESS));
+        assertEquals(0, stats.getMeanLatencyMs(ConnectLatencyStats.ConnectPath.CACHED_ADDRESS));
+
+        assertEquals(4, stats.getAttempts(ConnectLatencyStats.ConnectPath.BONDED_DEVICE));
+        assertEquals(3, stats.getSuccesses(ConnectLatencyStats.ConnectPath.BONDED_DEVICE));
+        assertEquals(600, stats.getMeanLatencyMs(ConnectLatencyStats.ConnectPath.BONDED_DEVICE));
+        assertEquals(300, stats.getMinLatencyMs(ConnectLatencyStats.ConnectPath.BONDED_DEVICE));
+        assertEquals(900, stats.getMaxLatencyMs(ConnectLatencyStats.ConnectPath.BONDED_DEVICE));
+
+        assertEquals(0, stats.getAttempts(ConnectLatencyStats.ConnectPath.DISCOVERY));
+    }
+
+    @Test
+    public void toStringNamesEveryPath() {
+        ConnectLatencyStats stats = new ConnectLatencyStats();
+        stats.recordSuccess(ConnectLatencyStats.ConnectPath.DISCOVERY, 12000 * MS);
+        String text = stats.toString();
+        for (ConnectLatencyStats.ConnectPath connectPath : ConnectLatencyStats.ConnectPath.values()) {
+            assertTrue(text, text.contains(connectPath.name()));
+        }
+        assertTrue(text, text.contains("DISCOVERY: 1/1 connected, mean 12000 ms, min 12000 ms, max 12000 ms"));
+    }
+}
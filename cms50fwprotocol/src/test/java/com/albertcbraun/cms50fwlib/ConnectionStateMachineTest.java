@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives every transition of {@link ConnectionStateMachine} with a scripted fake transport.
+ */
+public class ConnectionStateMachineTest {
+
+    private static final long TIMEOUT_MS = 10000;
+    private static final long RAW_FRAME = PackedFrame.pack(50, 5, 70, 97);
+
+    @Test
+    public void connectsSendsStartDataAndDeliversFrames() throws Exception {
+        FakeTransport transport = new FakeTransport();
+        transport.addConnection(frames(3), false);
+        Harness harness = new Harness(transport, policy(20, 1000, 0));
+
+        harness.awaitFrames(3);
+        harness.stopAndJoin(transport);
+
+        assertEquals(Arrays.asList(ConnectionStateMachine.State.CONNECTING, ConnectionStateMachine.State.STREAMING,
+                ConnectionStateMachine.State.STOPPED), harness.states);
+        assertEquals(CMS50FWCommand.START_DATA.asByte(), transport.commands.peek().byteValue());
+        assertEquals(0, harness.gaps.size());
+    }
+
+    @Test
+    public void reconnectsAfterEndOfStreamAndReportsGap() throws Exception {
+        FakeTransport transport = new FakeTransport();
+        transport.addConnection(frames(2), true);
+        transport.addConnection(frames(2), false);
+        Harness harness = new Harness(transport, policy(40, 1000, 0));
+
+        harness.awaitFrames(4);
+        harness.stopAndJoin(transport);
+
+        assertEquals(Arrays.asList(ConnectionStateMachine.State.CONNECTING, ConnectionStateMachine.State.STREAMING,
+                ConnectionStateMachine.State.BACKING_OFF, ConnectionStateMachine.State.CONNECTING,
+                ConnectionStateMachine.State.STREAMING, ConnectionStateMachine.State.STOPPED), harness.states);
+        assertEquals(2, transport.countCommands(CMS50FWCommand.START_DATA));
+        assertEquals(1, harness.machine.getReconnectCount());
+        assertEquals(1, harness.gaps.size());
+        // the backoff is at least half the initial backoff
+        assertTrue("gap " + harness.gaps.get(0), harness.gaps.get(0) >= 20);
+    }
+
+    @Test
+    public void silentConnectionIsClosedByWatchdogAndReplaced() throws Exception {
+        FakeTransport transport = new FakeTransport();
+        transport.addConnection(new byte[0], false);
+        transport.addConnection(frames(1), false);
+        Harness harness = new Harness(transport, policy(20, 60, 0));
+
+        harness.awaitFrames(1);
+        harness.stopAndJoin(transport);
+
+        assertTrue(transport.closedByOtherThread.get() > 0);
+        assertEquals(ConnectionStateMachine.State.BACKING_OFF, harness.states.get(2));
+        assertEquals(1, harness.machine.getReconnectCount());
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        FakeTransport transport = new FakeTransport();
+        Harness harness = new Harness(transport, policy(10, 1000, 3));
+
+        harness.thread.join(TIMEOUT_MS);
+
+        assertFalse(harness.thread.isAlive());
+        assertEquals(ConnectionStateMachine.State.FAILED, harness.machine.getState());
+        assertEquals(4, transport.openAttempts.get());
+        assertEquals(Arrays.asList(ConnectionStateMachine.State.CONNECTING, ConnectionStateMachine.State.BACKING_OFF,
+                ConnectionStateMachine.State.CONNECTING, ConnectionStateMachine.State.BACKING_OFF,
+                ConnectionStateMachine.State.CONNECTING, ConnectionStateMachine.State.BACKING_OFF,
+                ConnectionStateMachine.State.CONNECTING, ConnectionStateMachine.State.FAILED), harness.states);
+    }
+
+    @Test
+    public void stopEndsBackoffAtOnce() throws Exception {
+        FakeTransport transport = new FakeTransport();
+        Harness harness = new Harness(transport, policy(60000, 60000, 0));
+        harness.awaitState(ConnectionStateMachine.State.BACKING_OFF);
+
+        long start = System.nanoTime();
+        harness.machine.stop();
+        harness.thread.join(TIMEOUT_MS);
+
+        assertFalse(harness.thread.isAlive());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        assertEquals(ConnectionStateMachine.State.STOPPED, harness.machine.getState());
+    }
+
+    @Test
+    public void backoffGrowsWithJitterUpToMaximum() {
+        ReconnectPolicy policy = new ReconnectPolicy(100, 1600, 1000, 1000, 0);
+        Random random = new Random(42);
+        long ceiling = 100;
+        for (int attempt = 0; attempt < 10; attempt++) {
+            long backoff = policy.backoffMs(attempt, random);
+            assertTrue("attempt " + attempt + ": " + backoff, backoff >= ceiling / 2 && backoff <= ceiling);
+            ceiling = Math.min(1600, ceiling * 2);
+        }
+    }
+
+    private static ReconnectPolicy policy(long initialBackoffMs, long livenessTimeoutMs, int maxAttempts) {
+        return new ReconnectPolicy(initialBackoffMs, initialBackoffMs * 4, livenessTimeoutMs, 60000, maxAttempts);
+    }
+
+    private static byte[] frames(int count) {
+        byte[] bytes = new byte[count * FrameDecoder.FRAME_LENGTH];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (RAW_FRAME >>> (56 - 8 * (i % FrameDecoder.FRAME_LENGTH)));
+        }
+        return bytes;
+    }
+
+    /**
+     * Runs a state machine on its own thread and records what it reports.
+     */
+    private static class Harness implements ConnectionStateListener, FrameDecoder.FrameHandler {
+        final List<ConnectionStateMachine.State> states = new CopyOnWriteArrayList<ConnectionStateMachine.State>();
+        final List<Long> gaps = new CopyOnWriteArrayList<Long>();
+        final AtomicInteger frameCount = new AtomicInteger();
+        final ConnectionStateMachine machine;
+        final Thread thread;
+
+        Harness(Transport transport, ReconnectPolicy policy) {
+            machine = new ConnectionStateMachine(transport, policy, this, this, new Random(7));
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    machine.run();
+                }
+            });
+            thread.start();
+        }
+
+        void awaitFrames(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (frameCount.get() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(count, frameCount.get());
+        }
+
+        void awaitState(ConnectionStateMachine.State state) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (!states.contains(state) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertTrue(states.contains(state));
+        }
+
+        void stopAndJoin(Transport transport) throws InterruptedException {
+            machine.stop();
+            transport.close();
+            thread.join(TIMEOUT_MS);
+            assertFalse(thread.isAlive());
+        }
+
+        @Override
+        public void onConnectionStateChanged(ConnectionStateMachine.State state) {
+            states.add(state);
+        }
+
+        @Override
+        public void onDataResumed(long gapMs) {
+            gaps.add(gapMs);
+        }
+
+        @Override
+        public void onFrame(long rawFrame) {
+            assertEquals(RAW_FRAME, rawFrame);
+            frameCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * A transport which plays back a script of connections. Each connection delivers
+     * its bytes, then either ends or stays silent until closed. Opening fails once
+     * the script is used up.
+     */
+    private static class FakeTransport implements Transport {
+        private static final byte[] END = new byte[0];
+        private static final byte[] CLOSED = new byte[0];
+
+        final ConcurrentLinkedQueue<Byte> commands = new ConcurrentLinkedQueue<Byte>();
+        final AtomicInteger openAttempts = new AtomicInteger();
+        final AtomicLong closedByOtherThread = new AtomicLong();
+        private final ConcurrentLinkedQueue<BlockingQueue<byte[]>> script =
+                new ConcurrentLinkedQueue<BlockingQueue<byte[]>>();
+        private volatile BlockingQueue<byte[]> current;
+        private volatile Thread reader;
+
+        void addConnection(byte[] bytes, boolean endAfterBytes) {
+            BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<byte[]>();
+            if (bytes.length > 0) {
+                chunks.add(bytes);
+            }
+            if (endAfterBytes) {
+                chunks.add(END);
+            }
+            script.add(chunks);
+        }
+
+        int countCommands(CMS50FWCommand command) {
+            int count = 0;
+            for (Byte b : new ArrayList<Byte>(commands)) {
+                if (b == command.asByte()) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public void open() throws IOException {
+            openAttempts.incrementAndGet();
+            reader = Thread.currentThread();
+            current = script.poll();
+            if (current == null) {
+                throw new IOException("device not found");
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            BlockingQueue<byte[]> chunks = current;
+            if (chunks == null) {
+                throw new IOException("not open");
+            }
+            byte[] chunk;
+            try {
+                chunk = chunks.take();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (chunk == END) {
+                return -1;
+            }
+            if (chunk == CLOSED) {
+                throw new IOException("closed");
+            }
+            int count = Math.min(length, chunk.length);
+            System.arraycopy(chunk, 0, buffer, offset, count);
+            if (count < chunk.length) {
+                chunks.add(Arrays.copyOfRange(chunk, count, chunk.length));
+            }
+            return count;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (current == null) {
+                throw new IOException("not open");
+            }
+            commands.add(bytes[offset + 2]);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return current != null;
+        }
+
+        @Override
+        public void close() {
+            BlockingQueue<byte[]> chunks = current;
+            current = null;
+            if (chunks != null) {
+                if (Thread.currentThread() != reader) {
+                    closedByOtherThread.incrementAndGet();
+                }
+                chunks.add(CLOSED);
+            }
+        }
+    }
+}
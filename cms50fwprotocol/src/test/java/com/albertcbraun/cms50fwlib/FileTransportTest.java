@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a file of CMS50FW bytes through {@link FileTransport}.
+ */
+public class FileTransportTest {
+
+    @Test
+    public void replaysWholeFileAsFastAsPossible() throws IOException {
+        File file = writeFrames(10000);
+        FileTransport transport = new FileTransport(file, FileTransport.AS_FAST_AS_POSSIBLE);
+        transport.open();
+        CommandEncoder.write(transport, CMS50FWCommand.START_DATA, CMS50FWCommand.PADDING);
+
+        assertEquals(10000, readAll(transport));
+        assertEquals(CommandEncoder.COMMAND_LENGTH, transport.getBytesWritten());
+        transport.close();
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void pacesReplayToFrameRate() throws IOException {
+        File file = writeFrames(120);
+        FileTransport transport = new FileTransport(file, 600);
+        transport.open();
+
+        long start = System.nanoTime();
+        assertEquals(120, readAll(transport));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        transport.close();
+        assertTrue(file.delete());
+
+        // 120 frames at 600 frames per second take 200 ms
+        assertTrue(elapsedMs + " ms", elapsedMs >= 190 && elapsedMs < 2000);
+    }
+
+    private static int readAll(FileTransport transport) throws IOException {
+        FrameDecoder frameDecoder = new FrameDecoder();
+        final int[] frames = new int[1];
+        FrameDecoder.FrameHandler handler = new FrameDecoder.FrameHandler() {
+            @Override
+            public void onFrame(long rawFrame) {
+                frames[0]++;
+            }
+        };
+        while (frameDecoder.readFrom(transport) >= 0) {
+            frameDecoder.decode(handler);
+        }
+        return frames[0];
+    }
+
+    private static File writeFrames(int count) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(count * FrameDecoder.FRAME_LENGTH);
+        for (int i = 0; i < count; i++) {
+            bytes.putLong(PackedFrame.pack(i % 128, 5, 70, 97));
+        }
+        File file = File.createTempFile("cms50fw", ".raw");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes.array());
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
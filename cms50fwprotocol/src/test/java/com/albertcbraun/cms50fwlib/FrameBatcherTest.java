@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Drives {@link FrameBatcher} with an executor which only runs its tasks when told to,
+ * like a UI thread which is busy, and checks when batches are delivered and what is dropped.
+ */
+public class FrameBatcherTest {
+
+    private static final long FRAME_MS = 17;
+
+    @Test
+    public void deliversFullBatches() {
+        HeldExecutor executor = new HeldExecutor();
+        SizeRecorder listener = new SizeRecorder();
+        FrameBatcher frameBatcher = new FrameBatcher(listener, executor, 10, 10000);
+
+        addFrames(frameBatcher, 0, 25);
+        executor.runAll();
+
+        assertEquals(2, listener.sizes.size());
+        assertEquals(10, (int) listener.sizes.get(0));
+        assertEquals(10, (int) listener.sizes.get(1));
+        assertEquals(0, frameBatcher.getDroppedFrames());
+    }
+
+    @Test
+    public void deliversOldBatches() {
+        HeldExecutor executor = new HeldExecutor();
+        SizeRecorder listener = new SizeRecorder();
+        // 6 frames 17 ms apart make the first one 85 ms old, 7 make it 102 ms old
+        FrameBatcher frameBatcher = new FrameBatcher(listener, executor, 60, 100);
+
+        addFrames(frameBatcher, 0, 7);
+        executor.runAll();
+
+        assertEquals(1, listener.sizes.size());
+        assertEquals(7, (int) listener.sizes.get(0));
+    }
+
+    @Test
+    public void countsFramesDroppedWhileTheListenerIsBehind() {
+        HeldExecutor executor = new HeldExecutor();
+        SizeRecorder listener = new SizeRecorder();
+        FrameBatcher frameBatcher = new FrameBatcher(listener, executor, 10, 10000);
+
+        // two batches are handed over and held; the third has nowhere to go once full,
+        // so it keeps frames 20 to 29 and the frames after them are dropped
+        addFrames(frameBatcher, 0, 50);
+
+        assertEquals(2, executor.tasks.size());
+        assertEquals(20, frameBatcher.getDroppedFrames());
+        executor.runAll();
+        assertEquals(2, listener.sizes.size());
+
+        // once batches are free again, the kept batch goes out, then full batches as before
+        addFrames(frameBatcher, 50, 10);
+        executor.runAll();
+        assertEquals(4, listener.sizes.size());
+        assertEquals(10, (int) listener.sizes.get(2));
+        assertEquals(20 * FRAME_MS, (long) listener.firstTimes.get(2));
+        assertEquals(10, (int) listener.sizes.get(3));
+        assertEquals(50 * FRAME_MS, (long) listener.firstTimes.get(3));
+        assertEquals(20, frameBatcher.getDroppedFrames());
+    }
+
+    @Test
+    public void flushDeliversTheLastFramesEvenWithoutAFreeBatch() {
+        HeldExecutor executor = new HeldExecutor();
+        SizeRecorder listener = new SizeRecorder();
+        FrameBatcher frameBatcher = new FrameBatcher(listener, executor, 10, 10000);
+
+        addFrames(frameBatcher, 0, 24); // two batches held by the executor, four frames in the third
+        frameBatcher.flush();
+        executor.runAll();
+
+        assertEquals(3, listener.sizes.size());
+        assertEquals(4, (int) listener.sizes.get(2));
+        assertEquals(0, frameBatcher.getDroppedFrames());
+
+        // and the batcher carries on after that
+        addFrames(frameBatcher, 24, 10);
+        executor.runAll();
+        assertEquals(4, listener.sizes.size());
+    }
+
+    private static void addFrames(FrameBatcher frameBatcher, int first, int count) {
+        for (int i = first; i < first + count; i++) {
+            frameBatcher.add(i * FRAME_MS, PackedFrame.pack(i % 100, 2, 70, 97));
+        }
+    }
+
+    private static class HeldExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            tasks.add(runnable);
+        }
+
+        void runAll() {
+            List<Runnable> running = new ArrayList<Runnable>(tasks);
+            tasks.clear();
+            for (Runnable runnable : running) {
+                runnable.run();
+            }
+        }
+    }
+
+    private static class SizeRecorder implements DataFrameBatchListener {
+        final List<Integer> sizes = new ArrayList<Integer>();
+        final List<Long> firstTimes = new ArrayList<Long>();
+
+        @Override
+        public void onDataFramesArrived(DataFrameBatch batch) {
+            sizes.add(batch.size());
+            firstTimes.add(batch.time[0]);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds {@link FrameClock} the reading times of a simulated CMS50FW whose clock drifts
+ * from the host's, over a Bluetooth link which delivers frames in bursts, stalls now and
+ * then, and sometimes loses frames, and checks the sample indexes, drift and times.
+ */
+public class FrameClockTest {
+
+    private static final long WALL_TIME = 1700000000000L;
+    private static final long HOST_NANOS = 123456789L;
+    private static final double DRIFT_PPM = 80;
+    private static final double PERIOD_MS = FrameClock.NOMINAL_PERIOD_MS * (1 + DRIFT_PPM / 1e6);
+    private static final int ONE_MINUTE = 60 * 60;
+    private static final int TEN_MINUTES = 10 * ONE_MINUTE;
+
+    @Test
+    public void burstsAndStallsDoNotLookLikeGaps() {
+        Link link = new Link(3);
+        FrameClock frameClock = new FrameClock(WALL_TIME, HOST_NANOS);
+        for (int sample = 0; sample < TEN_MINUTES; sample++) {
+            assertEquals(sample, frameClock.onFrame(HOST_NANOS + link.readNanos(sample)));
+        }
+        assertEquals(0, frameClock.getGapCount());
+        assertEquals(0, frameClock.getMissingSamples());
+        assertEquals(DRIFT_PPM, frameClock.getDriftPpm(), 10);
+    }
+
+    @Test
+    public void timesFollowTheSampleCadenceNotTheReadingTimes() {
+        Link link = new Link(5);
+        FrameClock frameClock = new FrameClock(WALL_TIME, HOST_NANOS);
+        long previousTime = Long.MIN_VALUE;
+        double maxStepErrorMs = 0;
+        for (int sample = 0; sample < TEN_MINUTES; sample++) {
+            frameClock.onFrame(HOST_NANOS + link.readNanos(sample));
+            long time = frameClock.getTime();
+            assertTrue(time >= previousTime);
+            if (sample > 2 * ONE_MINUTE) {
+                maxStepErrorMs = Math.max(maxStepErrorMs, Math.abs(time - previousTime - PERIOD_MS));
+            }
+            previousTime = time;
+        }
+        // the reading times jump around by hundreds of ms; the frame times only by rounding
+        assertTrue("step error " + maxStepErrorMs, maxStepErrorMs <= 1.5);
+        // a minute after the last frame, the line's time matches the emission time plus the least latency
+        long sample = TEN_MINUTES + ONE_MINUTE;
+        double expectedMs = sample * PERIOD_MS + link.minLatencyMs();
+        assertEquals(WALL_TIME + expectedMs, frameClock.timeOf(sample), 10);
+    }
+
+    @Test
+    public void findsShortAndLongGaps() {
+        Link link = new Link(7);
+        FrameClock frameClock = new FrameClock(WALL_TIME, HOST_NANOS);
+        int[][] gaps = {{2 * ONE_MINUTE, 1}, {3 * ONE_MINUTE, 3}, {4 * ONE_MINUTE, 40}, {5 * ONE_MINUTE, 300},
+                {6 * ONE_MINUTE, 3600}};
+        int gap = 0;
+        long missing = 0;
+        for (int sample = 0; sample < 10 * ONE_MINUTE; sample++) {
+            if (gap < gaps.length && sample == gaps[gap][0]) {
+                sample += gaps[gap][1];
+                missing += gaps[gap][1];
+                gap++;
+            }
+            long index = frameClock.onFrame(HOST_NANOS + link.readNanos(sample));
+            if (gap > 0 && sample >= gaps[gap - 1][0] + gaps[gap - 1][1] + 2 * 60) {
+                // short gaps are counted a second or so late; after that the index is exact again
+                assertEquals("sample " + sample, sample, index);
+            }
+        }
+        assertEquals(gaps.length, frameClock.getGapCount());
+        assertEquals(missing, frameClock.getMissingSamples());
+    }
+
+    /**
+     * Reading times of a CMS50FW over Bluetooth: frames are read in chunks every 20 to 60 ms,
+     * each chunk at least 15 ms after its newest frame was sampled, and about every 20 seconds
+     * the link stalls for up to 400 ms and then delivers everything at once.
+     */
+    private static class Link {
+        private final Random random;
+        private double chunkTime = 0;
+        private double stallEnd = 0;
+
+        Link(long seed) {
+            random = new Random(seed);
+        }
+
+        long readNanos(int sample) {
+            double sampled = sample * PERIOD_MS;
+            while (chunkTime < sampled + minLatencyMs()) {
+                chunkTime += 20 + random.nextInt(40);
+                if (random.nextInt(20 * 60 / 2) == 0) {
+                    stallEnd = chunkTime + random.nextInt(400);
+                }
+            }
+            return (long) (Math.max(chunkTime, stallEnd) * 1e6);
+        }
+
+        double minLatencyMs() {
+            return 15;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds canned CMS50FW byte streams through {@link FrameDecoder}.
+ */
+public class FrameDecoderTest {
+
+    private static final int FRAMES = 10000;
+    private static final long MAX_CPU_NANOS_PER_10000_FRAMES = 50000000L; // 50 ms
+
+    @Test
+    public void decodesFramesSplitAcrossChunks() throws IOException {
+        byte[] stream = cannedStream(FRAMES, true);
+        FrameDecoder frameDecoder = new FrameDecoder(64);
+        CountingHandler handler = new CountingHandler();
+        InputStream inputStream = new ChunkedInputStream(stream, 13);
+
+        while (frameDecoder.readFrom(inputStream) >= 0) {
+            frameDecoder.decode(handler);
+        }
+
+        assertEquals(FRAMES, handler.frames);
+        assertEquals(expectedChecksum(FRAMES), handler.checksum);
+        assertEquals(0, frameDecoder.buffered());
+    }
+
+    @Test
+    public void recognizesFingerOutOfSleeve() {
+        byte[] frame = new byte[]{(byte) 0x80, 0, 64, 0, 127, 127, 0, 0};
+        FrameDecoder frameDecoder = new FrameDecoder();
+        CountingHandler handler = new CountingHandler();
+
+        frameDecoder.write(frame, 0, frame.length);
+        frameDecoder.decode(handler);
+
+        assertEquals(1, handler.frames);
+        assertEquals(1, handler.fingerOutFrames);
+    }
+
+    @Test
+    public void resynchronizesWhenAByteInsideAFrameIsLost() {
+        byte[] stream = cannedStream(3, false);
+        // lose byte 8 of the first frame, so the next boundary byte would be its last byte
+        byte[] dropped = new byte[stream.length - 1];
+        System.arraycopy(stream, 0, dropped, 0, FrameDecoder.FRAME_LENGTH - 1);
+        System.arraycopy(stream, FrameDecoder.FRAME_LENGTH, dropped, FrameDecoder.FRAME_LENGTH - 1,
+                stream.length - FrameDecoder.FRAME_LENGTH);
+        FrameDecoder frameDecoder = new FrameDecoder();
+        CountingHandler handler = new CountingHandler();
+
+        frameDecoder.write(dropped, 0, dropped.length);
+        frameDecoder.decode(handler);
+
+        assertEquals(2, handler.frames);
+        assertEquals(0, handler.syntheticFrames);
+        assertEquals(1, frameDecoder.getTruncatedFrames());
+        assertEquals(0, frameDecoder.buffered());
+    }
+
+    @Test
+    public void cpuTimePer10000Frames() throws IOException {
+        byte[] stream = cannedStream(FRAMES, true);
+        FrameDecoder frameDecoder = new FrameDecoder();
+        CountingHandler handler = new CountingHandler();
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+        // warm up so that the measured pass is not dominated by the interpreter
+        for (int i = 0; i < 20; i++) {
+            decodeAll(frameDecoder, new ByteArrayInputStream(stream), handler);
+        }
+
+        handler.frames = 0;
+        long start = threadMXBean.getCurrentThreadCpuTime();
+        decodeAll(frameDecoder, new ByteArrayInputStream(stream), handler);
+        long cpuNanos = threadMXBean.getCurrentThreadCpuTime() - start;
+
+        assertEquals(FRAMES, handler.frames);
+        assertTrue("CPU time per 10000 frames was " + cpuNanos + " ns",
+                cpuNanos < MAX_CPU_NANOS_PER_10000_FRAMES);
+    }
+
+    private static void decodeAll(FrameDecoder frameDecoder, InputStream inputStream,
+                                  FrameDecoder.FrameHandler handler) throws IOException {
+        while (frameDecoder.readFrom(inputStream) >= 0) {
+            frameDecoder.decode(handler);
+        }
+    }
+
+    /**
+     * @param frames number of frames to generate
+     * @param noisy whether to put a few stray bytes (bit 7 clear) before every seventh frame
+     * @return a byte stream shaped like the one written by the CMS50FW
+     */
+    private static byte[] cannedStream(int frames, boolean noisy) {
+        byte[] stream = new byte[frames * (FrameDecoder.FRAME_LENGTH + 3)];
+        int length = 0;
+        for (int i = 0; i < frames; i++) {
+            if (noisy && i % 7 == 0) {
+                stream[length++] = 0x11;
+                stream[length++] = 0x22;
+                stream[length++] = 0x33;
+            }
+            stream[length++] = (byte) 0x80;
+            stream[length++] = 0;
+            stream[length++] = (byte) (i % 128);      // pulse wave form
+            stream[length++] = (byte) (i % 16);       // pulse intensity
+            stream[length++] = (byte) (60 + i % 40);  // pulse rate
+            stream[length++] = (byte) (90 + i % 10);  // spo2
+            stream[length++] = 0;
+            stream[length++] = 0;
+        }
+        byte[] trimmed = new byte[length];
+        System.arraycopy(stream, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    private static long expectedChecksum(int frames) {
+        long checksum = 0;
+        for (int i = 0; i < frames; i++) {
+            checksum = checksum * 31 + (i % 128) + (i % 16) + (60 + i % 40) + (90 + i % 10);
+        }
+        return checksum;
+    }
+
+    private static class CountingHandler implements FrameDecoder.FrameHandler {
+        int frames;
+        int fingerOutFrames;
+        int syntheticFrames;
+        long checksum;
+
+        @Override
+        public void onFrame(long rawFrame) {
+            frames++;
+            if (PackedFrame.isSynthetic(rawFrame)) {
+                syntheticFrames++;
+            }
+            if (PackedFrame.isFingerOutOfSleeve(rawFrame)) {
+                fingerOutFrames++;
+            }
+            checksum = checksum * 31 + PackedFrame.pulseWaveForm(rawFrame) + PackedFrame.pulseIntensity(rawFrame) +
+                    PackedFrame.pulseRate(rawFrame) + PackedFrame.spo2Percentage(rawFrame);
+        }
+    }
+
+    /**
+     * Hands out at most a fixed number of bytes per read, like a Bluetooth socket would.
+     */
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+        private final int chunkSize;
+
+        ChunkedInputStream(byte[] bytes, int chunkSize) {
+            super(bytes);
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, chunkSize));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compresses frames into a {@link FrameHistory} and queries them back.
+ */
+public class FrameHistoryTest {
+
+    private static final int FRAMES_PER_THREE_HOURS = 3 * 60 * 60 * 60;
+
+    @Test
+    public void everyFieldRoundTrips() {
+        Random random = new Random(7);
+        int frames = 5000;
+        long[] times = new long[frames];
+        int[][] values = new int[FrameChannel.values().length][frames];
+        FrameHistory history = new FrameHistory(FrameHistory.DEFAULT_MEMORY_BUDGET_BYTES, 256);
+        long time = 1000;
+        for (int i = 0; i < frames; i++) {
+            // mostly even, sometimes bursty, once a large jump of the clock
+            time += i == 3000 ? 86400000L * 365 : random.nextInt(10) == 0 ? random.nextInt(300) : 16 + i % 2;
+            times[i] = time;
+            values[0][i] = random.nextInt(128);
+            values[1][i] = i % 500 == 0 ? Integer.MIN_VALUE : random.nextInt(16);
+            values[2][i] = i % 700 == 0 ? Integer.MAX_VALUE : 60 + i / 1000;
+            values[3][i] = i % 900 == 0 ? -1 : 97;
+            values[4][i] = i / 100 % 2;
+            history.add(time, values[0][i], values[1][i], values[2][i], values[3][i], values[4][i] == 1);
+        }
+
+        for (FrameChannel field : FrameChannel.values()) {
+            Collector collector = new Collector();
+            assertEquals(frames, history.query(Long.MIN_VALUE, Long.MAX_VALUE, field, collector));
+            for (int i = 0; i < frames; i++) {
+                assertEquals(field + " time " + i, times[i], (long) collector.times.get(i));
+                assertEquals(field + " value " + i, values[field.ordinal()][i], (int) collector.values.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void queryReturnsOnlyTheTimeRange() {
+        FrameHistory history = new FrameHistory();
+        for (int i = 0; i < 10000; i++) {
+            history.add(new DataFrame(i * 10L, i % 100, 5, 70, 98, false));
+        }
+        Collector collector = new Collector();
+        assertEquals(101, history.query(50000, 51000, FrameChannel.PULSE_WAVE_FORM, collector));
+        assertEquals(50000L, (long) collector.times.get(0));
+        assertEquals(51000L, (long) collector.times.get(100));
+        assertEquals(0, (int) collector.values.get(0));
+        assertEquals(0, history.query(200000, 300000, FrameChannel.SPO2_PERCENTAGE, new Collector()));
+    }
+
+    @Test
+    public void threeHoursFitInAFewMegabytes() {
+        FrameHistory history = new FrameHistory(FrameHistory.DEFAULT_MEMORY_BUDGET_BYTES, FrameHistory.DEFAULT_FRAMES_PER_BLOCK);
+        new SimulatedSession(3).addTo(history, FRAMES_PER_THREE_HOURS);
+
+        double bytesPerFrame = (double) history.getMemoryUsage() / FRAMES_PER_THREE_HOURS;
+        assertEquals(0, history.getEvictedFrames());
+        assertTrue(bytesPerFrame + " bytes per frame", history.getMemoryUsage() < 3 * 1024 * 1024);
+        assertEquals(FRAMES_PER_THREE_HOURS, history.getFrameCount());
+    }
+
+    @Test
+    public void framesHeldStayBoundedOverTwoDays() {
+        long budget = 256 * 1024;
+        FrameHistory history = new FrameHistory(budget, FrameHistory.DEFAULT_FRAMES_PER_BLOCK);
+        SimulatedSession session = new SimulatedSession(11);
+
+        // the budget is full long before twelve hours, so from then on old frames must go as fast as new ones come
+        session.addTo(history, 4 * FRAMES_PER_THREE_HOURS);
+        long framesHeldAfterTwelveHours = history.getFrameCount();
+        session.addTo(history, 12 * FRAMES_PER_THREE_HOURS);
+        long framesHeld = history.getFrameCount();
+
+        assertTrue(framesHeld + " frames held after 48 hours, " + framesHeldAfterTwelveHours + " after 12",
+                framesHeld <= framesHeldAfterTwelveHours + FrameHistory.DEFAULT_FRAMES_PER_BLOCK);
+        // these frames take more than a byte each, whatever the history's own estimate says
+        assertTrue(framesHeld + " frames held in " + budget + " bytes", framesHeld < budget);
+        assertTrue(history.getMemoryUsage() <= budget);
+        assertEquals(16 * FRAMES_PER_THREE_HOURS, framesHeld + history.getEvictedFrames());
+        assertEquals(framesHeld, history.query(history.getOldestTime(), Long.MAX_VALUE, FrameChannel.PULSE_RATE,
+                new Collector()));
+    }
+
+    /**
+     * Frames shaped like a real session: a pulse wave, slowly changing SpO2 and rate, and
+     * timestamps which come from Bluetooth in chunks of four, stamped with the time of the read.
+     */
+    private static class SimulatedSession {
+        final Random random;
+        long chunkTime = 1792281600000L;
+        int frame = 0;
+
+        SimulatedSession(long seed) {
+            random = new Random(seed);
+        }
+
+        void addTo(FrameHistory history, int frames) {
+            for (int end = frame + frames; frame < end; frame++) {
+                if (frame % 4 == 0) {
+                    chunkTime += 66 + random.nextInt(3);
+                }
+                double phase = (frame % 50) / 50.0;
+                int wave = (int) (10 + 90 * Math.exp(-phase * 4) * Math.min(1, phase * 8));
+                int spo2 = 96 + (frame / 2000) % 3;
+                int rate = 70 + (frame / 3000) % 5;
+                history.add(chunkTime, wave, wave * 15 / 100, rate, spo2, false);
+            }
+        }
+    }
+
+    private static class Collector implements FrameHistory.ValueHandler {
+        final List<Long> times = new ArrayList<Long>();
+        final List<Integer> values = new ArrayList<Integer>();
+
+        @Override
+        public void onValue(long time, int value) {
+            times.add(time);
+            values.add(value);
+        }
+    }
+}
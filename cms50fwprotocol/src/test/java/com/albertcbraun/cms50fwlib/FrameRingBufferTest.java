@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the overflow policies of {@link FrameRingBuffer} and measures its throughput
+ * between two threads.
+ */
+public class FrameRingBufferTest {
+
+    private static final int FRAMES = 2000000;
+    private static final double MIN_FRAMES_PER_SECOND = 60000; // 1000 times the CMS50FW's 60 Hz
+
+    @Test
+    public void dropNewestKeepsOldestFrames() {
+        FrameRingBuffer frameRingBuffer = new FrameRingBuffer(4, FrameRingBuffer.OverflowPolicy.DROP_NEWEST,
+                FrameRingBuffer.WaitStrategy.SPIN);
+        for (int i = 0; i < 6; i++) {
+            frameRingBuffer.publish(i, PackedFrame.pack(i, 0, 60, 95));
+        }
+        PackedFrame packedFrame = new PackedFrame();
+
+        assertEquals(2, frameRingBuffer.getDroppedFrames());
+        assertTrue(frameRingBuffer.poll(packedFrame));
+        assertEquals(0, packedFrame.time());
+    }
+
+    @Test
+    public void dropOldestKeepsNewestFrames() {
+        FrameRingBuffer frameRingBuffer = new FrameRingBuffer(4, FrameRingBuffer.OverflowPolicy.DROP_OLDEST,
+                FrameRingBuffer.WaitStrategy.SPIN);
+        for (int i = 0; i < 6; i++) {
+            frameRingBuffer.publish(i, PackedFrame.pack(i, 0, 60, 95));
+        }
+        PackedFrame packedFrame = new PackedFrame();
+
+        assertEquals(2, frameRingBuffer.getDroppedFrames());
+        for (int i = 2; i < 6; i++) {
+            assertTrue(frameRingBuffer.poll(packedFrame));
+            assertEquals(i, packedFrame.time());
+            assertEquals(i, packedFrame.pulseWaveForm());
+        }
+        assertFalse(frameRingBuffer.poll(packedFrame));
+    }
+
+    @Test
+    public void blockingThroughputBetweenThreads() throws InterruptedException {
+        for (FrameRingBuffer.WaitStrategy waitStrategy : FrameRingBuffer.WaitStrategy.values()) {
+            if (waitStrategy == FrameRingBuffer.WaitStrategy.SPIN && Runtime.getRuntime().availableProcessors() < 2) {
+                continue; // spinning only makes sense when producer and consumer have a core each
+            }
+            final FrameRingBuffer frameRingBuffer = new FrameRingBuffer(1024, FrameRingBuffer.OverflowPolicy.BLOCK,
+                    waitStrategy);
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < FRAMES; i++) {
+                        frameRingBuffer.publish(i, PackedFrame.pack(i & 0x7F, 0, 60, 95));
+                    }
+                }
+            });
+
+            PackedFrame packedFrame = new PackedFrame();
+            long start = System.nanoTime();
+            producer.start();
+            for (int i = 0; i < FRAMES; i++) {
+                assertTrue(frameRingBuffer.take(packedFrame, 10, TimeUnit.SECONDS));
+                if (packedFrame.time() != i) {
+                    assertEquals(i, packedFrame.time()); // frames must arrive in order, none missing
+                }
+            }
+            double framesPerSecond = FRAMES / ((System.nanoTime() - start) / 1e9);
+            producer.join();
+
+            assertEquals(0, frameRingBuffer.getDroppedFrames());
+            assertTrue(waitStrategy + " throughput was " + framesPerSecond + " frames/s",
+                    framesPerSecond > MIN_FRAMES_PER_SECOND);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Appends to, seeks in and recovers a {@link FrameStore} with small segments.
+ */
+public class FrameStoreTest {
+
+    private static final int FRAMES_PER_SEGMENT = 1000;
+    private static final int INDEX_INTERVAL = 16;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("framestore", "");
+        assertTrue(directory.delete());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        assertTrue(directory.delete());
+    }
+
+    @Test
+    public void seeksAcrossSegments() throws IOException {
+        FrameStore store = open();
+        int frames = 10500;
+        for (int i = 0; i < frames; i++) {
+            store.append(timeOf(i), frame(i));
+        }
+        assertEquals(frames, store.getFrameCount());
+        assertEquals(11, store.getSegmentCount());
+        assertEquals(timeOf(0), store.getFirstTime());
+        assertEquals(timeOf(frames - 1), store.getLastTime());
+
+        PackedFrame frame = new PackedFrame();
+        for (long time = timeOf(0) - 50; time <= timeOf(frames - 1) + 50; time += 7) {
+            FrameStore.Cursor cursor = store.seek(time);
+            int expected = firstAtOrAfter(time, frames);
+            if (expected == frames) {
+                assertFalse(cursor.next(frame));
+                continue;
+            }
+            assertTrue(cursor.next(frame));
+            assertEquals("seek to " + time, timeOf(expected), frame.time());
+            assertEquals("seek to " + time, frame(expected), frame.rawFrame());
+        }
+        store.close();
+    }
+
+    @Test
+    public void cursorReadsToTheEndAndSeesNewFrames() throws IOException {
+        FrameStore store = open();
+        for (int i = 0; i < 2500; i++) {
+            store.append(timeOf(i), frame(i));
+        }
+        FrameStore.Cursor cursor = store.seek(timeOf(1990));
+        PackedFrame frame = new PackedFrame();
+        for (int i = 1990; i < 2500; i++) {
+            assertTrue(cursor.next(frame));
+            assertEquals(frame(i), frame.rawFrame());
+        }
+        assertFalse(cursor.next(frame));
+        store.append(timeOf(2500), frame(2500));
+        assertTrue(cursor.next(frame));
+        assertEquals(frame(2500), frame.rawFrame());
+        store.close();
+    }
+
+    @Test
+    public void cursorPastTheEndSeesNewFrames() throws IOException {
+        FrameStore store = open();
+        for (int i = 0; i < 1500; i++) {
+            store.append(timeOf(i), frame(i));
+        }
+        FrameStore.Cursor cursor = store.seek(timeOf(1499) + 1);
+        PackedFrame frame = new PackedFrame();
+        assertFalse(cursor.next(frame));
+        store.append(timeOf(1500), frame(1500));
+        store.append(timeOf(1501), frame(1501));
+        assertTrue(cursor.next(frame));
+        assertEquals(frame(1500), frame.rawFrame());
+        assertTrue(cursor.next(frame));
+        assertEquals(frame(1501), frame.rawFrame());
+        assertFalse(cursor.next(frame));
+        store.close();
+    }
+
+    @Test
+    public void reopenContinuesAfterLastFrame() throws IOException {
+        FrameStore store = open();
+        for (int i = 0; i < 1500; i++) {
+            store.append(timeOf(i), frame(i));
+        }
+        store.close();
+
+        store = open();
+        assertEquals(1500, store.getFrameCount());
+        assertEquals(timeOf(1499), store.getLastTime());
+        for (int i = 1500; i < 3000; i++) {
+            store.append(timeOf(i), frame(i));
+        }
+        assertEquals(3, store.getSegmentCount());
+        assertEquals(3000, countFrom(store, timeOf(0)));
+        assertEquals(1000, countFrom(store, timeOf(2000)));
+        store.close();
+    }
+
+    @Test
+    public void tornTailIsTruncated() throws IOException {
+        FrameStore store = open();
+        for (int i = 0; i < 1500; i++) {
+            store.append(timeOf(i), frame(i));
+        }
+        store.close();
+
+        // as if only part of record 1400 reached storage before the app died
+        File tail = new File(directory, "0000000001" + FrameStore.SEGMENT_SUFFIX);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(tail, "rw");
+        long recordsOffset = tail.length() - (long) FRAMES_PER_SEGMENT * FrameStore.RECORD_LENGTH;
+        randomAccessFile.seek(recordsOffset + 400 * FrameStore.RECORD_LENGTH + 8);
+        randomAccessFile.writeLong(0);
+        randomAccessFile.close();
+
+        store = open();
+        assertEquals(1400, store.getFrameCount());
+        assertEquals(timeOf(1399), store.getLastTime());
+        store.append(timeOf(5000), frame(5000));
+        PackedFrame frame = new PackedFrame();
+        FrameStore.Cursor cursor = store.seek(timeOf(1400));
+        assertTrue(cursor.next(frame));
+        assertEquals(frame(5000), frame.rawFrame());
+        assertFalse(cursor.next(frame));
+        store.close();
+    }
+
+    @Test
+    public void unfinishedSegmentsAreDeleted() throws IOException {
+        FrameStore store = open();
+        for (int i = 0; i < 10; i++) {
+            store.append(timeOf(i), frame(i));
+        }
+        store.close();
+        File unfinished = new File(directory, "0000000001" + FrameStore.SEGMENT_SUFFIX);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(unfinished, "rw");
+        randomAccessFile.setLength(20);
+        randomAccessFile.close();
+
+        store = open();
+        assertFalse(unfinished.exists());
+        assertEquals(10, store.getFrameCount());
+        store.close();
+    }
+
+    @Test
+    public void storesDataFramesAndNeverGoesBackInTime() throws IOException {
+        FrameStore store = open();
+        store.append(new DataFrame(5000, 40, 6, 71, 97, false));
+        store.append(new DataFrame(4000, 41, 6, 72, 96, false));
+        // more than Integer.MAX_VALUE ms later, so a new segment starts
+        store.append(new DataFrame(5000 + (1L << 32), 42, 7, 73, 95, false));
+        assertEquals(2, store.getSegmentCount());
+
+        PackedFrame frame = new PackedFrame();
+        FrameStore.Cursor cursor = store.seek(0);
+        assertTrue(cursor.next(frame));
+        assertEquals(5000, frame.time());
+        assertEquals(71, frame.pulseRate());
+        assertTrue(cursor.next(frame));
+        assertEquals(5000, frame.time());
+        assertEquals(96, frame.spo2Percentage());
+        assertTrue(cursor.next(frame));
+        assertEquals(5000 + (1L << 32), frame.time());
+        assertEquals(42, frame.pulseWaveForm());
+        assertFalse(cursor.next(frame));
+        store.close();
+    }
+
+    private FrameStore open() throws IOException {
+        return FrameStore.open(directory, FRAMES_PER_SEGMENT, INDEX_INTERVAL);
+    }
+
+    private static int countFrom(FrameStore store, long time) throws IOException {
+        FrameStore.Cursor cursor = store.seek(time);
+        PackedFrame frame = new PackedFrame();
+        int count = 0;
+        long previousTime = Long.MIN_VALUE;
+        while (cursor.next(frame)) {
+            assertTrue(frame.time() >= previousTime);
+            previousTime = frame.time();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Times at 60 Hz, with every tenth frame stamped the same as the one before,
+     * as happens when several frames arrive in one Bluetooth read.
+     */
+    private static long timeOf(int i) {
+        int stamped = i % 10 == 9 ? i - 1 : i;
+        return 1000000L + stamped * 1000L / 60;
+    }
+
+    private static long frame(int i) {
+        return PackedFrame.pack(i % 100, i % 16, 60 + i % 40, 90 + i % 10);
+    }
+
+    private static int firstAtOrAfter(long time, int frames) {
+        int i = 0;
+        while (i < frames && timeOf(i) < time) {
+            i++;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.albertcbraun.cms50fwlib;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Shared pieces of the tests for the per-frame data path.
+ */
+final class FrameTestSupport {
+
+    static final double PERIOD_MS = FrameClock.NOMINAL_PERIOD_MS;
+
+    /**
+     * One pass over the code being measured. It is run twice, so it must be able to repeat itself.
+     */
+    interface Pass {
+        void run() throws IOException;
+    }
+
+    private FrameTestSupport() {
+    }
+
+    /**
+     * @return the time of the sample, in milliseconds, for a stream at the nominal rate from time 0
+     */
+    static long time(int sample) {
+        return Math.round(sample * PERIOD_MS);
+    }
+
+    /**
+     * Runs the pass once to warm up, then again while counting the bytes the current thread
+     * allocates, and fails unless that is less than one byte per operation.
+     *
+     * @param operations how many frames or chunks one pass handles
+     * @param unit what an operation is, for the failure message
+     */
+    static void assertAllocatesNothingPer(int operations, String unit, Pass pass) throws IOException {
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        pass.run();
+        long threadId = Thread.currentThread().getId();
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        pass.run();
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+        assertTrue("allocated " + allocated + " bytes for " + operations + " " + unit, allocated < operations);
+    }
+}
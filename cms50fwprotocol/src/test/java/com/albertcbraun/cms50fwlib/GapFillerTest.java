@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds a {@link FrameClock} and {@link GapFiller} a steady 60 Hz stream with frames
+ * missing, and checks the gap events, the synthetic frames and the counters.
+ */
+public class GapFillerTest {
+
+    private static final long WALL_TIME = 1700000000000L;
+    private static final double PERIOD_MS = FrameClock.NOMINAL_PERIOD_MS;
+    private static final int MAX_SYNTHETIC_FRAMES = 120;
+
+    @Test
+    public void reportsGapsAndFillsShortOnes() {
+        FrameClock frameClock = new FrameClock(WALL_TIME, 0);
+        List<long[]> gaps = new ArrayList<long[]>();
+        Series series = new Series();
+        GapFiller gapFiller = new GapFiller(frameClock, new GapRecorder(gaps), series, MAX_SYNTHETIC_FRAMES);
+        // a short gap, one which fills the whole synthetic frame budget, and a long gap
+        int[][] missing = {{30 * 60, 3}, {60 * 60, 120}, {90 * 60, 600}};
+        int gap = 0;
+        for (int sample = 0; sample < 120 * 60; sample++) {
+            if (gap < missing.length && sample == missing[gap][0]) {
+                sample += missing[gap][1];
+                gap++;
+            }
+            long rawFrame = PackedFrame.pack(sample % 100, 5, 70, 97);
+            frameClock.onFrame((long) ((sample * PERIOD_MS + 20) * 1e6));
+            gapFiller.onFrame(rawFrame);
+            series.onPackedFrameArrived(new PackedFrame().set(frameClock.getTime(), rawFrame));
+        }
+
+        assertEquals(3, gapFiller.getGapCount());
+        assertEquals(723, gapFiller.getMissingSamples());
+        assertEquals(Math.round(723 * PERIOD_MS), gapFiller.getTotalGapMs(), 1);
+        assertEquals(123, gapFiller.getSyntheticFrameCount());
+        assertEquals(123, series.synthetic);
+
+        long reportedSamples = 0;
+        long reportedMs = 0;
+        for (long[] event : gaps) {
+            reportedSamples += event[1];
+            reportedMs += event[3];
+            assertEquals(event[1] <= MAX_SYNTHETIC_FRAMES && event[0] < 90 * 60, event[4] == 1);
+        }
+        assertEquals(723, reportedSamples);
+        assertEquals(723 * PERIOD_MS, reportedMs, gaps.size());
+        // the filled gaps leave the series continuous up to the long gap, frames being read 20 ms late
+        assertEquals(90 * 60, series.framesBefore(WALL_TIME + 90 * 60 * PERIOD_MS + 20 + PERIOD_MS / 2));
+    }
+
+    @Test
+    public void syntheticFramesAreInterpolatedAndMarked() {
+        FrameClock frameClock = new FrameClock(WALL_TIME, 0);
+        Series series = new Series();
+        GapFiller gapFiller = new GapFiller(frameClock, null, series, MAX_SYNTHETIC_FRAMES);
+        for (int sample = 0; sample < 10; sample++) {
+            if (sample == 5) {
+                sample += 200; // long enough to be found straight away
+            }
+            long rawFrame = sample < 5 ? PackedFrame.pack(10, 2, 60, 90) : PackedFrame.pack(110, 2, 80, 100);
+            frameClock.onFrame((long) ((sample * PERIOD_MS + 20) * 1e6));
+            int filled = gapFiller.onFrame(rawFrame);
+            series.onPackedFrameArrived(new PackedFrame().set(frameClock.getTime(), rawFrame));
+            assertTrue(filled <= MAX_SYNTHETIC_FRAMES);
+        }
+        assertTrue(series.synthetic > 0);
+        long previousTime = Long.MIN_VALUE;
+        int previousRate = 0;
+        for (int i = 0; i < series.rawFrames.size(); i++) {
+            long rawFrame = series.rawFrames.get(i);
+            long time = series.times.get(i);
+            assertTrue(time >= previousTime);
+            assertTrue(PackedFrame.pulseRate(rawFrame) >= previousRate);
+            assertEquals(series.isSynthetic(i), PackedFrame.isSynthetic(rawFrame));
+            previousTime = time;
+            previousRate = PackedFrame.pulseRate(rawFrame);
+        }
+    }
+
+    @Test
+    public void noValidReadingIsHeldRatherThanInterpolated() {
+        FrameClock frameClock = new FrameClock(WALL_TIME, 0);
+        Series series = new Series();
+        GapFiller gapFiller = new GapFiller(frameClock, null, series, 1000);
+        long fingerOut = PackedFrame.pack(64, 0, 127, 127);
+        for (int sample = 0; sample < 10; sample++) {
+            if (sample == 5) {
+                sample += 200;
+            }
+            long rawFrame = sample < 5 ? fingerOut : PackedFrame.pack(50, 2, 80, 97);
+            frameClock.onFrame((long) ((sample * PERIOD_MS + 20) * 1e6));
+            gapFiller.onFrame(rawFrame);
+        }
+        assertTrue(series.synthetic > 0);
+        for (long rawFrame : series.rawFrames) {
+            assertTrue(PackedFrame.isSynthetic(rawFrame));
+            assertTrue(PackedFrame.isFingerOutOfSleeve(rawFrame));
+        }
+    }
+
+    @Test
+    public void nothingIsFilledWithoutAListener() {
+        FrameClock frameClock = new FrameClock(WALL_TIME, 0);
+        List<long[]> gaps = new ArrayList<long[]>();
+        GapFiller gapFiller = new GapFiller(frameClock, new GapRecorder(gaps), null, MAX_SYNTHETIC_FRAMES);
+        for (int sample = 0; sample < 10; sample++) {
+            if (sample == 5) {
+                sample += 200;
+            }
+            frameClock.onFrame((long) ((sample * PERIOD_MS + 20) * 1e6));
+            assertEquals(0, gapFiller.onFrame(PackedFrame.pack(50, 2, 80, 97)));
+        }
+        assertFalse(gaps.isEmpty());
+        assertEquals(0, gaps.get(0)[4]);
+        assertEquals(0, gapFiller.getSyntheticFrameCount());
+    }
+
+    @Test
+    public void truncatedFramesAreReportedAndFilledAtOnce() {
+        FrameClock frameClock = new FrameClock(WALL_TIME, 0);
+        List<long[]> gaps = new ArrayList<long[]>();
+        Series series = new Series();
+        GapFiller gapFiller = new GapFiller(frameClock, new GapRecorder(gaps), series, MAX_SYNTHETIC_FRAMES);
+        DecodedStream stream = new DecodedStream(frameClock, gapFiller, series);
+        int[] truncated = {30 * 60 + 50, 60 * 60 + 50, 90 * 60 + 50};
+        int next = 0;
+        for (int sample = 0; sample < 120 * 60; sample++) {
+            boolean lost = next < truncated.length && sample == truncated[next];
+            // the frame's last byte is lost, so the decoder finds the next boundary byte inside it
+            stream.read((long) ((sample * PERIOD_MS + 20) * 1e6), sample, lost);
+            assertEquals(next, gaps.size()); // reported with the frame just after it
+            if (lost) {
+                next++;
+            }
+        }
+
+        assertEquals(3, stream.frameDecoder.getTruncatedFrames());
+        assertEquals(3, gapFiller.getGapCount());
+        assertEquals(3, gapFiller.getMissingSamples());
+        assertEquals(3, gapFiller.getSyntheticFrameCount());
+        for (int i = 0; i < truncated.length; i++) {
+            assertEquals(truncated[i], gaps.get(i)[0]);
+            assertEquals(1, gaps.get(i)[1]);
+            assertEquals(1, gaps.get(i)[4]);
+        }
+        // each truncated frame is filled in its place, between the frames either side of it
+        assertEquals(120 * 60, series.rawFrames.size());
+        for (int i = 0; i < series.rawFrames.size(); i++) {
+            assertEquals(i % 100, PackedFrame.pulseWaveForm(series.rawFrames.get(i)));
+            assertEquals(WALL_TIME + i * PERIOD_MS + 20, series.times.get(i), 1); // read 20 ms late
+        }
+    }
+
+    /**
+     * Reads CMS50FW bytes through a {@link FrameDecoder} and times each frame the way
+     * the data read task does, passing on the frames the decoder dropped as truncated.
+     */
+    private static class DecodedStream implements FrameDecoder.FrameHandler {
+        final FrameDecoder frameDecoder = new FrameDecoder();
+        private final FrameClock frameClock;
+        private final GapFiller gapFiller;
+        private final Series series;
+        private final byte[] frame = new byte[FrameDecoder.FRAME_LENGTH];
+        private long truncatedFrames = 0;
+        private long hostNanos;
+
+        DecodedStream(FrameClock frameClock, GapFiller gapFiller, Series series) {
+            this.frameClock = frameClock;
+            this.gapFiller = gapFiller;
+            this.series = series;
+        }
+
+        void read(long hostNanos, int sample, boolean lastByteLost) {
+            this.hostNanos = hostNanos;
+            frame[0] = (byte) 0x80;
+            frame[1] = 5;
+            frame[2] = (byte) (sample % 100);
+            frame[4] = 70;
+            frame[5] = 97;
+            frameDecoder.write(frame, 0, lastByteLost ? frame.length - 1 : frame.length);
+            frameDecoder.decode(this);
+        }
+
+        @Override
+        public void onFrame(long rawFrame) {
+            long truncated = frameDecoder.getTruncatedFrames();
+            frameClock.onFrame(hostNanos, (int) (truncated - truncatedFrames));
+            truncatedFrames = truncated;
+            gapFiller.onFrame(rawFrame);
+            series.onPackedFrameArrived(new PackedFrame().set(frameClock.getTime(), rawFrame));
+        }
+    }
+
+    /**
+     * Records each gap as {first missing sample index, missing samples, start time, duration ms, filled}.
+     */
+    private static class GapRecorder implements GapListener {
+        private final List<long[]> gaps;
+
+        GapRecorder(List<long[]> gaps) {
+            this.gaps = gaps;
+        }
+
+        @Override
+        public void onGap(long firstMissingSampleIndex, int missingSamples, long startTime, long durationMs, boolean filled) {
+            gaps.add(new long[]{firstMissingSampleIndex, missingSamples, startTime, durationMs, filled ? 1 : 0});
+        }
+    }
+
+    /**
+     * Everything a fixed rate consumer would see: real and synthetic frames, in order.
+     */
+    private static class Series implements PackedFrameListener {
+        final List<Long> times = new ArrayList<Long>();
+        final List<Long> rawFrames = new ArrayList<Long>();
+        private final List<Boolean> synthetics = new ArrayList<Boolean>();
+        int synthetic = 0;
+
+        @Override
+        public void onPackedFrameArrived(PackedFrame packedFrame) {
+            times.add(packedFrame.time());
+            rawFrames.add(packedFrame.rawFrame());
+            synthetics.add(packedFrame.isSynthetic());
+            if (packedFrame.isSynthetic()) {
+                synthetic++;
+            }
+        }
+
+        boolean isSynthetic(int i) {
+            return synthetics.get(i);
+        }
+
+        int framesBefore(double time) {
+            int count = 0;
+            for (long t : times) {
+                if (t < time) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectableChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs {@link MultiDeviceFrameReader} against simulated, in-process device streams
+ * and checks the number of threads: it does not grow with the number of selectable
+ * devices, and is one per blocking stream, such as a Bluetooth socket, plus the
+ * keep-alive thread. Also checks that streams which end or fail are reported.
+ */
+public class MultiDeviceFrameReaderTest {
+
+    private static final int READER_THREADS = 2;
+    private static final int FRAMES_PER_DEVICE = 120;
+    private static final int SPEEDUP = 10;
+    private static final long TIMEOUT_MS = 20000;
+
+    @Test
+    public void threadCountStaysFlatAsSelectableDevicesAreAdded() throws Exception {
+        int[] deviceCounts = new int[]{1, 4, 16, 32};
+        for (int deviceCount : deviceCounts) {
+            awaitLibraryThreadCount(0);
+            CountingListener listener = new CountingListener();
+            MultiDeviceFrameReader reader = new MultiDeviceFrameReader(READER_THREADS, listener);
+            List<PipeTransport> transports = new ArrayList<PipeTransport>();
+            for (int i = 0; i < deviceCount; i++) {
+                PipeTransport transport = new PipeTransport();
+                transports.add(transport);
+                reader.addDevice("device-" + i, transport);
+            }
+            for (int frame = 0; frame < FRAMES_PER_DEVICE; frame++) {
+                for (PipeTransport transport : transports) {
+                    transport.sendFrame();
+                }
+            }
+
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (listener.devicesWithEnoughFrames() < deviceCount && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            int libraryThreads = countLibraryThreads();
+            reader.shutdown();
+            for (PipeTransport transport : transports) {
+                transport.close();
+            }
+
+            assertEquals(deviceCount, listener.connectedDevices.get());
+            assertEquals(deviceCount, listener.devicesWithEnoughFrames());
+            assertEquals(0, listener.disconnectedDevices.get());
+            assertEquals("threads for " + deviceCount + " devices", READER_THREADS + 1, libraryThreads);
+            assertEquals(libraryThreads, reader.getThreadCount());
+        }
+    }
+
+    @Test
+    public void eachBlockingStreamHasAThreadOfItsOwn() throws Exception {
+        int[] deviceCounts = new int[]{1, 4, 16};
+        for (int deviceCount : deviceCounts) {
+            awaitLibraryThreadCount(0);
+            CountingListener listener = new CountingListener();
+            MultiDeviceFrameReader reader = new MultiDeviceFrameReader(READER_THREADS, listener);
+            for (int i = 0; i < deviceCount; i++) {
+                // streams which outlast the test, so every device is still being read when counted
+                reader.addDevice("device-" + i, new TimedFrameStream(SPEEDUP, 100 * FRAMES_PER_DEVICE),
+                        new ByteArrayOutputStream());
+            }
+
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (listener.devicesWithEnoughFrames() < deviceCount && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            int libraryThreads = countLibraryThreads();
+            int reportedThreads = reader.getThreadCount();
+            reader.shutdown();
+
+            assertEquals(deviceCount, listener.devicesWithEnoughFrames());
+            assertEquals(0, listener.disconnectedDevices.get());
+            // the reader threads are never started, since no device is selectable
+            assertEquals("threads for " + deviceCount + " devices", deviceCount + 1, libraryThreads);
+            assertEquals(libraryThreads, reportedThreads);
+        }
+    }
+
+    @Test
+    public void endOfStreamIsReportedWithoutPolling() throws Exception {
+        CountingListener listener = new CountingListener();
+        MultiDeviceFrameReader reader = new MultiDeviceFrameReader(1, listener);
+        PipeTransport selectable = new PipeTransport();
+        reader.addDevice("selectable", selectable);
+        reader.addDevice("stream", new TimedFrameStream(SPEEDUP, FRAMES_PER_DEVICE), new ByteArrayOutputStream());
+        for (int frame = 0; frame < FRAMES_PER_DEVICE; frame++) {
+            selectable.sendFrame();
+        }
+        selectable.endStream();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (listener.disconnectedDevices.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        reader.shutdown();
+        selectable.close();
+
+        assertEquals(2, listener.disconnectedDevices.get());
+        assertEquals(2, listener.devicesWithEnoughFrames());
+        assertEquals(0, reader.getDeviceCount());
+    }
+
+    @Test
+    public void failedStreamIsReportedAndDropped() throws Exception {
+        CountingListener listener = new CountingListener();
+        MultiDeviceFrameReader reader = new MultiDeviceFrameReader(1, listener);
+        reader.addDevice("broken", new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        }, new ByteArrayOutputStream());
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (listener.disconnectedDevices.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        reader.shutdown();
+
+        assertEquals(1, listener.disconnectedDevices.get());
+        assertEquals(0, reader.getDeviceCount());
+    }
+
+    private static int countLibraryThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith("cms50fw-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void awaitLibraryThreadCount(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (countLibraryThreads() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, countLibraryThreads());
+    }
+
+    private static class CountingListener implements MultiDeviceListener {
+        final ConcurrentHashMap<String, AtomicInteger> frames = new ConcurrentHashMap<String, AtomicInteger>();
+        final AtomicInteger connectedDevices = new AtomicInteger();
+        final AtomicInteger disconnectedDevices = new AtomicInteger();
+
+        int devicesWithEnoughFrames() {
+            int count = 0;
+            for (AtomicInteger deviceFrames : frames.values()) {
+                if (deviceFrames.get() >= FRAMES_PER_DEVICE) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public void onDeviceConnected(String deviceId) {
+            frames.put(deviceId, new AtomicInteger());
+            connectedDevices.incrementAndGet();
+        }
+
+        @Override
+        public void onPackedFrameArrived(String deviceId, PackedFrame packedFrame) {
+            frames.get(deviceId).incrementAndGet();
+        }
+
+        @Override
+        public void onDeviceDisconnected(String deviceId) {
+            disconnectedDevices.incrementAndGet();
+        }
+
+        @Override
+        public void onLogEvent(long timeMs, String message) {
+        }
+    }
+
+    /**
+     * Produces a fixed number of CMS50FW frames at a multiple of the real 60 Hz rate,
+     * blocking like a socket stream until the next frame is due, and then ends.
+     */
+    private static class TimedFrameStream extends InputStream {
+        private final long startNanos = System.nanoTime();
+        private final int speedup;
+        private final long totalBytes;
+        private long bytesRead = 0;
+
+        TimedFrameStream(int speedup, int frames) {
+            this.speedup = speedup;
+            this.totalBytes = (long) frames * FrameDecoder.FRAME_LENGTH;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (bytesRead >= totalBytes) {
+                return -1;
+            }
+            long due;
+            while ((due = dueBytes() - bytesRead) <= 0) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            int count = (int) Math.min(len, due);
+            long rawFrame = PackedFrame.pack(50, 5, 70, 97);
+            for (int i = 0; i < count; i++) {
+                int shift = 56 - 8 * (int) (bytesRead % FrameDecoder.FRAME_LENGTH);
+                b[off + i] = (byte) (rawFrame >>> shift);
+                bytesRead++;
+            }
+            return count;
+        }
+
+        private long dueBytes() {
+            long frames = (System.nanoTime() - startNanos) * 60 * speedup / 1000000000L;
+            return Math.min(totalBytes, frames * FrameDecoder.FRAME_LENGTH);
+        }
+    }
+
+    /**
+     * A selectable device simulated by a pipe: the test writes frames into one end and
+     * the reader selects on the other.
+     */
+    private static class PipeTransport implements SelectableTransport {
+        private final Pipe pipe;
+        private final ByteBuffer frameBuffer = ByteBuffer.allocate(FrameDecoder.FRAME_LENGTH);
+
+        PipeTransport() throws IOException {
+            pipe = Pipe.open();
+            pipe.source().configureBlocking(false);
+        }
+
+        void sendFrame() throws IOException {
+            frameBuffer.clear();
+            frameBuffer.putLong(PackedFrame.pack(50, 5, 70, 97)).flip();
+            while (frameBuffer.hasRemaining()) {
+                pipe.sink().write(frameBuffer);
+            }
+        }
+
+        void endStream() throws IOException {
+            pipe.sink().close();
+        }
+
+        @Override
+        public SelectableChannel getSelectableChannel() {
+            return pipe.source();
+        }
+
+        @Override
+        public int readAvailable(ByteBuffer buffer) throws IOException {
+            return pipe.source().read(buffer);
+        }
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return readAvailable(ByteBuffer.wrap(buffer, offset, length));
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            // commands are ignored
+        }
+
+        @Override
+        public boolean isOpen() {
+            return pipe.source().isOpen();
+        }
+
+        @Override
+        public void close() {
+            try {
+                pipe.sink().close();
+                pipe.source().close();
+            } catch (IOException e) {
+                // nothing more can be done with it
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the packed frame accessors and that the decode path through a
+ * {@link PackedFrame} flyweight does not allocate.
+ */
+public class PackedFrameTest {
+
+    private static final int FRAMES = 10000;
+
+    @Test
+    public void accessorsMatchDataFrame() {
+        long rawFrame = PackedFrame.pack(100, 9, 72, 97);
+        DataFrame dataFrame = new PackedFrame().set(1234L, rawFrame).toDataFrame();
+
+        assertEquals(1234L, dataFrame.time);
+        assertEquals(100, dataFrame.pulseWaveForm);
+        assertEquals(9, dataFrame.pulseIntensity);
+        assertEquals(72, dataFrame.pulseRate);
+        assertEquals(97, dataFrame.spo2Percentage);
+        assertFalse(dataFrame.isFingerOutOfSleeve);
+        assertTrue(PackedFrame.isFingerOutOfSleeve(PackedFrame.pack(64, 0, 127, 127)));
+    }
+
+    @Test
+    public void syntheticMarkLeavesValuesAlone() {
+        long rawFrame = PackedFrame.pack(100, 9, 72, 97);
+        long synthetic = PackedFrame.synthetic(rawFrame);
+
+        assertFalse(PackedFrame.isSynthetic(rawFrame));
+        assertTrue(PackedFrame.isSynthetic(synthetic));
+        assertEquals(PackedFrame.pulseWaveForm(rawFrame), PackedFrame.pulseWaveForm(synthetic));
+        assertEquals(PackedFrame.pulseIntensity(rawFrame), PackedFrame.pulseIntensity(synthetic));
+        assertEquals(PackedFrame.pulseRate(rawFrame), PackedFrame.pulseRate(synthetic));
+        assertEquals(PackedFrame.spo2Percentage(rawFrame), PackedFrame.spo2Percentage(synthetic));
+    }
+
+    @Test
+    public void hotPathAllocatesNothingPerFrame() throws IOException {
+        final byte[] chunk = new byte[FrameDecoder.FRAME_LENGTH * 16];
+        for (int i = 0; i < 16; i++) {
+            putFrame(chunk, i * FrameDecoder.FRAME_LENGTH, PackedFrame.pack(i, i % 16, 60 + i, 95));
+        }
+        final FrameDecoder frameDecoder = new FrameDecoder();
+        final SummingListener listener = new SummingListener();
+        final PackedFrame packedFrame = new PackedFrame();
+
+        FrameTestSupport.assertAllocatesNothingPer(FRAMES, "frames", new FrameTestSupport.Pass() {
+            @Override
+            public void run() {
+                runFrames(frameDecoder, chunk, packedFrame, listener, FRAMES);
+            }
+        });
+        assertEquals(2 * FRAMES, listener.frames);
+    }
+
+    private static void runFrames(FrameDecoder frameDecoder, byte[] chunk, final PackedFrame packedFrame,
+                                  final PackedFrameListener listener, int frames) {
+        FrameDecoder.FrameHandler frameHandler = new FrameDecoder.FrameHandler() {
+            @Override
+            public void onFrame(long rawFrame) {
+                listener.onPackedFrameArrived(packedFrame.set(0L, rawFrame));
+            }
+        };
+        for (int decoded = 0; decoded < frames; ) {
+            frameDecoder.write(chunk, 0, chunk.length);
+            decoded += frameDecoder.decode(frameHandler);
+        }
+    }
+
+    private static class SummingListener implements PackedFrameListener {
+        int frames;
+        long sum;
+
+        @Override
+        public void onPackedFrameArrived(PackedFrame packedFrame) {
+            frames++;
+            sum += packedFrame.spo2Percentage() + packedFrame.pulseRate() + packedFrame.pulseWaveForm();
+        }
+    }
+
+    private static void putFrame(byte[] destination, int offset, long rawFrame) {
+        for (int i = 0; i < FrameDecoder.FRAME_LENGTH; i++) {
+            destination[offset + i] = (byte) (rawFrame >>> (56 - 8 * i));
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link QuantileSketch} against exact ranks of random streams.
+ */
+public class QuantileSketchTest {
+
+    // the documented bound over a whole distribution at k = 200
+    private static final double RANK_ERROR = 0.0165;
+
+    @Test
+    public void smallStreamIsExact() {
+        QuantileSketch sketch = new QuantileSketch(200, new Random(1));
+        for (int i = 100; i > 0; i--) {
+            sketch.update(i);
+        }
+        assertEquals(1f, sketch.getMin(), 0);
+        assertEquals(100f, sketch.getMax(), 0);
+        assertEquals(51f, sketch.getQuantile(0.5), 0);
+        assertEquals(6f, sketch.getQuantile(0.05), 0);
+        assertEquals(0.89, sketch.getRank(90), 1e-12);
+    }
+
+    @Test
+    public void ranksOfLongStreamAreWithinBound() {
+        Random random = new Random(2);
+        QuantileSketch sketch = new QuantileSketch(200, new Random(3));
+        float[] values = new float[2000000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (float) random.nextGaussian();
+            sketch.update(values[i]);
+        }
+        Arrays.sort(values);
+        assertRanks(sketch, values);
+        assertEquals(values[0], sketch.getMin(), 0);
+        assertEquals(values[values.length - 1], sketch.getMax(), 0);
+    }
+
+    @Test
+    public void mergedSketchesAreWithinBound() {
+        Random random = new Random(4);
+        QuantileSketch merged = new QuantileSketch(200, new Random(5));
+        float[] values = new float[1000000];
+        int count = 0;
+        for (int part = 0; part < 20; part++) {
+            // parts of different sizes and ranges, some with a different k
+            QuantileSketch sketch = new QuantileSketch(part % 3 == 0 ? 400 : 200, new Random(part));
+            int size = 10000 + random.nextInt(80000);
+            for (int i = 0; i < size; i++) {
+                float value = part * 10 + random.nextInt(500);
+                sketch.update(value);
+                values[count++] = value;
+            }
+            merged.merge(sketch);
+        }
+        values = Arrays.copyOf(values, count);
+        Arrays.sort(values);
+        assertEquals(count, merged.getN());
+        assertRanks(merged, values);
+    }
+
+    @Test
+    public void serializedSketchGivesSameAnswers() throws IOException {
+        QuantileSketch sketch = new QuantileSketch();
+        Random random = new Random(6);
+        for (int i = 0; i < 300000; i++) {
+            sketch.update(80 + random.nextInt(20));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        sketch.writeTo(new DataOutputStream(bytes));
+        // fixed memory: a few KB however long the stream
+        assertTrue(bytes.size() + " bytes", bytes.size() < 4 * 1024);
+
+        QuantileSketch copy = QuantileSketch.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(sketch.getN(), copy.getN());
+        assertEquals(sketch.getK(), copy.getK());
+        for (double fraction = 0; fraction <= 1; fraction += 0.01) {
+            assertEquals(sketch.getQuantile(fraction), copy.getQuantile(fraction), 0);
+        }
+        assertEquals(sketch.getRank(90), copy.getRank(90), 0);
+        // and it keeps working
+        copy.update(50);
+        assertEquals(50f, copy.getMin(), 0);
+    }
+
+    private static void assertRanks(QuantileSketch sketch, float[] sorted) {
+        for (double fraction = 0.01; fraction < 1; fraction += 0.01) {
+            float quantile = sketch.getQuantile(fraction);
+            // with ties, any rank from the first to the last copy of the value is right
+            double low = (double) lowerBound(sorted, quantile) / sorted.length;
+            double high = (double) upperBound(sorted, quantile) / sorted.length;
+            assertTrue("quantile " + fraction + " = " + quantile + " has rank " + low + " to " + high,
+                    fraction >= low - RANK_ERROR && fraction <= high + RANK_ERROR);
+
+            float value = sorted[(int) (fraction * sorted.length)];
+            double exact = (double) lowerBound(sorted, value) / sorted.length;
+            assertEquals("rank of " + value, exact, sketch.getRank(value), RANK_ERROR);
+        }
+    }
+
+    private static int lowerBound(float[] sorted, float value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int upperBound(float[] sorted, float value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] <= value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the buckets of a {@link RollupPyramid} against aggregates computed directly from the frames.
+ */
+public class RollupPyramidTest {
+
+    private static final long START_TIME = 1792281600000L;
+
+    @Test
+    public void bucketsMatchFramesAtEveryResolution() {
+        RollupPyramid pyramid = new RollupPyramid();
+        Random random = new Random(5);
+        int frames = 2 * 60 * 60 * 60 + 12345; // a little over two hours
+        long[] times = new long[frames];
+        int[] rates = new int[frames];
+        boolean[] fingerOut = new boolean[frames];
+        for (int i = 0; i < frames; i++) {
+            times[i] = START_TIME + i * 1000L / 60;
+            rates[i] = 55 + random.nextInt(70);
+            fingerOut[i] = i / 600 % 7 == 3;
+            pyramid.add(new DataFrame(times[i], random.nextInt(128), random.nextInt(16), rates[i],
+                    fingerOut[i] ? 127 : 90 + random.nextInt(10), fingerOut[i]));
+        }
+
+        for (RollupPyramid.Resolution resolution : RollupPyramid.Resolution.values()) {
+            Collector collector = new Collector();
+            pyramid.query(Long.MIN_VALUE, Long.MAX_VALUE, resolution, FrameChannel.PULSE_RATE, collector);
+            int bucket = 0;
+            int i = 0;
+            while (i < frames) {
+                long start = times[i] / resolution.durationMs() * resolution.durationMs();
+                int count = 0;
+                int min = Integer.MAX_VALUE;
+                int max = Integer.MIN_VALUE;
+                long sum = 0;
+                for (; i < frames && times[i] < start + resolution.durationMs(); i++) {
+                    if (!fingerOut[i]) {
+                        count++;
+                        min = Math.min(min, rates[i]);
+                        max = Math.max(max, rates[i]);
+                        sum += rates[i];
+                    }
+                }
+                if (count == 0) {
+                    continue; // all finger out, so not reported
+                }
+                String where = resolution + " bucket at " + start;
+                assertEquals(where, start, (long) collector.starts.get(bucket));
+                assertEquals(where, count, (int) collector.counts.get(bucket));
+                assertEquals(where, min, (int) collector.mins.get(bucket));
+                assertEquals(where, max, (int) collector.maxes.get(bucket));
+                assertEquals(where, (double) sum / count, collector.means.get(bucket), 1e-9);
+                bucket++;
+            }
+            assertEquals(resolution.toString(), bucket, collector.starts.size());
+        }
+    }
+
+    @Test
+    public void queryPicksFinestResolutionWithinBudget() {
+        RollupPyramid pyramid = new RollupPyramid();
+        for (long time = START_TIME; time < START_TIME + 9 * 60 * 60 * 1000L; time += 100) {
+            pyramid.add(time, 96, 70, 8, false);
+        }
+        long oneMinute = 60 * 1000L;
+        long oneHour = 60 * oneMinute;
+        assertEquals(RollupPyramid.Resolution.SECOND, pyramid.chooseResolution(START_TIME, START_TIME + oneMinute, 500));
+        assertEquals(RollupPyramid.Resolution.MINUTE, pyramid.chooseResolution(START_TIME, START_TIME + 8 * oneHour, 500));
+        assertEquals(RollupPyramid.Resolution.HOUR, pyramid.chooseResolution(START_TIME, START_TIME + 8 * oneHour, 20));
+
+        Collector collector = new Collector();
+        int points = pyramid.query(START_TIME, START_TIME + 8 * oneHour - 1, 500, FrameChannel.SPO2_PERCENTAGE, collector);
+        assertEquals(480, points);
+        assertEquals(600, (int) collector.counts.get(0));
+        assertEquals(96, (int) collector.mins.get(0));
+    }
+
+    @Test
+    public void oldSecondsFallBackToCoarserResolution() {
+        RollupPyramid pyramid = new RollupPyramid(60, 60, 24);
+        for (int second = 0; second < 3 * 60; second++) {
+            pyramid.add(START_TIME + second * 1000L, 95, 60 + second % 10, 5, false);
+        }
+        // the first two minutes have left the ring of 60 seconds
+        assertEquals(RollupPyramid.Resolution.MINUTE, pyramid.chooseResolution(START_TIME, START_TIME + 30000, 1000));
+        assertEquals(RollupPyramid.Resolution.SECOND,
+                pyramid.chooseResolution(START_TIME + 150000, START_TIME + 170000, 1000));
+        Collector collector = new Collector();
+        assertEquals(60, pyramid.query(Long.MIN_VALUE, Long.MAX_VALUE, RollupPyramid.Resolution.SECOND,
+                FrameChannel.PULSE_RATE, collector));
+        assertEquals(START_TIME + 120000, (long) collector.starts.get(0));
+
+        // a late frame for a second which has been overwritten is ignored there, but counted per minute
+        pyramid.add(START_TIME + 500, 95, 200, 5, false);
+        collector = new Collector();
+        pyramid.query(START_TIME, START_TIME, RollupPyramid.Resolution.MINUTE, FrameChannel.PULSE_RATE, collector);
+        assertEquals(61, (int) collector.counts.get(0));
+        assertEquals(200, (int) collector.maxes.get(0));
+        assertEquals(0, pyramid.query(START_TIME, START_TIME, RollupPyramid.Resolution.SECOND,
+                FrameChannel.PULSE_RATE, new Collector()));
+    }
+
+    private static class Collector implements RollupPyramid.BucketHandler {
+        final List<Long> starts = new ArrayList<Long>();
+        final List<Integer> counts = new ArrayList<Integer>();
+        final List<Integer> mins = new ArrayList<Integer>();
+        final List<Integer> maxes = new ArrayList<Integer>();
+        final List<Double> means = new ArrayList<Double>();
+
+        @Override
+        public void onBucket(long startTime, long durationMs, int count, int min, int max, double mean) {
+            starts.add(startTime);
+            counts.add(count);
+            mins.add(min);
+            maxes.add(max);
+            means.add(mean);
+        }
+    }
+}
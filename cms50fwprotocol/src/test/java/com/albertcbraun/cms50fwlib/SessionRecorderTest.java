@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips unusual frame sequences through {@link SessionRecorder} and {@link SessionReader}.
+ * The round trip on realistic overnight data is in the simulator module.
+ */
+public class SessionRecorderTest {
+
+    @Test
+    public void extremeValuesRoundTrip() throws IOException {
+        long[] frames = new long[1000];
+        for (int i = 0; i < frames.length; i++) {
+            // every value jumps as far as it can, so every run needs the escape
+            int high = i % 2 == 0 ? 0 : 127;
+            frames[i] = PackedFrame.pack(high, 127 - high, high, 127 - high);
+        }
+        frames[500] = PackedFrame.pack(64, 0, 127, 127); // finger out
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SessionRecorder recorder = new SessionRecorder(bytes, 64);
+        for (int i = 0; i < frames.length; i++) {
+            recorder.record(i * 1000L / 60, frames[i]);
+        }
+        recorder.close();
+
+        SessionReader reader = new SessionReader(new ByteArrayInputStream(bytes.toByteArray()));
+        PackedFrame frame = new PackedFrame();
+        for (int i = 0; i < frames.length; i++) {
+            assertTrue(reader.next(frame));
+            assertEquals(frames[i], frame.rawFrame());
+            assertEquals(i, reader.sampleIndex());
+        }
+        assertTrue(PackedFrame.isFingerOutOfSleeve(frames[500]));
+        assertFalse(reader.next(frame));
+    }
+
+    @Test
+    public void gapsAndClockJumpsStartNewBlocks() throws IOException {
+        long frameA = PackedFrame.pack(50, 7, 72, 97);
+        long frameB = PackedFrame.pack(51, 7, 72, 97);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SessionRecorder recorder = new SessionRecorder(bytes);
+        recorder.record(100000, frameA);
+        recorder.record(100016, frameB);
+        // 5 seconds lost: 300 samples, less the one expected next
+        recorder.record(105016, frameA);
+        // clock set back by a minute
+        recorder.record(45033, frameB);
+        recorder.close();
+
+        SessionReader reader = new SessionReader(new ByteArrayInputStream(bytes.toByteArray()));
+        PackedFrame frame = new PackedFrame();
+        long[][] expected = {
+                {0, 100000, frameA},
+                {1, 100016, frameB},
+                {300, 105016, frameA},
+                {301, 45033, frameB},
+        };
+        for (long[] row : expected) {
+            assertTrue(reader.next(frame));
+            assertEquals(row[0], reader.sampleIndex());
+            assertEquals(row[1], frame.time());
+            assertEquals(row[2], frame.rawFrame());
+        }
+        assertFalse(reader.next(frame));
+    }
+
+    @Test
+    public void onPackedFrameArrivedRecords() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SessionRecorder recorder = new SessionRecorder(bytes);
+        PackedFrame frame = new PackedFrame();
+        recorder.onPackedFrameArrived(frame.set(5000, PackedFrame.pack(40, 5, 65, 98)));
+        recorder.close();
+
+        assertEquals(1, recorder.getFramesRecorded());
+        assertEquals(bytes.size(), recorder.getBytesWritten());
+        SessionReader reader = new SessionReader(new ByteArrayInputStream(bytes.toByteArray()));
+        assertTrue(reader.next(frame));
+        assertEquals(5000, frame.time());
+        assertEquals(65, frame.pulseRate());
+    }
+
+    @Test
+    public void flushFromAnotherThreadKeepsEveryFrame() throws Exception {
+        final int frames = 20000;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final SessionRecorder recorder = new SessionRecorder(bytes, 64);
+        Thread readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                PackedFrame frame = new PackedFrame();
+                for (int i = 0; i < frames; i++) {
+                    recorder.onPackedFrameArrived(frame.set(i * 1000L / 60, PackedFrame.pack(i % 128, 3, 70, 96)));
+                }
+            }
+        });
+        readerThread.start();
+        while (readerThread.isAlive()) {
+            recorder.flush();
+        }
+        recorder.close();
+
+        assertEquals(null, recorder.getError());
+        SessionReader reader = new SessionReader(new ByteArrayInputStream(bytes.toByteArray()));
+        PackedFrame frame = new PackedFrame();
+        for (int i = 0; i < frames; i++) {
+            assertTrue(reader.next(frame));
+            assertEquals(PackedFrame.pack(i % 128, 3, 70, 96), frame.rawFrame());
+        }
+        assertFalse(reader.next(frame));
+    }
+
+    @Test
+    public void rejectsOtherFilesAndTruncatedRecordings() throws IOException {
+        try {
+            new SessionReader(new ByteArrayInputStream(new byte[16]));
+            fail();
+        } catch (IOException expected) {
+            // not a recording
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SessionRecorder recorder = new SessionRecorder(bytes);
+        for (int i = 0; i < 100; i++) {
+            recorder.record(i * 17, PackedFrame.pack(i, 3, 70, 96));
+        }
+        recorder.close();
+        byte[] truncated = Arrays.copyOf(bytes.toByteArray(), bytes.size() - 3);
+        SessionReader reader = new SessionReader(new ByteArrayInputStream(truncated));
+        try {
+            reader.next(new PackedFrame());
+            fail();
+        } catch (EOFException expected) {
+            // the block is cut short
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks {@link SlidingWindow} and {@link WindowedStatistics} against statistics
+ * recomputed from all the values for every frame.
+ */
+public class SlidingWindowTest {
+
+    @Test
+    public void matchesStatisticsRecomputedEveryFrame() {
+        Random random = new Random(13);
+        int frames = 20000;
+        long[] times = new long[frames];
+        int[] values = new int[frames];
+        long[] windowLengths = {1, 250, 1000, 60000};
+        SlidingWindow[] windows = new SlidingWindow[windowLengths.length];
+        for (int w = 0; w < windows.length; w++) {
+            windows[w] = new SlidingWindow(windowLengths[w]);
+        }
+        long time = 0;
+        for (int i = 0; i < frames; i++) {
+            // mostly 60 Hz, with bursts of equal times and the odd long gap
+            time += random.nextInt(50) == 0 ? random.nextInt(5000) : random.nextInt(4) == 0 ? 0 : 16;
+            times[i] = time;
+            values[i] = random.nextInt(10) == 0 ? random.nextInt(128) : 90 + random.nextInt(8);
+            for (int w = 0; w < windows.length; w++) {
+                windows[w].add(time, values[i]);
+                assertWindow(windows[w], times, values, i);
+            }
+        }
+    }
+
+    @Test
+    public void fingerOutFramesOnlyMoveWindowsForward() {
+        WindowedStatistics statistics = new WindowedStatistics();
+        SlidingWindow spo2 = statistics.window(FrameChannel.SPO2_PERCENTAGE, 60000);
+        SlidingWindow pulse = statistics.window(FrameChannel.PULSE_RATE, 5 * 60000);
+        assertSame(spo2, statistics.window(FrameChannel.SPO2_PERCENTAGE, 60000));
+        try {
+            statistics.window(FrameChannel.FINGER_OUT_OF_SLEEVE, 60000);
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // finger out frames only move the windows
+        }
+
+        for (int i = 0; i < 3600; i++) {
+            statistics.add(new DataFrame(i * 1000L / 60, 50, 5, 60 + i % 20, 94 + i % 4, false));
+        }
+        assertEquals(3600, spo2.count());
+        assertEquals(94, spo2.min());
+        assertEquals(97, spo2.max());
+        assertEquals(95.5, spo2.mean(), 1e-9);
+        assertEquals(79, pulse.max());
+
+        // 30 seconds with the finger out, then both windows have moved on
+        for (int i = 3600; i < 5400; i++) {
+            statistics.add(new DataFrame(i * 1000L / 60, 64, 0, 127, 127, true));
+        }
+        assertEquals(1800, spo2.count());
+        assertEquals(97, spo2.max());
+        assertEquals(3600, pulse.count());
+        for (int i = 5400; i < 9000; i++) {
+            statistics.add(i * 1000L / 60, 100, 100, 5, true);
+        }
+        assertEquals(0, spo2.count());
+        assertTrue(Double.isNaN(spo2.mean()));
+        assertEquals(Integer.MAX_VALUE, spo2.min());
+    }
+
+    @Test
+    public void updatesAndReadsAllocateNothing() throws IOException {
+        final WindowedStatistics statistics = new WindowedStatistics();
+        final SlidingWindow mean = statistics.window(FrameChannel.SPO2_PERCENTAGE, 60000);
+        final SlidingWindow max = statistics.window(FrameChannel.PULSE_RATE, 5 * 60000);
+        final int frames = 100000;
+        final long[] checksum = new long[1];
+
+        // the first pass is the warm up, in which the rings grow to fit the windows
+        FrameTestSupport.assertAllocatesNothingPer(frames, "frames", new FrameTestSupport.Pass() {
+            int i = 0;
+
+            @Override
+            public void run() {
+                for (int end = i + frames; i < end; i++) {
+                    statistics.add(i * 1000L / 60, 90 + i % 10, 60 + i % 30, 5, i % 1000 == 0);
+                    checksum[0] += (long) mean.mean() + max.max() + mean.min() + max.count();
+                }
+            }
+        });
+
+        assertTrue(checksum[0] > 0);
+    }
+
+    private static void assertWindow(SlidingWindow window, long[] times, int[] values, int newest) {
+        int count = 0;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        long sum = 0;
+        for (int i = newest; i >= 0 && times[i] > times[newest] - window.getWindowMs(); i--) {
+            count++;
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
+            sum += values[i];
+        }
+        String where = window.getWindowMs() + " ms window at frame " + newest;
+        assertEquals(where, count, window.count());
+        assertEquals(where, min, window.min());
+        assertEquals(where, max, window.max());
+        assertEquals(where, (double) sum / count, window.mean(), 1e-9);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams frames end to end over a loopback socket, through {@link SocketChannelTransport}
+ * and {@link ConnectionStateMachine}, and measures the throughput.
+ */
+public class SocketChannelTransportTest {
+
+    private static final int FRAMES = 204800; // a whole number of writes
+    private static final int FRAMES_PER_WRITE = 512;
+    private static final long MIN_FRAMES_PER_SECOND = 60000; // 1000 times the CMS50FW rate
+    private static final long TIMEOUT_MS = 20000;
+
+    @Test
+    public void streamsFramesOverLoopback() throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        final AtomicReference<byte[]> firstCommand = new AtomicReference<byte[]>();
+        Thread device = startDevice(server, firstCommand);
+
+        final SocketChannelTransport transport = new SocketChannelTransport(server.socket().getLocalSocketAddress());
+        final AtomicInteger frames = new AtomicInteger();
+        final ConnectionStateMachine[] machine = new ConnectionStateMachine[1];
+        machine[0] = new ConnectionStateMachine(transport, new ReconnectPolicy(1000, 1000, 10000, 60000, 0),
+                new FrameDecoder.FrameHandler() {
+                    @Override
+                    public void onFrame(long rawFrame) {
+                        if (frames.incrementAndGet() == FRAMES) {
+                            machine[0].stop();
+                        }
+                    }
+                }, new NoOpListener());
+
+        long start = System.nanoTime();
+        runWithTimeout(machine[0]);
+        long elapsedNanos = System.nanoTime() - start;
+        transport.close();
+        device.join(TIMEOUT_MS);
+        server.close();
+
+        long framesPerSecond = FRAMES * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        assertEquals(FRAMES, frames.get());
+        assertEquals(CMS50FWCommand.START_DATA.asByte(), firstCommand.get()[2]);
+        assertTrue(framesPerSecond + " frames/s", framesPerSecond >= MIN_FRAMES_PER_SECOND);
+    }
+
+    @Test
+    public void closeUnblocksRead() throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        final SocketChannelTransport transport = new SocketChannelTransport(server.socket().getLocalSocketAddress());
+        transport.open();
+        SocketChannel silentDevice = server.accept();
+        assertTrue(transport.isOpen());
+
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    transport.read(new byte[64], 0, 64);
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+            }
+        });
+        reader.start();
+        Thread.sleep(100);
+        transport.close();
+        reader.join(TIMEOUT_MS);
+        silentDevice.close();
+        server.close();
+
+        assertFalse(reader.isAlive());
+        assertTrue(failure.get() instanceof IOException);
+        assertFalse(transport.isOpen());
+    }
+
+    private static void runWithTimeout(final ConnectionStateMachine machine) throws InterruptedException {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                machine.run();
+            }
+        });
+        thread.start();
+        thread.join(TIMEOUT_MS);
+        assertFalse(thread.isAlive());
+    }
+
+    /**
+     * Accepts one connection, waits for a command, then sends {@link #FRAMES} frames as fast as it can.
+     */
+    private static Thread startDevice(final ServerSocketChannel server, final AtomicReference<byte[]> firstCommand) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SocketChannel channel = server.accept();
+                    ByteBuffer command = ByteBuffer.allocate(CommandEncoder.COMMAND_LENGTH);
+                    while (command.hasRemaining() && channel.read(command) >= 0) {
+                        // keep reading until the whole command is in
+                    }
+                    firstCommand.set(command.array());
+                    ByteBuffer frames = ByteBuffer.allocate(FRAMES_PER_WRITE * FrameDecoder.FRAME_LENGTH);
+                    long rawFrame = PackedFrame.pack(50, 5, 70, 97);
+                    while (frames.hasRemaining()) {
+                        frames.putLong(rawFrame);
+                    }
+                    for (int sent = 0; sent < FRAMES; sent += FRAMES_PER_WRITE) {
+                        frames.clear();
+                        channel.write(frames);
+                        while (frames.hasRemaining()) {
+                            channel.write(frames);
+                        }
+                    }
+                    channel.close();
+                } catch (IOException e) {
+                    // the test fails on the frame count
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static class NoOpListener implements ConnectionStateListener {
+        @Override
+        public void onConnectionStateChanged(ConnectionStateMachine.State state) {
+        }
+
+        @Override
+        public void onDataResumed(long gapMs) {
+        }
+    }
+}
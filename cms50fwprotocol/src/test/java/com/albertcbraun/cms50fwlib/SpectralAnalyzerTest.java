@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwlib;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static com.albertcbraun.cms50fwlib.FrameTestSupport.time;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds {@link SpectralAnalyzer} pulse waves, sine waves and noise, and checks the peak
+ * frequencies and qualities it estimates.
+ */
+public class SpectralAnalyzerTest {
+
+    private static final int SECONDS = 60;
+
+    @Test
+    public void findsThePulseRate() {
+        for (double rate : new double[]{45, 72, 100, 150, 200}) {
+            SpectralAnalyzer analyzer = new SpectralAnalyzer(null);
+            Random random = new Random(11);
+            for (int sample = 0; sample < 30 * SECONDS; sample++) {
+                analyzer.onFrame(time(sample), PackedFrame.pack(pulseWave(sample, rate, random), 2, 100, 97));
+            }
+            assertEquals("rate " + rate, rate, analyzer.getPeakRate(), 2);
+            assertTrue("quality at " + rate + ": " + analyzer.getQuality(), analyzer.getQuality() > 0.9);
+        }
+    }
+
+    @Test
+    public void noiseHasLowQuality() {
+        SpectralAnalyzer analyzer = new SpectralAnalyzer(null);
+        Random random = new Random(13);
+        for (int sample = 0; sample < 30 * SECONDS; sample++) {
+            analyzer.onFrame(time(sample), PackedFrame.pack(64 + (int) Math.round(random.nextGaussian() * 20), 2, 100, 97));
+        }
+        assertTrue("quality " + analyzer.getQuality(), analyzer.getQuality() < 0.3);
+    }
+
+    @Test
+    public void estimatesAFewTimesPerSecondOnceTheWindowIsFull() {
+        final int[] estimates = {0};
+        SpectralAnalyzer analyzer = new SpectralAnalyzer(new SpectrumListener() {
+            @Override
+            public void onSpectrum(long time, double peakHz, double quality) {
+                estimates[0]++;
+            }
+        });
+        Random random = new Random(17);
+        for (int sample = 0; sample < 30 * SECONDS; sample++) {
+            boolean estimated = analyzer.onFrame(time(sample), PackedFrame.pack(pulseWave(sample, 80, random), 2, 80, 97));
+            if (sample < SpectralAnalyzer.DEFAULT_WINDOW_SAMPLES - 1) {
+                assertFalse(estimated);
+            }
+        }
+        int expected = (30 * SECONDS - SpectralAnalyzer.DEFAULT_WINDOW_SAMPLES) * SpectralAnalyzer.DEFAULT_ESTIMATES_PER_SECOND / SECONDS;
+        assertEquals(expected, estimates[0], 1);
+
+        // a frame without a reading starts over
+        estimates[0] = 0;
+        analyzer.onFrame(time(30 * SECONDS), PackedFrame.pack(64, 0, 127, 127));
+        for (int sample = 30 * SECONDS + 1; sample < 30 * SECONDS + SpectralAnalyzer.DEFAULT_WINDOW_SAMPLES; sample++) {
+            analyzer.onFrame(time(sample), PackedFrame.pack(pulseWave(sample, 80, random), 2, 80, 97));
+        }
+        assertEquals(0, estimates[0]);
+    }
+
+    @Test
+    public void bandAndWindowAreConfigurable() {
+        // 1024 samples put the bins 3.5 beats per minute apart; the band holds 40 to 100
+        SpectralAnalyzer analyzer = new SpectralAnalyzer(null, 40 / 60.0, 100 / 60.0, 1024, 2);
+        assertEquals(17, analyzer.getBinCount());
+        Random random = new Random(19);
+        for (int sample = 0; sample < 60 * SECONDS; sample++) {
+            analyzer.onFrame(time(sample), PackedFrame.pack(pulseWave(sample, 70, random), 2, 70, 97));
+        }
+        assertEquals(70, analyzer.getPeakRate(), 1);
+        assertTrue("quality " + analyzer.getQuality(), analyzer.getQuality() > 0.9);
+    }
+
+    @Test
+    public void staysAccurateForHours() {
+        SpectralAnalyzer analyzer = new SpectralAnalyzer(null);
+        Random random = new Random(23);
+        for (int sample = 0; sample < 3 * 60 * 60 * SECONDS; sample++) {
+            analyzer.onFrame(time(sample), PackedFrame.pack(pulseWave(sample, 66, random), 2, 66, 97));
+        }
+        assertEquals(66, analyzer.getPeakRate(), 2);
+        assertTrue("quality " + analyzer.getQuality(), analyzer.getQuality() > 0.9);
+    }
+
+    @Test
+    public void allocatesNothingPerFrame() throws IOException {
+        Random random = new Random(29);
+        final long[] rawFrames = new long[60 * SECONDS];
+        for (int i = 0; i < rawFrames.length; i++) {
+            rawFrames[i] = PackedFrame.pack(pulseWave(i, 120, random), 2, 120, 97);
+        }
+        final SpectralAnalyzer analyzer = new SpectralAnalyzer(null);
+        FrameTestSupport.assertAllocatesNothingPer(rawFrames.length, "frames", new FrameTestSupport.Pass() {
+            int sample = 0; // carries on from the warm up pass
+
+            @Override
+            public void run() {
+                for (long rawFrame : rawFrames) {
+                    analyzer.onFrame(time(sample++), rawFrame);
+                }
+            }
+        });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void bandAboveNyquistIsRejected() {
+        new SpectralAnalyzer(null, 1, 31, 512, 4);
+    }
+
+    /**
+     * A pulse wave like the CMS50FW's, with a quick rise, an exponential fall and a dicrotic notch.
+     */
+    private static int pulseWave(int sample, double rate, Random random) {
+        double phase = sample * rate / (60.0 * SECONDS);
+        phase -= Math.floor(phase);
+        double value;
+        if (phase < 0.15) {
+            value = (1 - Math.cos(phase / 0.15 * Math.PI)) / 2;
+        } else {
+            double notch = (phase - 0.45) / 0.05;
+            value = Math.exp(-(phase - 0.15) * 4) + 0.15 * Math.exp(-notch * notch);
+        }
+        return (int) Math.max(0, Math.min(127, Math.round(10 + 90 * value + random.nextGaussian())));
+    }
+}
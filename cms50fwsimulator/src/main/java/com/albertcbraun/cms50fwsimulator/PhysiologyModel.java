@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwsimulator;
+
+import com.albertcbraun.cms50fwlib.PackedFrame;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates a synthetic stream of CMS50FW frames, one per call to {@link #nextFrame()},
+ * at the device's rate of 60 frames per second of simulated time.
+ * <p>
+ * Between episodes, the heart rate wanders slowly around a resting baseline and the
+ * SpO2 stays at 96-98%. Episodes start at random, on average once every
+ * meanSecondsBetweenEpisodes:
+ * <ul>
+ * <li>{@link Episode#DESATURATION}: SpO2 falls to 78-88% over several seconds, holds, and recovers.</li>
+ * <li>{@link Episode#FINGER_OUT}: the frames the CMS50FW sends when the finger is out of the sleeve.</li>
+ * <li>{@link Episode#TACHYCARDIA}: the heart rate climbs to 130-180, above the 127 which fits in byte 5.</li>
+ * </ul>
+ * A pulse rate above 127 has its top bit in bit 6 of byte 4, as in the CMS50FW protocol
+ * document. The same seed always gives the same stream.
+ */
+public class PhysiologyModel {
+
+    public enum Episode {
+        NONE, DESATURATION, FINGER_OUT, TACHYCARDIA
+    }
+
+    public static final int FRAMES_PER_SECOND = 60;
+    public static final double DEFAULT_MEAN_SECONDS_BETWEEN_EPISODES = 120;
+
+    /**
+     * Bit 6 of byte 4 holds bit 7 of the pulse rate.
+     */
+    public static final int PULSE_RATE_BIT_SEVEN = 0x40;
+
+    private static final int FINGER_OUT_WAVE_FORM = 64;
+    private static final int FINGER_OUT_VALUE = 127;
+    private static final double SYSTOLIC_RISE = 0.15;
+    private static final int BYTE4_SHIFT = 32;
+    private static final String MEAN_SECONDS_MUST_BE_POSITIVE_MESSAGE =
+            "meanSecondsBetweenEpisodes must be positive: %f";
+
+    private final Random random;
+    private final double episodeStartProbability;
+
+    private double baselineHeartRate;
+    private double heartRate;
+    private double spo2;
+    private double phase = 0;
+    private Episode episode = Episode.NONE;
+    private int episodeFrame;
+    private int episodeLength;
+    private double episodeTarget;
+
+    public PhysiologyModel(long seed) {
+        this(seed, DEFAULT_MEAN_SECONDS_BETWEEN_EPISODES);
+    }
+
+    /**
+     * @param seed seed for the random choices, so runs can be repeated
+     * @param meanSecondsBetweenEpisodes average simulated time between the end of one episode and the start of the next
+     */
+    public PhysiologyModel(long seed, double meanSecondsBetweenEpisodes) {
+        if (meanSecondsBetweenEpisodes <= 0) {
+            throw new IllegalArgumentException(String.format(Locale.US, MEAN_SECONDS_MUST_BE_POSITIVE_MESSAGE,
+                    meanSecondsBetweenEpisodes));
+        }
+        this.random = new Random(seed);
+        this.episodeStartProbability = 1.0 / (meanSecondsBetweenEpisodes * FRAMES_PER_SECOND);
+        this.baselineHeartRate = 60 + random.nextInt(20);
+        this.heartRate = baselineHeartRate;
+        this.spo2 = 97;
+    }
+
+    /**
+     * Advances the simulation by one frame, 1/60 of a second.
+     *
+     * @return the next frame, packed as in {@link PackedFrame}
+     */
+    public long nextFrame() {
+        advanceEpisode();
+        if (episode == Episode.FINGER_OUT) {
+            return PackedFrame.pack(FINGER_OUT_WAVE_FORM, 0, FINGER_OUT_VALUE, FINGER_OUT_VALUE);
+        }
+        updateVitals();
+        phase += heartRate / (60.0 * FRAMES_PER_SECOND);
+        phase -= Math.floor(phase);
+        int waveForm = (int) Math.round(10 + 90 * pulseShape(phase));
+        int rate = (int) Math.round(heartRate);
+        int intensity = waveForm * 15 / 100;
+        if (rate > 127) {
+            intensity |= PULSE_RATE_BIT_SEVEN;
+        }
+        return PackedFrame.pack((byte) 0x80, (byte) 0, (byte) waveForm, (byte) intensity,
+                (byte) (rate & 0x7F), (byte) Math.round(spo2), (byte) 0, (byte) 0);
+    }
+
+    /**
+     * @return the episode the last frame belonged to
+     */
+    public Episode getEpisode() {
+        return episode;
+    }
+
+    /**
+     * Decodes the full pulse rate of a frame, including the bit kept in byte 4.
+     */
+    public static int pulseRate(long rawFrame) {
+        int bitSeven = ((rawFrame >>> BYTE4_SHIFT) & PULSE_RATE_BIT_SEVEN) != 0 ? 128 : 0;
+        return bitSeven | PackedFrame.pulseRate(rawFrame);
+    }
+
+    private void advanceEpisode() {
+        if (episode != Episode.NONE) {
+            if (++episodeFrame < episodeLength) {
+                return;
+            }
+            episode = Episode.NONE;
+        }
+        if (random.nextDouble() >= episodeStartProbability) {
+            return;
+        }
+        episodeFrame = 0;
+        switch (random.nextInt(3)) {
+            case 0:
+                episode = Episode.DESATURATION;
+                episodeLength = seconds(20 + random.nextInt(41));
+                episodeTarget = 78 + random.nextInt(11);
+                break;
+            case 1:
+                episode = Episode.FINGER_OUT;
+                episodeLength = seconds(3 + random.nextInt(28));
+                break;
+            default:
+                episode = Episode.TACHYCARDIA;
+                episodeLength = seconds(30 + random.nextInt(91));
+                episodeTarget = 130 + random.nextInt(51);
+                break;
+        }
+    }
+
+    /**
+     * Moves heart rate and SpO2 a small step toward where the current episode wants them.
+     */
+    private void updateVitals() {
+        // the resting rate wanders slowly
+        baselineHeartRate += (random.nextDouble() - 0.5) * 0.02;
+        baselineHeartRate = Math.max(55, Math.min(85, baselineHeartRate));
+
+        double targetHeartRate = baselineHeartRate;
+        double targetSpo2 = 97 + (random.nextInt(3) - 1) * 0.5;
+        double progress = episodeLength == 0 ? 0 : (double) episodeFrame / episodeLength;
+        if (episode == Episode.DESATURATION && progress < 0.7) {
+            targetSpo2 = episodeTarget;
+            targetHeartRate = baselineHeartRate + 10;
+        } else if (episode == Episode.TACHYCARDIA && progress < 0.8) {
+            targetHeartRate = episodeTarget;
+        }
+        // about 5 seconds to move most of the way
+        heartRate += (targetHeartRate - heartRate) / (3.0 * FRAMES_PER_SECOND);
+        spo2 += (targetSpo2 - spo2) / (3.0 * FRAMES_PER_SECOND);
+    }
+
+    /**
+     * A pulse wave: a quick systolic rise, an exponential fall, and a small dicrotic notch.
+     *
+     * @param phase position within one heart beat, from 0 to 1
+     * @return the height of the wave, from 0 to 1
+     */
+    private static double pulseShape(double phase) {
+        if (phase < SYSTOLIC_RISE) {
+            return Math.sin(phase / SYSTOLIC_RISE * Math.PI / 2);
+        }
+        double notch = (phase - 0.45) / 0.05;
+        double value = Math.exp(-(phase - SYSTOLIC_RISE) * 4) + 0.15 * Math.exp(-notch * notch);
+        return Math.min(1, value);
+    }
+
+    private static int seconds(int seconds) {
+        return seconds * FRAMES_PER_SECOND;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwsimulator;
+
+import com.albertcbraun.cms50fwlib.Transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.Pipe;
+
+/**
+ * A {@link Transport} to a {@link SimulatedCMS50FW} over a pair of in-process
+ * pipes. Each {@link #open()} makes a new connection to the device, so this
+ * transport can be reopened after the device drops it.
+ */
+class PipeTransport implements Transport {
+
+    /**
+     * The client's ends of the two pipes of one connection.
+     */
+    static class Ends {
+        final Pipe.SourceChannel frames;
+        final Pipe.SinkChannel commands;
+
+        Ends(Pipe.SourceChannel frames, Pipe.SinkChannel commands) {
+            this.frames = frames;
+            this.commands = commands;
+        }
+    }
+
+    private final SimulatedCMS50FW device;
+    private volatile Ends ends = null;
+    private ByteBuffer readBuffer = null;
+    private ByteBuffer writeBuffer = null;
+
+    PipeTransport(SimulatedCMS50FW device) {
+        this.device = device;
+    }
+
+    @Override
+    public void open() throws IOException {
+        close();
+        ends = device.connectPipe();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        Ends current = ends;
+        if (current == null) {
+            throw new ClosedChannelException();
+        }
+        if (readBuffer == null || readBuffer.array() != buffer) {
+            readBuffer = ByteBuffer.wrap(buffer);
+        }
+        readBuffer.limit(offset + length).position(offset);
+        return current.frames.read(readBuffer);
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+        Ends current = ends;
+        if (current == null) {
+            throw new ClosedChannelException();
+        }
+        if (writeBuffer == null || writeBuffer.array() != bytes) {
+            writeBuffer = ByteBuffer.wrap(bytes);
+        }
+        writeBuffer.limit(offset + length).position(offset);
+        while (writeBuffer.hasRemaining()) {
+            current.commands.write(writeBuffer);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        Ends current = ends;
+        return current != null && current.frames.isOpen() && current.commands.isOpen();
+    }
+
+    @Override
+    public void close() {
+        Ends current = ends;
+        ends = null;
+        if (current != null) {
+            try {
+                current.frames.close();
+            } catch (IOException e) {
+                // nothing more can be done with it
+            }
+            try {
+                current.commands.close();
+            } catch (IOException e) {
+                // nothing more can be done with it
+            }
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwsimulator;
+
+import com.albertcbraun.cms50fwlib.CMS50FWCommand;
+import com.albertcbraun.cms50fwlib.CommandEncoder;
+import com.albertcbraun.cms50fwlib.FrameDecoder;
+import com.albertcbraun.cms50fwlib.Transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A simulated CMS50FW. It answers {@link CMS50FWCommand#START_DATA},
+ * {@link CMS50FWCommand#STOP_DATA} and {@link CMS50FWCommand#STAY_CONNECTED}, and
+ * while started, streams 8 byte frames from a {@link PhysiologyModel}.
+ * <p>
+ * Clients reach it through {@link #pipeTransport()}, an in-process pipe, or
+ * through a loopback TCP socket at the address returned by {@link #listen()},
+ * for example with a {@link com.albertcbraun.cms50fwlib.SocketChannelTransport}.
+ * Each connection gets its own model, with a seed derived from this device's seed.
+ * <p>
+ * Frames are sent at 60 per second times the speedup, which may be up to
+ * {@link #MAX_SPEEDUP}. At that speed, 24 hours of data take under 90 seconds.
+ */
+public class SimulatedCMS50FW {
+
+    public static final int MAX_SPEEDUP = 1000;
+
+    private static final int MAX_FRAMES_PER_WRITE = 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final String SPEEDUP_OUT_OF_RANGE_MESSAGE = "speedup must be from 1 to %d: %d";
+
+    private final long seed;
+    private final int speedup;
+    private final double meanSecondsBetweenEpisodes;
+    private final Set<Connection> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicInteger startCount = new AtomicInteger();
+    private final AtomicInteger stopCount = new AtomicInteger();
+    private final AtomicInteger stayConnectedCount = new AtomicInteger();
+    private volatile ServerSocketChannel serverChannel = null;
+
+    public SimulatedCMS50FW(long seed, int speedup) {
+        this(seed, speedup, PhysiologyModel.DEFAULT_MEAN_SECONDS_BETWEEN_EPISODES);
+    }
+
+    /**
+     * @param seed seed for the physiology models
+     * @param speedup how many times faster than real time to send frames, from 1 to {@link #MAX_SPEEDUP}
+     * @param meanSecondsBetweenEpisodes passed to each {@link PhysiologyModel}
+     */
+    public SimulatedCMS50FW(long seed, int speedup, double meanSecondsBetweenEpisodes) {
+        if (speedup < 1 || speedup > MAX_SPEEDUP) {
+            throw new IllegalArgumentException(String.format(Locale.US, SPEEDUP_OUT_OF_RANGE_MESSAGE,
+                    MAX_SPEEDUP, speedup));
+        }
+        this.seed = seed;
+        this.speedup = speedup;
+        this.meanSecondsBetweenEpisodes = meanSecondsBetweenEpisodes;
+    }
+
+    /**
+     * @return a transport which, each time it is opened, connects to this device through a new in-process pipe
+     */
+    public Transport pipeTransport() {
+        return new PipeTransport(this);
+    }
+
+    /**
+     * Starts accepting TCP connections on the loopback interface, if not already started.
+     *
+     * @return the address to connect to
+     * @throws IOException if the server socket can't be opened
+     */
+    public synchronized InetSocketAddress listen() throws IOException {
+        if (serverChannel == null) {
+            final ServerSocketChannel server = ServerSocketChannel.open();
+            server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            serverChannel = server;
+            startThread("simulated-cms50fw-accept", new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            SocketChannel channel = server.accept();
+                            channel.socket().setTcpNoDelay(true);
+                            serve(channel, channel);
+                        }
+                    } catch (IOException e) {
+                        // the server was shut down
+                    }
+                }
+            });
+        }
+        return (InetSocketAddress) serverChannel.socket().getLocalSocketAddress();
+    }
+
+    /**
+     * Drops every open connection, as if the CMS50FW had gone out of range.
+     * New connections are still accepted.
+     */
+    public void disconnectAll() {
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Stops accepting connections and drops the open ones.
+     */
+    public synchronized void shutdown() {
+        if (serverChannel != null) {
+            closeQuietly(serverChannel);
+            serverChannel = null;
+        }
+        disconnectAll();
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public int getStartCount() {
+        return startCount.get();
+    }
+
+    public int getStopCount() {
+        return stopCount.get();
+    }
+
+    public int getStayConnectedCount() {
+        return stayConnectedCount.get();
+    }
+
+    /**
+     * @return the number of connections made since this device was created
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Connects a new pipe pair to this device.
+     *
+     * @return the client's ends: frames to read and commands to write
+     */
+    PipeTransport.Ends connectPipe() throws IOException {
+        Pipe frames = Pipe.open();
+        Pipe commands = Pipe.open();
+        serve(commands.source(), frames.sink());
+        return new PipeTransport.Ends(frames.source(), commands.sink());
+    }
+
+    private void serve(ReadableByteChannel commandsIn, WritableByteChannel framesOut) {
+        int index = connectionCount.getAndIncrement();
+        final Connection connection = new Connection(commandsIn, framesOut,
+                new PhysiologyModel(seed + index, meanSecondsBetweenEpisodes));
+        connections.add(connection);
+        startThread("simulated-cms50fw-commands-" + index, new Runnable() {
+            @Override
+            public void run() {
+                connection.readCommands();
+            }
+        });
+        startThread("simulated-cms50fw-frames-" + index, new Runnable() {
+            @Override
+            public void run() {
+                connection.sendFrames();
+            }
+        });
+    }
+
+    private static void startThread(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing more can be done with it
+        }
+    }
+
+    /**
+     * One client connection: a thread reading commands, and a thread sending frames.
+     */
+    private class Connection {
+        private final ReadableByteChannel commandsIn;
+        private final WritableByteChannel framesOut;
+        private final PhysiologyModel model;
+        private volatile boolean open = true;
+        private volatile boolean streaming = false;
+        private volatile int streamGeneration = 0;
+
+        Connection(ReadableByteChannel commandsIn, WritableByteChannel framesOut, PhysiologyModel model) {
+            this.commandsIn = commandsIn;
+            this.framesOut = framesOut;
+            this.model = model;
+        }
+
+        void readCommands() {
+            ByteBuffer buffer = ByteBuffer.allocate(256);
+            byte[] command = new byte[CommandEncoder.COMMAND_LENGTH];
+            int commandLength = 0;
+            try {
+                while (open && commandsIn.read(buffer) >= 0) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        byte b = buffer.get();
+                        if (commandLength == 0 && b != CMS50FWCommand.COMMAND_FOLLOWS.asByte()) {
+                            continue; // not the start of a command
+                        }
+                        command[commandLength++] = b;
+                        if (commandLength == CommandEncoder.COMMAND_LENGTH) {
+                            onCommand(command[2]);
+                            commandLength = 0;
+                        }
+                    }
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                // the connection was dropped
+            } finally {
+                close();
+            }
+        }
+
+        private void onCommand(byte command) {
+            if (command == CMS50FWCommand.START_DATA.asByte()) {
+                startCount.incrementAndGet();
+                streamGeneration++;
+                streaming = true;
+            } else if (command == CMS50FWCommand.STOP_DATA.asByte()) {
+                stopCount.incrementAndGet();
+                streaming = false;
+            } else if (command == CMS50FWCommand.STAY_CONNECTED.asByte()) {
+                stayConnectedCount.incrementAndGet();
+            }
+        }
+
+        void sendFrames() {
+            ByteBuffer buffer = ByteBuffer.allocate(MAX_FRAMES_PER_WRITE * FrameDecoder.FRAME_LENGTH);
+            long framesPerSecond = (long) PhysiologyModel.FRAMES_PER_SECOND * speedup;
+            long nanosPerSecond = TimeUnit.SECONDS.toNanos(1);
+            int generation = -1;
+            long startNanos = 0;
+            long sent = 0;
+            try {
+                while (open) {
+                    if (!streaming) {
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                        continue;
+                    }
+                    if (generation != streamGeneration) {
+                        // a new START_DATA restarts the clock, so a pause doesn't cause a burst
+                        generation = streamGeneration;
+                        startNanos = System.nanoTime();
+                        sent = 0;
+                    }
+                    long elapsedNanos = System.nanoTime() - startNanos;
+                    long due = elapsedNanos * framesPerSecond / nanosPerSecond - sent;
+                    if (due <= 0) {
+                        long nextFrameNanos = (sent + 1) * nanosPerSecond / framesPerSecond;
+                        LockSupport.parkNanos(Math.min(IDLE_PARK_NANOS, nextFrameNanos - elapsedNanos));
+                        continue;
+                    }
+                    int count = (int) Math.min(due, MAX_FRAMES_PER_WRITE);
+                    buffer.clear();
+                    for (int i = 0; i < count; i++) {
+                        buffer.putLong(model.nextFrame());
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        framesOut.write(buffer);
+                    }
+                    sent += count;
+                    framesSent.addAndGet(count);
+                }
+            } catch (IOException e) {
+                // the connection was dropped
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            open = false;
+            connections.remove(this);
+            closeQuietly(commandsIn);
+            closeQuietly(framesOut);
+        }
+    }
+}
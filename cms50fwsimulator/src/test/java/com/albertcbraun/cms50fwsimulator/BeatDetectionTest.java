@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwsimulator;
+
+import com.albertcbraun.cms50fwlib.BeatDetector;
+import com.albertcbraun.cms50fwlib.FrameClock;
+import com.albertcbraun.cms50fwlib.PackedFrame;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link BeatDetector} over simulated hours which include tachycardia, and compares
+ * the heart rate it derives from the pulse wave with the full rate the model sends, which
+ * the pulse rate byte can't hold above 127.
+ */
+public class BeatDetectionTest {
+
+    private static final int FRAMES = 4 * 60 * 60 * PhysiologyModel.FRAMES_PER_SECOND;
+    private static final int STEADY_FRAMES = 5 * PhysiologyModel.FRAMES_PER_SECOND;
+    private static final double TOLERANCE_BPM = 5;
+
+    @Test
+    public void rateAbove127IsFollowed() {
+        PhysiologyModel model = new PhysiologyModel(5, 60);
+        BeatDetector beatDetector = new BeatDetector(null);
+        int[] trueRates = new int[STEADY_FRAMES];
+        int fastFrames = 0;
+        int instantaneousMatched = 0;
+        int steadyFrames = 0;
+        int averagedMatched = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            long rawFrame = model.nextFrame();
+            beatDetector.onFrame(Math.round(i * FrameClock.NOMINAL_PERIOD_MS), rawFrame);
+            int trueRate = PackedFrame.isFingerOutOfSleeve(rawFrame) ? -1 : PhysiologyModel.pulseRate(rawFrame);
+            int earlierRate = trueRates[i % STEADY_FRAMES];
+            trueRates[i % STEADY_FRAMES] = trueRate;
+            if (trueRate <= 127 || beatDetector.getAveragedRate() == 0) {
+                continue;
+            }
+            fastFrames++;
+            if (Math.abs(beatDetector.getInstantaneousRate() - trueRate) <= TOLERANCE_BPM) {
+                instantaneousMatched++;
+            }
+            // the average lags by a few beats while the rate climbs, so only compare it once the rate holds
+            if (i >= STEADY_FRAMES && Math.abs(earlierRate - trueRate) <= 2) {
+                steadyFrames++;
+                if (Math.abs(beatDetector.getAveragedRate() - trueRate) <= TOLERANCE_BPM) {
+                    averagedMatched++;
+                }
+            }
+        }
+
+        assertTrue("frames above 127 bpm " + fastFrames, fastFrames > 60 * 60);
+        assertTrue(instantaneousMatched + " of " + fastFrames, instantaneousMatched > 0.95 * fastFrames);
+        assertTrue("steady frames " + steadyFrames, steadyFrames > fastFrames / 2);
+        assertTrue(averagedMatched + " of " + steadyFrames, averagedMatched > 0.99 * steadyFrames);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwsimulator;
+
+import com.albertcbraun.cms50fwlib.PackedFrame;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Generates a simulated day of frames from {@link PhysiologyModel} and checks what is in it.
+ */
+public class PhysiologyModelTest {
+
+    private static final int FRAMES_PER_DAY = 24 * 60 * 60 * PhysiologyModel.FRAMES_PER_SECOND;
+
+    @Test
+    public void dayContainsEveryKindOfEpisode() {
+        PhysiologyModel model = new PhysiologyModel(1);
+        int desaturatedFrames = 0;
+        int fingerOutFrames = 0;
+        int fastFrames = 0;
+        int minimumSpo2 = 100;
+        int maximumRate = 0;
+        for (int i = 0; i < FRAMES_PER_DAY; i++) {
+            long rawFrame = model.nextFrame();
+            assertValidFrame(rawFrame);
+            if (PackedFrame.isFingerOutOfSleeve(rawFrame)) {
+                assertEquals(PhysiologyModel.Episode.FINGER_OUT, model.getEpisode());
+                fingerOutFrames++;
+                continue;
+            }
+            int spo2 = PackedFrame.spo2Percentage(rawFrame);
+            int rate = PhysiologyModel.pulseRate(rawFrame);
+            minimumSpo2 = Math.min(minimumSpo2, spo2);
+            maximumRate = Math.max(maximumRate, rate);
+            if (spo2 < 90) {
+                desaturatedFrames++;
+            }
+            if (rate > 127) {
+                fastFrames++;
+                // the library only sees the low 7 bits
+                assertEquals(rate - 128, PackedFrame.pulseRate(rawFrame));
+            }
+            assertTrue(spo2 >= 75 && spo2 <= 100);
+            assertTrue(rate >= 50 && rate <= 185);
+        }
+
+        assertTrue("desaturated frames " + desaturatedFrames, desaturatedFrames > 0);
+        assertTrue("finger out frames " + fingerOutFrames, fingerOutFrames > 0);
+        assertTrue("frames above 127 bpm " + fastFrames, fastFrames > 0);
+        assertTrue(minimumSpo2 <= 88);
+        assertTrue(maximumRate >= 130);
+    }
+
+    @Test
+    public void sameSeedGivesSameStream() {
+        PhysiologyModel first = new PhysiologyModel(99, 10);
+        PhysiologyModel second = new PhysiologyModel(99, 10);
+        for (int i = 0; i < 100000; i++) {
+            assertEquals(first.nextFrame(), second.nextFrame());
+        }
+    }
+
+    /**
+     * Only the first byte of a frame has its top bit set, so the decoder can find frame boundaries.
+     */
+    private static void assertValidFrame(long rawFrame) {
+        assertTrue((rawFrame >>> 63) == 1);
+        for (int shift = 0; shift < 56; shift += 8) {
+            assertEquals(0, (rawFrame >>> shift) & 0x80);
+        }
+    }
+}
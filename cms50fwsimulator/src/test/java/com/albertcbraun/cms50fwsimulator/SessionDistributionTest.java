@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwsimulator;
+
+import com.albertcbraun.cms50fwlib.PackedFrame;
+import com.albertcbraun.cms50fwlib.SessionDistribution;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the percentiles of simulated nights, summarized by {@link SessionDistribution}s,
+ * saved and merged, with the exact percentiles of the frames.
+ */
+public class SessionDistributionTest {
+
+    private static final int FRAMES_PER_NIGHT = 8 * 60 * 60 * PhysiologyModel.FRAMES_PER_SECOND;
+    private static final int NIGHTS = 7;
+    // the bound over a whole distribution at the default k, as a fraction of the frames
+    private static final double RANK_ERROR = 0.0165;
+
+    @Test
+    public void weekOfNightsMatchesExactPercentiles() throws IOException {
+        long[] spo2Counts = new long[128];
+        long[] pulseRateCounts = new long[128];
+        SessionDistribution week = new SessionDistribution();
+        for (int night = 0; night < NIGHTS; night++) {
+            // each night's distribution is saved, then read back and merged, as a multi-night report would
+            SessionDistribution session = new SessionDistribution();
+            PhysiologyModel model = new PhysiologyModel(100 + night, 60);
+            for (int i = 0; i < FRAMES_PER_NIGHT; i++) {
+                long rawFrame = model.nextFrame();
+                boolean fingerOut = PackedFrame.isFingerOutOfSleeve(rawFrame);
+                session.add(PackedFrame.spo2Percentage(rawFrame), PackedFrame.pulseRate(rawFrame), fingerOut);
+                if (!fingerOut) {
+                    spo2Counts[PackedFrame.spo2Percentage(rawFrame)]++;
+                    pulseRateCounts[PackedFrame.pulseRate(rawFrame)]++;
+                }
+            }
+            week.merge(saveAndLoad(session));
+        }
+
+        long frames = 0;
+        for (long count : spo2Counts) {
+            frames += count;
+        }
+        assertEquals(frames, week.getFrameCount());
+        assertQuantile(spo2Counts, frames, 0.05, week.getSpo2Percentage().getQuantile(0.05));
+        assertQuantile(spo2Counts, frames, 0.5, week.getSpo2Percentage().getQuantile(0.5));
+        assertQuantile(pulseRateCounts, frames, 0.5, week.getPulseRate().getQuantile(0.5));
+        assertQuantile(pulseRateCounts, frames, 0.95, week.getPulseRate().getQuantile(0.95));
+
+        long framesBelow90 = 0;
+        for (int spo2 = 0; spo2 < 90; spo2++) {
+            framesBelow90 += spo2Counts[spo2];
+        }
+        double exactSeconds = (double) framesBelow90 / PhysiologyModel.FRAMES_PER_SECOND;
+        double allowedSeconds = RANK_ERROR * frames / PhysiologyModel.FRAMES_PER_SECOND;
+        assertTrue(framesBelow90 > 0);
+        assertEquals(exactSeconds, week.getSecondsBelowSpo2(90), allowedSeconds);
+    }
+
+    private static SessionDistribution saveAndLoad(SessionDistribution session) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        session.writeTo(new DataOutputStream(bytes));
+        assertTrue(bytes.size() + " bytes", bytes.size() < 8 * 1024);
+        return SessionDistribution.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    /**
+     * Checks that the fraction falls within the ranks of the value's frames, give or take the error bound.
+     */
+    private static void assertQuantile(long[] counts, long frames, double fraction, float quantile) {
+        int value = (int) quantile;
+        assertEquals(value, quantile, 0);
+        long below = 0;
+        for (int i = 0; i < value; i++) {
+            below += counts[i];
+        }
+        double low = (double) below / frames;
+        double high = (double) (below + counts[value]) / frames;
+        assertTrue("quantile " + fraction + " = " + value + " has rank " + low + " to " + high,
+                fraction >= low - RANK_ERROR && fraction <= high + RANK_ERROR);
+    }
+}
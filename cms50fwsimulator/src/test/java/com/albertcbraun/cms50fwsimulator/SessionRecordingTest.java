@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwsimulator;
+
+import com.albertcbraun.cms50fwlib.PackedFrame;
+import com.albertcbraun.cms50fwlib.SessionReader;
+import com.albertcbraun.cms50fwlib.SessionRecorder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records simulated overnight sessions with {@link SessionRecorder} and reads them back
+ * with {@link SessionReader}.
+ */
+public class SessionRecordingTest {
+
+    private static final int FRAMES_PER_EIGHT_HOURS = 8 * 60 * 60 * PhysiologyModel.FRAMES_PER_SECOND;
+    private static final long START_TIME = 1792281600000L;
+    private static final int GAP_EVERY_FRAMES = 45 * 60 * PhysiologyModel.FRAMES_PER_SECOND;
+    private static final int GAP_FRAMES = 7 * PhysiologyModel.FRAMES_PER_SECOND;
+
+    @Test
+    public void eightHourSessionsRoundTripUnderTwoBytesPerFrame() throws IOException {
+        for (long seed = 1; seed <= 3; seed++) {
+            roundTrip(seed);
+        }
+    }
+
+    private void roundTrip(long seed) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SessionRecorder recorder = new SessionRecorder(bytes);
+        PhysiologyModel model = new PhysiologyModel(seed, 60);
+        // a few dropouts during the night, when frames are lost for several seconds
+        for (int i = 0; i < FRAMES_PER_EIGHT_HOURS; i++) {
+            long rawFrame = model.nextFrame();
+            if (i % GAP_EVERY_FRAMES < GAP_FRAMES && i >= GAP_EVERY_FRAMES) {
+                continue;
+            }
+            recorder.record(timeOf(i), rawFrame);
+        }
+        recorder.close();
+
+        double bytesPerFrame = (double) bytes.size() / recorder.getFramesRecorded();
+        assertTrue("seed " + seed + ": " + bytesPerFrame + " bytes per frame", bytesPerFrame < 2.0);
+
+        SessionReader reader = new SessionReader(new ByteArrayInputStream(bytes.toByteArray()));
+        PhysiologyModel expected = new PhysiologyModel(seed, 60);
+        PackedFrame frame = new PackedFrame();
+        long framesRead = 0;
+        for (int i = 0; i < FRAMES_PER_EIGHT_HOURS; i++) {
+            long rawFrame = expected.nextFrame();
+            if (i % GAP_EVERY_FRAMES < GAP_FRAMES && i >= GAP_EVERY_FRAMES) {
+                continue;
+            }
+            assertTrue(reader.next(frame));
+            assertEquals("frame " + i, rawFrame, frame.rawFrame());
+            assertEquals("frame " + i, i, reader.sampleIndex());
+            assertTrue("frame " + i, Math.abs(frame.time() - timeOf(i)) <= 1);
+            framesRead++;
+        }
+        assertFalse(reader.next(frame));
+        assertEquals(recorder.getFramesRecorded(), framesRead);
+        reader.close();
+    }
+
+    private static long timeOf(int frameIndex) {
+        return START_TIME + frameIndex * 1000L / PhysiologyModel.FRAMES_PER_SECOND;
+    }
+}
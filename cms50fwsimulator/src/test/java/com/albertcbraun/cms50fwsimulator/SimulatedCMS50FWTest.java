@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2015 Albert C. Braun
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.albertcbraun.cms50fwsimulator;
+
+import com.albertcbraun.cms50fwlib.CMS50FWCommand;
+import com.albertcbraun.cms50fwlib.CommandEncoder;
+import com.albertcbraun.cms50fwlib.ConnectionStateListener;
+import com.albertcbraun.cms50fwlib.ConnectionStateMachine;
+import com.albertcbraun.cms50fwlib.FrameDecoder;
+import com.albertcbraun.cms50fwlib.ReconnectPolicy;
+import com.albertcbraun.cms50fwlib.SocketChannelTransport;
+import com.albertcbraun.cms50fwlib.Transport;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Connects to a {@link SimulatedCMS50FW} over a pipe and over loopback TCP, and
+ * checks its pacing and its answers to commands.
+ */
+public class SimulatedCMS50FWTest {
+
+    private static final long TIMEOUT_MS = 20000;
+
+    @Test
+    public void streamsAtRealTimeOverPipe() throws Exception {
+        SimulatedCMS50FW device = new SimulatedCMS50FW(1, 1);
+        Session session = new Session(device.pipeTransport(), 60000);
+
+        Thread.sleep(1000);
+        int frames = session.frames.get();
+        session.stop();
+        device.shutdown();
+
+        // 60 frames per second
+        assertTrue(frames + " frames", frames >= 40 && frames <= 80);
+        assertEquals(1, device.getStartCount());
+    }
+
+    @Test
+    public void streamsAtThousandTimesRealTimeOverTcp() throws Exception {
+        SimulatedCMS50FW device = new SimulatedCMS50FW(2, SimulatedCMS50FW.MAX_SPEEDUP);
+        Session session = new Session(new SocketChannelTransport(device.listen()), 50);
+
+        long start = System.nanoTime();
+        Thread.sleep(1000);
+        int frames = session.frames.get();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        session.stop();
+        device.shutdown();
+
+        long framesPerSecond = frames * 1000L / elapsedMs;
+        // 60000 frames per second, allowing for a slow start on a loaded machine
+        assertTrue(framesPerSecond + " frames/s", framesPerSecond >= 30000 && framesPerSecond <= 70000);
+        assertTrue(device.getStayConnectedCount() > 0);
+    }
+
+    @Test
+    public void stopDataStopsFrames() throws Exception {
+        SimulatedCMS50FW device = new SimulatedCMS50FW(3, 100);
+        final Transport transport = device.pipeTransport();
+        transport.open();
+        final AtomicLong bytesRead = new AtomicLong();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[4096];
+                try {
+                    int count;
+                    while ((count = transport.read(buffer, 0, buffer.length)) >= 0) {
+                        bytesRead.addAndGet(count);
+                    }
+                } catch (IOException e) {
+                    // closed by the test
+                }
+            }
+        });
+        reader.start();
+
+        CommandEncoder.write(transport, CMS50FWCommand.START_DATA, CMS50FWCommand.PADDING);
+        awaitBytes(bytesRead, 100 * FrameDecoder.FRAME_LENGTH);
+        CommandEncoder.write(transport, CMS50FWCommand.STOP_DATA, CMS50FWCommand.PADDING);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (device.getStopCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Thread.sleep(50);
+        long framesAfterStop = device.getFramesSent();
+        Thread.sleep(200);
+
+        assertEquals(framesAfterStop, device.getFramesSent());
+        transport.close();
+        reader.join(TIMEOUT_MS);
+        assertFalse(reader.isAlive());
+        device.shutdown();
+    }
+
+    @Test
+    public void dropoutIsBridgedByReconnect() throws Exception {
+        SimulatedCMS50FW device = new SimulatedCMS50FW(4, 10);
+        Session session = new Session(device.pipeTransport(), 60000);
+        session.awaitFrames(100);
+
+        device.disconnectAll();
+        int framesAtDropout = session.frames.get();
+        session.awaitFrames(framesAtDropout + 100);
+        session.stop();
+        device.shutdown();
+
+        assertEquals(2, device.getConnectionCount());
+        assertEquals(2, device.getStartCount());
+        assertEquals(1, session.resumes.get());
+    }
+
+    private static void awaitBytes(AtomicLong bytes, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (bytes.get() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(bytes.get() >= count);
+    }
+
+    /**
+     * Reads from the device through a {@link ConnectionStateMachine} on its own thread.
+     */
+    private static class Session implements FrameDecoder.FrameHandler, ConnectionStateListener {
+        final AtomicInteger frames = new AtomicInteger();
+        final AtomicInteger resumes = new AtomicInteger();
+        final Transport transport;
+        final ConnectionStateMachine machine;
+        final Thread thread;
+
+        Session(Transport transport, long keepAlivePeriodMs) {
+            this.transport = transport;
+            machine = new ConnectionStateMachine(transport,
+                    new ReconnectPolicy(10, 100, 2000, keepAlivePeriodMs, 0), this, this);
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    machine.run();
+                }
+            });
+            thread.start();
+        }
+
+        void awaitFrames(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (frames.get() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertTrue(frames.get() >= count);
+        }
+
+        void stop() throws InterruptedException {
+            machine.stop();
+            transport.close();
+            thread.join(TIMEOUT_MS);
+            assertFalse(thread.isAlive());
+        }
+
+        @Override
+        public void onFrame(long rawFrame) {
+            frames.incrementAndGet();
+        }
+
+        @Override
+        public void onConnectionStateChanged(ConnectionStateMachine.State state) {
+        }
+
+        @Override
+        public void onDataResumed(long gapMs) {
+            resumes.incrementAndGet();
+        }
+    }
+}